@@ -1,11 +1,17 @@
 package com.example.bluetoothpracticetree;
 
+import android.Manifest;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
+
+import com.example.bluetoothpracticetree.utility.AndroidTracer;
 
 public class HomeActivity extends AppCompatActivity {
 
@@ -13,9 +19,12 @@ public class HomeActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_home);
+        AndroidTracer.install(this);
 
         Button hostButton = findViewById(R.id.host_button);
         Button joinButton = findViewById(R.id.join_button);
+        Button peerButton = findViewById(R.id.peer_button);
+        Button spectateButton = findViewById(R.id.spectate_button);
         Button settingsButton = findViewById(R.id.settings_button);
 
         hostButton.setOnClickListener(new View.OnClickListener() {
@@ -34,6 +43,41 @@ public class HomeActivity extends AppCompatActivity {
             }
         });
 
+        // A peer race goes straight to the race screen, which finds the other device itself
+        peerButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // Finding the peer needs a scan, which needs the location permission
+                if (ContextCompat.checkSelfPermission(HomeActivity.this,
+                        Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+                    ActivityCompat.requestPermissions(HomeActivity.this,
+                            new String[] {Manifest.permission.ACCESS_FINE_LOCATION},
+                    0);
+                    return;
+                }
+                Intent intent = new Intent(getApplicationContext(), RaceActivity.class);
+                intent.putExtra("RACER_ID", 1);
+                intent.putExtra("PEER", true);
+                startActivity(intent);
+            }
+        });
+
+        // Spectators only scan for the race the host advertises, which needs the location permission
+        spectateButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (ContextCompat.checkSelfPermission(HomeActivity.this,
+                        Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+                    ActivityCompat.requestPermissions(HomeActivity.this,
+                            new String[] {Manifest.permission.ACCESS_FINE_LOCATION},
+                    0);
+                    return;
+                }
+                Intent intent = new Intent(getApplicationContext(), SpectatorActivity.class);
+                startActivity(intent);
+            }
+        });
+
         settingsButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
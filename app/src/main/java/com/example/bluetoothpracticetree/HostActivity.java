@@ -12,18 +12,24 @@ import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CompoundButton;
 import android.widget.ProgressBar;
+import android.widget.Switch;
 import android.widget.TextView;
 
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.example.bluetoothpracticetree.utility.BleServerService;
+import com.example.bluetoothpracticetree.utility.LinkOverlay;
+import com.example.bluetoothpracticetree.utility.SocketServer;
 
 /*
     This activity starts the BLE Server on the host user's device, and begins advertising for
     clients. When all clients have connected, the server sends a signal that this activity reads,
-    and allows the host to start the race for all clients.
+    and allows the host to start the race for all clients. The host can also accept clients over
+    Wi-Fi, and this activity shows the address they join at. The host can also show the quality
+    of each client's link, to see which lane has a weak one before the race begins.
  */
 
 public class HostActivity extends AppCompatActivity {
@@ -34,6 +40,9 @@ public class HostActivity extends AppCompatActivity {
     private TextView progressLabel;
     private ProgressBar progressBar;
     private Button beginButton;
+    private Switch wifiSwitch;
+    private TextView wifiAddress;
+    private LinkOverlay linkOverlay;
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
@@ -61,6 +70,32 @@ public class HostActivity extends AppCompatActivity {
         });
         beginButton.setEnabled(false);
 
+        // Remember whether to accept clients over Wi-Fi, for the next time this device hosts
+        final SharedPreferences preferences = getSharedPreferences("RACE_PREFS", Context.MODE_PRIVATE);
+        wifiAddress = findViewById(R.id.wifi_address);
+        wifiSwitch = findViewById(R.id.wifi_switch);
+        wifiSwitch.setChecked(preferences.getBoolean("wifi_transport", false));
+        wifiSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                preferences.edit().putBoolean("wifi_transport", isChecked).apply();
+                setWifiTransport(isChecked);
+            }
+        });
+
+        // The link overlay is shown on every race screen once it has been turned on
+        linkOverlay = new LinkOverlay((TextView) findViewById(R.id.link_overlay));
+        Switch linkOverlaySwitch = findViewById(R.id.link_overlay_switch);
+        linkOverlaySwitch.setChecked(preferences.getBoolean("link_overlay", false));
+        linkOverlaySwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                preferences.edit().putBoolean("link_overlay", isChecked).apply();
+                linkOverlay.setShown(isChecked);
+            }
+        });
+        linkOverlay.setShown(linkOverlaySwitch.isChecked());
+
         // Bind server service to this activity
         Intent gattServerServiceIntent = new Intent(this, BleServerService.class);
         bindService(gattServerServiceIntent, serviceConnection, BIND_AUTO_CREATE);
@@ -74,16 +109,18 @@ public class HostActivity extends AppCompatActivity {
             // Get a handle for the server service
             serverService = ((BleServerService.LocalBinder) service).getService();
             // Register a listener for service broadcasts
-            registerReceiver(gattServerUpdateReceiver, makeGattUpdateIntentFilter());
+            serverService.registerUpdateReceiver(gattServerUpdateReceiver, makeGattUpdateIntentFilter());
 
             if (!serverService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
             setDialIn();
+            linkOverlay.setStats(serverService.getLinkStats(), 1, 2, 3);
 
             // Start advertising for clients immediately
             serverService.advertise();
+            setWifiTransport(wifiSwitch.isChecked());
         }
 
         @Override
@@ -94,8 +131,9 @@ public class HostActivity extends AppCompatActivity {
 
     @Override
     protected void onStop() {
-        unregisterReceiver(gattServerUpdateReceiver);
+        linkOverlay.stop();
         if (serverService != null) {
+            serverService.unregisterUpdateReceiver(gattServerUpdateReceiver);
             unbindService(serviceConnection);
         }
         super.onStop();
@@ -135,6 +173,27 @@ public class HostActivity extends AppCompatActivity {
         beginButton.setEnabled(start);
     }
 
+    // Start or stop accepting clients over Wi-Fi, and show the address to join at
+    private void setWifiTransport(boolean enabled) {
+        if (!enabled) {
+            wifiAddress.setText("");
+            if (serverService != null) {
+                serverService.stopSocketTransport();
+            }
+            return;
+        }
+
+        String address = SocketServer.getLocalAddress();
+        if (address == null) {
+            wifiAddress.setText(R.string.wifi_no_network);
+        } else {
+            wifiAddress.setText(getString(R.string.wifi_address, address));
+        }
+        if (serverService != null) {
+            serverService.startSocketTransport(SocketServer.DEFAULT_PORT);
+        }
+    }
+
     // Send dial-in information for the host user to the server service
     private void setDialIn() {
         // Get dial-in value from settings
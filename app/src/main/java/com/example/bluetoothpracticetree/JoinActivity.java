@@ -6,10 +6,13 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.view.View;
+import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
@@ -29,12 +32,15 @@ import java.util.UUID;
 /*
     This activity allows a client to search for an advertising host. Once a suitable host is found,
     the list of hosts will update, and the client can tap their name. Doing so will launch the
-    WaitActivity, which connects the client to that host.
+    WaitActivity, which connects the client to that host. If the client has joined a host before,
+    it can also rejoin that host directly, skipping the scan entirely. A host on the same Wi-Fi
+    network can be joined by its IP address instead.
  */
 
 public class JoinActivity extends AppCompatActivity {
     private static final int REQUEST_ENABLE_BT = 1;
     private static final long SCAN_PERIOD = 10000;
+    public static final String EXTRAS_SKIP_REJOIN = "SKIP_REJOIN";
 
     private BluetoothAdapter bluetoothAdapter;
     private Handler handler;
@@ -55,12 +61,46 @@ public class JoinActivity extends AppCompatActivity {
             @Override
             public void onItemClick(BluetoothDevice device) {
                 // Start the WaitActivity for the clicked device, which connects to it
+                startWaitActivity(device.getAddress(), device.getName(), false);
+            }
+        };
+
+        // Offer to rejoin the last host directly, unless a direct attempt just failed
+        SharedPreferences preferences = getSharedPreferences("RACE_PREFS", Context.MODE_PRIVATE);
+        final String lastHostAddress = preferences.getString("last_host_address", null);
+        final String lastHostName = preferences.getString("last_host_name", "Unknown Host");
+        Button rejoinButton = findViewById(R.id.rejoin_button);
+        if (lastHostAddress != null && !getIntent().getBooleanExtra(EXTRAS_SKIP_REJOIN, false)) {
+            rejoinButton.setText(getString(R.string.rejoin, lastHostName));
+            rejoinButton.setVisibility(View.VISIBLE);
+            rejoinButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    startWaitActivity(lastHostAddress, lastHostName, true);
+                }
+            });
+        }
+
+        // Join a host over Wi-Fi by its IP address, with an optional port
+        final EditText wifiHostEdit = findViewById(R.id.wifi_host_edit);
+        Button joinWifiButton = findViewById(R.id.join_wifi_button);
+        joinWifiButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                String host = wifiHostEdit.getText().toString().trim();
+                if (host.isEmpty()) {
+                    Toast.makeText(JoinActivity.this, R.string.wifi_host, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                scanLeDevice(false);
+
                 Intent intent = new Intent(getApplicationContext(), WaitActivity.class);
-                intent.putExtra(WaitActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
+                intent.putExtra(WaitActivity.EXTRAS_SOCKET_HOST, host);
+                intent.putExtra(WaitActivity.EXTRAS_DEVICE_NAME, host);
                 finish();
                 startActivity(intent);
             }
-        };
+        });
 
         progressBar = findViewById(R.id.join_progress_bar);
         progressBar.setIndeterminate(true);
@@ -96,6 +136,19 @@ public class JoinActivity extends AppCompatActivity {
         scanLeDevice(true);
     }
 
+    // Start the WaitActivity, which connects to the host with the given address
+    private void startWaitActivity(String address, String name, boolean direct) {
+        // Stop scanning first, since an active scan slows down the connection
+        scanLeDevice(false);
+
+        Intent intent = new Intent(getApplicationContext(), WaitActivity.class);
+        intent.putExtra(WaitActivity.EXTRAS_DEVICE_ADDRESS, address);
+        intent.putExtra(WaitActivity.EXTRAS_DEVICE_NAME, name);
+        intent.putExtra(WaitActivity.EXTRAS_DIRECT_CONNECT, direct);
+        finish();
+        startActivity(intent);
+    }
+
     // TODO: Use BluetoothLeScanner instead of start/stopLeScan here
     private void scanLeDevice(boolean enable) {
         if (enable) {
@@ -7,6 +7,7 @@ import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
@@ -14,23 +15,39 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CompoundButton;
+import android.widget.Switch;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.example.bluetoothpracticetree.practicetree.Bulb;
 import com.example.bluetoothpracticetree.practicetree.PracticeTree;
 import com.example.bluetoothpracticetree.utility.BleGattService;
 import com.example.bluetoothpracticetree.utility.BleServerService;
+import com.example.bluetoothpracticetree.utility.DropSchedule;
+import com.example.bluetoothpracticetree.utility.FlightRecorder;
+import com.example.bluetoothpracticetree.utility.FoulJudge;
+import com.example.bluetoothpracticetree.utility.LinkFrame;
+import com.example.bluetoothpracticetree.utility.LinkOverlay;
+import com.example.bluetoothpracticetree.utility.LinkStats;
+import com.example.bluetoothpracticetree.utility.PeerService;
+import com.example.bluetoothpracticetree.utility.RaceResults;
+import com.example.bluetoothpracticetree.utility.RaceSnapshot;
+import com.example.bluetoothpracticetree.utility.RaceTrace;
+import com.example.bluetoothpracticetree.utility.SessionReplica;
+import com.example.bluetoothpracticetree.utility.Tournament;
 import com.example.bluetoothpracticetree.utility.UuidUtils;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.TreeMap;
+import java.io.File;
+import java.io.IOException;
 
 /*
     This activity is by far the most complex. It is important to note that this activity is used
@@ -44,6 +61,35 @@ import java.util.TreeMap;
     user holds down the stage button. Once all users are staged, this class performs all of the
     logic necessary for a practice tree, calculates the reaction time, sends that to the server,
     then reads and displays the results from the other users on the screen.
+
+    If a client loses its connection mid-race, the BLE service reconnects on its own. Once it
+    has, this activity resubscribes and resyncs from the host's race snapshot.
+
+    Every tree drops at the start time chosen by the host, converted to local time. When the
+    stage button is released, the release time is sent to the host, which decides fouls for all
+    lanes. Trees only go red when the host reports a foul. While a client is staged, it also
+    listens for the start the host can advertise, and drops on whichever start arrives first.
+
+    When the host runs races back-to-back, it starts a new round once the cooldown after each
+    race is over, and every tree is reset for it. The results stay up until the next drop, and
+    the drop schedule is worked out as soon as the dial-ins arrive, so nothing is left to set up
+    when the start signal comes in.
+
+    When the host runs a tournament, the activity shows who races in the local lane for each heat,
+    and the champion once it is over.
+
+    If the host is lost for good, the clients move the session to one of themselves. Each one
+    elects the same successor from the copy of the session it kept, the successor starts over as
+    the host of that session, and the others connect straight to it and resync.
+
+    Holding down any reaction time flags the race, and saves the flight recorder's record of it
+    for later.
+
+    The link overlay shows how the links are holding up while racing: a client shows its own link
+    to the host, and the host shows each client's.
+
+    In peer mode there is no host. The activity binds the PeerService instead, which races the
+    local lane against one other device in lane 2, and sends the same updates the host does.
  */
 
 public class RaceActivity extends AppCompatActivity {
@@ -62,6 +108,8 @@ public class RaceActivity extends AppCompatActivity {
     private BluetoothGattCharacteristic racer3Rt;
     private BluetoothGattCharacteristic racerHostRt;
 
+    private BluetoothGattCharacteristic release;
+
     private PracticeTree tree1;
     private PracticeTree tree2;
     private PracticeTree tree3;
@@ -73,13 +121,15 @@ public class RaceActivity extends AppCompatActivity {
     private TextView rt3;
     private TextView rt4;
     private TextView localRt;
+    private TextView heatLabel;
+    private LinkOverlay linkOverlay;
 
-    private long dial1;
-    private long dial2;
-    private long dial3;
-    private long dial4;
+    private final DropSchedule dropSchedule = new DropSchedule();
+    private final Runnable[] treeDrops = new Runnable[DropSchedule.LANES];
+    private Handler dropHandler;
 
     private boolean isServer;
+    private boolean isPeer;
     private int racerId;
 
     private boolean raceStarted = false;
@@ -87,8 +137,17 @@ public class RaceActivity extends AppCompatActivity {
     private long reactionTime;
     private long rollout;
 
+    // Local state that is restored on the host after a reconnection
+    private boolean stageHeld = false;
+    private String sentRt;
+
+    // The session being moved to a new host after the host was lost, and the lane elected to host it
+    private SessionReplica lostSession;
+    private int successorLane;
+
     BleServerService serverService;
     BleGattService bleGattService;
+    PeerService peerService;
 
     @SuppressLint("ClickableViewAccessibility")
     @Override
@@ -102,13 +161,19 @@ public class RaceActivity extends AppCompatActivity {
         stageButton.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
+                FlightRecorder.get().record(FlightRecorder.TOUCH, racerId, event.getAction(),
+                        event.getEventTime());
+                boolean traced = RaceTrace.begin("touch", racerId);
                 switch ( event.getAction() ) {
                     case MotionEvent.ACTION_DOWN: setStage(true);
                         break;
-                    case MotionEvent.ACTION_UP: setStage(false);
-                        calculateRt();
+                    case MotionEvent.ACTION_UP:
+                        // The event time is when the finger actually left the screen
+                        calculateRt(event.getEventTime());
+                        setStage(false);
                         break;
                 }
+                RaceTrace.end(traced);
                 return true;
             }
         });
@@ -151,17 +216,75 @@ public class RaceActivity extends AppCompatActivity {
         rt2 = findViewById(R.id.rt2);
         rt3 = findViewById(R.id.rt3);
         rt4 = findViewById(R.id.rt4);
+        heatLabel = findViewById(R.id.heat_label);
+
+        // Holding down any reaction time flags the race that was just run
+        View.OnLongClickListener flagListener = new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                flagRace();
+                return true;
+            }
+        };
+        rt1.setOnLongClickListener(flagListener);
+        rt2.setOnLongClickListener(flagListener);
+        rt3.setOnLongClickListener(flagListener);
+        rt4.setOnLongClickListener(flagListener);
+
+        tree1.setLane(1);
+        tree2.setLane(2);
+        tree3.setLane(3);
+        tree4.setLane(4);
+
+        // The drops are created once, so starting a race only has to post them
+        dropHandler = new Handler(getMainLooper());
+        for (int lane = 1; lane <= DropSchedule.LANES; lane++) {
+            final PracticeTree tree = getTree(lane);
+            final int treeLane = lane;
+            treeDrops[lane - 1] = new Runnable() {
+                @Override
+                public void run() {
+                    FlightRecorder.get().record(FlightRecorder.TREE_DROP, treeLane, 0,
+                            SystemClock.uptimeMillis());
+                    boolean traced = RaceTrace.begin("dropTree", treeLane);
+                    tree.dropTree();
+                    RaceTrace.end(traced);
+                }
+            };
+        }
 
         // Get racer ID from previous activity
         racerId = getIntent().getIntExtra("RACER_ID", 4);
-        isServer = (racerId == 4);
+        isPeer = getIntent().getBooleanExtra("PEER", false);
+        isServer = !isPeer && (racerId == 4);
+        RaceTrace.setLocalLane(racerId);
 
         // Get rollout from settings
-        SharedPreferences preferences = getSharedPreferences("RACE_PREFS", Context.MODE_PRIVATE);
+        final SharedPreferences preferences = getSharedPreferences("RACE_PREFS", Context.MODE_PRIVATE);
         rollout = preferences.getLong("rollout", 0);
 
+        // Peers have no host link to measure, so only the others can show the link overlay
+        linkOverlay = new LinkOverlay((TextView) findViewById(R.id.link_overlay));
+        Switch linkOverlaySwitch = findViewById(R.id.link_overlay_switch);
+        if (isPeer) {
+            linkOverlaySwitch.setVisibility(View.GONE);
+        } else {
+            linkOverlaySwitch.setChecked(preferences.getBoolean("link_overlay", false));
+            linkOverlaySwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    preferences.edit().putBoolean("link_overlay", isChecked).apply();
+                    linkOverlay.setShown(isChecked);
+                }
+            });
+            linkOverlay.setShown(linkOverlaySwitch.isChecked());
+        }
+
         // Bind the appropriate service to this activity
-        if (isServer) {
+        if (isPeer) {
+            Intent peerServiceIntent = new Intent(this, PeerService.class);
+            bindService(peerServiceIntent, peerServiceConnection, BIND_AUTO_CREATE);
+        } else if (isServer) {
             Intent gattServerServiceIntent = new Intent(this, BleServerService.class);
             bindService(gattServerServiceIntent, serverServiceConnection, BIND_AUTO_CREATE);
         } else {
@@ -172,40 +295,62 @@ public class RaceActivity extends AppCompatActivity {
 
     @Override
     protected void onStop() {
+        linkOverlay.stop();
         if (serverService != null) {
-            unregisterReceiver(serverUpdateReceiver);
+            serverService.unregisterUpdateReceiver(serverUpdateReceiver);
             unbindService(serverServiceConnection);
         } else if (bleGattService != null) {
-            unregisterReceiver(gattUpdateReceiver);
+            bleGattService.unregisterUpdateReceiver(gattUpdateReceiver);
             unbindService(gattServiceConnection);
+        } else if (peerService != null) {
+            peerService.unregisterUpdateReceiver(serverUpdateReceiver);
+            unbindService(peerServiceConnection);
         }
         serverService = null;
         bleGattService = null;
+        peerService = null;
         super.onStop();
     }
 
-    // This method is called whenever the user releases the stage button
-    private void calculateRt() {
+    // This method is called whenever the user releases the stage button, with the uptime of the
+    // release. Whether it was a foul is decided by the host
+    private void calculateRt(long releaseTime) {
         // Only calculate reaction time if race has actually started
         if (raceStarted) {
-            long endTime = System.currentTimeMillis();
-            reactionTime = endTime - startTime - 1500 + rollout;
-
-            if (reactionTime < 0) {
-                localTree.goRed();
-            }
+            boolean traced = RaceTrace.begin("calculateRt", racerId);
+            sendRelease(releaseTime);
+            reactionTime = FoulJudge.reactionTime(releaseTime, startTime, rollout);
 
             localRt.setText(formatRt(Long.toString(reactionTime)));
             sendRt();
 
             raceStarted = false;
+            RaceTrace.end(traced);
+        }
+    }
+
+    // This method sends the raw release time to the host, on the host's clock. Without a synced
+    // clock the trees dropped as the start arrived, so the time is left out and the host judges
+    // the release as it arrives
+    private void sendRelease(long releaseTime) {
+        if (isPeer) {
+            peerService.setRelease(releaseTime, rollout);
+        } else if (isServer) {
+            serverService.setHostRelease(releaseTime, rollout);
+        } else if (release != null) {
+            String hostTime = bleGattService.isStartSynced()
+                    ? Long.toString(bleGattService.toHostTime(releaseTime)) : "";
+            bleGattService.writeCharacteristic(release, hostTime + "," + rollout);
         }
     }
 
     // This method sends the calculated reaction time to the appropriate characteristic on the server
     private void sendRt() {
         String text = Long.toString(reactionTime);
-        if (isServer) {
+        sentRt = text;
+        if (isPeer) {
+            peerService.setRt(text);
+        } else if (isServer) {
             serverService.setHostRt(text);
         } else {
             switch (racerId) {
@@ -245,30 +390,45 @@ public class RaceActivity extends AppCompatActivity {
         SharedPreferences preferences = getSharedPreferences("RACE_PREFS", Context.MODE_PRIVATE);
         long localDial = preferences.getLong("dial", 10000);
 
-        // Only read the dial-ins for the other three users
-        if (isServer) {
+        // Only read the dial-ins for the other three users. A peer sends its own with its state
+        if (isPeer) {
+            peerService.setDial(localDial);
+            setDial(1, localDial);
+        } else if (isServer) {
             serverService.readCharacteristic(racer1Dial);
             serverService.readCharacteristic(racer2Dial);
             serverService.readCharacteristic(racer3Dial);
-            dial4 = localDial;
+            setDial(4, localDial);
         } else {
             if (racerId != 1) {
                 bleGattService.readCharacteristic(racer1Dial);
-            } else { dial1 = localDial; }
+            } else { setDial(1, localDial); }
             if (racerId != 2) {
                 bleGattService.readCharacteristic(racer2Dial);
-            } else { dial2 = localDial; }
+            } else { setDial(2, localDial); }
             if (racerId != 3) {
                 bleGattService.readCharacteristic(racer3Dial);
-            } else { dial3 = localDial; }
+            } else { setDial(3, localDial); }
             bleGattService.readCharacteristic(racerHostDial);
         }
     }
 
     // This method informs the server that the local user is staged
     private void setStage(boolean staged) {
-        String value = staged ? "1" : "0";
-        if (isServer) {
+        boolean traced = RaceTrace.begin("setStage", racerId);
+        stageHeld = staged;
+        sendStage(staged ? "1" : "0");
+
+        // Tell the local UI to update
+        localTree.setStage(staged);
+        RaceTrace.end(traced);
+    }
+
+    // This method writes the local stage flag to the appropriate characteristic on the server
+    private void sendStage(String value) {
+        if (isPeer) {
+            peerService.setStage(value);
+        } else if (isServer) {
             serverService.setHostStage(value);
         } else {
             switch (racerId) {
@@ -279,10 +439,9 @@ public class RaceActivity extends AppCompatActivity {
                 case 3: bleGattService.writeCharacteristic(racer3Stage, value);
                     break;
             }
+            // A staged lane also listens for the host's start beacons
+            bleGattService.listenForStart("1".equals(value));
         }
-
-        // Tell the local UI to update
-        localTree.setStage(staged);
     }
 
     // This method updates the UI based on whichever user has staged
@@ -298,77 +457,63 @@ public class RaceActivity extends AppCompatActivity {
         }
     }
 
-    // This method begins the race, starting the bulb sequence with the correct handicaps
-    private void dropTrees() {
-        // Keep track of which users have identical dial-ins
-        HashMap<Long, Long> duplicates = new HashMap<>();
-
-        // Assign each dial-in to the correct racer ID
-        HashMap<Long, Long> dialIdMap = new HashMap<>();
-        dialIdMap.put(1L, dial1);
-        dialIdMap.put(2L, dial2);
-        dialIdMap.put(3L, dial3);
-        dialIdMap.put(4L, dial4);
+    // This method begins the race, starting the bulb sequence with the correct handicaps. The
+    // slowest dial-in drops at dropTime, which is a local uptime
+    private void dropTrees(long dropTime) {
+        boolean traced = RaceTrace.begin("dropTrees", racerId);
+        for (int lane = 1; lane <= DropSchedule.LANES; lane++) {
+            long treeTime = dropTime + dropSchedule.getDelay(lane);
 
-        // Place each dial-in inside a TreeMap
-        TreeMap<Long, Long> dials = new TreeMap<>();
-        for (long i = 1; i <= dialIdMap.size(); i++) {
-            // If dial-in is not present in the TreeMap, insert it
-            if (!dials.containsKey(dialIdMap.get(i))) {
-                dials.put(dialIdMap.get(i), i);
-            }
-            // Otherwise, keep track of the two identical dial-ins
-            else {
-                duplicates.put(i, dials.get(dialIdMap.get(i)));
+            // Keep track of the time the local user's tree begins, which the host also knows
+            if (lane == racerId) {
+                startTime = treeTime;
             }
+            getTree(lane).traceToGreen();
+            dropHandler.postAtTime(treeDrops[lane - 1], treeTime);
         }
+        RaceTrace.end(traced);
+    }
 
-        // Create a queue that stores each dial-in from highest to lowest
-        final LinkedList<Long> queue = new LinkedList();
-
-        // Insert each dial-in into the queue, including the duplicates
-        while (queue.size() != dialIdMap.size()) {
-            long nextHighest = dials.lastEntry().getValue();
-            queue.add(dials.pollLastEntry().getValue());
-            if (duplicates.containsValue(nextHighest)) {
-                for (Long key : duplicates.keySet()) {
-                    if (duplicates.get(key) == nextHighest) {
-                        queue.add(key);
-                    }
+    // This method saves the flight recorder when a racer thinks something went wrong with the
+    // race, so it can be looked at later. The dump is written off the UI thread
+    private void flagRace() {
+        FlightRecorder.get().record(FlightRecorder.FLAG, racerId, 0, SystemClock.uptimeMillis());
+        final File directory = new File(getFilesDir(), "flights");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                directory.mkdirs();
+                final File file = new File(directory, "flight-" + System.currentTimeMillis() + ".bin");
+                boolean saved;
+                try {
+                    FlightRecorder.get().dump(file);
+                    saved = true;
+                } catch (IOException e) {
+                    saved = false;
                 }
-            }
-        }
-
-        // Assign each PracticeTree view to the correct racer ID
-        final TreeMap<Long, PracticeTree> practiceTreeMap = new TreeMap<>();
-        practiceTreeMap.put(1L, tree1);
-        practiceTreeMap.put(2L, tree2);
-        practiceTreeMap.put(3L, tree3);
-        practiceTreeMap.put(4L, tree4);
-
-        // Keep track of the highest dial-in
-        long highestDial = dialIdMap.get(queue.peek());
-
-        long size = queue.size();
-        for (int i = 0; i < size; i++) {
-            long delay = highestDial - dialIdMap.get(queue.peek());
-            final long currentId = queue.peek();
-
-            // Start the bulb sequence for each tree after the appropriate delay
-            new Handler(getMainLooper()).postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    // Make sure to keep track of the time the local user's tree began
-                    if (currentId == (long) racerId) {
-                        startTime = System.currentTimeMillis();
+                final boolean wasSaved = saved;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (wasSaved) {
+                            Toast.makeText(RaceActivity.this, getString(R.string.race_flagged, file.getName()),
+                                    Toast.LENGTH_SHORT).show();
+                        } else {
+                            Toast.makeText(RaceActivity.this, R.string.race_flag_failed, Toast.LENGTH_SHORT).show();
+                        }
                     }
-                    PracticeTree currentTree = practiceTreeMap.get(currentId);
-                    currentTree.dropTree();
-                }
-            }, delay);
+                });
+            }
+        }).start();
+    }
 
-            // Remove the current dial-in from the queue
-            queue.poll();
+    // The host has started a new round after the cooldown, so reset every tree for it. The
+    // results of the last round stay up until the trees drop
+    private void startRound() {
+        // A lane that never released is too late to report now
+        raceStarted = false;
+        for (int lane = 1; lane <= DropSchedule.LANES; lane++) {
+            getTree(lane).reset();
         }
     }
 
@@ -379,15 +524,31 @@ public class RaceActivity extends AppCompatActivity {
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             // Get a handle to the server service and register a broadcast listener
             serverService = ((BleServerService.LocalBinder) service).getService();
-            registerReceiver(serverUpdateReceiver, makeGattUpdateIntentFilter());
+            serverService.registerUpdateReceiver(serverUpdateReceiver, makeGattUpdateIntentFilter());
+
+            // A session taken over from a lost host has no HostActivity to start the server
+            String session = getIntent().getStringExtra("SESSION");
+            if (session != null) {
+                if (!serverService.initialize()) {
+                    Toast.makeText(RaceActivity.this, R.string.host_failed, Toast.LENGTH_SHORT).show();
+                    finish();
+                    return;
+                }
+                serverService.restoreSession(session, getIntent().getIntExtra("SESSION_LANE", 0));
+                serverService.advertise();
+            }
 
             // Get necessary characteristics from the server
             BluetoothGattService raceService = serverService.getServiceByUuid(UuidUtils.SERVICE);
             getServerCharacteristics(raceService);
+            linkOverlay.setStats(serverService.getLinkStats(), 1, 2, 3);
 
             // Read dial-in information from the server
             readDials();
             assignTree();
+
+            // The first heat was published before this activity was listening
+            serverService.readCharacteristic(raceService.getCharacteristic(UuidUtils.HEAT));
         }
 
         @Override
@@ -396,22 +557,54 @@ public class RaceActivity extends AppCompatActivity {
         }
     };
 
+    // Define some callbacks when the peer service connects/disconnects
+    private final ServiceConnection peerServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            // Get a handle to the peer service, which sends the same updates as the server
+            peerService = ((PeerService.LocalBinder) service).getService();
+            peerService.registerUpdateReceiver(serverUpdateReceiver, makeGattUpdateIntentFilter());
+            if (!peerService.initialize()) {
+                Toast.makeText(RaceActivity.this, R.string.peer_failed, Toast.LENGTH_SHORT).show();
+                finish();
+                return;
+            }
+
+            readDials();
+            assignTree();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            peerService = null;
+        }
+    };
+
     // Define some callbacks when the BLE service connects/disconnects
     private final ServiceConnection gattServiceConnection = new ServiceConnection() {
 
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
-            // Get a handle to the BLE service and register a broadcast listener
+            // Get a handle to the BLE service and register an update listener
             bleGattService = ((BleGattService.LocalBinder) service).getService();
-            registerReceiver(gattUpdateReceiver, makeGattUpdateIntentFilter());
+            bleGattService.registerUpdateReceiver(gattUpdateReceiver, makeGattUpdateIntentFilter());
 
             // Get necessary characteristics from the server
             BluetoothGattService raceService = bleGattService.getServiceByUuid(UuidUtils.SERVICE);
             getServerCharacteristics(raceService);
+            linkOverlay.setStats(bleGattService.getLinkStats(), LinkStats.HOST_LINK);
 
             // Subscribe to necessary characteristics
             subscribeToStageNotifications();
             subscribeToRaceFinishedNotification(raceService);
+            subscribeToFoulNotification(raceService);
+            subscribeToRoundNotification(raceService);
+            readHeat(raceService);
+            readSession(raceService);
+
+            // Line up the local clock with the host's before the race starts
+            bleGattService.syncClock();
 
             // Read dial-in information from the server
             readDials();
@@ -437,6 +630,7 @@ public class RaceActivity extends AppCompatActivity {
         racer2Rt = raceService.getCharacteristic(UuidUtils.RACER_2_RT);
         racer3Rt = raceService.getCharacteristic(UuidUtils.RACER_3_RT);
         racerHostRt = raceService.getCharacteristic(UuidUtils.RACER_HOST_RT);
+        release = raceService.getCharacteristic(UuidUtils.RELEASE);
     }
 
     private void subscribeToStageNotifications() {
@@ -463,6 +657,142 @@ public class RaceActivity extends AppCompatActivity {
         bleGattService.setCharacteristicNotification(raceFinished, raceFinishedDescriptor, true);
     }
 
+    private void subscribeToFoulNotification(BluetoothGattService service) {
+        BluetoothGattCharacteristic foul = service.getCharacteristic(UuidUtils.FOUL);
+        if (foul != null) {
+            BluetoothGattDescriptor foulDescriptor = foul.getDescriptor(UuidUtils.CCCD);
+            bleGattService.setCharacteristicNotification(foul, foulDescriptor, true);
+        }
+    }
+
+    private void subscribeToRoundNotification(BluetoothGattService service) {
+        BluetoothGattCharacteristic round = service.getCharacteristic(UuidUtils.ROUND);
+        if (round != null) {
+            BluetoothGattDescriptor roundDescriptor = round.getDescriptor(UuidUtils.CCCD);
+            bleGattService.setCharacteristicNotification(round, roundDescriptor, true);
+        }
+    }
+
+    // This method subscribes to the tournament's heats, and reads the one being raced now
+    private void readHeat(BluetoothGattService service) {
+        BluetoothGattCharacteristic heat = service.getCharacteristic(UuidUtils.HEAT);
+        if (heat != null) {
+            BluetoothGattDescriptor heatDescriptor = heat.getDescriptor(UuidUtils.CCCD);
+            bleGattService.setCharacteristicNotification(heat, heatDescriptor, true);
+            bleGattService.readCharacteristic(heat);
+        }
+    }
+
+    // This method subscribes to the host's session, and reads the copy kept in case the host is lost
+    private void readSession(BluetoothGattService service) {
+        BluetoothGattCharacteristic session = service.getCharacteristic(UuidUtils.SESSION);
+        if (session != null) {
+            BluetoothGattDescriptor sessionDescriptor = session.getDescriptor(UuidUtils.CCCD);
+            bleGattService.setCharacteristicNotification(session, sessionDescriptor, true);
+            bleGattService.readCharacteristic(session);
+        }
+    }
+
+    // This method moves the session to a new host once the host is lost, and returns false if
+    // there is nobody to move it to. A successor that cannot be reached either is left out, and
+    // the next one is elected
+    private boolean migrateSession() {
+        if (lostSession == null) {
+            lostSession = bleGattService.getSessionReplica();
+        } else if (successorLane != 0) {
+            lostSession.removeMember(successorLane);
+        }
+        if (lostSession == null) {
+            return false;
+        }
+
+        successorLane = lostSession.electSuccessor();
+        if (successorLane == 0) {
+            return false;
+        }
+        if (successorLane == racerId) {
+            becomeHost();
+        } else {
+            Toast.makeText(this, getString(R.string.host_moving, successorLane),
+                    Toast.LENGTH_SHORT).show();
+            bleGattService.connectToSuccessor(lostSession.getAddress(successorLane));
+        }
+        return true;
+    }
+
+    // This device has been elected to host the session, so the activity starts over as the host
+    private void becomeHost() {
+        Toast.makeText(this, R.string.hosting_session, Toast.LENGTH_SHORT).show();
+        Intent intent = new Intent(getApplicationContext(), RaceActivity.class);
+        intent.putExtra("RACER_ID", 4);
+        intent.putExtra("SESSION", lostSession.encode());
+        intent.putExtra("SESSION_LANE", racerId);
+        finish();
+        startActivity(intent);
+    }
+
+    private void subscribeToRaceReadyNotification(BluetoothGattService service) {
+        BluetoothGattCharacteristic raceReady = service.getCharacteristic(UuidUtils.RACE_READY);
+        BluetoothGattDescriptor raceReadyDescriptor = raceReady.getDescriptor(UuidUtils.CCCD);
+        bleGattService.setCharacteristicNotification(raceReady, raceReadyDescriptor, true);
+    }
+
+    // This method restores the race after the BLE service has reconnected to the host
+    private void resync() {
+        BluetoothGattService raceService = bleGattService.getServiceByUuid(UuidUtils.SERVICE);
+        if (raceService == null) {
+            return;
+        }
+
+        // The old characteristics and subscriptions died with the old connection
+        getServerCharacteristics(raceService);
+        subscribeToStageNotifications();
+        subscribeToRaceFinishedNotification(raceService);
+        subscribeToRaceReadyNotification(raceService);
+        subscribeToFoulNotification(raceService);
+        subscribeToRoundNotification(raceService);
+        readHeat(raceService);
+        readSession(raceService);
+        bleGattService.syncClock();
+
+        // Any move to a new host is over
+        lostSession = null;
+        successorLane = 0;
+
+        // The host unstaged this lane when the connection dropped
+        sendStage(stageHeld ? "1" : "0");
+
+        // Read everything else back in a single round-trip, and any fouls that were missed
+        bleGattService.readCharacteristic(raceService.getCharacteristic(UuidUtils.RACE_SNAPSHOT));
+        BluetoothGattCharacteristic foul = raceService.getCharacteristic(UuidUtils.FOUL);
+        if (foul != null) {
+            bleGattService.readCharacteristic(foul);
+        }
+    }
+
+    // This method applies the host's race snapshot to the local UI after a reconnection
+    private void applySnapshot(Intent intent) {
+        RaceSnapshot snapshot = RaceSnapshot.decode(intent.getStringExtra(BleGattService.EXTRA_DATA));
+        if (snapshot == null) {
+            return;
+        }
+
+        for (int lane = 1; lane <= RaceSnapshot.LANES; lane++) {
+            if (lane != racerId) {
+                updateStage(lane, snapshot.isStaged(lane));
+            }
+            if (!snapshot.getDial(lane).isEmpty()) {
+                setDial(lane, Long.parseLong(snapshot.getDial(lane)));
+            }
+            if (!snapshot.getRt(lane).isEmpty()) {
+                showRt(lane, snapshot.getRt(lane));
+            } else if (lane == racerId && sentRt != null) {
+                // The reaction time was lost with the connection, so send it again
+                sendRt();
+            }
+        }
+    }
+
     // Create a listener for broadcasts sent by the server service
     private final BroadcastReceiver serverUpdateReceiver = new BroadcastReceiver() {
         @Override
@@ -471,17 +801,33 @@ public class RaceActivity extends AppCompatActivity {
             // Once all users have staged, the server will notify each user,
             // and send this broadcast
             if (BleServerService.START_RACE.equals(action)) {
-                startRace();
+                startRace(intent);
+            }
+            // The host has decided that a lane fouled
+            else if (BleServerService.FOUL_UPDATE.equals(action)) {
+                applyFouls(intent);
+            }
+            // The cooldown is over, and the server has started the next round
+            else if (BleServerService.ROUND_UPDATE.equals(action)) {
+                startRound();
+            }
+            // The tournament has moved on to its next heat
+            else if (BleServerService.HEAT_UPDATE.equals(action)) {
+                showHeat(intent);
+            }
+            // Every host linked into this race has reported its results
+            else if (BleServerService.LINKED_RESULTS.equals(action)) {
+                showLinkedResults(intent);
             }
             // The server will notify whenever a user has stage or unstaged,
             // and send this broadcast
             else if (BleServerService.STAGE_UPDATE.equals(action)) {
                 parseStageData(intent);
             }
-            // Once all users have sent their reaction times, the server will notify,
-            // and send this broadcast
+            // Once all users have sent their reaction times, or the deadline has passed,
+            // the server will notify, and send this broadcast with the results
             else if (BleServerService.RACE_FINISHED.equals(action)) {
-                readRtsFromServer();
+                showResults(intent);
             }
             // When the BLE service receives dial-in info from a read, and send this broadcast
             else if (BleServerService.DIAL_UPDATE.equals(action)) {
@@ -495,7 +841,7 @@ public class RaceActivity extends AppCompatActivity {
         }
     };
 
-    // Create a listener for broadcasts sent by the BLE service
+    // Create a listener for updates sent by the BLE service
     private final BroadcastReceiver gattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -503,17 +849,29 @@ public class RaceActivity extends AppCompatActivity {
             // Once all users have staged, the server will notify each user,
             // and the BLE service will send this broadcast
             if (BleGattService.START_RACE.equals(action)) {
-                startRace();
+                startRace(intent);
+            }
+            // The host has decided that a lane fouled
+            else if (BleGattService.FOUL_UPDATE.equals(action)) {
+                applyFouls(intent);
+            }
+            // The cooldown is over, and the host has started the next round
+            else if (BleGattService.ROUND_UPDATE.equals(action)) {
+                startRound();
+            }
+            // The tournament has moved on to its next heat
+            else if (BleGattService.HEAT_UPDATE.equals(action)) {
+                showHeat(intent);
             }
             // The server will notify whenever a user has stage or unstaged,
             // and the BLE service will send this broadcast
             else if (BleGattService.STAGE_UPDATE.equals(action)) {
                 parseStageData(intent);
             }
-            // Once all users have sent their reaction times, the server will notify,
-            // and the BLE service will send this broadcast
+            // Once all users have sent their reaction times, or the deadline has passed,
+            // the server will notify, and the BLE service will send this broadcast
             else if (BleGattService.RACE_FINISHED.equals(action)) {
-                readRtsFromServer();
+                showResults(intent);
             }
             // When the BLE service receives dial-in info from a read, the BLE service
             // will send this broadcast
@@ -525,6 +883,35 @@ public class RaceActivity extends AppCompatActivity {
             else if (BleGattService.RT_UPDATE.equals(action)) {
                 updateRt(intent);
             }
+            // The BLE service has reconnected to the host after the connection dropped
+            else if (BleGattService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
+                resync();
+            }
+            // The BLE service sends this broadcast with the host's race snapshot
+            else if (BleGattService.SNAPSHOT_UPDATE.equals(action)) {
+                applySnapshot(intent);
+            }
+            // The connection dropped, and the BLE service is trying to restore it
+            else if (BleGattService.ACTION_GATT_RECONNECTING.equals(action)) {
+                Toast.makeText(context, R.string.reconnecting, Toast.LENGTH_SHORT).show();
+            }
+            // Move the session to a new host, or alert the user if there is nobody to move it to
+            else if (BleGattService.ACTION_GATT_DISCONNECTED.equals(action)) {
+                if (migrateSession()) {
+                    return;
+                }
+                AlertDialog.Builder builder = new AlertDialog.Builder(RaceActivity.this);
+                builder.setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        finish();
+                    }
+                });
+
+                AlertDialog dialog = builder
+                        .setMessage("Connection to host lost.")
+                        .create();
+                dialog.show();
+            }
         }
     };
 
@@ -536,19 +923,118 @@ public class RaceActivity extends AppCompatActivity {
         intentFilter.addAction(BleServerService.START_RACE);
         intentFilter.addAction(BleServerService.DIAL_UPDATE);
         intentFilter.addAction(BleServerService.RT_UPDATE);
+        intentFilter.addAction(BleServerService.FOUL_UPDATE);
+        intentFilter.addAction(BleServerService.ROUND_UPDATE);
+        intentFilter.addAction(BleServerService.HEAT_UPDATE);
+        intentFilter.addAction(BleServerService.LINKED_RESULTS);
         intentFilter.addAction(BleGattService.STAGE_UPDATE);
         intentFilter.addAction(BleGattService.RACE_FINISHED);
         intentFilter.addAction(BleGattService.START_RACE);
         intentFilter.addAction(BleGattService.DIAL_UPDATE);
         intentFilter.addAction(BleGattService.RT_UPDATE);
+        intentFilter.addAction(BleGattService.FOUL_UPDATE);
+        intentFilter.addAction(BleGattService.ROUND_UPDATE);
+        intentFilter.addAction(BleGattService.HEAT_UPDATE);
+        intentFilter.addAction(BleGattService.ACTION_GATT_SERVICES_DISCOVERED);
+        intentFilter.addAction(BleGattService.ACTION_GATT_RECONNECTING);
+        intentFilter.addAction(BleGattService.ACTION_GATT_DISCONNECTED);
+        intentFilter.addAction(BleGattService.SNAPSHOT_UPDATE);
         return intentFilter;
     }
 
-    // Start the actual race sequence
-    private void startRace() {
+    // Start the actual race sequence, at the local drop time sent with the update
+    private void startRace(Intent intent) {
+        long dropTime = SystemClock.uptimeMillis();
+        String data = intent.getStringExtra(BleServerService.EXTRA_DATA);
+        if (data != null) {
+            dropTime = Long.parseLong(data);
+        }
+        FlightRecorder.get().record(FlightRecorder.START_SIGNAL, racerId, 0, dropTime);
+
         raceStarted = true;
+        sentRt = null;
         resetRts();
-        dropTrees();
+        dropTrees(dropTime);
+
+        // The race has started, so there is no start left to listen for
+        if (bleGattService != null) {
+            bleGattService.listenForStart(false);
+        }
+    }
+
+    // This method shows who races in the local lane for the tournament's current heat
+    private void showHeat(Intent intent) {
+        String data = intent.getStringExtra(BleServerService.EXTRA_DATA);
+        int number = Tournament.decodeHeatNumber(data);
+        if (number < 0) {
+            return;
+        }
+
+        if (number == 0) {
+            heatLabel.setText(getString(R.string.champion, Tournament.decodeChampion(data)));
+        } else {
+            String entrant = Tournament.decodeEntrant(data, racerId);
+            if (entrant == null || entrant.isEmpty()) {
+                heatLabel.setText(getString(R.string.heat_sit_out, number));
+            } else {
+                heatLabel.setText(getString(R.string.heat, number, entrant));
+            }
+        }
+    }
+
+    // This method shows the quickest reaction time across every host linked into the race
+    private void showLinkedResults(Intent intent) {
+        String[] hosts = LinkFrame.decodeResults(intent.getStringExtra(BleServerService.EXTRA_DATA));
+        if (hosts == null) {
+            return;
+        }
+
+        String best = null;
+        long bestRt = Long.MAX_VALUE;
+        int bestHost = 0;
+        int bestLane = 0;
+        for (int i = 0; i < hosts.length; i++) {
+            RaceResults results = RaceResults.decode(hosts[i]);
+            for (int lane = 1; results != null && lane <= RaceResults.LANES; lane++) {
+                if (!results.hasResult(lane)) {
+                    continue;
+                }
+                try {
+                    long rt = Long.parseLong(results.getResult(lane));
+                    if (rt >= 0 && rt < bestRt) {
+                        bestRt = rt;
+                        best = results.getResult(lane);
+                        bestHost = i + 1;
+                        bestLane = lane;
+                    }
+                } catch (NumberFormatException e) {
+                    // Not a reaction time, so it cannot be the quickest
+                }
+            }
+        }
+        if (best != null) {
+            Toast.makeText(this, getString(R.string.linked_best, best, bestHost, bestLane),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
+    // This method turns the tree of every lane the host has judged a foul red
+    private void applyFouls(Intent intent) {
+        int fouls = FoulJudge.decodeMask(intent.getStringExtra(BleServerService.EXTRA_DATA));
+        for (int lane = 1; lane <= FoulJudge.LANES; lane++) {
+            if ((fouls & (1 << (lane - 1))) != 0) {
+                getTree(lane).goRed();
+            }
+        }
+    }
+
+    private PracticeTree getTree(int lane) {
+        switch (lane) {
+            case 1: return tree1;
+            case 2: return tree2;
+            case 3: return tree3;
+            default: return tree4;
+        }
     }
 
     // Update UI
@@ -567,6 +1053,27 @@ public class RaceActivity extends AppCompatActivity {
         updateStage(id, status);
     }
 
+    // This method shows the results published by the host. If they did not fit in the
+    // notification, the reaction times are read from the server instead
+    private void showResults(Intent intent) {
+        // A lane that never released is too late to report now
+        raceStarted = false;
+
+        RaceResults results = RaceResults.decode(intent.getStringExtra(BleServerService.EXTRA_DATA));
+        if (results == null) {
+            // A peer always sends the results whole, so only a server can be read back
+            if (!isPeer) {
+                readRtsFromServer();
+            }
+            return;
+        }
+        for (int lane = 1; lane <= RaceResults.LANES; lane++) {
+            if (results.hasResult(lane) || results.isNoResult(lane)) {
+                showRt(lane, results.getResult(lane));
+            }
+        }
+    }
+
     // This method reads all reaction times from the server
     private void readRtsFromServer() {
         if (isServer) {
@@ -599,41 +1106,55 @@ public class RaceActivity extends AppCompatActivity {
         String data = intent.getStringExtra(BleServerService.EXTRA_DATA);
 
         if (UuidUtils.RACER_1_DIAL.toString().equals(charUuuid)) {
-            dial1 = Long.parseLong(data);
+            setDial(1, Long.parseLong(data));
         } else if (UuidUtils.RACER_2_DIAL.toString().equals(charUuuid)) {
-            dial2 = Long.parseLong(data);
+            setDial(2, Long.parseLong(data));
         } else if (UuidUtils.RACER_3_DIAL.toString().equals(charUuuid)) {
-            dial3 = Long.parseLong(data);
+            setDial(3, Long.parseLong(data));
         } else if (UuidUtils.RACER_HOST_DIAL.toString().equals(charUuuid)) {
-            dial4 = Long.parseLong(data);
+            setDial(4, Long.parseLong(data));
         }
     }
 
+    // The drop schedule is worked out again as each dial-in arrives, well ahead of the start
+    private void setDial(int lane, long dial) {
+        dropSchedule.setDial(lane, dial);
+    }
+
     // Update the UI when reaction times are received
     private void updateRt(Intent intent) {
         String charUuuid = intent.getStringExtra(BleGattService.CHARACTERISTIC_UUID);
         String data = intent.getStringExtra(BleServerService.EXTRA_DATA);
 
         if (UuidUtils.RACER_1_RT.toString().equals(charUuuid)) {
-            rt1.setText(formatRt(data));
-            if (Integer.parseInt(data) < 0) {
-                tree1.goRed();
-            }
+            showRt(1, data);
         } else if (UuidUtils.RACER_2_RT.toString().equals(charUuuid)) {
-            rt2.setText(formatRt(data));
-            if (Integer.parseInt(data) < 0) {
-                tree2.goRed();
-            }
+            showRt(2, data);
         } else if (UuidUtils.RACER_3_RT.toString().equals(charUuuid)) {
-            rt3.setText(formatRt(data));
-            if (Integer.parseInt(data) < 0) {
-                tree3.goRed();
-            }
+            showRt(3, data);
         } else if (UuidUtils.RACER_HOST_RT.toString().equals(charUuuid)) {
-            rt4.setText(formatRt(data));
-            if (Integer.parseInt(data) < 0) {
-                tree4.goRed();
-            }
+            showRt(4, data);
+        }
+    }
+
+    // This method displays a lane's reaction time. Fouls come separately from the host
+    private void showRt(int lane, String data) {
+        TextView rt;
+        switch (lane) {
+            case 1: rt = rt1;
+                break;
+            case 2: rt = rt2;
+                break;
+            case 3: rt = rt3;
+                break;
+            default: rt = rt4;
+                break;
+        }
+
+        if (RaceResults.NO_RESULT.equals(data)) {
+            rt.setText(R.string.no_result);
+        } else {
+            rt.setText(formatRt(data));
         }
     }
 
@@ -5,24 +5,48 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CompoundButton;
 import android.widget.EditText;
+import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.example.bluetoothpracticetree.utility.RaceTrace;
+
 public class SettingsActivity extends AppCompatActivity {
 
     EditText dialEntry;
     EditText rolloutEntry;
     EditText nameEntry;
+    EditText stageWindowEntry;
+    EditText cooldownEntry;
+    EditText entrantsEntry;
+    EditText primaryEntry;
+    EditText secondariesEntry;
     Button saveDial;
     Button saveRollout;
     Button saveName;
+    Button saveStageWindow;
+    Button saveCooldown;
+    Button saveEntrants;
+    Button savePrimary;
+    Button saveSecondaries;
+    Switch loopModeSwitch;
+    Switch doubleEliminationSwitch;
+    Switch startBeaconSwitch;
+    Switch recordSwitch;
+    Switch traceSwitch;
     TextView currentDial;
     TextView currentRollout;
     TextView currentName;
+    TextView currentStageWindow;
+    TextView currentCooldown;
+    TextView currentEntrants;
+    TextView currentPrimary;
+    TextView currentSecondaries;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -38,6 +62,26 @@ public class SettingsActivity extends AppCompatActivity {
         currentDial = findViewById(R.id.current_dial);
         currentRollout = findViewById(R.id.current_rollout);
         currentName = findViewById(R.id.current_name);
+        stageWindowEntry = findViewById(R.id.edit_stage_window);
+        saveStageWindow = findViewById(R.id.save_stage_window);
+        currentStageWindow = findViewById(R.id.current_stage_window);
+        loopModeSwitch = findViewById(R.id.loop_mode);
+        cooldownEntry = findViewById(R.id.edit_cooldown);
+        saveCooldown = findViewById(R.id.save_cooldown);
+        currentCooldown = findViewById(R.id.current_cooldown);
+        entrantsEntry = findViewById(R.id.edit_entrants);
+        saveEntrants = findViewById(R.id.save_entrants);
+        currentEntrants = findViewById(R.id.current_entrants);
+        primaryEntry = findViewById(R.id.edit_primary);
+        savePrimary = findViewById(R.id.save_primary);
+        currentPrimary = findViewById(R.id.current_primary);
+        secondariesEntry = findViewById(R.id.edit_secondaries);
+        saveSecondaries = findViewById(R.id.save_secondaries);
+        currentSecondaries = findViewById(R.id.current_secondaries);
+        doubleEliminationSwitch = findViewById(R.id.double_elimination);
+        startBeaconSwitch = findViewById(R.id.start_beacon);
+        recordSwitch = findViewById(R.id.record_races);
+        traceSwitch = findViewById(R.id.trace);
 
         SharedPreferences sharedPref = getSharedPreferences("RACE_PREFS", Context.MODE_PRIVATE);
         final SharedPreferences.Editor editor = sharedPref.edit();
@@ -48,6 +92,21 @@ public class SettingsActivity extends AppCompatActivity {
         setCurrentRollout(rollout);
         String name = sharedPref.getString("name", "Default");
         setCurrentName(name);
+        long stageWindow = sharedPref.getLong("stage_window", 1500);
+        setCurrentStageWindow(stageWindow);
+        loopModeSwitch.setChecked(sharedPref.getBoolean("loop_mode", false));
+        long cooldown = sharedPref.getLong("cooldown", 3000);
+        setCurrentCooldown(cooldown);
+        String entrants = sharedPref.getString("tournament_entrants", "");
+        setCurrentEntrants(entrants);
+        String primary = sharedPref.getString("primary_address", "");
+        setCurrentPrimary(primary);
+        String secondaries = sharedPref.getString("secondary_addresses", "");
+        setCurrentSecondaries(secondaries);
+        doubleEliminationSwitch.setChecked(sharedPref.getBoolean("double_elimination", false));
+        startBeaconSwitch.setChecked(sharedPref.getBoolean("start_beacon", false));
+        recordSwitch.setChecked(sharedPref.getBoolean("record_races", false));
+        traceSwitch.setChecked(sharedPref.getBoolean("trace", false));
 
         saveDial.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -94,6 +153,125 @@ public class SettingsActivity extends AppCompatActivity {
                 toast.show();
             }
         });
+
+        saveStageWindow.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                String windowString = stageWindowEntry.getText().toString();
+                Double decimal = Double.parseDouble(windowString) * 1000;
+                long stageWindow = (decimal.longValue());
+                editor.putLong("stage_window", stageWindow);
+                editor.apply();
+                setCurrentStageWindow(stageWindow);
+
+                CharSequence text = "Staging time saved!";
+                Toast toast = Toast.makeText(getApplicationContext(), text, Toast.LENGTH_SHORT);
+                toast.show();
+            }
+        });
+
+        loopModeSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                editor.putBoolean("loop_mode", isChecked);
+                editor.apply();
+            }
+        });
+
+        saveCooldown.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                String cooldownString = cooldownEntry.getText().toString();
+                Double decimal = Double.parseDouble(cooldownString) * 1000;
+                long cooldown = (decimal.longValue());
+                editor.putLong("cooldown", cooldown);
+                editor.apply();
+                setCurrentCooldown(cooldown);
+
+                CharSequence text = "Cooldown saved!";
+                Toast toast = Toast.makeText(getApplicationContext(), text, Toast.LENGTH_SHORT);
+                toast.show();
+            }
+        });
+
+        startBeaconSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                editor.putBoolean("start_beacon", isChecked);
+                editor.apply();
+            }
+        });
+
+        recordSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                editor.putBoolean("record_races", isChecked);
+                editor.apply();
+            }
+        });
+
+        // Tracing is switched straight away, so a capture can be started without reopening the app
+        traceSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                editor.putBoolean("trace", isChecked);
+                editor.apply();
+                RaceTrace.setEnabled(isChecked);
+            }
+        });
+
+        doubleEliminationSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                editor.putBoolean("double_elimination", isChecked);
+                editor.apply();
+            }
+        });
+
+        saveEntrants.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // The separator is part of the heat format, so it cannot be in a name
+                String entrants = entrantsEntry.getText().toString().replace("|", "");
+                editor.putString("tournament_entrants", entrants);
+                editor.apply();
+                setCurrentEntrants(entrants);
+
+                CharSequence text = "Entrants saved!";
+                Toast toast = Toast.makeText(getApplicationContext(), text, Toast.LENGTH_SHORT);
+                toast.show();
+            }
+        });
+
+        savePrimary.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // Bluetooth addresses are upper case, and an empty address unlinks this host
+                String primary = primaryEntry.getText().toString().trim().toUpperCase();
+                editor.putString("primary_address", primary);
+                editor.apply();
+                setCurrentPrimary(primary);
+
+                CharSequence text = "Primary host saved!";
+                Toast toast = Toast.makeText(getApplicationContext(), text, Toast.LENGTH_SHORT);
+                toast.show();
+            }
+        });
+
+        saveSecondaries.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // Only these hosts may link to this one, and an empty list links none
+                String secondaries = secondariesEntry.getText().toString().trim().toUpperCase();
+                editor.putString("secondary_addresses", secondaries);
+                editor.apply();
+                setCurrentSecondaries(secondaries);
+
+                CharSequence text = "Secondary hosts saved!";
+                Toast toast = Toast.makeText(getApplicationContext(), text, Toast.LENGTH_SHORT);
+                toast.show();
+            }
+        });
     }
 
     private void setCurrentDial(long dial) {
@@ -108,4 +286,26 @@ public class SettingsActivity extends AppCompatActivity {
     private void setCurrentName(String name) {
         currentName.setText(getString(R.string.current, name));
     }
+
+    private void setCurrentStageWindow(long stageWindow) {
+        String formatted = String.format("%.2f", (double) stageWindow / 1000.0);
+        currentStageWindow.setText(getString(R.string.current, formatted));
+    }
+
+    private void setCurrentEntrants(String entrants) {
+        currentEntrants.setText(getString(R.string.current, entrants));
+    }
+
+    private void setCurrentPrimary(String primary) {
+        currentPrimary.setText(getString(R.string.current, primary));
+    }
+
+    private void setCurrentSecondaries(String secondaries) {
+        currentSecondaries.setText(getString(R.string.current, secondaries));
+    }
+
+    private void setCurrentCooldown(long cooldown) {
+        String formatted = String.format("%.2f", (double) cooldown / 1000.0);
+        currentCooldown.setText(getString(R.string.current, formatted));
+    }
 }
@@ -0,0 +1,139 @@
+package com.example.bluetoothpracticetree;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.example.bluetoothpracticetree.utility.SpectatorFrame;
+
+import java.util.Locale;
+
+/*
+    This activity lets a spectator watch a race without joining it. It scans for the frames a
+    host advertises once its session has begun, and shows which lanes are staged, whether the
+    race is running, and the reaction times and winner once it is over.
+
+    Nothing is ever sent to the host, so watching does not take up any of its connections. The
+    screen follows the first host it hears from.
+ */
+
+public class SpectatorActivity extends AppCompatActivity {
+    private static final int REQUEST_ENABLE_BT = 1;
+
+    private BluetoothAdapter bluetoothAdapter;
+    private String hostAddress;
+
+    private TextView stateLabel;
+    private TextView[] laneLabels;
+    private TextView winnerLabel;
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_spectator);
+
+        stateLabel = findViewById(R.id.spectator_state);
+        laneLabels = new TextView[] {
+                findViewById(R.id.spectator_lane1),
+                findViewById(R.id.spectator_lane2),
+                findViewById(R.id.spectator_lane3),
+                findViewById(R.id.spectator_lane4)};
+        winnerLabel = findViewById(R.id.spectator_winner);
+
+        final BluetoothManager bluetoothManager =
+                (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        bluetoothAdapter = bluetoothManager.getAdapter();
+
+        // Request user to enable Bluetooth if it is not already
+        if (bluetoothAdapter != null && !bluetoothAdapter.isEnabled()) {
+            Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
+            startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
+        }
+
+        if (bluetoothAdapter == null) {
+            Toast.makeText(this, "Bluetooth not supported on this device", Toast.LENGTH_SHORT).show();
+            finish();
+        }
+    }
+
+    // The scan only runs while the screen is showing, since it keeps the radio busy
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (bluetoothAdapter != null) {
+            bluetoothAdapter.startLeScan(leScanCallback);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        if (bluetoothAdapter != null) {
+            bluetoothAdapter.stopLeScan(leScanCallback);
+        }
+        super.onStop();
+    }
+
+    // Provide a callback for every advertisement heard, which carries a frame if it is a host's
+    private BluetoothAdapter.LeScanCallback leScanCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+            final SpectatorFrame frame = SpectatorFrame.parse(scanRecord);
+            if (frame == null) {
+                return;
+            }
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (hostAddress == null) {
+                        hostAddress = device.getAddress();
+                    }
+                    if (hostAddress.equals(device.getAddress())) {
+                        showFrame(frame);
+                    }
+                }
+            });
+        }
+    };
+
+    private void showFrame(SpectatorFrame frame) {
+        switch (frame.getState()) {
+            case SpectatorFrame.RUNNING: stateLabel.setText(getString(R.string.spectator_running, frame.getRace()));
+                break;
+            case SpectatorFrame.FINISHED: stateLabel.setText(getString(R.string.spectator_finished, frame.getRace()));
+                break;
+            default: stateLabel.setText(R.string.spectator_staging);
+                break;
+        }
+
+        for (int lane = 1; lane <= SpectatorFrame.LANES; lane++) {
+            laneLabels[lane - 1].setText(getString(R.string.spectator_lane, lane, describeLane(frame, lane)));
+        }
+
+        if (frame.getState() == SpectatorFrame.FINISHED && frame.getWinner() != 0) {
+            winnerLabel.setText(getString(R.string.spectator_winner, frame.getWinner()));
+        } else {
+            winnerLabel.setText("");
+        }
+    }
+
+    // This method describes a lane by its result once the race is over, or else its stage
+    private String describeLane(SpectatorFrame frame, int lane) {
+        short rt = frame.getRt(lane);
+        if (frame.getState() == SpectatorFrame.FINISHED && rt != SpectatorFrame.NO_RT) {
+            if (rt == SpectatorFrame.NO_RESULT) {
+                return getString(R.string.no_result);
+            }
+            String time = String.format(Locale.US, "%.3f", rt / 1000.0);
+            return frame.isFoul(lane) ? getString(R.string.spectator_foul, time) : time;
+        }
+        return frame.isStaged(lane) ? getString(R.string.spectator_staged) : "";
+    }
+}
@@ -12,6 +12,7 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
@@ -23,6 +24,7 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.example.bluetoothpracticetree.utility.BleGattService;
+import com.example.bluetoothpracticetree.utility.SocketServer;
 import com.example.bluetoothpracticetree.utility.UuidUtils;
 
 /*
@@ -30,19 +32,30 @@ import com.example.bluetoothpracticetree.utility.UuidUtils;
     to connect. In the background, it establishes a connection to the BleGattService, which
     handles all BLE operations. This activity connects to the host, gets the racer ID for
     this user, sends the local dial-in information, and waits for the host's signal to start
-    the RaceActivity.
+    the RaceActivity. When rejoining the last host directly, a failed connection falls back to
+    scanning in JoinActivity. A host joined over Wi-Fi is connected to by its IP address, and is
+    not remembered for a direct rejoin.
  */
 
 public class WaitActivity extends AppCompatActivity {
     private static final String TAG =  WaitActivity.class.getSimpleName();
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
+    public static final String EXTRAS_DIRECT_CONNECT = "DIRECT_CONNECT";
+    public static final String EXTRAS_SOCKET_HOST = "SOCKET_HOST";
+    private static final long DIRECT_CONNECT_TIMEOUT = 2000;
 
     private BleGattService bluetoothLeService;
     private BluetoothGattService service;
     private TextView textView;
     private TextView racerIdLabel;
     private TextView racerIdHolder;
+    private TextView groupHolder;
     private String deviceAddress;
+    private String deviceName;
+    private String socketHost;
+    private boolean directConnect;
+    private Handler handler;
 
     // This value identifies the user, and determines which characteristics to write to
     private int racerId;
@@ -62,10 +75,15 @@ public class WaitActivity extends AppCompatActivity {
         racerIdLabel.setVisibility(View.INVISIBLE);
 
         racerIdHolder = findViewById(R.id.racer_id_holder);
+        groupHolder = findViewById(R.id.group_holder);
 
         // Get host device address from previous activity
         final Intent intent = getIntent();
         deviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+        deviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
+        directConnect = intent.getBooleanExtra(EXTRAS_DIRECT_CONNECT, false);
+        socketHost = intent.getStringExtra(EXTRAS_SOCKET_HOST);
+        handler = new Handler();
 
         // Start the local BLE service and bind it to this activity
         Intent gattServiceIntent = new Intent(this, BleGattService.class);
@@ -79,14 +97,24 @@ public class WaitActivity extends AppCompatActivity {
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             // Get a handle to the BLE service
             bluetoothLeService = ((BleGattService.LocalBinder) service).getService();
-            // Register a listener for service broadcasts
-            registerReceiver(gattUpdateReceiver, makeGattUpdateIntentFilter());
-            if (!bluetoothLeService.initialize()) {
+            // Register a listener for service updates
+            bluetoothLeService.registerUpdateReceiver(gattUpdateReceiver, makeGattUpdateIntentFilter());
+            // Bluetooth is not needed to join over Wi-Fi
+            if (!bluetoothLeService.initialize() && socketHost == null) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
             // Automatically connects to the host device
-            bluetoothLeService.connect(deviceAddress);
+            if (socketHost != null) {
+                connectSocket();
+            } else {
+                bluetoothLeService.connect(deviceAddress);
+            }
+
+            // A direct connection to the last host only gets a short window before scanning
+            if (directConnect) {
+                handler.postDelayed(directConnectTimeout, DIRECT_CONNECT_TIMEOUT);
+            }
         }
 
         @Override
@@ -95,14 +123,26 @@ public class WaitActivity extends AppCompatActivity {
         }
     };
 
+    // Give up on the direct connection if the last host does not respond in time
+    private final Runnable directConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "Direct connection to last host timed out");
+            fallBackToScan();
+        }
+    };
+
     @Override
     protected void onStop() {
-        unregisterReceiver(gattUpdateReceiver);
+        handler.removeCallbacks(directConnectTimeout);
+        if (bluetoothLeService != null) {
+            bluetoothLeService.unregisterUpdateReceiver(gattUpdateReceiver);
+        }
         unbindService(serviceConnection);
         super.onStop();
     }
 
-    // Create a listener for broadcasts sent by the BLE service
+    // Create a listener for updates sent by the BLE service
     private final BroadcastReceiver gattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -113,6 +153,8 @@ public class WaitActivity extends AppCompatActivity {
             // Once services have been discovered for the host, the BLE service sends this broadcast
             else if (BleGattService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 Log.d(TAG, "Services discovered.");
+                handler.removeCallbacks(directConnectTimeout);
+                directConnect = false;
                 waitForHost();
 
                 // Get the custom service from the host device
@@ -131,6 +173,21 @@ public class WaitActivity extends AppCompatActivity {
 
                     // Read the racer ID for this device from the server
                     bluetoothLeService.readCharacteristic(racerId);
+
+                    // Read which of the host's race groups this device races in
+                    BluetoothGattCharacteristic groupId = service.getCharacteristic(UuidUtils.GROUP_ID);
+                    if (groupId != null) {
+                        bluetoothLeService.readCharacteristic(groupId);
+                    }
+
+                    // The race may have begun while this device was reconnecting
+                    bluetoothLeService.readCharacteristic(clientsConnected);
+
+                    // Read the session ID, so this host can be rejoined directly next time
+                    BluetoothGattCharacteristic sessionId = service.getCharacteristic(UuidUtils.SESSION_ID);
+                    if (sessionId != null) {
+                        bluetoothLeService.readCharacteristic(sessionId);
+                    }
                 }
             }
             // When host begins the racer after clients connect, this broadcast gets sent
@@ -145,9 +202,27 @@ public class WaitActivity extends AppCompatActivity {
                 String data = intent.getStringExtra(BleGattService.EXTRA_DATA);
                 setRacerId(data);
             }
+            // When the BLE service gets a response from the group ID read, this broadcast gets sent
+            else if (BleGattService.GROUP_ID.equals(action)) {
+                String data = intent.getStringExtra(BleGattService.EXTRA_DATA);
+                setGroupId(data);
+            }
+            // When the BLE service gets a response from the session ID read, this broadcast gets sent
+            else if (BleGattService.SESSION_ID.equals(action)) {
+                String data = intent.getStringExtra(BleGattService.EXTRA_DATA);
+                saveLastHost(data);
+            }
+            // The BLE service is trying to restore a dropped connection
+            else if (BleGattService.ACTION_GATT_RECONNECTING.equals(action)) {
+                textView.setText(R.string.reconnecting);
+            }
+            // If the last host could not be reached directly, scan for hosts instead
+            else if (BleGattService.ACTION_GATT_DISCONNECTED.equals(action) && directConnect) {
+                fallBackToScan();
+            }
             // Alert the user if they lose connection
             else if (BleGattService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                AlertDialog.Builder builder = new AlertDialog.Builder(context);
+                AlertDialog.Builder builder = new AlertDialog.Builder(WaitActivity.this);
                 builder.setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int id) {
                         finish();
@@ -167,12 +242,65 @@ public class WaitActivity extends AppCompatActivity {
         final IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(BleGattService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BleGattService.ACTION_GATT_DISCONNECTED);
+        intentFilter.addAction(BleGattService.ACTION_GATT_RECONNECTING);
         intentFilter.addAction(BleGattService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BleGattService.BEGIN_RACE_ACTIVITY);
         intentFilter.addAction(BleGattService.RACER_ID);
+        intentFilter.addAction(BleGattService.SESSION_ID);
+        intentFilter.addAction(BleGattService.GROUP_ID);
         return intentFilter;
     }
 
+    // The host address may name a port after a colon, or else the default one is used
+    private void connectSocket() {
+        String host = socketHost;
+        int port = SocketServer.DEFAULT_PORT;
+        int separator = socketHost.lastIndexOf(':');
+        if (separator > 0) {
+            try {
+                port = Integer.parseInt(socketHost.substring(separator + 1));
+                host = socketHost.substring(0, separator);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Malformed port in " + socketHost);
+            }
+        }
+        bluetoothLeService.connectSocket(host, port);
+    }
+
+    // Remember this host, so the next join can connect to it directly
+    private void saveLastHost(String sessionId) {
+        // Only Bluetooth hosts can be rejoined directly
+        if (socketHost != null) {
+            return;
+        }
+        SharedPreferences preferences = getSharedPreferences("RACE_PREFS", Context.MODE_PRIVATE);
+        if (sessionId != null && sessionId.equals(preferences.getString("last_session_id", null))) {
+            Log.d(TAG, "Rejoined session " + sessionId);
+        }
+
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putString("last_host_address", deviceAddress);
+        if (deviceName != null) {
+            editor.putString("last_host_name", deviceName);
+        }
+        editor.putString("last_session_id", sessionId);
+        editor.apply();
+    }
+
+    // Abandon the direct connection, and let JoinActivity scan for hosts instead
+    private void fallBackToScan() {
+        handler.removeCallbacks(directConnectTimeout);
+        directConnect = false;
+        if (bluetoothLeService != null) {
+            bluetoothLeService.close();
+        }
+
+        Intent intent = new Intent(getApplicationContext(), JoinActivity.class);
+        intent.putExtra(JoinActivity.EXTRAS_SKIP_REJOIN, true);
+        finish();
+        startActivity(intent);
+    }
+
     // Update UI
     private void waitForHost() {
         textView.setText(R.string.wait_for_host);
@@ -194,6 +322,13 @@ public class WaitActivity extends AppCompatActivity {
         sendDialIn();
     }
 
+    // Show which race group this device was put in, if the host has more than one
+    private void setGroupId(String idString) {
+        if (idString != null && !"1".equals(idString) && !"0".equals(idString)) {
+            groupHolder.setText(getString(R.string.group, idString));
+        }
+    }
+
     // Send dial-in information for the local user to the server
     private void sendDialIn() {
         BluetoothGattCharacteristic dialCharacteristic;
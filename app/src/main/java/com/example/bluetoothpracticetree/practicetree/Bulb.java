@@ -5,13 +5,13 @@ import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.os.Handler;
 import android.util.AttributeSet;
 import android.view.View;
 
 import androidx.annotation.Nullable;
 
 import com.example.bluetoothpracticetree.R;
+import com.example.bluetoothpracticetree.utility.FlightRecorder;
 
 /*
     This class creates a custom view for the bulbs displayed in the practice tree.
@@ -21,10 +21,13 @@ public class Bulb extends View {
 
     private int radius;
     private boolean active;
-    private boolean persisted;
     private int color;
     private Paint paint;
 
+    // The lane of the tree this bulb is on, and its position on the tree from the top
+    private int lane;
+    private int position;
+
     public Bulb(Context context, @Nullable AttributeSet attrs) {
         super(context, attrs);
 
@@ -71,41 +74,19 @@ public class Bulb extends View {
         setMeasuredDimension(radius*2, radius*2);
     }
 
+    public void setRecorderId(int lane, int position) {
+        this.lane = lane;
+        this.position = position;
+    }
+
     public void setActive(boolean active) {
+        if (active != this.active) {
+            FlightRecorder.get().record(FlightRecorder.BULB, lane, position, active ? 1 : 0);
+        }
         this.active = active;
         invalidate();
     }
 
-    // This method turns a bulb "on" for 0.5 seconds, then "off" again
-    public void activate() {
-        if (active)
-            return;
-
-        Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (!persisted) {
-                    setActive(false);
-                }
-            }
-        }, 500);
-
-        setActive(true);
-    }
-
-    // This method turns a bulb "on" indefinitely
-    public void persist() {
-        setActive(true);
-        persisted = true;
-    }
-
-    // This method turns a bulb "off"
-    public void reset() {
-        setActive(false);
-        persisted = false;
-    }
-
     public boolean isActive() {
         return active;
     }
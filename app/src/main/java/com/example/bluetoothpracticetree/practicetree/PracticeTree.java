@@ -1,121 +1,111 @@
 package com.example.bluetoothpracticetree.practicetree;
 
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.example.bluetoothpracticetree.utility.RaceScheduler;
+import com.example.bluetoothpracticetree.utility.RaceTrace;
+import com.example.bluetoothpracticetree.utility.TreeModel;
 
 /*
     This class groups together the necessary Bulbs to create a single user tree. It is designed
     to make the process of updating the UI for the practice tree operations much more convenient
     by providing methods to automatically perform said operations.
+
+    The bulb sequence itself is run by a TreeModel on the main thread, the same model a replay of
+    a race runs, and this class only shows what it lights on the bulbs.
 */
 
 public class PracticeTree {
 
-    private Bulb prestage;
-    private Bulb stage;
-    private Bulb topYellow;
-    private Bulb midYellow;
-    private Bulb botYellow;
-    private Bulb green;
-    private Bulb red;
-
-    private boolean wentRed = false;
+    private final Bulb[] bulbs;
+    private final TreeModel model;
+    private int lane;
+    // The wait for green, begun when the start arrived
+    private RaceTrace.Slice toGreen;
 
     public PracticeTree(Bulb prestage, Bulb stage, Bulb topYellow, Bulb midYellow, Bulb botYellow, Bulb green, Bulb red) {
-        this.prestage = prestage;
-        this.stage = stage;
-        this.topYellow = topYellow;
-        this.midYellow = midYellow;
-        this.botYellow = botYellow;
-        this.green = green;
-        this.red = red;
+        bulbs = new Bulb[]{prestage, stage, topYellow, midYellow, botYellow, green, red};
+        model = new TreeModel(new HandlerScheduler(), new TreeModel.Listener() {
+            @Override
+            public void onBulb(int bulb, boolean active) {
+                boolean traced = RaceTrace.isEnabled()
+                        && RaceTrace.begin("bulb " + TreeModel.nameOf(bulb) + (active ? " on" : " off"), lane);
+                bulbs[bulb].setActive(active);
+                RaceTrace.end(traced);
+
+                // The wait for green ends once the tree is green or red
+                if (active && (bulb == TreeModel.GREEN || bulb == TreeModel.RED)) {
+                    RaceTrace.endAsync(toGreen);
+                    toGreen = null;
+                }
+            }
+        });
     }
 
+    // The lane is recorded with every bulb transition in the flight recorder and in traces
+    public void setLane(int lane) {
+        this.lane = lane;
+        for (int i = 0; i < bulbs.length; i++) {
+            bulbs[i].setRecorderId(lane, i);
+        }
+    }
 
     public void setPrestage(boolean set) {
-        prestage.setActive(set);
+        model.setPrestage(set);
     }
 
     // This method updates the stage bulb and resets all other bulbs
     public void setStage(boolean set) {
-        stage.setActive(set);
-        wentRed = false;
-
-        if (set) {
-            topYellow.reset();
-            midYellow.reset();
-            botYellow.reset();
-            green.reset();
-            red.reset();
-        }
+        model.setStage(set);
     }
 
-    // This method begins the proper bulb sequence of a real tree
-    public void dropTree() {
-
-        Handler handler = new Handler();
-        if (!wentRed) {
-            topYellow.activate();
-        }
-
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (!wentRed) {
-                    midYellow.activate();
-                }
-            }
-        }, 500);
+    // This method turns off every bulb below the stage bulb, ready for the next drop
+    public void reset() {
+        model.reset();
+    }
 
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (!wentRed) {
-                    botYellow.activate();
-                }
-            }
-        }, 1000);
+    // The start has arrived, so the trace shows the wait from here until the tree is green or
+    // red. A wait still open from a race that never went green is ended first
+    public void traceToGreen() {
+        RaceTrace.endAsync(toGreen);
+        toGreen = RaceTrace.beginAsync("to green", lane);
+    }
 
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (!wentRed) {
-                    green.persist();
-                }
-            }
-        }, 1500);
+    // This method begins the proper bulb sequence of a real tree
+    public void dropTree() {
+        model.dropTree();
     }
 
     // This method updates the practice tree if a user is disqualified
     public void goRed() {
-        wentRed = true;
-        red.persist();
-        green.reset();
-
-        if (topYellow.isActive()) {
-            topYellow.persist();
-        } else if (midYellow.isActive()) {
-            midYellow.persist();
-        } else if (botYellow.isActive()) {
-            botYellow.persist();
-        }
+        model.goRed();
     }
 
     // This method flashes the tree to indicate a user won the race
     // NOTE: this method is unused at the moment
     public void win() {
-        topYellow.activate();
-        midYellow.activate();
-        botYellow.activate();
-        green.activate();
+        model.win();
+    }
 
-        new Handler().postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                topYellow.activate();
-                midYellow.activate();
-                botYellow.activate();
-                green.activate();
-            }
-        }, 1000);
+    // Runs the tree's sequence on the main thread, on the uptime clock
+    private static class HandlerScheduler implements RaceScheduler {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void postAt(Runnable task, long uptimeMillis) {
+            handler.postAtTime(task, uptimeMillis);
+        }
+
+        @Override
+        public void remove(Runnable task) {
+            handler.removeCallbacks(task);
+        }
     }
 }
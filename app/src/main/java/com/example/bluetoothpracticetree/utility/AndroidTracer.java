@@ -0,0 +1,87 @@
+package com.example.bluetoothpracticetree.utility;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+
+/*
+    This class writes RaceTrace sections to android.os.Trace, so they show up in Perfetto and
+    systrace captures of the app. Async slices and counters were only added to the public API in
+    Android 10, which is newer than the SDK the app is built against, so they are looked up once
+    and left out of the trace on older versions.
+
+    Tracing is switched on in the settings, which are read when the app is opened.
+ */
+
+public class AndroidTracer implements RaceTrace.Tracer {
+
+    private final Method beginAsyncSection;
+    private final Method endAsyncSection;
+    private final Method setCounter;
+
+    public AndroidTracer() {
+        Method beginAsync = null;
+        Method endAsync = null;
+        Method counter = null;
+        if (Build.VERSION.SDK_INT >= 29) {
+            try {
+                beginAsync = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                endAsync = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+                counter = Trace.class.getMethod("setCounter", String.class, long.class);
+            } catch (NoSuchMethodException e) {
+                beginAsync = null;
+                endAsync = null;
+                counter = null;
+            }
+        }
+        beginAsyncSection = beginAsync;
+        endAsyncSection = endAsync;
+        setCounter = counter;
+    }
+
+    // This method installs the tracer, switched on or off by the settings
+    public static void install(Context context) {
+        RaceTrace.setTracer(new AndroidTracer());
+        RaceTrace.setEnabled(context.getSharedPreferences("RACE_PREFS", Context.MODE_PRIVATE)
+                .getBoolean("trace", false));
+    }
+
+    @Override
+    public void beginSection(String name) {
+        // Section names longer than this are rejected
+        Trace.beginSection(name.length() > 127 ? name.substring(0, 127) : name);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+
+    @Override
+    public void beginAsyncSection(String name, int cookie) {
+        invoke(beginAsyncSection, name, cookie);
+    }
+
+    @Override
+    public void endAsyncSection(String name, int cookie) {
+        invoke(endAsyncSection, name, cookie);
+    }
+
+    @Override
+    public void setCounter(String name, long value) {
+        invoke(setCounter, name, value);
+    }
+
+    private static void invoke(Method method, Object... args) {
+        if (method == null) {
+            return;
+        }
+        try {
+            method.invoke(null, args);
+        } catch (ReflectiveOperationException e) {
+            // The trace is only missing this slice
+        }
+    }
+}
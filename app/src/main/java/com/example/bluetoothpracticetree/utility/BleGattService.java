@@ -10,33 +10,100 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Queue;
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /*
     This service handles all BLE operations for the client device. It provides methods to connect
     to a host device, as well as reading, writing, and subscribing to characteristics. Since
-    BLE is asynchronous, many callbacks are used to provide updates to the client. This service
-    uses broadcasts to communicate with the activity it is bound to.
+    BLE is asynchronous, many callbacks are used to provide updates to the client. Updates are
+    handed to the activity it is bound to through an UpdateDispatcher.
+
+    All BLE work happens on a dedicated thread: public methods post their work to it, and GATT
+    callbacks copy their values and post them to it. Only that thread touches the connection and
+    the command queue, so a busy UI thread never delays a stage write or a notification.
+
+    If an established connection drops, the service reconnects on its own with exponential backoff,
+    and only broadcasts ACTION_GATT_DISCONNECTED once it gives up.
+
+    The service also keeps the local clock in sync with the host's, by reading the host's CLOCK
+    characteristic several times. The start signal carries the host time the trees drop, which is
+    converted to local time before it is handed on, and releases are converted to host time.
+
+    The service keeps the latest copy of the host's session from the SESSION characteristic, so
+    the session can move to another client if the host is lost. Connecting to the client that
+    took over skips the scan, and gives up on each attempt quickly while the new host starts.
+
+    While the local lane is staged, the service also scans for the host's start beacons. A beacon
+    for this session and group starts the race just like the notified start signal, and only
+    the first of the two for a start is handed on.
+
+    The service can also connect to a host over a local Wi-Fi network, through a SocketClient.
+    It then stands in a copy of the race service for the host's, and sends every read, write and
+    subscription on it as a SocketFrame, so the activities use it exactly as they use a BLE
+    connection. Each request still waits for its response, so the command queue keeps them in
+    order, and notifications and responses are handled by the same code as their GATT callbacks.
+
+    The service measures its link to the host for the race screens, as LinkStats. Once a second,
+    if nothing else is queued and the local lane is not in a race, from staging until the results
+    arrive, it pings the host through the PING characteristic and reads the RSSI, so measuring
+    never holds up a race command. The ping
+    carries the last round trip, RSSI and deepest command queue back to the host, which has no
+    way to measure them itself.
  */
 
 public class BleGattService extends Service {
     private final static String TAG = BleGattService.class.getSimpleName();
 
+    // Android reports most spurious connection failures as this undocumented GATT_ERROR status
+    private static final int GATT_ERROR = 133;
+    private static final long RECONNECT_BASE_DELAY = 250;
+    private static final long RECONNECT_MAX_DELAY = 4000;
+    private static final int MAX_RECONNECT_ATTEMPTS = 6;
+    // Once the session can move to another client, a lost host is only retried a few times, and
+    // an attempt to resume a connection that hangs is given up on early
+    private static final int HOST_LOSS_ATTEMPTS = 3;
+    private static final long CONNECT_ATTEMPT_TIMEOUT = 1500;
+    private static final int CLOCK_SAMPLES = 8;
+    // Large enough for the race results to fit in a single notification
+    private static final int RESULTS_MTU = 64;
+    // The MTU until a larger one is granted, and the ATT header each notification carries
+    private static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER = 3;
+    private static final long PING_INTERVAL = 1000;
+    // Connection intervals are reported in units of 1.25 ms
+    private static final int INTERVAL_UNIT_MICROS = 1250;
+
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetoothpracticetree.ACTION_GATT_CONNECTED";
     public final static String ACTION_GATT_DISCONNECTED =
             "com.example.bluetoothpracticetree.ACTION_GATT_DISCONNECTED";
+    public final static String ACTION_GATT_RECONNECTING =
+            "com.example.bluetoothpracticetree.ACTION_GATT_RECONNECTING";
     public final static String ACTION_GATT_SERVICES_DISCOVERED =
             "com.example.bluetoothpracticetree.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE =
@@ -59,15 +126,82 @@ public class BleGattService extends Service {
             "com.example.bluetoothpracticetree.STAGE_UPDATE";
     public final static String RACE_FINISHED =
             "com.example.bluetoothpracticetree.RACE_FINISHED";
+    public final static String SESSION_ID =
+            "com.example.bluetoothpracticetree.SESSION_ID";
+    public final static String GROUP_ID =
+            "com.example.bluetoothpracticetree.GROUP_ID";
+    public final static String SNAPSHOT_UPDATE =
+            "com.example.bluetoothpracticetree.SNAPSHOT_UPDATE";
+    public final static String FOUL_UPDATE =
+            "com.example.bluetoothpracticetree.FOUL_UPDATE";
+    public final static String ROUND_UPDATE =
+            "com.example.bluetoothpracticetree.ROUND_UPDATE";
+    public final static String HEAT_UPDATE =
+            "com.example.bluetoothpracticetree.HEAT_UPDATE";
 
     private BluetoothManager bluetoothManager;
     private BluetoothAdapter bluetoothAdapter;
     private String bluetoothDeviceAddress;
-    private BluetoothGatt bluetoothGatt;
+    // Only written on the BLE thread, but read by activities looking up services
+    private volatile BluetoothGatt bluetoothGatt;
+
+    // The host's address and port when connecting over Wi-Fi, the connection to it, the copy of
+    // the race service standing in for the host's, and whether the request awaiting a response
+    // is a read
+    private volatile String socketHost;
+    private int socketPort;
+    private volatile SocketClient socketClient;
+    private BluetoothGattService socketService;
+    private boolean socketReadPending;
 
-    private Queue<Runnable> commandQueue = new LinkedBlockingQueue<>();
+    // The MTU granted for the current connection, only touched on the BLE thread
+    private int mtu = DEFAULT_MTU;
+
+    private Queue<Runnable> commandQueue = new ArrayDeque<>();
     private boolean commandQueueBusy;
+    // Commands are numbered as they are queued, for the flight recorder
+    private int commandsQueued;
+    private int commandsRun;
+    private final FlightRecorder recorder = FlightRecorder.get();
+    // The trace of the command in flight
+    private RaceTrace.Slice commandSlice;
+    private HandlerThread bleThread;
     private Handler bleHandler;
+    private UpdateDispatcher dispatcher;
+
+    // Set once services have been discovered, so only established connections are resumed
+    private boolean connectionEstablished;
+    private int reconnectAttempts;
+    private boolean connectingToSuccessor;
+
+    // The host's session as last read, published for the activity to take over if the host is lost
+    private volatile String session;
+
+    // The session and group start beacons have to be for, the host time of the last start handed
+    // on, and whether the service is scanning for beacons
+    private String sessionId;
+    private int groupId;
+    private long lastStartTime;
+    private boolean listeningForStart;
+
+    // Only touched on the BLE thread, with the offset published for other threads
+    private final ClockSync clockSync = new ClockSync();
+    private long clockReadSentAt;
+    private volatile long clockOffset;
+    private volatile boolean clockSynced;
+    // Whether the last start was handed on in host time, or as it arrived without a synced clock
+    private volatile boolean startSynced;
+
+    // Measurements of the link to the host. The ping in flight is timed from when it is sent, and
+    // reports the deepest the command queue got since the last one
+    private final LinkStats linkStats = new LinkStats();
+    private long pingSentAt;
+    private boolean pingInFlight;
+    private int queuePeak;
+    // Pings are held from when the local lane stages until the results arrive, unless it
+    // unstages before the race starts
+    private boolean holdingPings;
+    private boolean raceStarted;
 
     private IBinder binder = new LocalBinder();
 
@@ -77,6 +211,22 @@ public class BleGattService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        bleThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+        bleThread.start();
+        bleHandler = new Handler(bleThread.getLooper());
+        dispatcher = new UpdateDispatcher(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        // Let any pending close run before the thread goes away
+        bleThread.quitSafely();
+        super.onDestroy();
+    }
+
     public boolean initialize() {
         // For API level 18 and above, get a reference to BluetoothAdapter through
         // BluetoothManager.
@@ -94,8 +244,6 @@ public class BleGattService extends Service {
             return false;
         }
 
-        bleHandler = new Handler();
-
         return true;
     }
 
@@ -105,28 +253,238 @@ public class BleGattService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return;
         }
-        final BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+
+        bleHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                closeGatt();
+                connectionEstablished = false;
+                connectingToSuccessor = false;
+                // A new host has a different clock
+                clockSync.reset();
+                clockSynced = false;
+                socketHost = null;
+                bluetoothDeviceAddress = address;
+                session = null;
+                openGatt();
+            }
+        });
+    }
+
+    // This method connects straight to the client that took over a lost host's session. It is
+    // treated as an established connection that dropped, so it is retried with backoff until the
+    // new host is up
+    public void connectToSuccessor(final String address) {
+        if (bluetoothAdapter == null || address == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return;
+        }
+
+        bleHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                closeGatt();
+                connectionEstablished = true;
+                connectingToSuccessor = true;
+                clockSync.reset();
+                clockSynced = false;
+                socketHost = null;
+                bluetoothDeviceAddress = address;
+                if (!openGatt()) {
+                    connectionEstablished = false;
+                    broadcastUpdate(ACTION_GATT_DISCONNECTED);
+                }
+            }
+        });
+    }
+
+    // This method connects the local device to a host over Wi-Fi, at the given address and port
+    public void connectSocket(final String host, final int port) {
+        if (host == null) {
+            Log.w(TAG, "Unspecified host address.");
+            return;
+        }
+
+        bleHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                closeGatt();
+                connectionEstablished = false;
+                connectingToSuccessor = false;
+                clockSync.reset();
+                clockSynced = false;
+                bluetoothDeviceAddress = null;
+                session = null;
+                socketHost = host;
+                socketPort = port;
+                if (socketService == null) {
+                    socketService = createSocketService();
+                }
+                if (!openSocket()) {
+                    broadcastUpdate(ACTION_GATT_DISCONNECTED);
+                }
+            }
+        });
+    }
+
+    // This method returns the host's session as last read, or null if it has not been read.
+    // Clients on Wi-Fi have no Bluetooth address the others could reach, so their session does
+    // not move
+    public SessionReplica getSessionReplica() {
+        return socketHost == null ? SessionReplica.decode(session) : null;
+    }
+
+    // The measurements of the link to the host, kept under LinkStats.HOST_LINK
+    public LinkStats getLinkStats() {
+        return linkStats;
+    }
+
+    // This method opens a new GATT connection to the current device address
+    private boolean openGatt() {
+        final BluetoothDevice device = bluetoothAdapter.getRemoteDevice(bluetoothDeviceAddress);
         if (device == null) {
             Log.w(TAG, "Device not found.  Unable to connect.");
-            return;
+            return false;
         }
 
-        // Connect to the host device
-        bluetoothGatt = device.connectGatt(this, false, mGattCallback);
+        // Connect to the host device, forcing LE transport where possible to avoid GATT_ERROR
+        // failures when the host is also visible over classic Bluetooth
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            bluetoothGatt = device.connectGatt(this, false, mGattCallback, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            bluetoothGatt = device.connectGatt(this, false, mGattCallback);
+        }
         Log.d(TAG, "Trying to create a new connection.");
-        bluetoothDeviceAddress = address;
+        if (connectionEstablished) {
+            bleHandler.postDelayed(connectAttemptTimeout, CONNECT_ATTEMPT_TIMEOUT);
+        }
+        return true;
+    }
+
+    // This method opens a new socket connection to the current host address
+    private boolean openSocket() {
+        final SocketClient client;
+        try {
+            client = new SocketClient(new SocketClient.Listener() {
+                @Override
+                public void onConnected() {
+                    bleHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (socketClient != null) {
+                                handleSocketConnected();
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onFrame(final SocketFrame frame) {
+                    final long receivedAt = SystemClock.uptimeMillis();
+                    bleHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (socketClient != null) {
+                                handleSocketFrame(frame, receivedAt);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onDisconnected() {
+                    bleHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (socketClient != null) {
+                                handleSocketDisconnected();
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open a socket.", e);
+            return false;
+        }
+        socketClient = client;
+        client.connect(socketHost, socketPort);
+        Log.d(TAG, "Trying to create a new socket connection.");
+        return true;
+    }
+
+    // The host has not answered yet, so drop the attempt and try again
+    private final Runnable connectAttemptTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "Timed out resuming the connection");
+            closeGatt();
+            if (shouldReconnect(GATT_ERROR)) {
+                scheduleReconnect();
+            } else {
+                connectionEstablished = false;
+                connectingToSuccessor = false;
+                broadcastUpdate(ACTION_GATT_DISCONNECTED);
+            }
+        }
+    };
+
+    // This method decides whether a dropped connection should be retried
+    private boolean shouldReconnect(int status) {
+        // A lost host is given up on sooner when another client can take over its session
+        int maxAttempts = session != null && !connectingToSuccessor
+                ? HOST_LOSS_ATTEMPTS : MAX_RECONNECT_ATTEMPTS;
+        if ((bluetoothDeviceAddress == null && socketHost == null) || reconnectAttempts >= maxAttempts) {
+            return false;
+        }
+        // Established connections are always resumed, new ones only on the spurious GATT_ERROR
+        return connectionEstablished || status == GATT_ERROR;
+    }
+
+    // This method retries the connection after an exponentially growing delay
+    private void scheduleReconnect() {
+        long delay = Math.min(RECONNECT_BASE_DELAY << reconnectAttempts, RECONNECT_MAX_DELAY);
+        reconnectAttempts++;
+        Log.i(TAG, "Reconnecting in " + delay + " ms, attempt " + reconnectAttempts);
+        bleHandler.postDelayed(reconnectRunnable, delay);
+    }
+
+    private void cancelReconnect() {
+        bleHandler.removeCallbacks(reconnectRunnable);
+        bleHandler.removeCallbacks(connectAttemptTimeout);
+        reconnectAttempts = 0;
     }
 
+    private final Runnable reconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (socketHost != null) {
+                if (socketClient == null && !openSocket()) {
+                    broadcastUpdate(ACTION_GATT_DISCONNECTED);
+                }
+            } else if (bluetoothGatt == null && !openGatt()) {
+                broadcastUpdate(ACTION_GATT_DISCONNECTED);
+            }
+        }
+    };
+
     // This method returns a service provided by the host device, identified by UUID
     public BluetoothGattService getServiceByUuid(UUID uuid) {
-        if (bluetoothGatt == null) return null;
+        if (socketHost != null) {
+            return UuidUtils.SERVICE.equals(uuid) ? socketService : null;
+        }
+        BluetoothGatt gatt = bluetoothGatt;
+        if (gatt == null) return null;
 
-        return bluetoothGatt.getService(uuid);
+        return gatt.getService(uuid);
     }
 
     // This method reads a specific characteristic from the server
     public void readCharacteristic(final BluetoothGattCharacteristic characteristic) {
-        if(bluetoothGatt == null) {
+        if(bluetoothGatt == null && socketClient == null) {
             Log.e(TAG, "ERROR: Gatt is 'null', ignoring read request");
             return;
         }
@@ -140,11 +498,11 @@ public class BleGattService extends Service {
         }
 
         // Enqueue the read command now that all checks have been passed
-        boolean result = commandQueue.add(new Runnable() {
+        enqueueCommand(new Runnable() {
             @Override
             public void run() {
                 // Read the characteristic
-                if(!bluetoothGatt.readCharacteristic(characteristic)) {
+                if(!readRemote(characteristic)) {
                     Log.e(TAG, String.format("ERROR: readCharacteristic failed for characteristic: %s", characteristic.getUuid()));
                     completedCommand();
                 } else {
@@ -152,18 +510,11 @@ public class BleGattService extends Service {
                 }
             }
         });
-
-        // Run the read command if enqueued successfully
-        if(result) {
-            nextCommand();
-        } else {
-            Log.e(TAG, "ERROR: Could not enqueue read characteristic command");
-        }
     }
 
     // This method writes to a specific characteristic on the server
     public void writeCharacteristic(final BluetoothGattCharacteristic characteristic, final String value) {
-        if(bluetoothGatt == null) {
+        if(bluetoothGatt == null && socketClient == null) {
             Log.e(TAG, "ERROR: Gatt is 'null', ignoring write request");
             return;
         }
@@ -176,13 +527,13 @@ public class BleGattService extends Service {
             return;
         }
 
-        // Enqueue the read command now that all checks have been passed
-        boolean result = commandQueue.add(new Runnable() {
+        // Enqueue the write command now that all checks have been passed
+        enqueueCommand(new Runnable() {
             @Override
             public void run() {
                 // Write to the characteristic
                 characteristic.setValue(value);
-                if(!bluetoothGatt.writeCharacteristic(characteristic)) {
+                if(!writeRemote(characteristic)) {
                     Log.e(TAG, String.format("ERROR: writeCharacteristic failed for characteristic: %s", characteristic.getUuid()));
                     completedCommand();
                 } else {
@@ -190,13 +541,74 @@ public class BleGattService extends Service {
                 }
             }
         });
+    }
 
-        // Run the write command if enqueued successfully
-        if(result) {
-            nextCommand();
-        } else {
-            Log.e(TAG, "ERROR: Could not enqueue write characteristic command");
+    // This method asks for an MTU that fits the race results, ahead of anything the activities queue
+    private void requestMtu() {
+        enqueueCommand(new Runnable() {
+            @Override
+            public void run() {
+                if (!bluetoothGatt.requestMtu(RESULTS_MTU)) {
+                    Log.e(TAG, "ERROR: requestMtu failed");
+                    completedCommand();
+                }
+            }
+        });
+    }
+
+    // This method samples the host's clock several times, keeping the best estimate of its offset
+    public void syncClock() {
+        BluetoothGattService service = getServiceByUuid(UuidUtils.SERVICE);
+        final BluetoothGattCharacteristic clock =
+                service != null ? service.getCharacteristic(UuidUtils.CLOCK) : null;
+        if (clock == null) {
+            Log.w(TAG, "Host has no clock, start times will not be synchronized");
+            return;
         }
+
+        for (int i = 0; i < CLOCK_SAMPLES; i++) {
+            enqueueCommand(new Runnable() {
+                @Override
+                public void run() {
+                    // Take the send time as late as possible, right before the read goes out
+                    clockReadSentAt = SystemClock.uptimeMillis();
+                    if (!readRemote(clock)) {
+                        Log.e(TAG, "ERROR: clock read failed");
+                        completedCommand();
+                    }
+                }
+            });
+        }
+    }
+
+    // This method reads the host's session, to keep the local copy up to date
+    private void readSession() {
+        BluetoothGattService service = getServiceByUuid(UuidUtils.SERVICE);
+        BluetoothGattCharacteristic characteristic =
+                service != null ? service.getCharacteristic(UuidUtils.SESSION) : null;
+        if (characteristic != null) {
+            readCharacteristic(characteristic);
+        }
+    }
+
+    // This method converts a local uptime to the host's clock
+    public long toHostTime(long localTime) {
+        return localTime + clockOffset;
+    }
+
+    // This method converts a time on the host's clock to local uptime
+    public long toLocalTime(long hostTime) {
+        return hostTime - clockOffset;
+    }
+
+    public boolean isClockSynced() {
+        return clockSynced;
+    }
+
+    // Whether the trees of the last start dropped at the host's start time. If they did not, the
+    // host has to judge the release without its time
+    public boolean isStartSynced() {
+        return startSynced;
     }
 
     // Subscribe to changes to a specific characteristic on the server
@@ -230,174 +642,629 @@ public class BleGattService extends Service {
         final byte[] finalValue = enabled ? value : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
 
         // Queue Runnable to turn on/off the notification now that all checks have been passed
-        boolean result = commandQueue.add(new Runnable() {
+        enqueueCommand(new Runnable() {
             @Override
             public void run() {
                 // First set notification for Gatt object
                 boolean result;
-                result = bluetoothGatt.setCharacteristicNotification(configDescriptor.getCharacteristic(), enabled);
-                if (!result) {
-                    Log.e(TAG, String.format("ERROR: setCharacteristicNotification failed for descriptor: %s", configDescriptor.getUuid()));
+                if (bluetoothGatt != null) {
+                    result = bluetoothGatt.setCharacteristicNotification(configDescriptor.getCharacteristic(), enabled);
+                    if (!result) {
+                        Log.e(TAG, String.format("ERROR: setCharacteristicNotification failed for descriptor: %s", configDescriptor.getUuid()));
+                    }
                 }
 
                 // Then write to descriptor
                 configDescriptor.setValue(finalValue);
-                result = bluetoothGatt.writeDescriptor(configDescriptor);
+                result = writeRemote(configDescriptor);
                 if (!result) {
                     Log.e(TAG, String.format("ERROR: writeDescriptor failed for descriptor: %s", configDescriptor.getUuid()));
                     completedCommand();
                 }
             }
         });
+    }
 
-        // Run subscribe command if enqueued successfully
-        if(result) {
-            nextCommand();
-        } else {
-            Log.e(TAG, "ERROR: Could not enqueue write command");
+    // These methods send a request to the host over whichever transport is connected
+    private boolean readRemote(BluetoothGattCharacteristic characteristic) {
+        if (socketClient != null) {
+            socketReadPending = true;
+            return socketClient.send(SocketFrame.read(characteristic.getUuid()));
+        }
+        return bluetoothGatt.readCharacteristic(characteristic);
+    }
+
+    private boolean writeRemote(BluetoothGattCharacteristic characteristic) {
+        if (socketClient != null) {
+            socketReadPending = false;
+            return socketClient.send(SocketFrame.write(characteristic.getUuid(), characteristic.getValue()));
+        }
+        return bluetoothGatt.writeCharacteristic(characteristic);
+    }
+
+    private boolean writeRemote(BluetoothGattDescriptor descriptor) {
+        if (socketClient != null) {
+            socketReadPending = false;
+            return socketClient.send(SocketFrame.subscribe(descriptor.getCharacteristic().getUuid(),
+                    descriptor.getValue()));
         }
+        return bluetoothGatt.writeDescriptor(descriptor);
     }
 
+    // This method builds the copy of the race service used over Wi-Fi. The host decides what
+    // each characteristic allows, so every one of them can be read, written and subscribed to
+    private static BluetoothGattService createSocketService() {
+        BluetoothGattService service =
+                new BluetoothGattService(UuidUtils.SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (UUID uuid : UuidUtils.RACE_CHARACTERISTICS) {
+            BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(uuid,
+                    BluetoothGattCharacteristic.PROPERTY_READ
+                            | BluetoothGattCharacteristic.PROPERTY_WRITE
+                            | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                    BluetoothGattCharacteristic.PERMISSION_READ
+                            | BluetoothGattCharacteristic.PERMISSION_WRITE);
+            characteristic.addDescriptor(new BluetoothGattDescriptor(UuidUtils.CCCD,
+                    BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+            service.addCharacteristic(characteristic);
+        }
+        return service;
+    }
 
-    // Define callbacks for various GATT responses
+    // Define callbacks for various GATT responses. These arrive on binder threads, so each one
+    // captures what it needs and hands it to the BLE thread, which owns all connection state
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         // Provide responses to connection state changes
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                int bondState = gatt.getDevice().getBondState();
-                Log.i(TAG, "Bond state: " + bondState);
-                intentAction = ACTION_GATT_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server. Status: " + status);
-
-                // Discover services on device after a delay to avoid race conditions
-                new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        bluetoothGatt.discoverServices();
-                    }
-                }, 500);
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server. Status: " + status);
-                close();
-                broadcastUpdate(intentAction);
-            }
+        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+            recorder.record(FlightRecorder.GATT_CONNECTION, RaceTrace.getLocalLane(), status, newState);
+            bleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnectionStateChange(gatt, status, newState);
+                }
+            });
         }
 
         // Provide responses to services being discovered
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                // Broadcast that services have been discovered
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-                Log.w(TAG, "onServicesDiscovered received: " + status);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
-            }
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            bleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleServicesDiscovered(gatt, status);
+                }
+            });
         }
 
         // Provide responses for characteristic being read
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
+        public void onCharacteristicRead(final BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            Log.w(TAG, "onCharacteristicRead(): " + status);
-            // If read was a success, broadcast update with appropriate action
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (UuidUtils.BEGIN_RACE_ACTIVITY.equals(characteristic.getUuid())) {
-                    broadcastUpdate(BleGattService.BEGIN_RACE_ACTIVITY, characteristic);
-                } else if (UuidUtils.RACER_ID.equals(characteristic.getUuid())) {
-                    broadcastUpdate(BleGattService.RACER_ID, characteristic);
-                } else if (UuidUtils.RACER_1_DIAL.equals(characteristic.getUuid())
-                        || UuidUtils.RACER_2_DIAL.equals(characteristic.getUuid())
-                        || UuidUtils.RACER_3_DIAL.equals(characteristic.getUuid())
-                        || UuidUtils.RACER_HOST_DIAL.equals(characteristic.getUuid())) {
-                    broadcastUpdate(BleGattService.DIAL_UPDATE, characteristic);
-                } else if (UuidUtils.RACER_1_RT.equals(characteristic.getUuid())
-                        || UuidUtils.RACER_2_RT.equals(characteristic.getUuid())
-                        || UuidUtils.RACER_3_RT.equals(characteristic.getUuid())
-                        || UuidUtils.RACER_HOST_RT.equals(characteristic.getUuid())) {
-                    broadcastUpdate(BleGattService.RT_UPDATE, characteristic);
-                } else {
-                    Log.w(TAG, "Broadcasting update: ACTION_DATA_AVAILABLE");
-                    broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                                         final int status) {
+            final long receivedAt = SystemClock.uptimeMillis();
+            final UUID uuid = characteristic.getUuid();
+            final byte[] value = characteristic.getValue();
+            recorder.record(FlightRecorder.GATT_READ, RaceTrace.getLocalLane(), status, SocketFrame.toShort(uuid));
+            bleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleCharacteristicRead(gatt, uuid, value, status, receivedAt);
                 }
-            }
-            completedCommand();
+            });
         }
 
         // Provide response for characteristic writes
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
-            Log.w(TAG, "onCharacteristicRead(): " + status);
-            completedCommand();
+        public void onCharacteristicWrite(final BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+            final long receivedAt = System.nanoTime();
+            recorder.record(FlightRecorder.GATT_WRITE, RaceTrace.getLocalLane(), status, SocketFrame.toShort(characteristic.getUuid()));
+            bleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.w(TAG, "onCharacteristicWrite(): " + status);
+                    recordPing(status, receivedAt);
+                    completedCommand(gatt);
+                }
+            });
         }
 
         // Provide responses for subscribed characteristics being changed
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            if (characteristic.getUuid().equals(UuidUtils.RACE_READY)) {
-                broadcastUpdate(START_RACE);
-            }
+            // The characteristic is reused for the next notification, so copy its value now
+            final UUID uuid = characteristic.getUuid();
+            final byte[] value = characteristic.getValue();
+            recorder.record(FlightRecorder.GATT_CHANGED, RaceTrace.getLocalLane(), 0, SocketFrame.toShort(uuid));
+            bleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    boolean traced = RaceTrace.begin("characteristicChanged", RaceTrace.getLocalLane());
+                    handleCharacteristicChanged(uuid, value);
+                    RaceTrace.end(traced);
+                }
+            });
+        }
 
-            if (UuidUtils.BEGIN_RACE_ACTIVITY.equals(characteristic.getUuid())) {
-                broadcastUpdate(BEGIN_RACE_ACTIVITY, characteristic);
+        @Override
+        public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+            recorder.record(FlightRecorder.GATT_MTU, RaceTrace.getLocalLane(), status, mtu);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                linkStats.set(LinkStats.HOST_LINK, LinkStats.MTU, mtu);
             }
+            bleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "onMtuChanged(): " + mtu + " status: " + status);
+                    if (gatt == bluetoothGatt && status == BluetoothGatt.GATT_SUCCESS) {
+                        BleGattService.this.mtu = mtu;
+                    }
+                    completedCommand(gatt);
+                }
+            });
+        }
 
-            if (UuidUtils.RACER_1_STAGE.equals(characteristic.getUuid())) {
-                broadcastUpdate(BleGattService.STAGE_UPDATE, "1" + Arrays.toString(characteristic.getValue()));
-            } else if (UuidUtils.RACER_2_STAGE.equals(characteristic.getUuid())) {
-                broadcastUpdate(BleGattService.STAGE_UPDATE, "2" + Arrays.toString(characteristic.getValue()));
-            } else if (UuidUtils.RACER_3_STAGE.equals(characteristic.getUuid())) {
-                broadcastUpdate(BleGattService.STAGE_UPDATE, "3" + Arrays.toString(characteristic.getValue()));
-            } else if (UuidUtils.RACER_HOST_STAGE.equals(characteristic.getUuid())) {
-                broadcastUpdate(BleGattService.STAGE_UPDATE, "4" + Arrays.toString(characteristic.getValue()));
+        @Override
+        public void onReadRemoteRssi(final BluetoothGatt gatt, final int rssi, final int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                linkStats.set(LinkStats.HOST_LINK, LinkStats.RSSI, rssi);
             }
+            bleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    completedCommand(gatt);
+                }
+            });
+        }
 
-            if (UuidUtils.RACE_FINISHED.equals(characteristic.getUuid())) {
-                broadcastUpdate(BleGattService.RACE_FINISHED);
+        // Hidden from the SDK, but called on API 26 and up whenever the connection parameters
+        // change, so it is declared without overriding anything
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout,
+                                        int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                linkStats.set(LinkStats.HOST_LINK, LinkStats.INTERVAL,
+                        (long) interval * INTERVAL_UNIT_MICROS);
             }
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorWrite(gatt, descriptor, status);
-            Log.w(TAG, "onDescriptorWrite() status: " + status);
+        public void onDescriptorWrite(final BluetoothGatt gatt, BluetoothGattDescriptor descriptor, final int status) {
+            recorder.record(FlightRecorder.GATT_DESCRIPTOR_WRITE, RaceTrace.getLocalLane(), status,
+                    SocketFrame.toShort(descriptor.getCharacteristic().getUuid()));
+            bleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.w(TAG, "onDescriptorWrite() status: " + status);
+                    completedCommand(gatt);
+                }
+            });
+        }
+    };
+
+    private void handleConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        // Ignore late callbacks from a GATT object that has already been closed
+        if (gatt != bluetoothGatt) {
+            return;
+        }
+
+        String intentAction;
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            bleHandler.removeCallbacks(connectAttemptTimeout);
+            int bondState = gatt.getDevice().getBondState();
+            Log.i(TAG, "Bond state: " + bondState);
+            intentAction = ACTION_GATT_CONNECTED;
+            broadcastUpdate(intentAction);
+            Log.i(TAG, "Connected to GATT server. Status: " + status);
+
+            // Discover services on device after a delay to avoid race conditions
+            bleHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (bluetoothGatt != null) {
+                        bluetoothGatt.discoverServices();
+                    }
+                }
+            }, 500);
+
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            Log.i(TAG, "Disconnected from GATT server. Status: " + status);
+            // A GATT object that reported GATT_ERROR cannot be reused, so always start fresh
+            closeGatt();
+            if (shouldReconnect(status)) {
+                intentAction = ACTION_GATT_RECONNECTING;
+                scheduleReconnect();
+            } else {
+                intentAction = ACTION_GATT_DISCONNECTED;
+                connectionEstablished = false;
+                connectingToSuccessor = false;
+            }
+            broadcastUpdate(intentAction);
+        }
+    }
+
+    // A socket needs no service discovery, so the copy of the race service is ready straight away
+    private void handleSocketConnected() {
+        bleHandler.removeCallbacks(connectAttemptTimeout);
+        broadcastUpdate(ACTION_GATT_CONNECTED);
+        Log.i(TAG, "Connected to host over Wi-Fi.");
+        connectionEstablished = true;
+        reconnectAttempts = 0;
+        broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+        startPinging();
+    }
+
+    // Responses complete the current command, and notifications are handled like GATT ones. Read
+    // responses are handed on with the current GATT object, which is null while on a socket
+    private void handleSocketFrame(SocketFrame frame, long receivedAt) {
+        if (frame.getType() == SocketFrame.NOTIFY) {
+            handleCharacteristicChanged(frame.getUuid(), frame.getValue());
+        } else if (frame.getType() == SocketFrame.RESPONSE && socketReadPending) {
+            socketReadPending = false;
+            handleCharacteristicRead(bluetoothGatt, frame.getUuid(), frame.getValue(),
+                    frame.getStatus(), receivedAt);
+        } else if (frame.getType() == SocketFrame.RESPONSE) {
+            recordPing(frame.getStatus(), System.nanoTime());
             completedCommand();
         }
+    }
+
+    private void handleSocketDisconnected() {
+        Log.i(TAG, "Disconnected from host over Wi-Fi.");
+        closeGatt();
+        if (shouldReconnect(BluetoothGatt.GATT_SUCCESS)) {
+            scheduleReconnect();
+            broadcastUpdate(ACTION_GATT_RECONNECTING);
+        } else {
+            connectionEstablished = false;
+            broadcastUpdate(ACTION_GATT_DISCONNECTED);
+        }
+    }
+
+    private void handleServicesDiscovered(BluetoothGatt gatt, int status) {
+        if (gatt != bluetoothGatt) {
+            return;
+        }
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            connectionEstablished = true;
+            connectingToSuccessor = false;
+            reconnectAttempts = 0;
+            requestMtu();
+            // Broadcast that services have been discovered
+            broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+            startPinging();
+            Log.w(TAG, "onServicesDiscovered received: " + status);
+        } else {
+            Log.w(TAG, "onServicesDiscovered received: " + status);
+        }
+    }
+
+    private void handleCharacteristicRead(BluetoothGatt gatt, UUID uuid, byte[] value, int status,
+                                          long receivedAt) {
+        Log.w(TAG, "onCharacteristicRead(): " + status);
+        // If read was a success, broadcast update with appropriate action
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            if (UuidUtils.CLOCK.equals(uuid)) {
+                addClockSample(value, receivedAt);
+            } else if (UuidUtils.FOUL.equals(uuid)) {
+                broadcastUpdate(BleGattService.FOUL_UPDATE, uuid, value);
+            } else if (UuidUtils.HEAT.equals(uuid)) {
+                broadcastUpdate(BleGattService.HEAT_UPDATE, uuid, value);
+            } else if (UuidUtils.BEGIN_RACE_ACTIVITY.equals(uuid)) {
+                broadcastUpdate(BleGattService.BEGIN_RACE_ACTIVITY, uuid, value);
+            } else if (UuidUtils.RACER_ID.equals(uuid)) {
+                broadcastUpdate(BleGattService.RACER_ID, uuid, value);
+            } else if (UuidUtils.SESSION_ID.equals(uuid)) {
+                sessionId = value != null ? new String(value) : null;
+                broadcastUpdate(BleGattService.SESSION_ID, uuid, value);
+            } else if (UuidUtils.GROUP_ID.equals(uuid)) {
+                groupId = parseGroup(value);
+                RaceTrace.setRace(groupId, RaceTrace.getRace());
+                broadcastUpdate(BleGattService.GROUP_ID, uuid, value);
+            } else if (UuidUtils.RACE_SNAPSHOT.equals(uuid)) {
+                broadcastUpdate(BleGattService.SNAPSHOT_UPDATE, uuid, value);
+            } else if (UuidUtils.RACE_FINISHED.equals(uuid)) {
+                handleResults(uuid, value);
+            } else if (UuidUtils.SESSION.equals(uuid)) {
+                session = value != null ? new String(value) : null;
+            } else if (UuidUtils.RACER_1_DIAL.equals(uuid)
+                    || UuidUtils.RACER_2_DIAL.equals(uuid)
+                    || UuidUtils.RACER_3_DIAL.equals(uuid)
+                    || UuidUtils.RACER_HOST_DIAL.equals(uuid)) {
+                broadcastUpdate(BleGattService.DIAL_UPDATE, uuid, value);
+            } else if (UuidUtils.RACER_1_RT.equals(uuid)
+                    || UuidUtils.RACER_2_RT.equals(uuid)
+                    || UuidUtils.RACER_3_RT.equals(uuid)
+                    || UuidUtils.RACER_HOST_RT.equals(uuid)) {
+                broadcastUpdate(BleGattService.RT_UPDATE, uuid, value);
+            } else {
+                Log.w(TAG, "Broadcasting update: ACTION_DATA_AVAILABLE");
+                broadcastUpdate(ACTION_DATA_AVAILABLE, uuid, value);
+            }
+        }
+        completedCommand(gatt);
+    }
+
+    private void addClockSample(byte[] value, long receivedAt) {
+        try {
+            long hostTime = Long.parseLong(new String(value));
+            clockSync.addSample(clockReadSentAt, hostTime, receivedAt);
+            clockOffset = clockSync.getOffset();
+            clockSynced = true;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Malformed clock value");
+        }
+    }
+
+    private static int parseGroup(byte[] value) {
+        try {
+            return Integer.parseInt(new String(value));
+        } catch (NumberFormatException | NullPointerException e) {
+            return 0;
+        }
+    }
+
+    private void startPinging() {
+        bleHandler.removeCallbacks(pingRunnable);
+        bleHandler.postDelayed(pingRunnable, PING_INTERVAL);
+    }
+
+    // Ping the host and read the RSSI, unless a command is waiting or the local lane is racing
+    private final Runnable pingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            bleHandler.postDelayed(this, PING_INTERVAL);
+            if (commandQueueBusy || !commandQueue.isEmpty() || holdingPings) {
+                return;
+            }
+            BluetoothGattService service = getServiceByUuid(UuidUtils.SERVICE);
+            final BluetoothGattCharacteristic ping =
+                    service != null ? service.getCharacteristic(UuidUtils.PING) : null;
+            if (ping == null) {
+                return;
+            }
+
+            final String value = LinkStats.encodePing(linkStats.get(LinkStats.HOST_LINK, LinkStats.RTT),
+                    linkStats.get(LinkStats.HOST_LINK, LinkStats.RSSI), queuePeak);
+            queuePeak = 0;
+            enqueueCommand(new Runnable() {
+                @Override
+                public void run() {
+                    // The lane may have staged since the ping was queued
+                    if (holdingPings) {
+                        completedCommand();
+                        return;
+                    }
+                    ping.setValue(value);
+                    pingInFlight = true;
+                    pingSentAt = System.nanoTime();
+                    if (!writeRemote(ping)) {
+                        completedCommand();
+                    }
+                }
+            });
+            if (socketClient == null) {
+                enqueueCommand(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (holdingPings || bluetoothGatt == null || !bluetoothGatt.readRemoteRssi()) {
+                            completedCommand();
+                        }
+                    }
+                });
+            }
+        }
     };
 
-    // Send broadcast only containing action name
+    // The command a response completes is the ping if one is in flight, which ends its round trip
+    private void recordPing(int status, long receivedAt) {
+        if (pingInFlight && status == BluetoothGatt.GATT_SUCCESS) {
+            linkStats.set(LinkStats.HOST_LINK, LinkStats.RTT,
+                    TimeUnit.NANOSECONDS.toMicros(receivedAt - pingSentAt));
+        }
+    }
+
+    // The start signal is "start:<host time>". It is handed on as the local time to drop the
+    // trees, or now if the clock is not synced
+    private void handleStartSignal(byte[] value) {
+        raceStarted = true;
+        String data = value != null ? new String(value) : "";
+        int separator = data.indexOf(':');
+        if (separator >= 0) {
+            try {
+                long hostTime = Long.parseLong(data.substring(separator + 1));
+                if (clockSynced) {
+                    handOnStart(hostTime);
+                    return;
+                }
+                // The race is still the one the host started, even if its time is of no use here
+                RaceTrace.setRace(groupId, hostTime);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Malformed start time");
+            }
+        }
+        startSynced = false;
+        broadcastUpdate(START_RACE, Long.toString(SystemClock.uptimeMillis()));
+    }
+
+    // The same start can arrive both as a notification and as a beacon, and only the first one
+    // is handed on
+    private void handOnStart(long hostTime) {
+        if (hostTime == lastStartTime) {
+            return;
+        }
+        lastStartTime = hostTime;
+        raceStarted = true;
+        startSynced = true;
+        RaceTrace.setRace(groupId, hostTime);
+        broadcastUpdate(START_RACE, Long.toString(toLocalTime(hostTime)));
+    }
+
+    // This method scans for start beacons while the local lane is staged
+    public void listenForStart(final boolean enabled) {
+        bleHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (enabled) {
+                    holdingPings = true;
+                    raceStarted = false;
+                } else if (!raceStarted) {
+                    holdingPings = false;
+                }
+                BluetoothLeScanner scanner =
+                        bluetoothAdapter != null ? bluetoothAdapter.getBluetoothLeScanner() : null;
+                if (scanner == null || enabled == listeningForStart) {
+                    return;
+                }
+                listeningForStart = enabled;
+                if (!enabled) {
+                    scanner.stopScan(beaconScanCallback);
+                    return;
+                }
+                // Only beacons are reported, and as soon as they are heard
+                ScanFilter filter = new ScanFilter.Builder()
+                        .setManufacturerData(StartBeacon.COMPANY_ID, StartBeacon.MAGIC,
+                                new byte[] {(byte) 0xFF, (byte) 0xFF})
+                        .build();
+                ScanSettings settings = new ScanSettings.Builder()
+                        .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                        .setReportDelay(0)
+                        .build();
+                scanner.startScan(Collections.singletonList(filter), settings, beaconScanCallback);
+            }
+        });
+    }
+
+    private final ScanCallback beaconScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            ScanRecord record = result.getScanRecord();
+            final StartBeacon beacon = record != null
+                    ? StartBeacon.decode(record.getManufacturerSpecificData(StartBeacon.COMPANY_ID))
+                    : null;
+            if (beacon == null) {
+                return;
+            }
+            bleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleStartBeacon(beacon);
+                }
+            });
+        }
+    };
+
+    // A beacon can only be placed in time once the clock is synced
+    private void handleStartBeacon(StartBeacon beacon) {
+        if (!listeningForStart || !clockSynced || sessionId == null
+                || beacon.getSession() != StartBeacon.toSession(sessionId)
+                || beacon.getGroup() != groupId) {
+            return;
+        }
+        handOnStart(beacon.getStartTime(toHostTime(SystemClock.uptimeMillis())));
+    }
+
+    private void handleCharacteristicChanged(UUID uuid, byte[] value) {
+        if (UuidUtils.RACE_READY.equals(uuid)) {
+            handleStartSignal(value);
+        }
+
+        if (UuidUtils.FOUL.equals(uuid)) {
+            broadcastUpdate(FOUL_UPDATE, uuid, value);
+        }
+
+        if (UuidUtils.BEGIN_RACE_ACTIVITY.equals(uuid)) {
+            broadcastUpdate(BEGIN_RACE_ACTIVITY, uuid, value);
+        }
+
+        if (UuidUtils.ROUND.equals(uuid)) {
+            broadcastUpdate(ROUND_UPDATE, uuid, value);
+        }
+
+        if (UuidUtils.HEAT.equals(uuid)) {
+            broadcastUpdate(HEAT_UPDATE, uuid, value);
+        }
+
+        // The notification may be cut off by the MTU, so the whole session is read back
+        if (UuidUtils.SESSION.equals(uuid)) {
+            readSession();
+        }
+
+        if (UuidUtils.RACER_1_STAGE.equals(uuid)) {
+            broadcastUpdate(BleGattService.STAGE_UPDATE, "1" + Arrays.toString(value));
+        } else if (UuidUtils.RACER_2_STAGE.equals(uuid)) {
+            broadcastUpdate(BleGattService.STAGE_UPDATE, "2" + Arrays.toString(value));
+        } else if (UuidUtils.RACER_3_STAGE.equals(uuid)) {
+            broadcastUpdate(BleGattService.STAGE_UPDATE, "3" + Arrays.toString(value));
+        } else if (UuidUtils.RACER_HOST_STAGE.equals(uuid)) {
+            broadcastUpdate(BleGattService.STAGE_UPDATE, "4" + Arrays.toString(value));
+        }
+
+        // The notification carries the results, unless the MTU cut them off. A notification that
+        // fills the whole MTU may have been cut off, even if it still decodes, so the results
+        // are read back whole
+        if (UuidUtils.RACE_FINISHED.equals(uuid)) {
+            if (mayBeCutOff(value)) {
+                readRaceFinished();
+            } else {
+                handleResults(uuid, value);
+            }
+        }
+    }
+
+    // The race is over once its results are in, so the link can be measured again
+    private void handleResults(UUID uuid, byte[] value) {
+        holdingPings = false;
+        raceStarted = false;
+        broadcastUpdate(BleGattService.RACE_FINISHED, uuid, value);
+    }
+
+    // Sockets send values whole, and GATT notifications are cut off at the MTU
+    private boolean mayBeCutOff(byte[] value) {
+        return socketClient == null && value != null && value.length >= mtu - ATT_HEADER;
+    }
+
+    private void readRaceFinished() {
+        BluetoothGattService service = getServiceByUuid(UuidUtils.SERVICE);
+        BluetoothGattCharacteristic characteristic =
+                service != null ? service.getCharacteristic(UuidUtils.RACE_FINISHED) : null;
+        if (characteristic != null) {
+            readCharacteristic(characteristic);
+        }
+    }
+
+    // Register a receiver for updates from this service, which is always called on the UI thread
+    public void registerUpdateReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        dispatcher.register(receiver, filter);
+    }
+
+    public void unregisterUpdateReceiver(BroadcastReceiver receiver) {
+        dispatcher.unregister(receiver);
+    }
+
+    // Send update only containing action name
     private void broadcastUpdate(final String action) {
         final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+        dispatcher.post(intent);
     }
 
-    // Send broadcast containing action name and characteristic value
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
+    // Send update containing action name and characteristic value
+    private void broadcastUpdate(final String action, UUID uuid, byte[] data) {
         final Intent intent = new Intent(action);
 
-        final byte[] data = characteristic.getValue();
         if (data != null && data.length > 0) {
             intent.putExtra(EXTRA_DATA, new String(data));
-            intent.putExtra(CHARACTERISTIC_UUID, characteristic.getUuid().toString());
+            intent.putExtra(CHARACTERISTIC_UUID, uuid.toString());
         }
 
-        sendBroadcast(intent);
+        dispatcher.post(intent);
     }
 
-    // Send broadcast containing action and custom payload
+    // Send update containing action and custom payload
     private void broadcastUpdate(final String action, String payload) {
         final Intent intent = new Intent(action);
         intent.putExtra(EXTRA_DATA, payload);
-        sendBroadcast(intent);
+        dispatcher.post(intent);
     }
 
     // Required for services
@@ -414,6 +1281,39 @@ public class BleGattService extends Service {
 
     // Ensure BLE connection is closed so we can dispose of the resources
     public void close() {
+        bleHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                connectionEstablished = false;
+                bluetoothDeviceAddress = null;
+                socketHost = null;
+                closeGatt();
+                if (listeningForStart && bluetoothAdapter.getBluetoothLeScanner() != null) {
+                    bluetoothAdapter.getBluetoothLeScanner().stopScan(beaconScanCallback);
+                }
+                listeningForStart = false;
+                holdingPings = false;
+                raceStarted = false;
+            }
+        });
+    }
+
+    // Close the current GATT object or socket, dropping any commands that were waiting on it
+    private void closeGatt() {
+        commandQueue.clear();
+        commandQueueBusy = false;
+        commandsRun = commandsQueued;
+        socketReadPending = false;
+        mtu = DEFAULT_MTU;
+        bleHandler.removeCallbacks(pingRunnable);
+        pingInFlight = false;
+        queuePeak = 0;
+        linkStats.clear(LinkStats.HOST_LINK);
+        if (socketClient != null) {
+            socketClient.close();
+            socketClient = null;
+        }
         if (bluetoothGatt == null) {
             return;
         }
@@ -421,37 +1321,61 @@ public class BleGattService extends Service {
         bluetoothGatt = null;
     }
 
-    // Run the next command in the command queue
+    // Add a command to the queue on the BLE thread, and run it if the queue is idle
+    private void enqueueCommand(final Runnable command) {
+        bleHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                commandQueue.add(command);
+                recorder.record(FlightRecorder.COMMAND_ENQUEUE, RaceTrace.getLocalLane(), commandsQueued++, commandQueue.size());
+                queuePeak = Math.max(queuePeak, commandQueue.size());
+                linkStats.set(LinkStats.HOST_LINK, LinkStats.QUEUE, commandQueue.size());
+                RaceTrace.counter("gatt commands queued", commandQueue.size());
+                nextCommand();
+            }
+        });
+    }
+
+    // Run the next command in the command queue. This is only called on the BLE thread
     private void nextCommand() {
         // If there is still a command being executed then bail out
         if(commandQueueBusy) {
             return;
         }
 
-        // Check if we still have a valid gatt object
-        if (bluetoothGatt == null) {
+        // Check if we still have a valid gatt object or socket
+        if (bluetoothGatt == null && socketClient == null) {
             Log.e(TAG, String.format("ERROR: GATT is 'null' for peripheral '%s', clearing command queue", bluetoothDeviceAddress));
             commandQueue.clear();
             commandQueueBusy = false;
+            commandsRun = commandsQueued;
             return;
         }
 
-        // Execute the next command in the queue
-        if (commandQueue.size() > 0) {
-            final Runnable bluetoothCommand = commandQueue.peek();
+        // Execute the next command in the queue, we are already on the BLE thread
+        final Runnable bluetoothCommand = commandQueue.peek();
+        if (bluetoothCommand != null) {
             commandQueueBusy = true;
+            recorder.record(FlightRecorder.COMMAND_DEQUEUE, RaceTrace.getLocalLane(), commandsRun, commandQueue.size());
+            // The command is in flight until its callback completes it
+            commandSlice = RaceTrace.beginAsync("gatt command", RaceTrace.getLocalLane());
+            boolean traced = RaceTrace.begin("run gatt command", RaceTrace.getLocalLane());
+            try {
+                Log.w(TAG, "Running command...");
+                bluetoothCommand.run();
+            } catch (Exception ex) {
+                Log.e(TAG, String.format("ERROR: Command exception for device '%s'", bluetoothDeviceAddress), ex);
+                completedCommand();
+            } finally {
+                RaceTrace.end(traced);
+            }
+        }
+    }
 
-            bleHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        Log.w(TAG, "Running command...");
-                        bluetoothCommand.run();
-                    } catch (Exception ex) {
-                        Log.e(TAG, String.format("ERROR: Command exception for device '%s'", bluetoothDeviceAddress), ex);
-                    }
-                }
-            });
+    // Complete the current command, unless the callback came from a GATT object already closed
+    private void completedCommand(BluetoothGatt gatt) {
+        if (gatt == bluetoothGatt) {
+            completedCommand();
         }
     }
 
@@ -459,7 +1383,13 @@ public class BleGattService extends Service {
     private void completedCommand() {
         Log.w(TAG, "Completed command");
         commandQueueBusy = false;
+        pingInFlight = false;
         commandQueue.poll();
+        recorder.record(FlightRecorder.COMMAND_COMPLETE, RaceTrace.getLocalLane(), commandsRun++, commandQueue.size());
+        linkStats.set(LinkStats.HOST_LINK, LinkStats.QUEUE, commandQueue.size());
+        RaceTrace.endAsync(commandSlice);
+        commandSlice = null;
+        RaceTrace.counter("gatt commands queued", commandQueue.size());
         nextCommand();
     }
 }
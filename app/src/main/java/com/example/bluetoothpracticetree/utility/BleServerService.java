@@ -15,33 +15,78 @@ import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Binder;
-import android.os.Handler;
 import android.os.IBinder;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /*
     This service establishes the BLE GATT server that runs on the host device and client devices
     connect to. It creates and maintains the custom service and characteristics that hold the
     data needed for the app to function. It provides methods for clients (and the host device) to
-    read, write, and subscribe to these characteristics. This service uses broadcasts to communicate
-    with the local host device.
+    read, write, and subscribe to these characteristics. This service sends updates to the local
+    host device through an UpdateDispatcher.
+
+    All server state is owned by a single event loop, which the GATT callbacks, socket clients
+    and the host post messages to. Clients are split into RaceGroups, each judged by the same
+    RaceEngine a RaceServer runs, and the host's race can take in the lanes of linked secondary
+    hosts. Clients keep a copy of the session so one of them can take over if the host is lost.
  */
 
 public class BleServerService extends Service {
     private static final String TAG = BleServerService.class.getSimpleName();
     private static final int ADVERTISE_TIME = 50000;
+    // How long a client that drops once the race has begun keeps its lane, to rejoin and resync
+    private static final long RESERVATION_TIMEOUT = 60000;
+    private static final int CLIENT_LANES = RaceEngine.CLIENT_LANES;
+    // Android controllers handle around seven connections, which is a few groups of clients
+    private static final int MAX_GROUPS = 3;
+    private static final long DEFAULT_STAGE_WINDOW = 1500;
+    // How much longer the primary waits for linked hosts, which only report after their deadline
+    private static final long LINK_GRACE = 500;
+    private static final long DEFAULT_COOLDOWN = 3000;
+    private static final int MAILBOX_CAPACITY = 256;
+    // If the stack never reports a notification sent, move on to the next one after this long
+    private static final long NOTIFICATION_TIMEOUT = 500;
+    // Changes to the spectator feed are collected for this long before it is advertised again
+    private static final long SPECTATOR_INTERVAL = 100;
+    // Connection intervals are reported in units of 1.25 ms
+    private static final int INTERVAL_UNIT_MICROS = 1250;
+    // The longest value an attribute can hold, however it is written
+    private static final int MAX_ATTRIBUTE_LENGTH = 512;
+    // Verbose logging builds strings on every request, so it is compiled out unless enabled
+    private static final boolean DEBUG = false;
+
+    private static final int HOST_LANE = RaceEngine.HOST_LANE;
+
+    private static final byte[] STAGED = {'1'};
+    private static final byte[] UNSTAGED = {'0'};
+    private static final byte[] EMPTY = {};
 
     public final static String CLIENTS_CONNECTED =
             "com.example.bluetoothpracticetree.CLIENTS_CONNECTED";
@@ -61,6 +106,14 @@ public class BleServerService extends Service {
             "com.example.bluetoothpracticetree.START_RACE";
     public final static String RACE_FINISHED =
             "com.example.bluetoothpracticetree.RACE_FINISHED";
+    public final static String FOUL_UPDATE =
+            "com.example.bluetoothpracticetree.FOUL_UPDATE";
+    public final static String ROUND_UPDATE =
+            "com.example.bluetoothpracticetree.ROUND_UPDATE";
+    public final static String HEAT_UPDATE =
+            "com.example.bluetoothpracticetree.HEAT_UPDATE";
+    public final static String LINKED_RESULTS =
+            "com.example.bluetoothpracticetree.LINKED_RESULTS";
 
     private final int MAX_CLIENTS = 1;
 
@@ -68,15 +121,65 @@ public class BleServerService extends Service {
 
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothManager bluetoothManager;
-    private BluetoothGattServer bluetoothGattServer;
+    private volatile BluetoothGattServer bluetoothGattServer;
+    // Accepts clients over Wi-Fi, if the host has turned that on
+    private volatile SocketServer socketServer;
+    private EventLoop eventLoop;
+    // Runs the race engines on the loop, on the uptime clock clients sync to
+    private LoopScheduler scheduler;
+    private UpdateDispatcher dispatcher;
+    private final FlightRecorder recorder = FlightRecorder.get();
+    // The host's own lanes' links, measured here or taken from the pings their clients write
+    private final LinkStats linkStats = new LinkStats();
     private List<BluetoothDevice> devices;
+    private HashMap<String, NotificationQueue> notificationQueues;
+    // The parts of a long write each device has prepared but not yet executed
+    private HashMap<String, PreparedWrite> preparedWrites;
+    private int fanOutOffset = 0;
     private String deviceName;
-
-    private boolean raceDone = true;
-    private boolean isStaging = false;
+    private String sessionId;
+
+    // Maps each client address to its lane and its group, and holds the expiry of each reserved
+    // lane. The lanes are only changed on the loop, but are also read by the GATT callbacks
+    private ConcurrentHashMap<String, Integer> lanes;
+    private HashMap<String, RaceGroup> memberships;
+    private HashMap<String, EventLoop.Timer> reservations;
+    private boolean sessionStarted = false;
+
+    // The races run by this server, with the host's own race first
+    private final List<RaceGroup> groups = new ArrayList<>();
+    private RaceGroup hostGroup;
+
+    // On the primary, the secondary hosts allowed to link to it and those linked to it. On a
+    // secondary, its link to the primary, the frame it keeps sending it, and the race the primary
+    // last started
+    private HashSet<String> secondaries;
+    private HashMap<String, Link> links;
+    private List<BluetoothDevice> linkDevices;
+    private int linkFanOutOffset = 0;
+    private int linkedRace = 0;
+    private HostLink uplink;
+    private LinkFrame uplinkFrame;
+    private int uplinkRace = 0;
+
+    // In milliseconds, like the rest of the race timing
+    private long stageWindow;
+
+    // Whether each start is also advertised as a burst of beacons
+    private boolean startBeacon;
+
+    // In loop mode, the next start is held off until the cooldown after each race has ended
+    private boolean loopMode;
+    private long cooldown;
+
+    // Stage updates for the host, indexed by lane and then by staged
+    private final String[][] stagePayloads = new String[HOST_LANE + 1][2];
 
     private BluetoothGattCharacteristic beginRaceActivity;
     private BluetoothGattCharacteristic racerId;
+    private BluetoothGattCharacteristic racer1Dial;
+    private BluetoothGattCharacteristic racer2Dial;
+    private BluetoothGattCharacteristic racer3Dial;
     private BluetoothGattCharacteristic racerHostDial;
     private BluetoothGattCharacteristic racer1Stage;
     private BluetoothGattCharacteristic racer2Stage;
@@ -88,6 +191,32 @@ public class BleServerService extends Service {
     private BluetoothGattCharacteristic racerHostRt;
     private BluetoothGattCharacteristic raceReady;
     private BluetoothGattCharacteristic raceFinished;
+    private BluetoothGattCharacteristic sessionIdCharacteristic;
+    private BluetoothGattCharacteristic raceSnapshot;
+    private BluetoothGattCharacteristic clock;
+    private BluetoothGattCharacteristic release;
+    private BluetoothGattCharacteristic foul;
+    private BluetoothGattCharacteristic roundCharacteristic;
+    private BluetoothGattCharacteristic heat;
+    private BluetoothGattCharacteristic groupId;
+    private BluetoothGattCharacteristic link;
+    private BluetoothGattCharacteristic sessionCharacteristic;
+    private BluetoothGattCharacteristic ping;
+
+    // The copy of the host's session that clients keep, in case the host is lost
+    private SessionReplica replica;
+
+    // Where the host's race is recorded for replaying, if races are recorded
+    private Writer recording;
+
+    // The host's race as advertised to spectators, if the controller can advertise it alongside
+    // the host itself
+    private final SpectatorFrame spectatorFrame = new SpectatorFrame();
+    private boolean spectatorFeed = false;
+    private EventLoop.Timer spectatorTimer;
+
+    // The characteristics every group keeps its own value of, by their short IDs
+    private final HashMap<Integer, BluetoothGattCharacteristic> raceCharacteristics = new HashMap<>();
 
     @Nullable
     @Override
@@ -101,6 +230,33 @@ public class BleServerService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        eventLoop = new EventLoop(TAG, MAILBOX_CAPACITY);
+        eventLoop.setErrorListener(new EventLoop.ErrorListener() {
+            @Override
+            public void onError(Throwable error) {
+                Log.e(TAG, "Server message failed", error);
+            }
+        });
+        eventLoop.start();
+        scheduler = new LoopScheduler(eventLoop) {
+            @Override
+            public long uptimeMillis() {
+                return SystemClock.uptimeMillis();
+            }
+        };
+        dispatcher = new UpdateDispatcher(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        // Let any pending close run before the loop stops
+        eventLoop.quit();
+        super.onDestroy();
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
         close();
@@ -125,16 +281,97 @@ public class BleServerService extends Service {
         }
 
         devices = new ArrayList<>();
+        notificationQueues = new HashMap<>();
+        preparedWrites = new HashMap<>();
+        lanes = new ConcurrentHashMap<>();
+        memberships = new HashMap<>();
+        links = new HashMap<>();
+        linkDevices = new ArrayList<>();
+        reservations = new HashMap<>();
 
         // Get device name from settings
         SharedPreferences sharedPref = getSharedPreferences("RACE_PREFS", Context.MODE_PRIVATE);
         deviceName = sharedPref.getString("name", "Default");
+        // Get the secondary hosts allowed to link to this one
+        secondaries = new HashSet<>();
+        for (String address : sharedPref.getString("secondary_addresses", "").split(",")) {
+            if (!address.trim().isEmpty()) {
+                secondaries.add(address.trim());
+            }
+        }
+        // Get the time every lane must stay staged before the race starts
+        stageWindow = sharedPref.getLong("stage_window", DEFAULT_STAGE_WINDOW);
+        // Get whether races run back-to-back, and the cooldown between them
+        loopMode = sharedPref.getBoolean("loop_mode", false);
+        cooldown = sharedPref.getLong("cooldown", DEFAULT_COOLDOWN);
+        // Get whether starts are also advertised, which needs a second advertisement
+        startBeacon = sharedPref.getBoolean("start_beacon", false)
+                && bluetoothAdapter.isMultipleAdvertisementSupported();
+
+        // Each hosted session gets a new ID, so rejoining clients can tell sessions apart
+        sessionId = Integer.toHexString(new Random().nextInt());
+        replica = new SessionReplica();
+        replica.setSessionId(sessionId);
+
+        // Each session is recorded to a log of its own
+        if (sharedPref.getBoolean("record_races", false)) {
+            final File file = new File(new File(getFilesDir(), "races"),
+                    "race-" + System.currentTimeMillis() + ".log");
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    startRecording(file);
+                }
+            });
+        }
 
         // Start the BLE GATT server
         startGattServer();
+        if (bluetoothGattServer == null) {
+            return false;
+        }
+
+        // The host's own race comes first, and runs the tournament if there is one
+        hostGroup = new RaceGroup(1, true);
+        hostGroup.engine.setTournament(createTournament(sharedPref, replica));
+        groups.add(hostGroup);
+        RaceTrace.setRace(hostGroup.engine.getId(), 0);
+
+        // A secondary host links to the primary, which starts its races
+        String primary = sharedPref.getString("primary_address", "");
+        if (!primary.isEmpty()) {
+            uplinkFrame = new LinkFrame();
+            uplink = new HostLink(this, bluetoothAdapter, primary, eventLoop, uplinkFrame,
+                    linkListener);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    uplink.connect();
+                }
+            });
+        }
         return true;
     }
 
+    // This method creates the tournament from the entrants in settings, or returns null if this
+    // session is open practice. The entrants are copied into the session, so the tournament can
+    // be rebuilt if the host is lost
+    private static Tournament createTournament(SharedPreferences sharedPref, SessionReplica replica) {
+        List<String> entrants = new ArrayList<>();
+        for (String entrant : sharedPref.getString("tournament_entrants", "").split(",")) {
+            if (!entrant.trim().isEmpty()) {
+                entrants.add(entrant.trim());
+            }
+        }
+        if (entrants.size() < 2) {
+            return null;
+        }
+        int format = sharedPref.getBoolean("double_elimination", false)
+                ? Tournament.DOUBLE_ELIMINATION : Tournament.SINGLE_ELIMINATION;
+        replica.setTournament(entrants, format);
+        return new Tournament(entrants, format, HOST_LANE);
+    }
+
     // This method opens a BLE GATT server on the host device
     private void startGattServer() {
         bluetoothGattServer = bluetoothManager.openGattServer(this, mGattServerCallback);
@@ -163,13 +400,13 @@ public class BleServerService extends Service {
         racerId = new BluetoothGattCharacteristic(UuidUtils.RACER_ID,
                 BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
 
-        BluetoothGattCharacteristic racer1Dial = new BluetoothGattCharacteristic(UuidUtils.RACER_1_DIAL,
+        racer1Dial = new BluetoothGattCharacteristic(UuidUtils.RACER_1_DIAL,
                 BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
                 BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
-        BluetoothGattCharacteristic racer2Dial = new BluetoothGattCharacteristic(UuidUtils.RACER_2_DIAL,
+        racer2Dial = new BluetoothGattCharacteristic(UuidUtils.RACER_2_DIAL,
                 BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
                 BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
-        BluetoothGattCharacteristic racer3Dial = new BluetoothGattCharacteristic(UuidUtils.RACER_3_DIAL,
+        racer3Dial = new BluetoothGattCharacteristic(UuidUtils.RACER_3_DIAL,
                 BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
                 BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
         racerHostDial = new BluetoothGattCharacteristic(UuidUtils.RACER_HOST_DIAL,
@@ -223,6 +460,58 @@ public class BleServerService extends Service {
         raceFinished.addDescriptor(new BluetoothGattDescriptor(UuidUtils.CCCD,
                 BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
 
+        sessionIdCharacteristic = new BluetoothGattCharacteristic(UuidUtils.SESSION_ID,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+        sessionIdCharacteristic.setValue(sessionId);
+
+        // The snapshot value is rebuilt whenever a client starts reading it
+        raceSnapshot = new BluetoothGattCharacteristic(UuidUtils.RACE_SNAPSHOT,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+
+        // The clock is answered straight from the binder thread, so the time is as fresh as possible
+        clock = new BluetoothGattCharacteristic(UuidUtils.CLOCK,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+        release = new BluetoothGattCharacteristic(UuidUtils.RELEASE,
+                BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+        foul = new BluetoothGattCharacteristic(UuidUtils.FOUL,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        foul.addDescriptor(new BluetoothGattDescriptor(UuidUtils.CCCD,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        roundCharacteristic = new BluetoothGattCharacteristic(UuidUtils.ROUND,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        roundCharacteristic.addDescriptor(new BluetoothGattDescriptor(UuidUtils.CCCD,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        heat = new BluetoothGattCharacteristic(UuidUtils.HEAT,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        heat.addDescriptor(new BluetoothGattDescriptor(UuidUtils.CCCD,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+
+        groupId = new BluetoothGattCharacteristic(UuidUtils.GROUP_ID,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+
+        // Secondary hosts write their frames to the link, and the primary notifies them through it
+        link = new BluetoothGattCharacteristic(UuidUtils.LINK,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        link.addDescriptor(new BluetoothGattDescriptor(UuidUtils.CCCD,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        link.setValue(EMPTY);
+
+        // Clients read the whole session back whenever they are notified it has changed
+        sessionCharacteristic = new BluetoothGattCharacteristic(UuidUtils.SESSION,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        sessionCharacteristic.addDescriptor(new BluetoothGattDescriptor(UuidUtils.CCCD,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        sessionCharacteristic.setValue(replica.encode());
+
+        // Clients ping the host to measure their link, and report what only they can measure
+        ping = new BluetoothGattCharacteristic(UuidUtils.PING,
+                BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+
         beginRaceActivity.setValue("wait");
         service.addCharacteristic(beginRaceActivity);
 
@@ -242,10 +531,136 @@ public class BleServerService extends Service {
         service.addCharacteristic(racerId);
         service.addCharacteristic(raceReady);
         service.addCharacteristic(raceFinished);
-
+        service.addCharacteristic(sessionIdCharacteristic);
+        service.addCharacteristic(raceSnapshot);
+        service.addCharacteristic(clock);
+        service.addCharacteristic(release);
+        service.addCharacteristic(foul);
+        service.addCharacteristic(roundCharacteristic);
+        service.addCharacteristic(heat);
+        service.addCharacteristic(groupId);
+        service.addCharacteristic(link);
+        service.addCharacteristic(sessionCharacteristic);
+        service.addCharacteristic(ping);
+
+        raceCharacteristics.clear();
+        for (BluetoothGattCharacteristic characteristic : new BluetoothGattCharacteristic[] {
+                racer1Dial, racer2Dial, racer3Dial, racerHostDial,
+                racer1Stage, racer2Stage, racer3Stage, racerHostStage,
+                racer1Rt, racer2Rt, racer3Rt, racerHostRt,
+                raceReady, raceFinished, raceSnapshot, release, foul, roundCharacteristic, heat}) {
+            raceCharacteristics.put(SocketFrame.toShort(characteristic.getUuid()), characteristic);
+        }
+        for (int lane = 1; lane <= HOST_LANE; lane++) {
+            // Matches the format the host has always parsed, such as "1[49]"
+            stagePayloads[lane][0] = lane + Arrays.toString(UNSTAGED);
+            stagePayloads[lane][1] = lane + Arrays.toString(STAGED);
+        }
         return service;
     }
 
+    // This method starts accepting clients over Wi-Fi as well, on the given port. Socket clients
+    // get a lane and race just like BLE ones, through the same callbacks
+    public void startSocketTransport(final int port) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (bluetoothGattServer == null || socketServer != null) {
+                    return;
+                }
+                SocketServer server = new SocketServer(socketListener);
+                try {
+                    server.start(port);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to accept clients on port " + port, e);
+                    return;
+                }
+                socketServer = server;
+                Log.i(TAG, "Accepting clients on port " + port);
+            }
+        });
+    }
+
+    // Clients already connected over Wi-Fi are dropped, and hold their lanes like any other
+    public void stopSocketTransport() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (socketServer == null) {
+                    return;
+                }
+                socketServer.close();
+                socketServer = null;
+                for (BluetoothDevice device : new ArrayList<>(devices)) {
+                    if (SocketServer.isSocketAddress(device.getAddress())) {
+                        disconnectDevice(device);
+                    }
+                }
+            }
+        });
+    }
+
+    // Frames from socket clients are handed to the GATT server callback, just as if they had
+    // arrived over BLE. These callbacks run on the socket server's thread
+    private final SocketServer.Listener socketListener = new SocketServer.Listener() {
+        @Override
+        public void onConnected(String address) {
+            BluetoothDevice device = getSocketDevice(address);
+            if (device != null) {
+                mGattServerCallback.onConnectionStateChange(device, BluetoothGatt.GATT_SUCCESS,
+                        BluetoothProfile.STATE_CONNECTED);
+            }
+        }
+
+        @Override
+        public void onFrame(String address, SocketFrame frame) {
+            BluetoothDevice device = getSocketDevice(address);
+            BluetoothGattServer server = bluetoothGattServer;
+            BluetoothGattService service = server != null ? server.getService(UuidUtils.SERVICE) : null;
+            if (device == null || service == null) {
+                return;
+            }
+            int requestId = frame.getCharacteristic();
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(frame.getUuid());
+            if (characteristic == null) {
+                sendResponse(device, requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, 0, null);
+                return;
+            }
+
+            switch (frame.getType()) {
+                case SocketFrame.READ:
+                    mGattServerCallback.onCharacteristicReadRequest(device, requestId, 0, characteristic);
+                    break;
+                case SocketFrame.WRITE:
+                    mGattServerCallback.onCharacteristicWriteRequest(device, requestId, characteristic,
+                            false, true, 0, frame.getValue());
+                    break;
+                case SocketFrame.SUBSCRIBE:
+                    mGattServerCallback.onDescriptorWriteRequest(device, requestId,
+                            characteristic.getDescriptor(UuidUtils.CCCD), false, true, 0, frame.getValue());
+                    break;
+                default:
+                    Log.w(TAG, "Unexpected frame from " + address);
+                    break;
+            }
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            BluetoothDevice device = getSocketDevice(address);
+            if (device != null) {
+                mGattServerCallback.onConnectionStateChange(device, BluetoothGatt.GATT_SUCCESS,
+                        BluetoothProfile.STATE_DISCONNECTED);
+            }
+        }
+    };
+
+    // A socket client is represented by a device with its locally administered address
+    private BluetoothDevice getSocketDevice(String address) {
+        BluetoothAdapter adapter = bluetoothAdapter;
+        return adapter != null ? adapter.getRemoteDevice(address) : null;
+    }
+
     // This method begins advertising the host device for clients to scan
     public void advertise() {
         BluetoothLeAdvertiser advertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
@@ -285,35 +700,416 @@ public class BleServerService extends Service {
     // This method informs all clients that the BEGIN_RACE_SIGNAL characteristic
     // has been set to "begin"
     public void startRace() {
-        beginRaceActivity.setValue("begin");
-        notifyDevices(beginRaceActivity);
-        bluetoothAdapter.getBluetoothLeAdvertiser().stopAdvertising(advertiseCallback);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                sessionStarted = true;
+                beginRaceActivity.setValue("begin");
+                notifyDevices(beginRaceActivity);
+                if (hostGroup.engine.getTournament() != null) {
+                    hostGroup.engine.publishHeat();
+                    hostGroup.engine.updateStartTimer();
+                }
+                bluetoothAdapter.getBluetoothLeAdvertiser().stopAdvertising(advertiseCallback);
+                startSpectatorFeed();
+            }
+        });
     }
 
-    // This method notifies all connected devices that a characteristic has changed
+    // This method takes over the session of a host that was lost, from the copy this device kept
+    // as the client in the given lane. Every other client of the session gets its lane reserved,
+    // and this device's dial-in moves to the host's lane
+    public void restoreSession(final String value, final int localLane) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                SessionReplica restored = SessionReplica.decode(value);
+                if (restored == null) {
+                    Log.w(TAG, "Malformed session, hosting a new one");
+                    return;
+                }
+                replica = restored;
+                sessionId = restored.getSessionId();
+                sessionIdCharacteristic.setValue(sessionId);
+                hostGroup.engine.setTournament(restored.createTournament(HOST_LANE));
+                hostGroup.engine.setRound(restored.getRound());
+                hostGroup.engine.setValue(RaceEngine.getDial(HOST_LANE),
+                        restored.getDial(localLane).getBytes());
+
+                for (int lane = 1; lane <= CLIENT_LANES; lane++) {
+                    if (lane == localLane || !restored.hasMember(lane)) {
+                        continue;
+                    }
+                    String address = restored.getAddress(lane);
+                    lanes.put(address, lane);
+                    memberships.put(address, hostGroup);
+                    hostGroup.engine.setValue(RaceEngine.getDial(lane), restored.getDial(lane).getBytes());
+                    hostGroup.engine.reserveLane(lane);
+                    reserveLane(address);
+                }
+
+                // The race is already under way, so clients go straight back to it
+                sessionStarted = true;
+                beginRaceActivity.setValue("begin");
+                if (hostGroup.engine.getTournament() != null) {
+                    hostGroup.engine.publishHeat();
+                }
+                hostGroup.engine.updateStartTimer();
+                publishSession();
+                startSpectatorFeed();
+            }
+        });
+    }
+
+    // This method starts advertising the host's race to spectators, if the controller can run a
+    // second advertisement
+    private void startSpectatorFeed() {
+        spectatorFeed = bluetoothAdapter.isMultipleAdvertisementSupported();
+        if (!spectatorFeed) {
+            Log.w(TAG, "Spectator feed not supported on this device");
+            return;
+        }
+        spectatorFrame.setStagedMask(hostGroup.engine.getStagedMask());
+        spectatorChanged();
+    }
+
+    // The spectator frame has changed, so advertise it once the interval is up
+    private void spectatorChanged() {
+        if (spectatorFeed && spectatorTimer == null) {
+            spectatorTimer = eventLoop.schedule(updateSpectatorFeed, SPECTATOR_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Advertisement data cannot be changed in place, so the feed is restarted with the new frame
+    private final Runnable updateSpectatorFeed = new Runnable() {
+        @Override
+        public void run() {
+            spectatorTimer = null;
+            BluetoothLeAdvertiser advertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+            if (advertiser == null) {
+                return;
+            }
+            advertiser.stopAdvertising(spectatorCallback);
+            AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                    .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
+                    .setConnectable(false)
+                    .setTimeout(0)
+                    .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
+                    .build();
+            AdvertiseData data = new AdvertiseData.Builder()
+                    .addManufacturerData(SpectatorFrame.COMPANY_ID, spectatorFrame.encode())
+                    .build();
+            advertiser.startAdvertising(settings, data, spectatorCallback);
+        }
+    };
+
+    private AdvertiseCallback spectatorCallback = new AdvertiseCallback() {
+
+        @Override
+        public void onStartFailure(int errorCode) {
+            super.onStartFailure(errorCode);
+            Log.e(TAG, "Spectator feed failed, error code " + errorCode);
+        }
+    };
+
+    // This method publishes the session with the clients that hold a lane in the host's group,
+    // including those whose lanes are reserved, and tells them to read it again
+    private void publishSession() {
+        for (int lane = 1; lane <= CLIENT_LANES; lane++) {
+            replica.removeMember(lane);
+        }
+        for (Map.Entry<String, Integer> entry : lanes.entrySet()) {
+            if (memberships.get(entry.getKey()) == hostGroup) {
+                int lane = entry.getValue();
+                replica.setMember(lane, entry.getKey(),
+                        hostGroup.engine.getString(RaceEngine.getDial(lane)));
+            }
+        }
+        replica.setRound(hostGroup.engine.getRound());
+        sessionCharacteristic.setValue(replica.encode());
+        hostGroup.notify(sessionCharacteristic);
+    }
+
+    // This method hands a message to the event loop, which owns all server state
+    private boolean post(Runnable message) {
+        if (!eventLoop.post(message)) {
+            Log.e(TAG, "Server mailbox is full, dropping message");
+            return false;
+        }
+        return true;
+    }
+
+    // This method notifies all connected devices that a session-wide characteristic has changed.
+    // The current value is queued for each device, starting with a different device each time
     private void notifyDevices(BluetoothGattCharacteristic characteristic) {
-        for (BluetoothDevice device : devices) {
-            bluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
+        fanOutOffset = fanOut(devices, fanOutOffset, characteristic, characteristic.getValue());
+    }
+
+    // This method queues a value for each of the given devices, starting with the one at the
+    // offset, and returns the offset to start the next fan-out at, so no lane always hears the
+    // start signal first
+    private int fanOut(List<BluetoothDevice> targets, int offset,
+                       BluetoothGattCharacteristic characteristic, byte[] value) {
+        int count = targets.size();
+        if (bluetoothGattServer == null || count == 0) {
+            return offset;
+        }
+        long fanOutTime = isRaceCritical(characteristic) ? eventLoop.nanoTime() : 0;
+
+        boolean traced = RaceTrace.begin("fanOut", 0);
+        int first = offset % count;
+        for (int i = 0; i < count; i++) {
+            BluetoothDevice device = targets.get((first + i) % count);
+            NotificationQueue queue = notificationQueues.get(device.getAddress());
+            if (queue != null) {
+                queue.add(characteristic, value, fanOutTime);
+            }
+        }
+        RaceTrace.end(traced);
+        return first + 1;
+    }
+
+    // Delivery skew is recorded for the notifications that decide when and how a race runs
+    private boolean isRaceCritical(BluetoothGattCharacteristic characteristic) {
+        return characteristic == raceReady
+                || characteristic == foul
+                || characteristic == raceFinished
+                || characteristic == beginRaceActivity
+                || characteristic == link;
+    }
+
+    private static class PendingNotification {
+        final BluetoothGattCharacteristic characteristic;
+        byte[] value;
+        // When a race-critical fan-out began, or 0 for other notifications
+        long fanOutTime;
+
+        PendingNotification(BluetoothGattCharacteristic characteristic, byte[] value, long fanOutTime) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.fanOutTime = fanOutTime;
         }
     }
 
+    // This method returns a device's lane, or 0 if it has none. This is only called on the loop
+    private int getLane(BluetoothDevice device) {
+        Integer lane = lanes.get(device.getAddress());
+        return lane != null ? lane : 0;
+    }
+
+    // Link stats are only kept for the lanes of the host's own race, or 0 for any other device
+    private int getStatsLane(BluetoothDevice device) {
+        return memberships.get(device.getAddress()) == hostGroup ? getLane(device) : 0;
+    }
+
+    // This method begins an async slice about a device, tagged with the race of its group, which
+    // need not be the host's
+    private RaceTrace.Slice beginAsync(String name, BluetoothDevice device) {
+        RaceGroup group = memberships.get(device.getAddress());
+        return group != null
+                ? RaceTrace.beginAsync(name, group.engine.getId(), group.engine.getStartTime(), getLane(device))
+                : RaceTrace.beginAsync(name, 0, 0, getLane(device));
+    }
+
+    // The outbound notifications for one device, with at most one in flight at a time
+    private class NotificationQueue {
+        private final BluetoothDevice device;
+        private final ArrayDeque<PendingNotification> queue = new ArrayDeque<>();
+        private final IdentityHashMap<BluetoothGattCharacteristic, PendingNotification> queued =
+                new IdentityHashMap<>();
+        private PendingNotification inFlight;
+        private EventLoop.Timer inFlightTimeout;
+        private RaceTrace.Slice inFlightSlice;
+        // The stack does not say which notification it has sent, so after a timeout the next
+        // callback may still be for the one that timed out. It is ignored if it comes within
+        // another timeout, unless the last timeout followed an ignored callback, which was then
+        // most likely the real one
+        private boolean lateCallbackDue;
+        private long lateCallbackDeadline;
+        private boolean ignoredCallback;
+
+        // Delivery skew of the most recent and the slowest race-critical notification
+        private long lastSkew;
+        private long maxSkew;
+
+        NotificationQueue(BluetoothDevice device) {
+            this.device = device;
+        }
+
+        void add(BluetoothGattCharacteristic characteristic, byte[] value, long fanOutTime) {
+            PendingNotification pending = queued.get(characteristic);
+            if (pending != null) {
+                // The queued value is out of date, so send the new one in its place
+                pending.value = value;
+                if (pending.fanOutTime == 0) {
+                    pending.fanOutTime = fanOutTime;
+                }
+            } else {
+                pending = new PendingNotification(characteristic, value, fanOutTime);
+                queue.add(pending);
+                queued.put(characteristic, pending);
+            }
+            sendNext();
+        }
+
+        void sendNext() {
+            while (inFlight == null && !queue.isEmpty()) {
+                PendingNotification pending = queue.poll();
+                queued.remove(pending.characteristic);
+
+                recorder.record(FlightRecorder.GATT_NOTIFY, getLane(device), 0,
+                        SocketFrame.toShort(pending.characteristic.getUuid()));
+                boolean traced = RaceTrace.begin("notify", getLane(device));
+                send(pending);
+                RaceTrace.end(traced);
+            }
+        }
+
+        // This method sends a notification, leaving it in flight if the stack has to confirm it.
+        // Sockets buffer their own writes, so there is nothing to wait for
+        private void send(PendingNotification pending) {
+            BluetoothGattCharacteristic characteristic = pending.characteristic;
+            if (SocketServer.isSocketAddress(device.getAddress())) {
+                SocketServer server = socketServer;
+                if (server == null || !server.send(device.getAddress(),
+                        SocketFrame.notify(characteristic.getUuid(), pending.value))) {
+                    Log.w(TAG, "Notification to " + device.getAddress() + " was not sent");
+                }
+                return;
+            }
+
+            // The stack sends the characteristic's value, which may have moved on since
+            // this notification was queued
+            byte[] current = characteristic.getValue();
+            characteristic.setValue(pending.value);
+            boolean sent = bluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
+            characteristic.setValue(current);
+
+            if (sent) {
+                inFlightSlice = beginAsync("notification in flight", device);
+                inFlight = pending;
+                inFlightTimeout = eventLoop.schedule(sentTimeout,
+                        NOTIFICATION_TIMEOUT, TimeUnit.MILLISECONDS);
+            } else {
+                Log.w(TAG, "Notification to " + device.getAddress() + " was not sent");
+            }
+        }
+
+        void onSent(int status) {
+            if (lateCallbackDue) {
+                lateCallbackDue = false;
+                if (eventLoop.nanoTime() <= lateCallbackDeadline) {
+                    ignoredCallback = true;
+                    return;
+                }
+            }
+            ignoredCallback = false;
+            if (inFlight == null) {
+                return;
+            }
+            inFlightTimeout.cancel();
+            endInFlight();
+            if (status == BluetoothGatt.GATT_SUCCESS && inFlight.fanOutTime != 0) {
+                lastSkew = eventLoop.nanoTime() - inFlight.fanOutTime;
+                maxSkew = Math.max(maxSkew, lastSkew);
+                Log.i(TAG, "Race notification reached " + device.getAddress() + " after "
+                        + TimeUnit.NANOSECONDS.toMicros(lastSkew) + " us");
+                int lane = getStatsLane(device);
+                if (lane != 0) {
+                    linkStats.set(lane, LinkStats.SKEW, TimeUnit.NANOSECONDS.toMicros(lastSkew));
+                    linkStats.set(lane, LinkStats.MAX_SKEW, TimeUnit.NANOSECONDS.toMicros(maxSkew));
+                }
+            }
+            inFlight = null;
+            sendNext();
+        }
+
+        void clear() {
+            if (inFlightTimeout != null) {
+                inFlightTimeout.cancel();
+            }
+            queue.clear();
+            queued.clear();
+            inFlight = null;
+            endInFlight();
+            lateCallbackDue = false;
+            ignoredCallback = false;
+        }
+
+        private void endInFlight() {
+            RaceTrace.endAsync(inFlightSlice);
+            inFlightSlice = null;
+        }
+
+        private final Runnable sentTimeout = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "Timed out waiting for notification to " + device.getAddress());
+                endInFlight();
+                lateCallbackDue = !ignoredCallback;
+                lateCallbackDeadline = eventLoop.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(NOTIFICATION_TIMEOUT);
+                ignoredCallback = false;
+                inFlight = null;
+                sendNext();
+            }
+        };
+    }
+
     // This method allows the host device to set their dial-in
-    public void setHostDial(String value) {
-        racerHostDial.setValue(value);
+    public void setHostDial(final String value) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                int dial = RaceEngine.getDial(HOST_LANE);
+                recordWrite(HOST_LANE, dial, value);
+                hostGroup.engine.setValue(dial, value.getBytes());
+            }
+        });
+    }
+
+    // This method allows the host device to report when it released, on its own clock
+    public void setHostRelease(final long releaseTime, final long rollout) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (recording != null) {
+                    record(RaceLog.Event.release(SystemClock.uptimeMillis(), HOST_LANE, releaseTime, rollout));
+                }
+                hostGroup.engine.judgeRelease(HOST_LANE, releaseTime, rollout);
+            }
+        });
     }
 
     // This method allows the host device to set their reaction time
-    public void setHostRt(String value) {
-        racerHostRt.setValue(value);
-        notifyDevices(racerHostRt);
-        checkForRaceFinished();
+    public void setHostRt(final String value) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                int rt = RaceEngine.getRt(HOST_LANE);
+                recordWrite(HOST_LANE, rt, value);
+                hostGroup.engine.write(HOST_LANE, rt, value.getBytes());
+                hostGroup.engine.notify(rt);
+            }
+        });
     }
 
     // This method allows the host device to set their stage flag
-    public void setHostStage(String value) {
-        racerHostStage.setValue(value);
-        notifyDevices(racerHostStage);
-        checkForAllStaged();
+    public void setHostStage(final String value) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                int stage = RaceEngine.getStage(HOST_LANE);
+                recordWrite(HOST_LANE, stage, value);
+                hostGroup.engine.write(HOST_LANE, stage, value.getBytes());
+            }
+        });
+    }
+
+    // The measurements of the links to the lanes of the host's own race
+    public LinkStats getLinkStats() {
+        return linkStats;
     }
 
     // This method returns the requested service gotten from the server
@@ -322,7 +1118,16 @@ public class BleServerService extends Service {
     }
 
     // This method allows the host device to read a characteristic value
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
+    public void readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                handleHostRead(characteristic);
+            }
+        });
+    }
+
+    private void handleHostRead(BluetoothGattCharacteristic characteristic) {
         if (UuidUtils.RACER_1_DIAL.equals(characteristic.getUuid())
                 || UuidUtils.RACER_2_DIAL.equals(characteristic.getUuid())
                 || UuidUtils.RACER_3_DIAL.equals(characteristic.getUuid())) {
@@ -331,101 +1136,394 @@ public class BleServerService extends Service {
                 || UuidUtils.RACER_2_RT.equals(characteristic.getUuid())
                 || UuidUtils.RACER_3_RT.equals(characteristic.getUuid())) {
             broadcastUpdate(BleServerService.RT_UPDATE, characteristic);
+        } else if (UuidUtils.HEAT.equals(characteristic.getUuid())) {
+            broadcastUpdate(BleServerService.HEAT_UPDATE, characteristic);
         }
     }
 
     // Ensure that all resources are released when the service is closed
     public void close() {
-        for (BluetoothDevice device : devices) {
-            bluetoothGattServer.cancelConnection(device);
-        }
-        bluetoothGattServer.close();
-        bluetoothAdapter.getBluetoothLeAdvertiser().stopAdvertising(advertiseCallback);
-        bluetoothGattServer = null;
-        bluetoothAdapter = null;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (bluetoothGattServer == null) {
+                    return;
+                }
+                for (EventLoop.Timer expiry : reservations.values()) {
+                    expiry.cancel();
+                }
+                reservations.clear();
+                if (spectatorTimer != null) {
+                    spectatorTimer.cancel();
+                    spectatorTimer = null;
+                }
+                for (RaceGroup group : groups) {
+                    group.engine.cancelTimers();
+                    bluetoothAdapter.getBluetoothLeAdvertiser().stopAdvertising(group.beaconCallback);
+                }
+                if (uplink != null) {
+                    uplink.close();
+                }
+                stopRecording();
+                for (NotificationQueue queue : notificationQueues.values()) {
+                    queue.clear();
+                }
+                notificationQueues.clear();
+                if (socketServer != null) {
+                    socketServer.close();
+                    socketServer = null;
+                }
+                for (BluetoothDevice device : devices) {
+                    if (!SocketServer.isSocketAddress(device.getAddress())) {
+                        bluetoothGattServer.cancelConnection(device);
+                    }
+                }
+                bluetoothGattServer.close();
+                bluetoothAdapter.getBluetoothLeAdvertiser().stopAdvertising(advertiseCallback);
+                bluetoothAdapter.getBluetoothLeAdvertiser().stopAdvertising(spectatorCallback);
+                bluetoothGattServer = null;
+                bluetoothAdapter = null;
+            }
+        });
     }
 
-    // Provide responses when various requests are made to the server
+    // Provide responses when various requests are made to the server. These callbacks run on
+    // binder threads, so each one only records what arrived and posts a message to the event loop
     private BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
         // Provide responses when a device connects or disconnects from the server
         @Override
-        public void onConnectionStateChange(final BluetoothDevice device, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                connectDevice(device);
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                disconnectDevice(device);
-            }
+        public void onConnectionStateChange(final BluetoothDevice device, final int status,
+                                            final int newState) {
+            recorder.record(FlightRecorder.GATT_CONNECTION, getLane(device), status, newState);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (newState == BluetoothProfile.STATE_CONNECTED) {
+                        connectDevice(device);
+                    } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                        disconnectDevice(device);
+                    }
+                }
+            });
         }
 
         // Send the appropriate response when a characteristic is read from
         @Override
-        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
-                                                BluetoothGattCharacteristic characteristic) {
-            Log.w(TAG, "Received characteristic read request from device " + device.getAddress());
-            bluetoothGattServer.sendResponse(device,
-                    requestId,
-                    BluetoothGatt.GATT_SUCCESS,
-                    0,
-                    characteristic.getValue());
+        public void onCharacteristicReadRequest(final BluetoothDevice device, final int requestId,
+                                                final int offset,
+                                                final BluetoothGattCharacteristic characteristic) {
+            recorder.record(FlightRecorder.GATT_READ_REQUEST, getLane(device), requestId,
+                    SocketFrame.toShort(characteristic.getUuid()));
+            if (characteristic == clock) {
+                // Answered without the loop
+                sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0,
+                        Long.toString(SystemClock.uptimeMillis()).getBytes());
+                return;
+            }
+            boolean posted = post(new Runnable() {
+                @Override
+                public void run() {
+                    handleReadRequest(device, requestId, offset, characteristic);
+                }
+            });
+            if (!posted) {
+                sendFailure(device, requestId);
+            }
         }
 
         // Send the appropriate response when a characteristic is written to
         @Override
-        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
-                                                 BluetoothGattCharacteristic characteristic,
-                                                 boolean preparedWrite, boolean responseNeeded,
-                                                 int offset, byte[] value) {
-            Log.w(TAG, "Received characteristic write request from device " + device.getAddress());
-            Log.w(TAG, "Setting characteristic " + characteristic.getUuid() +" from value "
-                    + characteristic.getStringValue(0) + " to value " + Arrays.toString(value));
-            characteristic.setValue(value);
-            bluetoothGattServer.sendResponse(
-                    device,
-                    requestId,
-                    BluetoothGatt.GATT_SUCCESS,
-                    0,
-                    null
-            );
-
-            // Inform the host device that a client has updated their stage flag
-            if (UuidUtils.RACER_1_STAGE.equals(characteristic.getUuid())) {
-                broadcastUpdate(STAGE_UPDATE, "1" + Arrays.toString(characteristic.getValue()));
-                notifyDevices(characteristic);
-            } else if (UuidUtils.RACER_2_STAGE.equals(characteristic.getUuid())) {
-                broadcastUpdate(STAGE_UPDATE, "2" + Arrays.toString(characteristic.getValue()));
-                notifyDevices(characteristic);
-            } else if (UuidUtils.RACER_3_STAGE.equals(characteristic.getUuid())) {
-                broadcastUpdate(STAGE_UPDATE, "3" + Arrays.toString(characteristic.getValue()));
-                notifyDevices(characteristic);
-            }
-
-            checkForAllStaged();
-            checkForRaceFinished();
+        public void onCharacteristicWriteRequest(final BluetoothDevice device, final int requestId,
+                                                 final BluetoothGattCharacteristic characteristic,
+                                                 final boolean preparedWrite, boolean responseNeeded,
+                                                 final int offset, byte[] value) {
+            recorder.record(FlightRecorder.GATT_WRITE_REQUEST, getLane(device), requestId,
+                    SocketFrame.toShort(characteristic.getUuid()));
+            boolean traced = RaceTrace.begin("onCharacteristicWriteRequest", getLane(device));
+            final byte[] copy = value != null ? value.clone() : null;
+            boolean posted = post(new Runnable() {
+                @Override
+                public void run() {
+                    if (preparedWrite) {
+                        prepareWrite(device, requestId, characteristic, offset, copy);
+                        return;
+                    }
+                    if (offset != 0) {
+                        sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+                        return;
+                    }
+                    boolean traced = RaceTrace.begin("handleWriteRequest", getLane(device));
+                    handleWriteRequest(device, requestId, characteristic, copy);
+                    RaceTrace.end(traced);
+                }
+            });
+            RaceTrace.end(traced);
+            if (!posted) {
+                sendFailure(device, requestId);
+            }
+        }
+
+        // The client has sent every part of a long write, or given up on it
+        @Override
+        public void onExecuteWrite(final BluetoothDevice device, final int requestId,
+                                   final boolean execute) {
+            boolean posted = post(new Runnable() {
+                @Override
+                public void run() {
+                    executeWrite(device, requestId, execute);
+                }
+            });
+            if (!posted) {
+                sendFailure(device, requestId);
+            }
+        }
+
+        // The stack is ready for the next notification to this device
+        @Override
+        public void onNotificationSent(final BluetoothDevice device, final int status) {
+            recorder.record(FlightRecorder.GATT_NOTIFY_SENT, getLane(device), status, 0);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    NotificationQueue queue = notificationQueues.get(device.getAddress());
+                    if (queue != null) {
+                        queue.onSent(status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final BluetoothDevice device, final int mtu) {
+            recorder.record(FlightRecorder.GATT_MTU, getLane(device), 0, mtu);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    int lane = getStatsLane(device);
+                    if (lane != 0) {
+                        linkStats.set(lane, LinkStats.MTU, mtu);
+                    }
+                }
+            });
+        }
+
+        // Hidden from the SDK, but called on API 26 and up whenever a client's connection
+        // parameters change, so it is declared without overriding anything
+        public void onConnectionUpdated(final BluetoothDevice device, final int interval, int latency,
+                                        int timeout, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                return;
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    int lane = getStatsLane(device);
+                    if (lane != 0) {
+                        linkStats.set(lane, LinkStats.INTERVAL, (long) interval * INTERVAL_UNIT_MICROS);
+                    }
+                }
+            });
         }
 
         // Send the appropriate response when a descriptor is written to
         @Override
-        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
+        public void onDescriptorWriteRequest(final BluetoothDevice device, final int requestId,
                                              BluetoothGattDescriptor descriptor, boolean preparedWrite,
                                              boolean responseNeeded, int offset, byte[] value) {
-            Log.w(TAG, "Received descriptor write request from device " + device.getAddress());
-            bluetoothGattServer.sendResponse(
-                    device,
-                    requestId,
-                    BluetoothGatt.GATT_SUCCESS,
-                    0,
-                    null
-            );
+            int characteristicId = SocketFrame.toShort(descriptor.getCharacteristic().getUuid());
+            recorder.record(FlightRecorder.GATT_DESCRIPTOR_WRITE, getLane(device), requestId,
+                    characteristicId);
+            if (DEBUG) {
+                Log.d(TAG, "Received descriptor write request from device " + device.getAddress());
+            }
+            // Respond from the loop, so the subscription is in order with later notifications
+            boolean posted = post(new Runnable() {
+                @Override
+                public void run() {
+                    sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+                }
+            });
+            if (!posted) {
+                sendFailure(device, requestId);
+            }
         }
     };
 
+    private void handleReadRequest(BluetoothDevice device, int requestId, int offset,
+                                   BluetoothGattCharacteristic characteristic) {
+        if (DEBUG) {
+            Log.d(TAG, "Received characteristic read request from device " + device.getAddress());
+        }
+        RaceGroup group = memberships.get(device.getAddress());
+        byte[] value;
+        if (characteristic == racerId) {
+            // Each client reads its own lane
+            Integer lane = lanes.get(device.getAddress());
+            value = Integer.toString(lane != null ? lane : 0).getBytes();
+        } else if (characteristic == groupId) {
+            // And its own group, or 0 if every group is full
+            value = Integer.toString(group != null ? group.engine.getId() : 0).getBytes();
+        } else if (group == null) {
+            value = characteristic.getValue();
+        } else if (characteristic == raceSnapshot) {
+            // Long values are read in several requests, so only rebuild on the first one
+            if (offset == 0) {
+                group.engine.setValue(RaceEngine.RACE_SNAPSHOT, group.engine.buildSnapshot().getBytes());
+            }
+            value = group.engine.getValue(RaceEngine.RACE_SNAPSHOT);
+        } else {
+            value = group.getValue(characteristic);
+        }
+
+        if (value == null) {
+            value = new byte[0];
+        }
+        if (offset > value.length) {
+            sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+            return;
+        }
+        sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset,
+                Arrays.copyOfRange(value, offset, value.length));
+    }
+
+    // A write costs the message that brought it here and a copy of its value, and the engine
+    // judges it by short ID without allocating, though a stage change notifies every member
+    private void handleWriteRequest(BluetoothDevice device, int requestId,
+                                    BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (DEBUG) {
+            Log.d(TAG, "Setting characteristic " + characteristic.getUuid() + " from device "
+                    + device.getAddress() + " to value " + Arrays.toString(value));
+        }
+        // Linked hosts are not clients, and are handled apart from the groups. Only a configured
+        // secondary may link, and never a device racing in a lane
+        if (characteristic == link) {
+            String address = device.getAddress();
+            if (!secondaries.contains(address) || lanes.containsKey(address)) {
+                Log.w(TAG, "Refused link from " + address);
+                sendResponse(device, requestId, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, 0, null);
+                return;
+            }
+            sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            handleLinkFrame(device, value);
+            return;
+        }
+
+        // A ping is only answered, and what it carries is kept for the host screens
+        if (characteristic == ping) {
+            sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            int lane = getStatsLane(device);
+            if (lane != 0 && !linkStats.applyPing(lane, value)) {
+                Log.w(TAG, "Malformed ping from " + device.getAddress());
+            }
+            return;
+        }
+
+        // A device without a group has no race to write to, and one with a lane may only write
+        // to that lane
+        RaceGroup group = memberships.get(device.getAddress());
+        int characteristicId = SocketFrame.toShort(characteristic.getUuid());
+        int lane = getLane(device);
+        if (group == null || !RaceEngine.canWrite(lane, characteristicId)) {
+            sendResponse(device, requestId, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, 0, null);
+            return;
+        }
+        sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+
+        boolean valid = group.engine.write(lane, characteristicId, value);
+        // The engine's value is recorded, which for a release without a synced clock has the
+        // host time it was judged at
+        if (group == hostGroup && recording != null) {
+            recordWrite(lane, characteristicId, group.engine.getString(characteristicId));
+        }
+        if (!valid) {
+            Log.w(TAG, "Malformed release from " + device.getAddress());
+        } else if (characteristicId == RaceEngine.RELEASE
+                && (group.engine.getUnsyncedMask() & RaceEngine.laneBit(lane)) != 0) {
+            Log.i(TAG, "Lane " + lane + " released without a synced clock, judged on receipt");
+        }
+        // Dial-ins are part of the session
+        if (group == hostGroup && RaceEngine.laneOfDial(characteristicId) != 0) {
+            publishSession();
+        }
+    }
+
+    // This method starts recording the host's race to a new log file. A recording that cannot be
+    // started is skipped, and the races carry on
+    private void startRecording(File file) {
+        file.getParentFile().mkdirs();
+        try {
+            recording = new FileWriter(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not record to " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void stopRecording() {
+        if (recording == null) {
+            return;
+        }
+        try {
+            recording.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close the recording: " + e.getMessage());
+        }
+        recording = null;
+    }
+
+    // This method records a write to the host's race, skipping any value a replay cannot use
+    private void recordWrite(int lane, int characteristicId, String value) {
+        if (recording != null) {
+            record(RaceLog.Event.write(SystemClock.uptimeMillis(), lane, characteristicId, value));
+        }
+    }
+
+    // This method writes an event of the host's race to the recording, which callers only make
+    // when there is one. A recording that fails is stopped, and the races carry on
+    private void record(RaceLog.Event event) {
+        if (recording == null || event == null) {
+            return;
+        }
+        try {
+            event.writeTo(recording);
+            recording.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Recording stopped: " + e.getMessage());
+            recording = null;
+        }
+    }
+
+    private void sendResponse(BluetoothDevice device, int requestId, int status, int offset,
+                              byte[] value) {
+        // Socket requests are answered whole, and name their characteristic in place of an ID
+        if (SocketServer.isSocketAddress(device.getAddress())) {
+            SocketServer sockets = socketServer;
+            if (sockets != null) {
+                sockets.send(device.getAddress(), SocketFrame.response(requestId, status, value));
+            }
+            return;
+        }
+        BluetoothGattServer server = bluetoothGattServer;
+        if (server != null) {
+            server.sendResponse(device, requestId, status, offset, value);
+        }
+    }
+
+    // When the mailbox is full, the request is refused right away instead of timing out, and the
+    // refusal is recorded
+    private void sendFailure(BluetoothDevice device, int requestId) {
+        recorder.record(FlightRecorder.REQUEST_REFUSED, getLane(device), requestId, 0);
+        sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+    }
+
     private void connectDevice(BluetoothDevice device) {
         Log.w(TAG, "BluetoothDevice CONNECTED: " + device);
 
         // Add newly connected device to device list
         devices.add(device);
-        // Increment racer ID
-        updateRacerId();
+        notificationQueues.put(device.getAddress(), new NotificationQueue(device));
+        // Give the device a lane, or its reserved lane back, with nothing known about its link
+        assignLane(device);
+        clearLinkStats(device);
 
         // If all clients are connected, notify
         if (devices.size() == MAX_CLIENTS) {
@@ -439,8 +1537,25 @@ public class BleServerService extends Service {
 
         // Remove disconnected device from device list
         devices.remove(device);
-        // Decrement racer ID
-        updateRacerId();
+        NotificationQueue queue = notificationQueues.remove(device.getAddress());
+        if (queue != null) {
+            queue.clear();
+        }
+        preparedWrites.remove(device.getAddress());
+        clearLinkStats(device);
+        // A linked host no longer holds up the race, and any other device frees its lane, or
+        // holds it for a while once the race has begun
+        if (links.remove(device.getAddress()) != null) {
+            Log.w(TAG, "Linked host " + device.getAddress() + " lost");
+            linkDevices.remove(device);
+            if (links.isEmpty()) {
+                hostGroup.engine.setResultsGrace(0);
+            }
+            hostGroup.engine.updateStartTimer();
+            hostGroup.engine.checkForRaceFinished();
+        } else {
+            releaseLane(device);
+        }
 
         if (devices.size() < MAX_CLIENTS) {
             // Send wait signal to host activity
@@ -448,78 +1563,364 @@ public class BleServerService extends Service {
         }
     }
 
-    // This method checks if all users are staged, and if so, notifies all users to start race
-    private void checkForAllStaged() {
-        if (!isStaging
-                && Arrays.equals(racer1Stage.getValue(), "1".getBytes())
-                && Arrays.equals(racer2Stage.getValue(), "1".getBytes())
-//                && Arrays.equals(racer3Stage.getValue(), "1".getBytes())
-                && Arrays.equals(racerHostStage.getValue(), "1".getBytes())) {
-            isStaging = true;
-            // Delaying a second check ensures all users are staged for 1.5 seconds
-            new Handler(getMainLooper()).postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (Arrays.equals(racer1Stage.getValue(), "1".getBytes())
-                            && Arrays.equals(racer2Stage.getValue(), "1".getBytes())
-//                          && Arrays.equals(racer3Stage.getValue(), "1".getBytes())
-                            && Arrays.equals(racerHostStage.getValue(), "1".getBytes())) {
-                        raceDone = false;
-                        resetRts();
-
-                        // Tell all clients to start race (drop trees)
-                        raceReady.setValue("start");
-                        notifyDevices(raceReady);
-
-                        // Tell host device to start race
-                        broadcastUpdate(START_RACE);
-
-                        // Reset race ready characteristic
-                        raceReady.setValue("stop");
+    // One independent race, with its own members, judged by its engine. Only the group holding
+    // the host's lane reports to the host activity, the spectator feed and linked hosts
+    private class RaceGroup implements RaceEngine.Transport {
+        final RaceEngine engine;
+        final boolean hasHost;
+        final List<BluetoothDevice> members = new ArrayList<>();
+        private int fanOutOffset = 0;
+
+        // The number of races started, which numbers the start beacons
+        private int starts = 0;
+
+        RaceGroup(int id, boolean hasHost) {
+            this.hasHost = hasHost;
+            engine = new RaceEngine(id, hasHost, scheduler, this);
+            engine.setStageWindow(stageWindow);
+            engine.setLoopMode(loopMode, cooldown);
+        }
+
+        // The group's value of a race characteristic, or the shared value of any other
+        byte[] getValue(BluetoothGattCharacteristic characteristic) {
+            int characteristicId = SocketFrame.toShort(characteristic.getUuid());
+            return engine.hasValue(characteristicId)
+                    ? engine.getValue(characteristicId) : characteristic.getValue();
+        }
+
+        // This method notifies the members of this group that a characteristic has changed
+        void notify(BluetoothGattCharacteristic characteristic) {
+            fanOutOffset = fanOut(members, fanOutOffset, characteristic, getValue(characteristic));
+        }
+
+        // Only the host's own group is shown on the host device
+        void broadcast(String action, String payload) {
+            if (hasHost) {
+                broadcastUpdate(action, payload);
+            }
+        }
+
+        void broadcast(String action, BluetoothGattCharacteristic characteristic) {
+            if (hasHost) {
+                broadcastUpdate(action, characteristic);
+            }
+        }
+
+        // The engine has changed a characteristic, so send it to the members, and pass on
+        // whatever else the host shows of it
+        @Override
+        public void notify(int characteristicId, byte[] value) {
+            BluetoothGattCharacteristic characteristic = raceCharacteristics.get(characteristicId);
+            if (characteristicId == RaceEngine.RACE_READY) {
+                // Tell all clients in the group to start race (drop trees), over the air first
+                if (startBeacon) {
+                    sendStartBeacon(engine.getStartTime());
+                }
+                fanOutOffset = fanOut(members, fanOutOffset, characteristic, value);
+                if (hasHost) {
+                    RaceTrace.setRace(engine.getId(), engine.getStartTime());
+                    if (recording != null) {
+                        record(RaceLog.Event.start(SystemClock.uptimeMillis(), engine.getStartTime()));
                     }
-                    isStaging = false;
+                    spectatorFrame.startRace();
+                    spectatorChanged();
+                    startLinkedHosts();
                 }
-            }, 1500);
+                // Tell host device to start race
+                broadcast(START_RACE, Long.toString(engine.getStartTime()));
+                return;
+            }
+
+            fanOutOffset = fanOut(members, fanOutOffset, characteristic, value);
+            int stageLane = RaceEngine.laneOfStage(characteristicId);
+            if (characteristicId == RaceEngine.RACE_FINISHED) {
+                onResults(new String(value));
+            } else if (characteristicId == RaceEngine.FOUL) {
+                broadcast(FOUL_UPDATE, characteristic);
+            } else if (characteristicId == RaceEngine.ROUND) {
+                broadcast(ROUND_UPDATE, characteristic);
+                if (hasHost) {
+                    if (recording != null) {
+                        record(RaceLog.Event.round(SystemClock.uptimeMillis()));
+                    }
+                    publishSession();
+                }
+            } else if (characteristicId == RaceEngine.HEAT) {
+                broadcast(HEAT_UPDATE, characteristic);
+            } else if (stageLane != 0) {
+                // The host knows its own stage already
+                if (stageLane <= CLIENT_LANES) {
+                    broadcast(STAGE_UPDATE, stagePayloads[stageLane][RaceEngine.isStaged(value) ? 1 : 0]);
+                }
+                if (hasHost) {
+                    spectatorFrame.setStagedMask(engine.getStagedMask());
+                    spectatorChanged();
+                }
+            }
         }
+
+        // The results are in, and the tournament has not yet moved on from their heat
+        private void onResults(String results) {
+            if (hasHost && uplink != null) {
+                uplinkFrame.setResults(uplinkRace, results);
+                uplink.frameChanged();
+            }
+            if (hasHost && !links.isEmpty()) {
+                publishLinkedResults(results);
+            }
+            Tournament tournament = engine.getTournament();
+            if (hasHost && tournament != null && tournament.getCurrentHeat() != null) {
+                replica.addHeat(engine.getFoulMask(), results);
+            }
+            if (hasHost) {
+                spectatorFrame.setResults(engine.getResults(), engine.getFoulMask());
+                spectatorChanged();
+            }
+
+            // Notify host device
+            broadcast(RACE_FINISHED, raceFinished);
+            if (hasHost) {
+                publishSession();
+            }
+        }
+
+        // On a secondary, the readiness is only sent to the primary, which starts the race. The
+        // primary also waits for every linked host to be ready
+        @Override
+        public long checkReady(boolean staged, long stagedSince) {
+            if (hasHost && uplink != null) {
+                uplinkFrame.setReady(staged, stagedSince);
+                uplink.frameChanged();
+                return RaceEngine.NOT_READY;
+            }
+            long readySince = stagedSince;
+            if (hasHost) {
+                for (Link secondary : links.values()) {
+                    if (!secondary.ready) {
+                        return RaceEngine.NOT_READY;
+                    }
+                    if (secondary.readySince - readySince > 0) {
+                        readySince = secondary.readySince;
+                    }
+                }
+            }
+            return readySince;
+        }
+
+        @Override
+        public boolean isReported() {
+            return !hasHost || linksReported();
+        }
+
+        // This method advertises the start in a burst that ends when the trees drop
+        private void sendStartBeacon(long startTime) {
+            BluetoothLeAdvertiser advertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+            if (advertiser == null) {
+                return;
+            }
+            starts++;
+            advertiser.stopAdvertising(beaconCallback);
+            AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                    .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
+                    .setConnectable(false)
+                    .setTimeout((int) RaceEngine.START_LEAD)
+                    .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
+                    .build();
+            StartBeacon beacon = new StartBeacon(StartBeacon.toSession(sessionId), engine.getId(),
+                    starts, startTime);
+            AdvertiseData data = new AdvertiseData.Builder()
+                    .addManufacturerData(StartBeacon.COMPANY_ID, beacon.encode())
+                    .build();
+            advertiser.startAdvertising(settings, data, beaconCallback);
+        }
+
+        final AdvertiseCallback beaconCallback = new AdvertiseCallback() {
+
+            @Override
+            public void onStartFailure(int errorCode) {
+                super.onStartFailure(errorCode);
+                Log.w(TAG, "Start beacon failed in group " + engine.getId() + ", error code " + errorCode);
+            }
+        };
+
+        // The primary has started the race on this secondary's behalf
+        void start() {
+            if (!engine.start()) {
+                return;
+            }
+
+            // Results from the last race are not sent again
+            uplinkFrame.setReady(false, 0);
+            uplinkFrame.setResults(uplinkRace, "");
+            uplink.frameChanged();
+        }
+    }
+
+    // A value too long for a single write arrives as prepared writes, each holding the part at an
+    // offset, and is only applied once the client executes them
+    private void prepareWrite(BluetoothDevice device, int requestId,
+                              BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+        String address = device.getAddress();
+        PreparedWrite prepared = preparedWrites.get(address);
+        if (prepared == null) {
+            prepared = new PreparedWrite(characteristic);
+            preparedWrites.put(address, prepared);
+        }
+        int status = prepared.write(characteristic, offset, value != null ? value : EMPTY);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            preparedWrites.remove(address);
+            sendResponse(device, requestId, status, offset, null);
+            return;
+        }
+        // The part is echoed back, so the client can check it arrived intact
+        sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
     }
 
-    // This method resets all reaction times so the server can determine when all users have
-    // sent new reaction times
-    private void resetRts() {
-        String empty = "";
-        racer1Rt.setValue(empty);
-        racer2Rt.setValue(empty);
-        racer3Rt.setValue(empty);
-        racerHostRt.setValue(empty);
+    // This method applies a device's prepared writes as one write, or drops them if the client
+    // cancelled
+    private void executeWrite(BluetoothDevice device, int requestId, boolean execute) {
+        PreparedWrite prepared = preparedWrites.remove(device.getAddress());
+        if (!execute || prepared == null) {
+            sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            return;
+        }
+        boolean traced = RaceTrace.begin("handleWriteRequest", getLane(device));
+        handleWriteRequest(device, requestId, prepared.characteristic, prepared.value);
+        RaceTrace.end(traced);
     }
 
-    // This method checks if all users have sent their reaction times. If so, it broadcasts the
-    // RACE_FINISHED characteristic, so each device can pull reaction times from the server
-    private void checkForRaceFinished() {
-        String empty = "";
-        if (!raceDone
-                && !Arrays.equals(empty.getBytes(), racer1Rt.getValue())
-                && !Arrays.equals(empty.getBytes(), racer2Rt.getValue())
-                && !Arrays.equals(empty.getBytes(), racer3Rt.getValue())
-                && !Arrays.equals(empty.getBytes(), racerHostRt.getValue())) {
-            // Set race finished flag to true and notify clients
-            raceFinished.setValue("1");
-            notifyDevices(raceFinished);
+    // The parts of one long write, assembled by offset
+    private static class PreparedWrite {
+        final BluetoothGattCharacteristic characteristic;
+        byte[] value = EMPTY;
 
-            // Notify host device
-            broadcastUpdate(RACE_FINISHED);
-            raceDone = true;
-        } else {
-            // Set race finished flag to false
-            raceFinished.setValue("0");
+        PreparedWrite(BluetoothGattCharacteristic characteristic) {
+            this.characteristic = characteristic;
+        }
+
+        // This method adds a part, and returns the status to answer it with. Only one
+        // characteristic is written at a time, and the parts cannot leave a gap
+        int write(BluetoothGattCharacteristic characteristic, int offset, byte[] part) {
+            if (characteristic != this.characteristic) {
+                return BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+            }
+            if (offset < 0 || offset > value.length) {
+                return BluetoothGatt.GATT_INVALID_OFFSET;
+            }
+            int end = offset + part.length;
+            if (end > MAX_ATTRIBUTE_LENGTH) {
+                return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+            }
+            if (end > value.length) {
+                value = Arrays.copyOf(value, end);
+            }
+            System.arraycopy(part, 0, value, offset, part.length);
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+    }
+
+    // A secondary host linked to this one, as of its last frame
+    private static class Link {
+        final BluetoothDevice device;
+        boolean ready;
+        // When its lanes were all staged, on this host's uptime clock
+        long readySince;
+        boolean racing;
+        String results = "";
+
+        Link(BluetoothDevice device) {
+            this.device = device;
         }
     }
 
+    // This method takes the latest frame from a secondary host, linking it if it is new
+    private void handleLinkFrame(BluetoothDevice device, byte[] value) {
+        LinkFrame frame = LinkFrame.decode(value != null ? new String(value) : null);
+        if (frame == null) {
+            Log.w(TAG, "Malformed link frame from " + device.getAddress());
+            return;
+        }
+        String address = device.getAddress();
+        Link secondary = links.get(address);
+        if (secondary == null) {
+            secondary = new Link(device);
+            links.put(address, secondary);
+            linkDevices.add(device);
+            hostGroup.engine.setResultsGrace(LINK_GRACE);
+            Log.i(TAG, "Linked host " + address);
+        }
+
+        secondary.ready = frame.isReady();
+        secondary.readySince = scheduler.uptimeMillis() - frame.getReadyFor();
+        if (secondary.racing && frame.getRace() == linkedRace && !frame.getResults().isEmpty()) {
+            secondary.racing = false;
+            secondary.results = frame.getResults();
+        }
+        hostGroup.engine.updateStartTimer();
+        hostGroup.engine.checkForRaceFinished();
+    }
+
+    // This method tells every linked host to start the race it has just been armed for
+    private void startLinkedHosts() {
+        if (links.isEmpty()) {
+            return;
+        }
+        linkedRace++;
+        for (Link secondary : links.values()) {
+            secondary.racing = true;
+            secondary.results = "";
+        }
+        link.setValue(LinkFrame.START + linkedRace);
+        linkFanOutOffset = fanOut(linkDevices, linkFanOutOffset, link, link.getValue());
+    }
+
+    // Every linked host that started the race has sent its results
+    private boolean linksReported() {
+        for (Link secondary : links.values()) {
+            if (secondary.racing) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // This method publishes the results of every linked host, this one first, to all of them
+    private void publishLinkedResults(String ownResults) {
+        List<String> results = new ArrayList<>();
+        results.add(ownResults);
+        for (BluetoothDevice device : linkDevices) {
+            Link secondary = links.get(device.getAddress());
+            results.add(secondary.results);
+            secondary.racing = false;
+        }
+        link.setValue(LinkFrame.encodeResults(results));
+        linkFanOutOffset = fanOut(linkDevices, linkFanOutOffset, link, link.getValue());
+        broadcastUpdate(LINKED_RESULTS, link);
+    }
+
+    // Messages from the primary, when this host is a secondary
+    private final HostLink.Listener linkListener = new HostLink.Listener() {
+        @Override
+        public void onLinkMessage(String message) {
+            if (message.startsWith(LinkFrame.START)) {
+                try {
+                    uplinkRace = Integer.parseInt(message.substring(LinkFrame.START.length()));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Malformed start from primary host");
+                    return;
+                }
+                hostGroup.start();
+            } else if (LinkFrame.decodeResults(message) != null) {
+                broadcastUpdate(LINKED_RESULTS, message);
+            }
+        }
+    };
+
     // Send broadcast containing action and custom payload
     private void broadcastUpdate(final String action, String payload) {
         final Intent intent = new Intent(action);
         intent.putExtra(EXTRA_DATA, payload);
-        sendBroadcast(intent);
+        dispatcher.post(intent);
     }
 
     // Send broadcast containing action name and characteristic value
@@ -527,23 +1928,129 @@ public class BleServerService extends Service {
                                  final BluetoothGattCharacteristic characteristic) {
         final Intent intent = new Intent(action);
 
-        final byte[] data = characteristic.getValue();
+        // Race characteristics hold a value per group, and the host activity shows its own
+        final byte[] data = hostGroup.getValue(characteristic);
         if (data != null && data.length > 0) {
             intent.putExtra(EXTRA_DATA, new String(data));
             intent.putExtra(CHARACTERISTIC_UUID, characteristic.getUuid().toString());
         }
 
-        sendBroadcast(intent);
+        dispatcher.post(intent);
     }
 
     // Send broadcast only containing action name
     private void broadcastUpdate(final String action) {
         final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+        dispatcher.post(intent);
     }
 
-    private void updateRacerId() {
-        String racerIdValue = Integer.toString(devices.size());
-        racerId.setValue(racerIdValue);
+    // Register a receiver for updates from this service, which is always called on the UI thread
+    public void registerUpdateReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        dispatcher.register(receiver, filter);
+    }
+
+    public void unregisterUpdateReceiver(BroadcastReceiver receiver) {
+        dispatcher.unregister(receiver);
+    }
+
+    // This method gives a newly connected device its reserved lane, or the lowest free lane in
+    // the first group with one, starting a new group once every group is full
+    private void assignLane(BluetoothDevice device) {
+        String address = device.getAddress();
+        EventLoop.Timer expiry = reservations.remove(address);
+        if (expiry != null) {
+            expiry.cancel();
+            int lane = lanes.get(address);
+            RaceGroup group = memberships.get(address);
+            Log.i(TAG, "Lane " + lane + " of group " + group.engine.getId() + " reclaimed by " + address);
+            group.members.add(device);
+            if (group == hostGroup) {
+                publishSession();
+            }
+            group.engine.reclaimLane(lane);
+            return;
+        }
+        // A secondary host is linked instead, and never races in a lane
+        if (lanes.containsKey(address) || secondaries.contains(address)) {
+            return;
+        }
+
+        for (int i = 0; i <= groups.size() && i < MAX_GROUPS; i++) {
+            RaceGroup group;
+            if (i < groups.size()) {
+                group = groups.get(i);
+            } else {
+                group = new RaceGroup(i + 1, false);
+                groups.add(group);
+                Log.i(TAG, "Started race group " + (i + 1));
+            }
+            int lane = group.engine.assignLane();
+            if (lane != 0) {
+                lanes.put(address, lane);
+                memberships.put(address, group);
+                group.members.add(device);
+                if (group == hostGroup) {
+                    publishSession();
+                }
+                return;
+            }
+        }
+        Log.w(TAG, "No free lane for device " + address);
+    }
+
+    // This method frees the lane of a disconnected device. Once the race has begun, the lane is
+    // unstaged and reserved instead, so the device can rejoin the race in the same lane
+    private void releaseLane(BluetoothDevice device) {
+        String address = device.getAddress();
+        Integer lane = lanes.get(address);
+        RaceGroup group = memberships.get(address);
+        if (lane == null || group == null) {
+            return;
+        }
+        group.members.remove(device);
+        if (!sessionStarted) {
+            removeLane(address);
+            return;
+        }
+
+        group.engine.reserveLane(lane);
+        reserveLane(address);
+    }
+
+    // This method holds a lane for its device for a while, and frees it if the device does not
+    // come back in time
+    private void reserveLane(final String address) {
+        EventLoop.Timer expiry = eventLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reservations.remove(address);
+                removeLane(address);
+                Log.i(TAG, "Reservation expired for " + address);
+            }
+        }, RESERVATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        reservations.put(address, expiry);
+    }
+
+    private void clearLinkStats(BluetoothDevice device) {
+        int lane = getStatsLane(device);
+        if (lane != 0) {
+            linkStats.clear(lane);
+        }
+    }
+
+    // A lane that is no longer assigned is no longer required to stage, and can be given out
+    // again
+    private void removeLane(String address) {
+        Integer lane = lanes.remove(address);
+        RaceGroup group = memberships.remove(address);
+        if (lane != null && group == hostGroup) {
+            linkStats.clear(lane);
+        }
+        if (lane != null && group != null) {
+            group.engine.removeLane(lane);
+        }
+        if (group == hostGroup) {
+            publishSession();
+        }
     }
 }
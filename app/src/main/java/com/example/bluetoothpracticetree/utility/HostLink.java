@@ -0,0 +1,359 @@
+package com.example.bluetoothpracticetree.utility;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    This class is a secondary host's connection to the primary host it is linked to. It sends the
+    secondary's LinkFrame to the primary's LINK characteristic, and hands every message the
+    primary notifies on LINK to a listener.
+
+    Frames are batched. A change only schedules a write a short while later, and the frame is
+    encoded when the write goes out, so a burst of stage changes is sent as one frame with the
+    latest state. Only one request is in flight at a time.
+
+    Before subscribing, the link asks for an MTU large enough for a frame and the primary's
+    results, though a longer frame is still sent whole as a long write. Results from many linked
+    hosts can outgrow even that MTU, so results that may have been cut off are read back in full
+    before they are handed on.
+
+    All of its methods are called on the server's event loop, and the GATT callbacks post back to
+    it, so it needs no locking. A dropped link is retried until the link is closed.
+ */
+
+public class HostLink {
+    private static final String TAG = HostLink.class.getSimpleName();
+    // How long changes are collected before a frame is sent
+    private static final long BATCH_INTERVAL = 50;
+    private static final long RETRY_INTERVAL = 2000;
+    private static final int LINK_MTU = 185;
+    // The MTU until a larger one is granted, and the ATT header each notification carries
+    private static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER = 3;
+
+    public interface Listener {
+        void onLinkMessage(String message);
+    }
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final String address;
+    private final EventLoop eventLoop;
+    private final Listener listener;
+    private final LinkFrame frame;
+
+    private BluetoothGatt bluetoothGatt;
+    private BluetoothGattCharacteristic link;
+    private int mtu = DEFAULT_MTU;
+    private boolean subscribing = false;
+    private boolean subscribed = false;
+    private boolean writing = false;
+    // Whether the link is being read back, and whether it has to be once the write is done
+    private boolean reading = false;
+    private boolean readPending = false;
+    private boolean dirty = false;
+    private boolean closed = false;
+    private EventLoop.Timer batchTimer;
+    private EventLoop.Timer retryTimer;
+
+    public HostLink(Context context, BluetoothAdapter bluetoothAdapter, String address,
+                    EventLoop eventLoop, LinkFrame frame, Listener listener) {
+        this.context = context;
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.address = address;
+        this.eventLoop = eventLoop;
+        this.frame = frame;
+        this.listener = listener;
+    }
+
+    public void connect() {
+        BluetoothDevice device;
+        try {
+            device = bluetoothAdapter.getRemoteDevice(address);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid primary host address " + address);
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            bluetoothGatt = device.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            bluetoothGatt = device.connectGatt(context, false, gattCallback);
+        }
+    }
+
+    // The frame has changed, so send it once the batch interval is up
+    public void frameChanged() {
+        dirty = true;
+        if (batchTimer == null && !writing) {
+            batchTimer = eventLoop.schedule(flush, BATCH_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void close() {
+        closed = true;
+        if (batchTimer != null) {
+            batchTimer.cancel();
+            batchTimer = null;
+        }
+        if (retryTimer != null) {
+            retryTimer.cancel();
+            retryTimer = null;
+        }
+        if (bluetoothGatt != null) {
+            bluetoothGatt.close();
+            bluetoothGatt = null;
+        }
+    }
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            batchTimer = null;
+            if (!dirty || writing || reading || link == null || !subscribed) {
+                return;
+            }
+            link.setValue(frame.encode(SystemClock.uptimeMillis()));
+            if (bluetoothGatt.writeCharacteristic(link)) {
+                writing = true;
+                dirty = false;
+            } else {
+                Log.w(TAG, "Link frame was not sent");
+                frameChanged();
+            }
+        }
+    };
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            retryTimer = null;
+            if (!closed) {
+                connect();
+            }
+        }
+    };
+
+    private void handleConnectionStateChange(BluetoothGatt gatt, int newState) {
+        if (gatt != bluetoothGatt) {
+            return;
+        }
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            Log.i(TAG, "Linked to primary host " + address);
+            gatt.discoverServices();
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            Log.w(TAG, "Link to primary host lost");
+            gatt.close();
+            bluetoothGatt = null;
+            link = null;
+            mtu = DEFAULT_MTU;
+            subscribing = false;
+            subscribed = false;
+            writing = false;
+            reading = false;
+            readPending = false;
+            if (!closed) {
+                retryTimer = eventLoop.schedule(retry, RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void handleServicesDiscovered(BluetoothGatt gatt, int status) {
+        if (gatt != bluetoothGatt || status != BluetoothGatt.GATT_SUCCESS) {
+            return;
+        }
+        BluetoothGattService service = gatt.getService(UuidUtils.SERVICE);
+        link = service != null ? service.getCharacteristic(UuidUtils.LINK) : null;
+        if (link == null) {
+            Log.e(TAG, "Primary host has no link characteristic");
+            return;
+        }
+        // Subscribe once the MTU is settled, whatever it turns out to be
+        if (!gatt.requestMtu(LINK_MTU)) {
+            Log.w(TAG, "requestMtu failed");
+            subscribe(gatt);
+        }
+    }
+
+    private void handleMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        if (gatt != bluetoothGatt) {
+            return;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
+        }
+        subscribe(gatt);
+    }
+
+    // The MTU can change again later, but the link is only subscribed to once
+    private void subscribe(BluetoothGatt gatt) {
+        if (link == null || subscribing) {
+            return;
+        }
+        subscribing = true;
+        BluetoothGattDescriptor config = link.getDescriptor(UuidUtils.CCCD);
+        gatt.setCharacteristicNotification(link, true);
+        config.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        gatt.writeDescriptor(config);
+    }
+
+    // The primary only hears from this link once it is subscribed, so nothing is missed
+    private void handleSubscribed(BluetoothGatt gatt) {
+        if (gatt != bluetoothGatt) {
+            return;
+        }
+        subscribed = true;
+        dirty = true;
+        flush.run();
+    }
+
+    private void handleWritten(BluetoothGatt gatt) {
+        if (gatt != bluetoothGatt) {
+            return;
+        }
+        writing = false;
+        if (readPending) {
+            readPending = false;
+            readBack();
+        } else if (dirty) {
+            frameChanged();
+        }
+    }
+
+    // This method hands on a message from the primary, or reads it back first if it is results
+    // that may have been cut off at the MTU
+    private void handleMessage(BluetoothGatt gatt, byte[] value) {
+        if (gatt != bluetoothGatt || value == null) {
+            return;
+        }
+        if (value.length >= mtu - ATT_HEADER && LinkFrame.decodeResults(new String(value)) != null) {
+            readBack();
+            return;
+        }
+        listener.onLinkMessage(new String(value));
+    }
+
+    private void readBack() {
+        if (reading) {
+            return;
+        }
+        if (writing) {
+            readPending = true;
+            return;
+        }
+        reading = bluetoothGatt.readCharacteristic(link);
+        if (!reading) {
+            Log.w(TAG, "Link results were not read back");
+        }
+    }
+
+    // Only results are handed on from a read, since a start must not be run twice
+    private void handleRead(BluetoothGatt gatt, byte[] value) {
+        if (gatt != bluetoothGatt) {
+            return;
+        }
+        reading = false;
+        if (value != null && LinkFrame.decodeResults(new String(value)) != null) {
+            listener.onLinkMessage(new String(value));
+        }
+        if (dirty) {
+            frameChanged();
+        }
+    }
+
+    // These callbacks arrive on binder threads, so each one posts to the event loop
+    private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(final BluetoothGatt gatt, int status, final int newState) {
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnectionStateChange(gatt, newState);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleServicesDiscovered(gatt, status);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleMtuChanged(gatt, mtu, status);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(final BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleSubscribed(gatt);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(final BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic, int status) {
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleWritten(gatt);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(final BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic, int status) {
+            final byte[] value = status == BluetoothGatt.GATT_SUCCESS
+                    && UuidUtils.LINK.equals(characteristic.getUuid()) ? characteristic.getValue() : null;
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleRead(gatt, value);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(final BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            // The primary also notifies the race characteristics, which are not for the link
+            if (!UuidUtils.LINK.equals(characteristic.getUuid())) {
+                return;
+            }
+            // The characteristic is reused for the next notification, so copy its value now
+            final byte[] value = characteristic.getValue();
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleMessage(gatt, value);
+                }
+            });
+        }
+    };
+}
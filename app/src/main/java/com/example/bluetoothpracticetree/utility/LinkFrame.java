@@ -0,0 +1,104 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.util.List;
+
+/*
+    This class holds what a secondary host tells the primary about its own lanes when several
+    hosts are linked into one race. Everything fits in one frame, which is resent whenever it
+    changes, so the primary always has the latest state of every lane on the secondary after a
+    single write.
+
+    A secondary is ready once every lane it has to stage has been staged, and reports how long
+    ago that was instead of when, since the two hosts do not share a clock. Results are tagged
+    with the race they are for, so results from the last race are never taken for this one.
+
+    Frames are encoded as "race|ready|readyFor|results", for example "3|1|420|1|512,-35,NR,".
+    The primary answers through the same characteristic with START followed by the race number,
+    and with the results of every linked host once the race is over.
+ */
+
+public class LinkFrame {
+    public static final String START = "start:";
+    public static final String RESULTS = "results;";
+
+    private int race;
+    private boolean ready;
+    private long readySince;
+    private long readyFor;
+    private String results = "";
+
+    public int getRace() {
+        return race;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // How long the secondary had been ready for when it sent this frame, in milliseconds
+    public long getReadyFor() {
+        return readyFor;
+    }
+
+    public String getResults() {
+        return results;
+    }
+
+    // The secondary's lanes have all been staged since the given time on its own clock, in
+    // milliseconds
+    public void setReady(boolean ready, long readySince) {
+        this.ready = ready;
+        this.readySince = readySince;
+    }
+
+    public void setResults(int race, String results) {
+        this.race = race;
+        this.results = results != null ? results : "";
+    }
+
+    public String encode(long nowMillis) {
+        long sinceReady = ready ? nowMillis - readySince : 0;
+        return race + "|" + (ready ? 1 : 0) + "|" + sinceReady + "|" + results;
+    }
+
+    // This method parses a frame, returning null if it is malformed
+    public static LinkFrame decode(String data) {
+        if (data == null) {
+            return null;
+        }
+        String[] parts = data.split("\\|", 4);
+        if (parts.length != 4) {
+            return null;
+        }
+        LinkFrame frame = new LinkFrame();
+        try {
+            frame.race = Integer.parseInt(parts[0]);
+            frame.ready = "1".equals(parts[1]);
+            frame.readyFor = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        frame.results = parts[3];
+        return frame;
+    }
+
+    // The results of every linked host, the primary first, with an empty entry for a host that
+    // never reported
+    public static String encodeResults(List<String> results) {
+        StringBuilder builder = new StringBuilder(RESULTS);
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) {
+                builder.append(';');
+            }
+            builder.append(results.get(i));
+        }
+        return builder.toString();
+    }
+
+    public static String[] decodeResults(String data) {
+        if (data == null || !data.startsWith(RESULTS)) {
+            return null;
+        }
+        return data.substring(RESULTS.length()).split(";", -1);
+    }
+}
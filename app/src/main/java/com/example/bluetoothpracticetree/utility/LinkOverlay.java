@@ -0,0 +1,63 @@
+package com.example.bluetoothpracticetree.utility;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.TextView;
+
+/*
+    This class shows LinkStats over a race screen, one line for each link. It refreshes twice a
+    second on the main thread, and only reads the latest measurements, without waiting on the
+    threads that record them, so showing it never holds up a race.
+ */
+
+public class LinkOverlay {
+    private static final long REFRESH_INTERVAL = 500;
+
+    private final TextView view;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final StringBuilder text = new StringBuilder();
+    private LinkStats stats;
+    private int[] lanes = new int[0];
+
+    public LinkOverlay(TextView view) {
+        this.view = view;
+    }
+
+    // This method sets the stats to show, and which of their links, once a service is bound
+    public void setStats(LinkStats stats, int... lanes) {
+        this.stats = stats;
+        this.lanes = lanes;
+    }
+
+    // This method shows or hides the overlay, and only refreshes it while it is shown
+    public void setShown(boolean shown) {
+        handler.removeCallbacks(refresh);
+        view.setVisibility(shown ? View.VISIBLE : View.GONE);
+        if (shown) {
+            refresh.run();
+        }
+    }
+
+    // This method stops refreshing, once the screen has gone
+    public void stop() {
+        handler.removeCallbacks(refresh);
+    }
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            if (stats != null) {
+                text.setLength(0);
+                for (int lane : lanes) {
+                    if (text.length() > 0) {
+                        text.append('\n');
+                    }
+                    text.append(stats.describe(lane));
+                }
+                view.setText(text.toString());
+            }
+            handler.postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+}
@@ -0,0 +1,807 @@
+package com.example.bluetoothpracticetree.utility;
+
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+    This service runs a two-lane race between two devices with no host. Each device runs a small
+    GATT server that publishes its own lane in the PEER_STATE characteristic, and connects as a
+    client to the other device's server to subscribe to its lane. Every stage change, release and
+    reaction time therefore goes straight to the other device, with no host in between.
+
+    Both devices advertise and scan for the peer service, and connect to the first peer they find.
+    Each one asks for an MTU large enough for a whole state before it subscribes, and reads the
+    state back whenever a notification arrives cut off anyway. Each one syncs its clock to the
+    other's through the CLOCK characteristic, so times in the other device's state can be
+    converted to local time.
+
+    The device with the lower token arms the start, once both lanes have been staged for the
+    staging window, and publishes the race number and start time in its state. The other device
+    starts the same race as soon as it sees it. Each device judges fouls for both lanes with a
+    FoulJudge, from the releases in both states, and publishes the results once both reaction
+    times are in, or at a deadline after the last green.
+
+    The local lane is always lane 1 and the peer's is lane 2. Updates are sent to the activity
+    with the same actions as the BleServerService, so the race screen handles both the same way.
+    All state is owned by a single event loop thread, like the BleServerService.
+ */
+
+public class PeerService extends Service {
+    private static final String TAG = PeerService.class.getSimpleName();
+    private static final int LOCAL_LANE = 1;
+    private static final int PEER_LANE = 2;
+    private static final long DEFAULT_STAGE_WINDOW = 1500;
+    // How far ahead of the start the trees drop, so the peer has received it in time
+    private static final long START_LEAD = 300;
+    // How long after the last green a lane has to report its reaction time
+    private static final long RESULTS_DEADLINE = 5000;
+    private static final int CLOCK_SAMPLES = 5;
+    private static final int MAILBOX_CAPACITY = 64;
+    // Large enough for a whole state to fit in a single notification
+    private static final int STATE_MTU = 96;
+
+    private IBinder binder = new LocalBinder();
+
+    private BluetoothAdapter bluetoothAdapter;
+    private BluetoothManager bluetoothManager;
+    private volatile BluetoothGattServer bluetoothGattServer;
+    private EventLoop eventLoop;
+    private UpdateDispatcher dispatcher;
+
+    // The server side, which publishes the local lane to the peer
+    private BluetoothGattCharacteristic peerStateCharacteristic;
+    private BluetoothGattCharacteristic clock;
+    private final List<BluetoothDevice> subscribers = new ArrayList<>();
+    private boolean notifying = false;
+    private boolean stateChanged = false;
+
+    // The client side, which follows the peer's lane
+    private BluetoothGatt peerGatt;
+    private BluetoothGattCharacteristic peerClock;
+    private BluetoothGattCharacteristic peerStateRemote;
+    private final ClockSync clockSync = new ClockSync();
+    private int clockReadsLeft;
+    private long clockReadSentAt;
+    // Whether the state is being read, and whether it has changed since that read was sent
+    private boolean readingState = false;
+    private boolean readStateAgain = false;
+    private boolean subscribed = false;
+    private boolean scanning = false;
+
+    private PeerState local;
+    private PeerState peer;
+    private long stageWindow;
+
+    // The race last started, whether it is still running, and whether the peer's release in it
+    // has been judged
+    private int race = 0;
+    private boolean raceRunning = false;
+    private boolean peerReleaseJudged = false;
+    private final FoulJudge foulJudge = new FoulJudge();
+    private EventLoop.Timer startTimer;
+    private EventLoop.Timer resultsTimer;
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    public class LocalBinder extends Binder {
+        public PeerService getService() {
+            return PeerService.this;
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        eventLoop = new EventLoop(TAG, MAILBOX_CAPACITY);
+        eventLoop.setErrorListener(new EventLoop.ErrorListener() {
+            @Override
+            public void onError(Throwable error) {
+                Log.e(TAG, "Peer message failed", error);
+            }
+        });
+        eventLoop.start();
+        dispatcher = new UpdateDispatcher(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        eventLoop.quit();
+        super.onDestroy();
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        close();
+        return super.onUnbind(intent);
+    }
+
+    public boolean initialize() {
+        bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        if (bluetoothManager == null) {
+            Log.e(TAG, "Unable to initialize BluetoothManager.");
+            return false;
+        }
+        bluetoothAdapter = bluetoothManager.getAdapter();
+        if (bluetoothAdapter == null) {
+            Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
+            return false;
+        }
+
+        SharedPreferences sharedPref = getSharedPreferences("RACE_PREFS", Context.MODE_PRIVATE);
+        stageWindow = sharedPref.getLong("stage_window", DEFAULT_STAGE_WINDOW);
+        local = new PeerState(new Random().nextInt(Integer.MAX_VALUE));
+        local.dial = sharedPref.getLong("dial", 10000);
+
+        bluetoothGattServer = bluetoothManager.openGattServer(this, serverCallback);
+        if (bluetoothGattServer == null) {
+            Log.w(TAG, "Unable to create GATT server");
+            return false;
+        }
+        bluetoothGattServer.addService(createPeerService());
+
+        post(new Runnable() {
+            @Override
+            public void run() {
+                advertise();
+                scan(true);
+            }
+        });
+        return true;
+    }
+
+    private BluetoothGattService createPeerService() {
+        BluetoothGattService service = new BluetoothGattService(UuidUtils.PEER_SERVICE,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+
+        peerStateCharacteristic = new BluetoothGattCharacteristic(UuidUtils.PEER_STATE,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        peerStateCharacteristic.addDescriptor(new BluetoothGattDescriptor(UuidUtils.CCCD,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        clock = new BluetoothGattCharacteristic(UuidUtils.CLOCK,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+
+        service.addCharacteristic(peerStateCharacteristic);
+        service.addCharacteristic(clock);
+        return service;
+    }
+
+    private void advertise() {
+        BluetoothLeAdvertiser advertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
+                .setConnectable(true)
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
+                .build();
+        AdvertiseData data = new AdvertiseData.Builder()
+                .addServiceUuid(new ParcelUuid(UuidUtils.PEER_SERVICE))
+                .build();
+        if (advertiser != null) {
+            advertiser.startAdvertising(settings, data, advertiseCallback);
+        }
+    }
+
+    private AdvertiseCallback advertiseCallback = new AdvertiseCallback() {
+        @Override
+        public void onStartFailure(int errorCode) {
+            super.onStartFailure(errorCode);
+            Log.e(TAG, "Advertising failed, error code " + errorCode);
+        }
+    };
+
+    private void scan(boolean enable) {
+        if (enable && !scanning) {
+            bluetoothAdapter.startLeScan(scanCallback);
+        } else if (!enable && scanning) {
+            bluetoothAdapter.stopLeScan(scanCallback);
+        }
+        scanning = enable;
+    }
+
+    // The first device found offering the peer service is the peer
+    private BluetoothAdapter.LeScanCallback scanCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+            for (UUID uuid : UuidUtils.parseServiceUuids(scanRecord)) {
+                if (uuid.equals(UuidUtils.PEER_SERVICE)) {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectToPeer(device);
+                        }
+                    });
+                    return;
+                }
+            }
+        }
+    };
+
+    private void connectToPeer(BluetoothDevice device) {
+        if (peerGatt != null || bluetoothGattServer == null) {
+            return;
+        }
+        scan(false);
+        Log.i(TAG, "Connecting to peer " + device.getAddress());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            peerGatt = device.connectGatt(this, false, clientCallback, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            peerGatt = device.connectGatt(this, false, clientCallback);
+        }
+    }
+
+    // This method hands a message to the event loop, which owns all peer state
+    private boolean post(Runnable message) {
+        if (!eventLoop.post(message)) {
+            Log.e(TAG, "Peer mailbox is full, dropping message");
+            return false;
+        }
+        return true;
+    }
+
+    // This method allows the local user to set their dial-in
+    public void setDial(final long dial) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                local.dial = dial;
+                publish();
+            }
+        });
+    }
+
+    // This method allows the local user to set their stage flag
+    public void setStage(final String value) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                boolean staged = "1".equals(value);
+                if (staged == local.staged) {
+                    return;
+                }
+                local.staged = staged;
+                if (staged) {
+                    local.stagedAt = SystemClock.uptimeMillis();
+                }
+                publish();
+                updateStartTimer();
+            }
+        });
+    }
+
+    // This method allows the local user to report when they released, on the local clock
+    public void setRelease(final long releaseTime, final long rollout) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (!raceRunning || local.release != 0) {
+                    return;
+                }
+                local.release = releaseTime;
+                local.rollout = rollout;
+                publish();
+                judgeRelease(LOCAL_LANE, releaseTime, rollout);
+            }
+        });
+    }
+
+    // This method allows the local user to set their reaction time
+    public void setRt(final String value) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (!raceRunning) {
+                    return;
+                }
+                local.rt = value;
+                publish();
+                checkForRaceFinished();
+            }
+        });
+    }
+
+    public void close() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (bluetoothGattServer == null) {
+                    return;
+                }
+                if (startTimer != null) {
+                    startTimer.cancel();
+                    startTimer = null;
+                }
+                if (resultsTimer != null) {
+                    resultsTimer.cancel();
+                    resultsTimer = null;
+                }
+                scan(false);
+                bluetoothAdapter.getBluetoothLeAdvertiser().stopAdvertising(advertiseCallback);
+                if (peerGatt != null) {
+                    peerGatt.close();
+                    peerGatt = null;
+                }
+                bluetoothGattServer.close();
+                bluetoothGattServer = null;
+            }
+        });
+    }
+
+    // This method sends the local lane to the peer. The whole state is sent each time, so when a
+    // notification is still in flight, only the latest state is sent after it
+    private void publish() {
+        peerStateCharacteristic.setValue(local.encode());
+        if (notifying) {
+            stateChanged = true;
+            return;
+        }
+        stateChanged = false;
+        for (BluetoothDevice device : subscribers) {
+            if (bluetoothGattServer.notifyCharacteristicChanged(device, peerStateCharacteristic, false)) {
+                notifying = true;
+            }
+        }
+    }
+
+    private boolean isStarter() {
+        return peer != null && local.token < peer.token;
+    }
+
+    // This method arms the start for the moment both lanes will have been staged for the full
+    // window, or disarms it. Only the starter arms it
+    private void updateStartTimer() {
+        if (startTimer != null) {
+            startTimer.cancel();
+            startTimer = null;
+        }
+        if (raceRunning || !isStarter() || !clockSync.isSynced() || !local.staged || !peer.staged) {
+            return;
+        }
+
+        long lastStaged = Math.max(local.stagedAt, clockSync.toLocalTime(peer.stagedAt));
+        long delay = lastStaged + stageWindow - SystemClock.uptimeMillis();
+        startTimer = eventLoop.schedule(startSignal, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    private final Runnable startSignal = new Runnable() {
+        @Override
+        public void run() {
+            startTimer = null;
+            startRace(race + 1, SystemClock.uptimeMillis() + START_LEAD);
+        }
+    };
+
+    // This method starts a race, with the slowest dial-in dropping at the local start time
+    private void startRace(int number, long startTime) {
+        if (resultsTimer != null) {
+            resultsTimer.cancel();
+            resultsTimer = null;
+        }
+        race = number;
+        raceRunning = true;
+        peerReleaseJudged = false;
+        local.race = number;
+        local.start = startTime;
+        local.release = 0;
+        local.rt = "";
+
+        long[] dials = new long[FoulJudge.LANES];
+        dials[LOCAL_LANE - 1] = local.dial;
+        dials[PEER_LANE - 1] = peer.dial;
+        foulJudge.start(startTime, dials);
+        long lastGreen = Math.max(foulJudge.getGreenTime(LOCAL_LANE), foulJudge.getGreenTime(PEER_LANE));
+        resultsTimer = eventLoop.schedule(resultsDeadline,
+                lastGreen + RESULTS_DEADLINE - SystemClock.uptimeMillis(), TimeUnit.MILLISECONDS);
+
+        publish();
+        // Both peers number their races the same, and have no group
+        RaceTrace.setRace(0, number);
+        broadcastUpdate(BleServerService.START_RACE, Long.toString(startTime));
+    }
+
+    // This method judges a lane's release, and tells the activity if it fouled
+    private void judgeRelease(int lane, long releaseTime, long rollout) {
+        if (foulJudge.onRelease(lane, releaseTime, rollout)) {
+            broadcastUpdate(BleServerService.FOUL_UPDATE, foulJudge.encode());
+        }
+    }
+
+    // This method applies a new state from the peer
+    private void handlePeerState(PeerState state) {
+        PeerState previous = peer;
+        peer = state;
+
+        if (previous == null || previous.dial != state.dial) {
+            broadcastUpdate(BleServerService.DIAL_UPDATE, UuidUtils.RACER_2_DIAL, Long.toString(state.dial));
+        }
+        if (previous == null || previous.staged != state.staged) {
+            byte[] flag = {(byte) (state.staged ? '1' : '0')};
+            broadcastUpdate(BleServerService.STAGE_UPDATE, PEER_LANE + Arrays.toString(flag));
+        }
+
+        // The starter has started the next race
+        if (!isStarter() && state.race > race && clockSync.isSynced()) {
+            startRace(state.race, clockSync.toLocalTime(state.start));
+        }
+        if (raceRunning && state.race == race) {
+            if (state.release != 0 && !peerReleaseJudged) {
+                peerReleaseJudged = true;
+                judgeRelease(PEER_LANE, clockSync.toLocalTime(state.release), state.rollout);
+            }
+            if (state.hasRt() && (previous == null || !previous.hasRt())) {
+                broadcastUpdate(BleServerService.RT_UPDATE, UuidUtils.RACER_2_RT, state.rt);
+            }
+            checkForRaceFinished();
+        }
+        updateStartTimer();
+    }
+
+    private void checkForRaceFinished() {
+        if (raceRunning && local.hasRt() && peer != null && peer.race == race && peer.hasRt()) {
+            publishResults();
+        }
+    }
+
+    private final Runnable resultsDeadline = new Runnable() {
+        @Override
+        public void run() {
+            resultsTimer = null;
+            if (raceRunning) {
+                Log.i(TAG, "Results deadline passed");
+                publishResults();
+            }
+        }
+    };
+
+    // This method shows the results of both lanes, and re-arms staging for the next race
+    private void publishResults() {
+        if (resultsTimer != null) {
+            resultsTimer.cancel();
+            resultsTimer = null;
+        }
+        raceRunning = false;
+        foulJudge.stop();
+
+        RaceResults results = new RaceResults();
+        if (local.hasRt()) {
+            results.setResult(LOCAL_LANE, local.rt);
+        } else {
+            results.setNoResult(LOCAL_LANE);
+        }
+        if (peer != null && peer.race == race && peer.hasRt()) {
+            results.setResult(PEER_LANE, peer.rt);
+        } else {
+            results.setNoResult(PEER_LANE);
+        }
+        broadcastUpdate(BleServerService.RACE_FINISHED, results.encode());
+        updateStartTimer();
+    }
+
+    // Once subscribed to the peer, sync the clock before reading its state
+    private void readNextClockSample() {
+        if (clockReadsLeft > 0) {
+            clockReadsLeft--;
+            clockReadSentAt = SystemClock.uptimeMillis();
+            peerGatt.readCharacteristic(peerClock);
+        } else {
+            readPeerState();
+        }
+    }
+
+    // This method reads the peer's whole state, or reads it again once the read in flight is
+    // answered, since that answer may be older than the change that asked for it
+    private void readPeerState() {
+        if (readingState) {
+            readStateAgain = true;
+            return;
+        }
+        readingState = peerGatt.readCharacteristic(peerStateRemote);
+    }
+
+    private void handleClientConnectionStateChange(BluetoothGatt gatt, int newState) {
+        if (gatt != peerGatt) {
+            return;
+        }
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            gatt.discoverServices();
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            Log.w(TAG, "Peer lost");
+            gatt.close();
+            peerGatt = null;
+            peer = null;
+            readingState = false;
+            readStateAgain = false;
+            subscribed = false;
+            clockSync.reset();
+            updateStartTimer();
+            // Look for the peer again, it may come back
+            scan(true);
+        }
+    }
+
+    private void handleServicesDiscovered(BluetoothGatt gatt) {
+        if (gatt != peerGatt) {
+            return;
+        }
+        BluetoothGattService service = gatt.getService(UuidUtils.PEER_SERVICE);
+        if (service == null) {
+            Log.e(TAG, "Peer has no peer service");
+            return;
+        }
+        peerStateRemote = service.getCharacteristic(UuidUtils.PEER_STATE);
+        peerClock = service.getCharacteristic(UuidUtils.CLOCK);
+        // Subscribe once the MTU is settled, whatever it turns out to be
+        if (!gatt.requestMtu(STATE_MTU)) {
+            Log.w(TAG, "requestMtu failed");
+            subscribe(gatt);
+        }
+    }
+
+    // The MTU can change again later, but the peer is only subscribed to once
+    private void subscribe(BluetoothGatt gatt) {
+        if (gatt != peerGatt || peerStateRemote == null || subscribed) {
+            return;
+        }
+        subscribed = true;
+        gatt.setCharacteristicNotification(peerStateRemote, true);
+        BluetoothGattDescriptor config = peerStateRemote.getDescriptor(UuidUtils.CCCD);
+        config.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        gatt.writeDescriptor(config);
+    }
+
+    private void handleClientRead(BluetoothGatt gatt, UUID uuid, byte[] value, long receivedAt) {
+        if (gatt != peerGatt || value == null) {
+            return;
+        }
+        if (UuidUtils.CLOCK.equals(uuid)) {
+            try {
+                clockSync.addSample(clockReadSentAt, Long.parseLong(new String(value)), receivedAt);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Malformed clock value from peer");
+            }
+            readNextClockSample();
+        } else {
+            readingState = false;
+            handlePeerValue(value);
+            if (readStateAgain) {
+                readStateAgain = false;
+                readPeerState();
+            }
+        }
+    }
+
+    // A notification cut off at the MTU does not decode, so the whole state is read instead
+    private void handlePeerNotification(byte[] value) {
+        PeerState state = PeerState.decode(new String(value));
+        if (state != null) {
+            handlePeerState(state);
+        } else {
+            readPeerState();
+        }
+    }
+
+    private void handlePeerValue(byte[] value) {
+        PeerState state = PeerState.decode(new String(value));
+        if (state != null) {
+            handlePeerState(state);
+        } else {
+            Log.w(TAG, "Malformed peer state");
+        }
+    }
+
+    // Callbacks for the connection to the peer's server. They arrive on binder threads, so each
+    // one posts to the event loop
+    private final BluetoothGattCallback clientCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(final BluetoothGatt gatt, int status, final int newState) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    handleClientConnectionStateChange(gatt, newState);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    handleServicesDiscovered(gatt);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final BluetoothGatt gatt, int mtu, int status) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    subscribe(gatt);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(final BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (gatt == peerGatt) {
+                        clockReadsLeft = CLOCK_SAMPLES;
+                        readNextClockSample();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(final BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic, int status) {
+            final long receivedAt = SystemClock.uptimeMillis();
+            final UUID uuid = characteristic.getUuid();
+            final byte[] value = characteristic.getValue();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    handleClientRead(gatt, uuid, value, receivedAt);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(final BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            // The characteristic is reused for the next notification, so copy its value now
+            final byte[] value = characteristic.getValue();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    // The state is only followed once the clock is synced and it has been read
+                    if (gatt == peerGatt && value != null && clockReadsLeft == 0 && clockSync.isSynced()) {
+                        handlePeerNotification(value);
+                    }
+                }
+            });
+        }
+    };
+
+    // Callbacks for the local server, which the peer reads and subscribes to
+    private final BluetoothGattServerCallback serverCallback = new BluetoothGattServerCallback() {
+        @Override
+        public void onConnectionStateChange(final BluetoothDevice device, int status, final int newState) {
+            if (newState != BluetoothProfile.STATE_DISCONNECTED) {
+                return;
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    subscribers.remove(device);
+                    notifying = false;
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(final BluetoothDevice device, final int requestId,
+                                                final int offset,
+                                                final BluetoothGattCharacteristic characteristic) {
+            // The clock is answered straight from the binder thread, so the time is as fresh as possible
+            if (characteristic == clock) {
+                sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0,
+                        Long.toString(SystemClock.uptimeMillis()).getBytes());
+                return;
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] value = local.encode().getBytes();
+                    if (offset > value.length) {
+                        sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+                        return;
+                    }
+                    sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset,
+                            Arrays.copyOfRange(value, offset, value.length));
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(final BluetoothDevice device, final int requestId,
+                                             BluetoothGattDescriptor descriptor, boolean preparedWrite,
+                                             boolean responseNeeded, int offset, byte[] value) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!subscribers.contains(device)) {
+                        subscribers.add(device);
+                    }
+                    sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+                }
+            });
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    notifying = false;
+                    if (stateChanged) {
+                        publish();
+                    }
+                }
+            });
+        }
+    };
+
+    private void sendResponse(BluetoothDevice device, int requestId, int status, int offset,
+                              byte[] value) {
+        BluetoothGattServer server = bluetoothGattServer;
+        if (server != null) {
+            server.sendResponse(device, requestId, status, offset, value);
+        }
+    }
+
+    // Send an update containing action and custom payload
+    private void broadcastUpdate(final String action, String payload) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(BleServerService.EXTRA_DATA, payload);
+        dispatcher.post(intent);
+    }
+
+    // Send an update containing action, the characteristic it is for, and custom payload
+    private void broadcastUpdate(final String action, UUID uuid, String payload) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(BleServerService.EXTRA_DATA, payload);
+        intent.putExtra(BleServerService.CHARACTERISTIC_UUID, uuid.toString());
+        dispatcher.post(intent);
+    }
+
+    // Register a receiver for updates from this service, which is always called on the UI thread
+    public void registerUpdateReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        dispatcher.register(receiver, filter);
+    }
+
+    public void unregisterUpdateReceiver(BroadcastReceiver receiver) {
+        dispatcher.unregister(receiver);
+    }
+}
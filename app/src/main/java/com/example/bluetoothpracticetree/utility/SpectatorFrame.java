@@ -0,0 +1,170 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This class is the live race state the host broadcasts for spectators. It is small enough to
+    ride in the manufacturer data of a single advertisement, so any number of spectators can
+    follow a race by scanning, without taking up any of the host's connections.
+
+    The frame is sent under the company ID reserved for testing, and starts with a magic number
+    so spectators can tell it apart from other devices using that ID. Reaction times are in
+    milliseconds, and times too long to fit are clamped.
+
+    Frames are encoded as 14 bytes: the magic "PT", the race number, the race state in the high
+    nibble and the staged lanes in the low one, a big-endian 16 bit reaction time for each lane,
+    the winning lane, and the lanes that fouled. Lane 1 is the lowest bit of each mask.
+ */
+
+public class SpectatorFrame {
+    public static final int COMPANY_ID = 0xFFFF;
+    public static final int LANES = 4;
+    public static final int STAGING = 0;
+    public static final int RUNNING = 1;
+    public static final int FINISHED = 2;
+
+    // Reaction times that are not a number
+    public static final short NO_RT = Short.MIN_VALUE;
+    public static final short NO_RESULT = Short.MIN_VALUE + 1;
+
+    private static final byte[] MAGIC = {'P', 'T'};
+    private static final int LENGTH = 14;
+    private static final int MANUFACTURER_DATA = 0xFF;
+
+    private int race;
+    private int state = STAGING;
+    private int stagedMask;
+    private final short[] rts = new short[LANES];
+    private int winner;
+    private int foulMask;
+
+    public SpectatorFrame() {
+        clearRts();
+    }
+
+    public int getRace() {
+        return race;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public boolean isStaged(int lane) {
+        return (stagedMask & (1 << (lane - 1))) != 0;
+    }
+
+    public short getRt(int lane) {
+        return rts[lane - 1];
+    }
+
+    // The lane with the quickest reaction time that did not foul, or 0 if there is none
+    public int getWinner() {
+        return winner;
+    }
+
+    public boolean isFoul(int lane) {
+        return (foulMask & (1 << (lane - 1))) != 0;
+    }
+
+    public void setStagedMask(int stagedMask) {
+        this.stagedMask = stagedMask;
+    }
+
+    // A new race has started, so the last one's results are cleared
+    public void startRace() {
+        race = (race + 1) & 0xFF;
+        state = RUNNING;
+        clearRts();
+        winner = 0;
+        foulMask = 0;
+    }
+
+    public void setResults(RaceResults results, int foulMask) {
+        state = FINISHED;
+        this.foulMask = foulMask;
+        winner = 0;
+        long best = Long.MAX_VALUE;
+        for (int lane = 1; lane <= LANES; lane++) {
+            if (results.isNoResult(lane)) {
+                rts[lane - 1] = NO_RESULT;
+            } else if (!results.hasResult(lane)) {
+                rts[lane - 1] = NO_RT;
+            } else {
+                long rt;
+                try {
+                    rt = Long.parseLong(results.getResult(lane));
+                } catch (NumberFormatException e) {
+                    rts[lane - 1] = NO_RESULT;
+                    continue;
+                }
+                rts[lane - 1] = (short) Math.max(NO_RESULT + 1, Math.min(Short.MAX_VALUE, rt));
+                if (!isFoul(lane) && rt >= 0 && rt < best) {
+                    best = rt;
+                    winner = lane;
+                }
+            }
+        }
+    }
+
+    private void clearRts() {
+        for (int i = 0; i < LANES; i++) {
+            rts[i] = NO_RT;
+        }
+    }
+
+    public byte[] encode() {
+        byte[] data = new byte[LENGTH];
+        data[0] = MAGIC[0];
+        data[1] = MAGIC[1];
+        data[2] = (byte) race;
+        data[3] = (byte) ((state << 4) | (stagedMask & 0x0F));
+        for (int i = 0; i < LANES; i++) {
+            data[4 + 2 * i] = (byte) (rts[i] >> 8);
+            data[5 + 2 * i] = (byte) rts[i];
+        }
+        data[12] = (byte) winner;
+        data[13] = (byte) foulMask;
+        return data;
+    }
+
+    // This method parses a frame, returning null if it is not one
+    public static SpectatorFrame decode(byte[] data) {
+        if (data == null || data.length < LENGTH || data[0] != MAGIC[0] || data[1] != MAGIC[1]) {
+            return null;
+        }
+        SpectatorFrame frame = new SpectatorFrame();
+        frame.race = data[2] & 0xFF;
+        frame.state = (data[3] >> 4) & 0x0F;
+        frame.stagedMask = data[3] & 0x0F;
+        for (int i = 0; i < LANES; i++) {
+            frame.rts[i] = (short) (((data[4 + 2 * i] & 0xFF) << 8) | (data[5 + 2 * i] & 0xFF));
+        }
+        frame.winner = data[12] & 0xFF;
+        frame.foulMask = data[13] & 0x0F;
+        return frame;
+    }
+
+    // This method finds a frame in a raw scan record, returning null if there is none
+    public static SpectatorFrame parse(byte[] scanRecord) {
+        int offset = 0;
+        while (scanRecord != null && offset + 1 < scanRecord.length) {
+            int length = scanRecord[offset] & 0xFF;
+            if (length == 0 || offset + length >= scanRecord.length) {
+                break;
+            }
+            int type = scanRecord[offset + 1] & 0xFF;
+            // The company ID comes first, least significant byte first
+            if (type == MANUFACTURER_DATA && length >= 3 + LENGTH
+                    && (scanRecord[offset + 2] & 0xFF) == (COMPANY_ID & 0xFF)
+                    && (scanRecord[offset + 3] & 0xFF) == (COMPANY_ID >> 8)) {
+                byte[] data = new byte[length - 3];
+                System.arraycopy(scanRecord, offset + 4, data, 0, data.length);
+                SpectatorFrame frame = decode(data);
+                if (frame != null) {
+                    return frame;
+                }
+            }
+            offset += length + 1;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This class is the start signal a host can also send as a short burst of advertisements. Every
+    staged client hears the burst at once, instead of waiting for its turn in the notification
+    fan-out, and whichever of the two paths arrives first starts the race.
+
+    A beacon names the session and group it is for, and carries the host time the trees drop, so
+    it is converted with the clock sync just like the notified start signal. Only the low 32 bits
+    of the time are sent, and the rest is taken from the client's estimate of the host's clock.
+
+    Beacons are encoded as 12 bytes: the magic "PS", the session, the group, the start number and
+    the start time, big-endian, under the same company ID as the spectator feed.
+ */
+
+public class StartBeacon {
+    public static final int COMPANY_ID = SpectatorFrame.COMPANY_ID;
+    public static final byte[] MAGIC = {'P', 'S'};
+    private static final int LENGTH = 12;
+
+    private final int session;
+    private final int group;
+    private final int start;
+    private final long startTime;
+
+    public StartBeacon(int session, int group, int start, long startTime) {
+        this.session = session;
+        this.group = group;
+        this.start = start & 0xFF;
+        this.startTime = startTime & 0xFFFFFFFFL;
+    }
+
+    public int getSession() {
+        return session;
+    }
+
+    public int getGroup() {
+        return group;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    // This method returns the host time the trees drop, as the one nearest to the given host time
+    public long getStartTime(long hostNow) {
+        long time = (hostNow & ~0xFFFFFFFFL) | startTime;
+        if (time - hostNow > 1L << 31) {
+            time -= 1L << 32;
+        } else if (hostNow - time > 1L << 31) {
+            time += 1L << 32;
+        }
+        return time;
+    }
+
+    // Session IDs are random hex numbers, which fit in the beacon as they are
+    public static int toSession(String sessionId) {
+        try {
+            return (int) Long.parseLong(sessionId, 16);
+        } catch (NumberFormatException e) {
+            return sessionId.hashCode();
+        }
+    }
+
+    public byte[] encode() {
+        byte[] data = new byte[LENGTH];
+        data[0] = MAGIC[0];
+        data[1] = MAGIC[1];
+        putInt(data, 2, session);
+        data[6] = (byte) group;
+        data[7] = (byte) start;
+        putInt(data, 8, (int) startTime);
+        return data;
+    }
+
+    // This method parses a beacon, returning null if it is not one
+    public static StartBeacon decode(byte[] data) {
+        if (data == null || data.length < LENGTH || data[0] != MAGIC[0] || data[1] != MAGIC[1]) {
+            return null;
+        }
+        return new StartBeacon(getInt(data, 2), data[6] & 0xFF, data[7] & 0xFF,
+                getInt(data, 8) & 0xFFFFFFFFL);
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
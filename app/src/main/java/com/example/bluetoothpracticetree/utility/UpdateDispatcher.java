@@ -0,0 +1,98 @@
+package com.example.bluetoothpracticetree.utility;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    This class hands updates from a background thread to the UI thread. Updates are Intents, so
+    activities can keep handling them with their BroadcastReceivers, but they are never sent
+    through the system. Posting an update is lock-free: it is added to a concurrent queue, and
+    the main thread is woken up at most once to drain everything that has piled up.
+ */
+
+public class UpdateDispatcher {
+
+    private final Context context;
+    private final Handler mainHandler;
+    private final ConcurrentLinkedQueue<Intent> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+
+    public UpdateDispatcher(Context context) {
+        this.context = context;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    // Receivers are always called on the main thread, with the context of the owning service
+    public void register(BroadcastReceiver receiver, IntentFilter filter) {
+        registrations.add(new Registration(receiver, filter));
+    }
+
+    public void unregister(BroadcastReceiver receiver) {
+        for (Registration registration : registrations) {
+            if (registration.receiver == receiver) {
+                registrations.remove(registration);
+            }
+        }
+    }
+
+    // This method can be called from any thread
+    public void post(Intent intent) {
+        FlightRecorder.get().record(FlightRecorder.BROADCAST_POST, 0, 0, actionId(intent));
+        pending.offer(intent);
+        if (drainScheduled.compareAndSet(false, true)) {
+            mainHandler.post(drain);
+        }
+    }
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            // Clear the flag first, so an update posted while draining schedules another pass
+            drainScheduled.set(false);
+
+            Intent intent;
+            while ((intent = pending.poll()) != null) {
+                String action = intent.getAction();
+                FlightRecorder.get().record(FlightRecorder.BROADCAST_DELIVER, 0, 0, actionId(intent));
+                // The name is only worked out while tracing, so delivery never allocates otherwise
+                boolean traced = RaceTrace.isEnabled() && RaceTrace.begin(traceName(action), 0);
+                for (Registration registration : registrations) {
+                    if (registration.filter.matchAction(action)) {
+                        registration.receiver.onReceive(context, intent);
+                    }
+                }
+                RaceTrace.end(traced);
+            }
+        }
+    };
+
+    // Actions are recorded by the hash of their name, which a String keeps once it is worked out
+    private static int actionId(Intent intent) {
+        String action = intent.getAction();
+        return action != null ? action.hashCode() : 0;
+    }
+
+    // Updates are traced by the last part of their action, such as "receive START_RACE"
+    private static String traceName(String action) {
+        return "receive " + (action != null ? action.substring(action.lastIndexOf('.') + 1) : "");
+    }
+
+    private static class Registration {
+        final BroadcastReceiver receiver;
+        final IntentFilter filter;
+
+        Registration(BroadcastReceiver receiver, IntentFilter filter) {
+            this.receiver = receiver;
+            this.filter = filter;
+        }
+    }
+}
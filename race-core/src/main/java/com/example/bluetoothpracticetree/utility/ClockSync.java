@@ -0,0 +1,56 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This class estimates the offset between the local clock and the host's clock. Each sample is
+    a read of the host's clock, bracketed by the local time the read was sent and the local time
+    the response arrived. The host read its clock somewhere in between, so the sample with the
+    shortest round trip gives the tightest estimate, and only that one is kept.
+ */
+
+public class ClockSync {
+
+    private long offset;
+    private long roundTrip = Long.MAX_VALUE;
+    private int samples;
+
+    // Add a sample of the host's clock, read between localSent and localReceived
+    public void addSample(long localSent, long hostTime, long localReceived) {
+        long sampleRoundTrip = localReceived - localSent;
+        if (sampleRoundTrip < 0) {
+            return;
+        }
+        samples++;
+        if (sampleRoundTrip < roundTrip) {
+            roundTrip = sampleRoundTrip;
+            offset = hostTime - (localSent + sampleRoundTrip / 2);
+        }
+    }
+
+    public void reset() {
+        offset = 0;
+        roundTrip = Long.MAX_VALUE;
+        samples = 0;
+    }
+
+    public boolean isSynced() {
+        return samples > 0;
+    }
+
+    // The host's clock minus the local clock
+    public long getOffset() {
+        return offset;
+    }
+
+    // The round trip of the best sample, which bounds the error of the offset to half of it
+    public long getRoundTrip() {
+        return roundTrip;
+    }
+
+    public long toHostTime(long localTime) {
+        return localTime + offset;
+    }
+
+    public long toLocalTime(long hostTime) {
+        return hostTime - offset;
+    }
+}
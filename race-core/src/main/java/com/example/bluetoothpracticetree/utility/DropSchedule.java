@@ -0,0 +1,37 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This class works out how long after the start each lane's tree drops. The slowest dial-in
+    drops first, and every other lane waits for the difference between the two dial-ins. The
+    delays are worked out whenever a dial-in changes, so dropping the trees at the start only
+    has to look them up.
+ */
+
+public class DropSchedule {
+
+    public static final int LANES = 4;
+
+    private final long[] dials = new long[LANES];
+    private final long[] delays = new long[LANES];
+
+    public void setDial(int lane, long dial) {
+        dials[lane - 1] = dial;
+
+        long highest = dials[0];
+        for (int i = 1; i < LANES; i++) {
+            highest = Math.max(highest, dials[i]);
+        }
+        for (int i = 0; i < LANES; i++) {
+            delays[i] = highest - dials[i];
+        }
+    }
+
+    public long getDial(int lane) {
+        return dials[lane - 1];
+    }
+
+    // How long after the start this lane's tree drops
+    public long getDelay(int lane) {
+        return delays[lane - 1];
+    }
+}
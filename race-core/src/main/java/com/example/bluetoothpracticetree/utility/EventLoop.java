@@ -0,0 +1,220 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    This class runs a single thread that owns some state, and processes messages posted to it
+    from any number of other threads, one at a time and in order. Messages are Runnables that
+    only capture final copies of what they need, so they are effectively immutable.
+
+    The mailbox is a bounded, lock-free ring buffer: posting never blocks, and fails if the
+    mailbox is full. Timers can only be scheduled from the loop thread itself, so they are
+    owned by the loop like the rest of its state, and fire at their exact deadline rather than
+    at the granularity of some other thread's message queue.
+ */
+
+public class EventLoop {
+
+    public interface ErrorListener {
+        void onError(Throwable error);
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<Runnable> buffer;
+    private final AtomicLongArray sequence;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    // Only touched by the loop thread
+    private long dequeuePosition;
+
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean sleeping = false;
+    private volatile ErrorListener errorListener;
+
+    // The capacity of the mailbox is rounded up to a power of two
+    public EventLoop(String name, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        buffer = new AtomicReferenceArray<>(size);
+        sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void setErrorListener(ErrorListener listener) {
+        errorListener = listener;
+    }
+
+    public boolean isLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    // The loop's clock, which timers are scheduled against
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    // This method can be called from any thread. It returns false if the mailbox is full
+    public boolean post(Runnable message) {
+        long position = enqueuePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequence.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    buffer.lazySet(index, message);
+                    // A full volatile store, so it cannot be reordered with the read of
+                    // sleeping below. The loop announces it is sleeping before it checks the
+                    // mailbox, so either it sees this message or this thread sees it sleeping
+                    sequence.set(index, position + 1);
+                    break;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    // This method schedules a task to run on the loop after a delay. It can only be called
+    // from the loop thread, and the returned timer can only be cancelled from it
+    public Timer schedule(Runnable task, long delay, TimeUnit unit) {
+        return scheduleAt(task, nanoTime() + unit.toNanos(delay));
+    }
+
+    public Timer scheduleAt(Runnable task, long deadlineNanos) {
+        checkLoopThread();
+        Timer timer = new Timer(task, deadlineNanos);
+        timers.add(timer);
+        return timer;
+    }
+
+    // Stop the loop once the messages already in the mailbox have been processed
+    public void quit() {
+        boolean posted = post(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+            }
+        });
+        if (!posted) {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void checkLoopThread() {
+        if (!isLoopThread()) {
+            throw new IllegalStateException("Timers can only be used from the loop thread");
+        }
+    }
+
+    private Runnable poll() {
+        int index = (int) dequeuePosition & mask;
+        if (sequence.get(index) != dequeuePosition + 1) {
+            return null;
+        }
+        Runnable message = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequence.lazySet(index, dequeuePosition + mask + 1);
+        dequeuePosition++;
+        return message;
+    }
+
+    private boolean isEmpty() {
+        return sequence.get((int) dequeuePosition & mask) != dequeuePosition + 1;
+    }
+
+    private void loop() {
+        while (running) {
+            Runnable message;
+            while (running && (message = poll()) != null) {
+                execute(message);
+            }
+
+            long now = nanoTime();
+            Timer next;
+            while (running && (next = timers.peek()) != null && next.deadline <= now) {
+                timers.poll();
+                if (!next.cancelled) {
+                    execute(next.task);
+                }
+                now = nanoTime();
+            }
+
+            // Sleep until the next message or timer, checking the mailbox once more after
+            // announcing it, so a message posted in between is never missed
+            sleeping = true;
+            if (running && isEmpty()) {
+                next = timers.peek();
+                if (next == null) {
+                    LockSupport.park(this);
+                } else if (next.deadline > now) {
+                    LockSupport.parkNanos(this, next.deadline - now);
+                }
+            }
+            sleeping = false;
+        }
+        timers.clear();
+    }
+
+    private void execute(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            ErrorListener listener = errorListener;
+            if (listener != null) {
+                listener.onError(e);
+            }
+        }
+    }
+
+    public static final class Timer implements Comparable<Timer> {
+        private final Runnable task;
+        private final long deadline;
+        private boolean cancelled;
+
+        private Timer(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    This class keeps the most recent race events in a fixed-size ring of binary records, so a race
+    a racer says went wrong can be looked at afterwards. It is always on: recording an event only
+    claims a slot and writes a few longs into it, without allocating or locking, from any thread.
+
+    Each record holds the System.nanoTime of the event, its type, the lane it is about (0 if it is
+    not about one), a sequence number, such as a command number or GATT request ID, and a value
+    whose meaning depends on the type, usually the short ID of a characteristic. When a race is
+    flagged, the ring is dumped to a memory-mapped file, oldest record first.
+
+    A record being written while the ring is dumped is skipped. Each slot has a stamp, which is
+    the record's position in the ring while it is complete, and negative while it is being
+    written, so the dump only keeps records whose stamp did not change while it was read.
+
+    A dump starts with a 32 byte header: the magic "PTFR", the version, the record count, the
+    capacity, and the nanoTime and wall-clock time of the dump, so the records can be lined up
+    with the time of day. Each record follows as 24 bytes: the time, the type, lane and sequence
+    packed into one long, and the value.
+ */
+
+public class FlightRecorder {
+    public static final int MAGIC = 0x50544652;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 24;
+    private static final int DEFAULT_CAPACITY = 8192;
+    // The stamp, time, packed type, lane and sequence, and value of each slot
+    private static final int SLOT_LONGS = 4;
+
+    // The events recorded, which are kept in dumps, so they are never renumbered
+    public static final int GATT_CONNECTION = 1;
+    public static final int GATT_READ = 2;
+    public static final int GATT_WRITE = 3;
+    public static final int GATT_CHANGED = 4;
+    public static final int GATT_DESCRIPTOR_WRITE = 5;
+    public static final int GATT_MTU = 6;
+    public static final int GATT_READ_REQUEST = 7;
+    public static final int GATT_WRITE_REQUEST = 8;
+    public static final int GATT_NOTIFY = 9;
+    public static final int GATT_NOTIFY_SENT = 10;
+    public static final int COMMAND_ENQUEUE = 11;
+    public static final int COMMAND_DEQUEUE = 12;
+    public static final int COMMAND_COMPLETE = 13;
+    public static final int BROADCAST_POST = 14;
+    public static final int BROADCAST_DELIVER = 15;
+    public static final int BULB = 16;
+    public static final int TOUCH = 17;
+    public static final int START_SIGNAL = 18;
+    public static final int TREE_DROP = 19;
+    public static final int FLAG = 20;
+    public static final int REQUEST_REFUSED = 21;
+
+    private static final String[] NAMES = {"?", "GATT_CONNECTION", "GATT_READ", "GATT_WRITE",
+            "GATT_CHANGED", "GATT_DESCRIPTOR_WRITE", "GATT_MTU", "GATT_READ_REQUEST",
+            "GATT_WRITE_REQUEST", "GATT_NOTIFY", "GATT_NOTIFY_SENT", "COMMAND_ENQUEUE",
+            "COMMAND_DEQUEUE", "COMMAND_COMPLETE", "BROADCAST_POST", "BROADCAST_DELIVER", "BULB",
+            "TOUCH", "START_SIGNAL", "TREE_DROP", "FLAG", "REQUEST_REFUSED"};
+
+    private static final FlightRecorder INSTANCE = new FlightRecorder(DEFAULT_CAPACITY);
+
+    private final int mask;
+    private final AtomicLongArray slots;
+    private final AtomicLong position = new AtomicLong();
+
+    // The capacity is rounded up to a power of two
+    public FlightRecorder(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        slots = new AtomicLongArray(size * SLOT_LONGS);
+        for (int i = 0; i < size; i++) {
+            slots.set(i * SLOT_LONGS, -1);
+        }
+    }
+
+    // The recorder every part of the app records to
+    public static FlightRecorder get() {
+        return INSTANCE;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // This method records an event. It can be called from any thread, and never allocates
+    public void record(int type, int lane, int sequence, long value) {
+        long index = position.getAndIncrement();
+        int base = (int) (index & mask) * SLOT_LONGS;
+        // Ordered stores are enough, since they are never reordered with each other, and a
+        // dump reads every field of a slot with a full barrier
+        slots.lazySet(base, -1);
+        slots.lazySet(base + 1, System.nanoTime());
+        slots.lazySet(base + 2, pack(type, lane, sequence));
+        slots.lazySet(base + 3, value);
+        slots.lazySet(base, index);
+    }
+
+    private static long pack(int type, int lane, int sequence) {
+        return ((long) (type & 0xFFFF) << 48) | ((long) (lane & 0xFF) << 40) | (sequence & 0xFFFFFFFFL);
+    }
+
+    // This method dumps every complete record in the ring to a memory-mapped file, and returns
+    // the number of records dumped
+    public int dump(File file) throws IOException {
+        int capacity = getCapacity();
+        long end = position.get();
+        long start = Math.max(0, end - capacity);
+
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = output.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (end - start) * RECORD_SIZE);
+            buffer.position(HEADER_SIZE);
+            int count = 0;
+            for (long index = start; index < end; index++) {
+                int base = (int) (index & mask) * SLOT_LONGS;
+                long stamp = slots.get(base);
+                long time = slots.get(base + 1);
+                long packed = slots.get(base + 2);
+                long value = slots.get(base + 3);
+                if (stamp != index || slots.get(base) != index) {
+                    continue;
+                }
+                buffer.putLong(time);
+                buffer.putLong(packed);
+                buffer.putLong(value);
+                count++;
+            }
+
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, count);
+            buffer.putInt(12, capacity);
+            buffer.putLong(16, System.nanoTime());
+            buffer.putLong(24, System.currentTimeMillis());
+            buffer.force();
+            channel.truncate(HEADER_SIZE + (long) count * RECORD_SIZE);
+            return count;
+        } finally {
+            output.close();
+        }
+    }
+
+    // This method turns a dump back into one line per record, with times in milliseconds
+    // relative to the first record. It returns null if the data is not a dump
+    public static List<String> describe(ByteBuffer dump) {
+        if (dump.remaining() < HEADER_SIZE || dump.getInt(0) != MAGIC) {
+            return null;
+        }
+        int count = Math.min(dump.getInt(8), (dump.remaining() - HEADER_SIZE) / RECORD_SIZE);
+        List<String> lines = new ArrayList<>();
+        long first = count > 0 ? dump.getLong(HEADER_SIZE) : 0;
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_SIZE + i * RECORD_SIZE;
+            long time = dump.getLong(offset);
+            long packed = dump.getLong(offset + 8);
+            long value = dump.getLong(offset + 16);
+            int type = (int) (packed >>> 48);
+            lines.add(String.format(Locale.US, "%12.3f %-22s lane %d seq %d value %d",
+                    (time - first) / 1e6, type < NAMES.length ? NAMES[type] : Integer.toString(type),
+                    (int) (packed >>> 40) & 0xFF, (int) packed, value));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This class decides fouls on the host. When a race starts, it works out when each lane's tree
+    turns green on the host's clock, from the start time and the dial-in handicaps. Each lane then
+    reports the host time its button was released, and a release before green (after rollout) is
+    a foul. Every foul is kept in a bitmask, with lane 1 in the lowest bit.
+
+    When more than one lane fouls, the first foul is the lane that left earliest relative to its
+    own green, and it is the lane that loses. Fouls are encoded as "mask|first", for example "5|3".
+ */
+
+public class FoulJudge {
+    public static final int LANES = 4;
+    // The time from the top yellow to green on every tree
+    public static final long TREE_TIME = 1500;
+
+    private final long[] greenTimes = new long[LANES];
+    private boolean running = false;
+    private int foulMask = 0;
+    private int firstFoul = 0;
+    private long firstFoulReaction;
+
+    // Start judging a race. The slowest dial-in drops at startTime, and each other tree drops
+    // later by the difference in dial-ins
+    public void start(long startTime, long[] dials) {
+        long highest = Long.MIN_VALUE;
+        for (long dial : dials) {
+            highest = Math.max(highest, dial);
+        }
+        for (int i = 0; i < LANES; i++) {
+            greenTimes[i] = startTime + (highest - dials[i]) + TREE_TIME;
+        }
+        running = true;
+        foulMask = 0;
+        firstFoul = 0;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    // The host time a lane's tree turns green
+    public long getGreenTime(int lane) {
+        return greenTimes[lane - 1];
+    }
+
+    // Judge a lane's release. This method returns true if the lane fouled, changing the fouls
+    public boolean onRelease(int lane, long releaseTime, long rollout) {
+        if (!running || lane < 1 || lane > LANES) {
+            return false;
+        }
+        int bit = 1 << (lane - 1);
+        long reaction = releaseTime - greenTimes[lane - 1] + rollout;
+        if (reaction >= 0 || (foulMask & bit) != 0) {
+            return false;
+        }
+
+        foulMask |= bit;
+        if (firstFoul == 0 || reaction < firstFoulReaction) {
+            firstFoul = lane;
+            firstFoulReaction = reaction;
+        }
+        return true;
+    }
+
+    // The reaction time of a release on a racer's own clock, where treeTime is when that racer's
+    // tree dropped. It is negative for a foul, the same as the host judges it
+    public static long reactionTime(long releaseTime, long treeTime, long rollout) {
+        return releaseTime - treeTime - TREE_TIME + rollout;
+    }
+
+    public int getFoulMask() {
+        return foulMask;
+    }
+
+    // The lane that fouled first, or 0 if no lane has fouled
+    public int getFirstFoul() {
+        return firstFoul;
+    }
+
+    public String encode() {
+        return foulMask + "|" + firstFoul;
+    }
+
+    // This method returns the foul mask of an encoded value, or 0 if it is malformed
+    public static int decodeMask(String data) {
+        return decodePart(data, 0);
+    }
+
+    // This method returns the first foul of an encoded value, or 0 if it is malformed
+    public static int decodeFirstFoul(String data) {
+        return decodePart(data, 1);
+    }
+
+    private static int decodePart(String data, int index) {
+        if (data == null) {
+            return 0;
+        }
+        String[] parts = data.split("\\|");
+        if (parts.length != 2) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(parts[index]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
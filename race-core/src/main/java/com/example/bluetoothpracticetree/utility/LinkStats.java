@@ -0,0 +1,116 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    This class holds the latest measurements of the quality of each lane's link, so the race
+    screens can show when a link is degrading. Every measurement is a single long, written with an
+    ordered store from whichever thread takes it and read by the screens at their own pace, so
+    recording one never locks, allocates or waits on a reader.
+
+    Each lane keeps its round trip time, connection interval, MTU, command queue depth, the delay
+    of the most recent and the slowest race-critical notification, and its RSSI. Times are kept
+    in microseconds, and a measurement that has not been taken is UNKNOWN. Slot 0 is a client's
+    own link to its host, and slots 1 to 4 are the lanes the host serves.
+
+    Clients tell the host what only they can measure by writing a ping, "<rtt>,<rssi>,<queue>",
+    which the host answers like any other write, so the time it takes to answer is the next
+    round trip. A measurement not taken yet is left empty, and the others are capped, so a ping
+    always fits in a single write at the default MTU.
+ */
+
+public class LinkStats {
+    public static final int HOST_LINK = 0;
+    public static final int LANES = FoulJudge.LANES;
+    public static final long UNKNOWN = Long.MIN_VALUE;
+
+    public static final int RTT = 0;
+    public static final int INTERVAL = 1;
+    public static final int MTU = 2;
+    public static final int QUEUE = 3;
+    public static final int SKEW = 4;
+    public static final int MAX_SKEW = 5;
+    public static final int RSSI = 6;
+    private static final int FIELDS = 7;
+    // What a single write carries at the default MTU
+    public static final int PING_LIMIT = 20;
+    private static final long MAX_PING_RTT = 99999999;
+    private static final long MAX_PING_QUEUE = 9999;
+
+    private final AtomicLongArray values = new AtomicLongArray((LANES + 1) * FIELDS);
+
+    public LinkStats() {
+        for (int lane = HOST_LINK; lane <= LANES; lane++) {
+            clear(lane);
+        }
+    }
+
+    // This method records a measurement. It can be called from any thread
+    public void set(int lane, int field, long value) {
+        values.lazySet(lane * FIELDS + field, value);
+    }
+
+    public long get(int lane, int field) {
+        return values.get(lane * FIELDS + field);
+    }
+
+    // This method forgets every measurement of a lane, once its device has gone
+    public void clear(int lane) {
+        for (int field = 0; field < FIELDS; field++) {
+            set(lane, field, UNKNOWN);
+        }
+    }
+
+    // This method encodes a ping, which is at most PING_LIMIT bytes long
+    public static String encodePing(long rtt, long rssi, long queue) {
+        return pingField(rtt, 0, MAX_PING_RTT) + "," + pingField(rssi, -127, 127) + ","
+                + pingField(queue, 0, MAX_PING_QUEUE);
+    }
+
+    private static String pingField(long value, long min, long max) {
+        return value == UNKNOWN ? "" : Long.toString(Math.max(min, Math.min(max, value)));
+    }
+
+    // This method records the measurements a lane's ping carries, returning false if it is
+    // malformed
+    public boolean applyPing(int lane, byte[] value) {
+        String[] parts = value != null ? new String(value).split(",", -1) : new String[0];
+        if (parts.length != 3) {
+            return false;
+        }
+        try {
+            long rtt = parsePingField(parts[0]);
+            long rssi = parsePingField(parts[1]);
+            long queue = parsePingField(parts[2]);
+            set(lane, RTT, rtt);
+            set(lane, RSSI, rssi);
+            set(lane, QUEUE, queue);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static long parsePingField(String field) {
+        return field.isEmpty() ? UNKNOWN : Long.parseLong(field);
+    }
+
+    // This method describes a lane's link on one line, such as
+    // "L1 rtt 23.4ms ci 7.5ms mtu 64 q 0 skew 3.1ms/9.8ms rssi -61"
+    public String describe(int lane) {
+        return String.format(Locale.US, "%s rtt %s ci %s mtu %s q %s skew %s/%s rssi %s",
+                lane == HOST_LINK ? "host" : "L" + lane,
+                millis(get(lane, RTT)), millis(get(lane, INTERVAL)), count(get(lane, MTU)),
+                count(get(lane, QUEUE)), millis(get(lane, SKEW)), millis(get(lane, MAX_SKEW)),
+                count(get(lane, RSSI)));
+    }
+
+    private static String millis(long micros) {
+        return micros == UNKNOWN ? "-" : String.format(Locale.US, "%.1fms", micros / 1000.0);
+    }
+
+    private static String count(long value) {
+        return value == UNKNOWN ? "-" : Long.toString(value);
+    }
+}
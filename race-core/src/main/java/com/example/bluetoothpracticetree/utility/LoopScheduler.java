@@ -0,0 +1,64 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+    This class is a RaceScheduler backed by an EventLoop, so race logic can run on a host's loop.
+    Its time is the loop's clock in milliseconds, unless a host overrides uptimeMillis with the
+    clock its clients sync to, and tasks are scheduled relative to that. Like the loop's own
+    timers, it can only be used from the loop thread.
+ */
+
+public class LoopScheduler implements RaceScheduler {
+    private final EventLoop eventLoop;
+    // The timers of each task still pending
+    private final IdentityHashMap<Runnable, List<EventLoop.Timer>> pending = new IdentityHashMap<>();
+
+    public LoopScheduler(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(eventLoop.nanoTime());
+    }
+
+    @Override
+    public void postAt(final Runnable task, long uptimeMillis) {
+        final List<EventLoop.Timer> timers = getTimers(task);
+        final EventLoop.Timer[] timer = new EventLoop.Timer[1];
+        timer[0] = eventLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timers.remove(timer[0]);
+                if (timers.isEmpty()) {
+                    pending.remove(task);
+                }
+                task.run();
+            }
+        }, Math.max(0, uptimeMillis - uptimeMillis()), TimeUnit.MILLISECONDS);
+        timers.add(timer[0]);
+    }
+
+    @Override
+    public void remove(Runnable task) {
+        List<EventLoop.Timer> timers = pending.remove(task);
+        if (timers != null) {
+            for (EventLoop.Timer timer : timers) {
+                timer.cancel();
+            }
+        }
+    }
+
+    private List<EventLoop.Timer> getTimers(Runnable task) {
+        List<EventLoop.Timer> timers = pending.get(task);
+        if (timers == null) {
+            timers = new ArrayList<>();
+            pending.put(task, timers);
+        }
+        return timers;
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This class is the race state each device publishes about its own lane in peer mode. Both
+    devices use the same schema, and each one only ever writes its own, so there is nothing to
+    merge. Every time is on the publishing device's own uptime clock, and the reader converts it
+    with its clock sync.
+
+    The token is picked at random when the service starts. The device with the lower token arms
+    the start, so the two devices never start a race each. The race number goes up with every
+    start, and the release and reaction time are for that race.
+
+    State is encoded as "token|staged|stagedAt|dial|race|start|release|rollout|rt|", for example
+    "1234|1|50210|10500|3|52020|53601|0|81|". A whole state is longer than a notification can
+    carry at the default MTU, so the value ends with a separator, and a value cut off anywhere is
+    rejected instead of being read with a shortened last field.
+ */
+
+public class PeerState {
+    private static final int FIELDS = 9;
+
+    int token;
+    boolean staged;
+    long stagedAt;
+    long dial;
+    int race;
+    long start;
+    // The release time is 0 until the lane has released in this race
+    long release;
+    long rollout;
+    String rt = "";
+
+    public PeerState(int token) {
+        this.token = token;
+    }
+
+    public boolean hasRt() {
+        return !rt.isEmpty();
+    }
+
+    public String encode() {
+        return token + "|" + (staged ? 1 : 0) + "|" + stagedAt + "|" + dial + "|" + race + "|"
+                + start + "|" + release + "|" + rollout + "|" + rt + "|";
+    }
+
+    // This method parses a peer's state, returning null if it is malformed or was cut off
+    public static PeerState decode(String data) {
+        if (data == null) {
+            return null;
+        }
+        String[] parts = data.split("\\|", -1);
+        if (parts.length != FIELDS + 1 || !parts[FIELDS].isEmpty()) {
+            return null;
+        }
+        try {
+            PeerState state = new PeerState(Integer.parseInt(parts[0]));
+            state.staged = "1".equals(parts[1]);
+            state.stagedAt = Long.parseLong(parts[2]);
+            state.dial = Long.parseLong(parts[3]);
+            state.race = Integer.parseInt(parts[4]);
+            state.start = Long.parseLong(parts[5]);
+            state.release = Long.parseLong(parts[6]);
+            state.rollout = Long.parseLong(parts[7]);
+            state.rt = parts[8];
+            return state;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
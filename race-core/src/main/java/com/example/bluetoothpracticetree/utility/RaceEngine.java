@@ -0,0 +1,733 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This class runs one race group the way every host judges it, so a phone hosting with
+    BleServerService, a RaceServer at the track and a RaceReplay all run the same race. It keeps
+    the group's value of every race characteristic, by the short ID SocketFrame uses, and the
+    state of each lane in bitmasks next to them. The race characteristics' short IDs are close
+    together, so values, and the lane and kind of each characteristic, are kept in arrays indexed
+    by them, and a write is dispatched without hashing or searching.
+
+    The start is armed for the moment every lane that has to race has been staged for the full
+    staging window, or for the end of the cooldown after the last race in loop mode. The start
+    signal carries the host time the trees drop, fouls are judged from each lane's release, and
+    the results are published once every lane still connected has reported, or at a deadline
+    after the last green. A group can run a tournament, which decides the lanes racing in each
+    heat.
+
+    A device whose clock is not synced to the host's drops its trees as soon as the start signal
+    reaches it, and sends its release without a time. Its lane is marked unsynced for the race,
+    and its release is judged by when it reaches the host instead, as long after the start signal
+    as the trees drop after it, so it is judged against the tree it actually saw. The link delay
+    both ways can hide a foul by that much.
+
+    The engine does not send anything itself. It hands every notification to its Transport,
+    which sends it to the group's members and does anything else its host does alongside, and
+    asks the Transport before arming a start, so a host can hold it off for lanes the engine does
+    not know about. All timing runs on a RaceScheduler, in milliseconds of the host time, and
+    every method has to be called on the scheduler's thread.
+ */
+
+public class RaceEngine {
+    public static final int CLIENT_LANES = 3;
+    // Each lane is one bit in the lane masks, with the host in lane 4
+    public static final int HOST_LANE = 4;
+    public static final int ALL_LANES = (1 << HOST_LANE) - 1;
+    // How far ahead of the start signal the trees drop, so every client has received it in time
+    public static final long START_LEAD = 300;
+    // How long after the last green a lane has to report its reaction time
+    public static final long RESULTS_DEADLINE = 5000;
+    // Returned by a Transport to hold off the start
+    public static final long NOT_READY = Long.MIN_VALUE;
+
+    public static final int RACE_READY = SocketFrame.toShort(UuidUtils.RACE_READY);
+    public static final int RACE_FINISHED = SocketFrame.toShort(UuidUtils.RACE_FINISHED);
+    public static final int RACE_SNAPSHOT = SocketFrame.toShort(UuidUtils.RACE_SNAPSHOT);
+    public static final int RELEASE = SocketFrame.toShort(UuidUtils.RELEASE);
+    public static final int FOUL = SocketFrame.toShort(UuidUtils.FOUL);
+    public static final int ROUND = SocketFrame.toShort(UuidUtils.ROUND);
+    public static final int HEAT = SocketFrame.toShort(UuidUtils.HEAT);
+
+    // Indexed by lane - 1
+    private static final int[] DIALS = {
+            SocketFrame.toShort(UuidUtils.RACER_1_DIAL), SocketFrame.toShort(UuidUtils.RACER_2_DIAL),
+            SocketFrame.toShort(UuidUtils.RACER_3_DIAL), SocketFrame.toShort(UuidUtils.RACER_HOST_DIAL)};
+    private static final int[] STAGES = {
+            SocketFrame.toShort(UuidUtils.RACER_1_STAGE), SocketFrame.toShort(UuidUtils.RACER_2_STAGE),
+            SocketFrame.toShort(UuidUtils.RACER_3_STAGE), SocketFrame.toShort(UuidUtils.RACER_HOST_STAGE)};
+    private static final int[] RTS = {
+            SocketFrame.toShort(UuidUtils.RACER_1_RT), SocketFrame.toShort(UuidUtils.RACER_2_RT),
+            SocketFrame.toShort(UuidUtils.RACER_3_RT), SocketFrame.toShort(UuidUtils.RACER_HOST_RT)};
+
+    // The characteristics every group keeps its own value of
+    private static final int[] RACE_CHARACTERISTICS = {
+            DIALS[0], DIALS[1], DIALS[2], DIALS[3],
+            STAGES[0], STAGES[1], STAGES[2], STAGES[3],
+            RTS[0], RTS[1], RTS[2], RTS[3],
+            RACE_READY, RACE_FINISHED, RACE_SNAPSHOT, RELEASE, FOUL, ROUND, HEAT};
+
+    // The race characteristics are indexed by their short ID less the lowest of them
+    private static final int FIRST;
+    private static final int COUNT;
+    // What a write to each characteristic is, and the lane it belongs to, or 0
+    private static final int OTHER = 0;
+    private static final int DIAL = 1;
+    private static final int STAGE = 2;
+    private static final int RT = 3;
+    private static final int[] KINDS;
+    private static final int[] LANES;
+
+    static {
+        int first = RACE_CHARACTERISTICS[0];
+        int last = first;
+        for (int characteristic : RACE_CHARACTERISTICS) {
+            first = Math.min(first, characteristic);
+            last = Math.max(last, characteristic);
+        }
+        FIRST = first;
+        COUNT = last - first + 1;
+        KINDS = new int[COUNT];
+        LANES = new int[COUNT];
+        for (int lane = 1; lane <= HOST_LANE; lane++) {
+            KINDS[DIALS[lane - 1] - FIRST] = DIAL;
+            KINDS[STAGES[lane - 1] - FIRST] = STAGE;
+            KINDS[RTS[lane - 1] - FIRST] = RT;
+            LANES[DIALS[lane - 1] - FIRST] = lane;
+            LANES[STAGES[lane - 1] - FIRST] = lane;
+            LANES[RTS[lane - 1] - FIRST] = lane;
+        }
+    }
+
+    private static final byte[] UNSTAGED = {'0'};
+    private static final byte[] EMPTY = {};
+    private static final byte[] READY_STOP = "stop".getBytes();
+    private static final byte[] RUNNING = RaceResults.RUNNING.getBytes();
+
+    // What the engine needs from the host running it
+    public interface Transport {
+        // Tells the group's members that a characteristic has changed to the given value
+        void notify(int characteristic, byte[] value);
+
+        // Every lane that has to stage has been staged since the given time, or not. This
+        // returns the time the staging window counts from, which is later if the host is
+        // waiting on anything else, or NOT_READY to hold off the start
+        long checkReady(boolean staged, long stagedSince);
+
+        // Whether everything outside the group that started the race has reported
+        boolean isReported();
+    }
+
+    private final int id;
+    private final boolean hasHost;
+    private final RaceScheduler scheduler;
+    private final Transport transport;
+    // Indexed like KINDS, and null for the short IDs in between that are not race
+    // characteristics
+    private final byte[][] values = new byte[COUNT][];
+
+    // Settings, in milliseconds
+    private long stageWindow = 1500;
+    private boolean loopMode = false;
+    private long cooldown = 0;
+    private long resultsGrace = 0;
+
+    private boolean raceDone = true;
+
+    // Client lanes given to members or reserved for them, client lanes that are connected, lanes
+    // that are currently staged, and lanes that have sent a reaction time
+    private int assignedMask = 0;
+    private int laneMask = 0;
+    private int stagedMask = 0;
+    private int rtMask = 0;
+
+    // Lanes that started the current race, those of them that are still connected, and those
+    // judged without a synced clock
+    private int racingMask = 0;
+    private int liveMask = 0;
+    private int unsyncedMask = 0;
+    private boolean resultsPublished = false;
+    private boolean resultsPending = false;
+
+    // When each lane was last staged
+    private final long[] stagedSince = new long[HOST_LANE + 1];
+    private boolean startArmed = false;
+    // The trace of the wait from every lane being staged to the start signal
+    private RaceTrace.Slice stageWindowSlice;
+
+    private boolean coolingDown = false;
+    private long cooldownEnd;
+    private int round = 0;
+
+    // The tournament being run, or null for open practice, and the lanes racing in its heat
+    private Tournament tournament;
+    private int heatMask = ALL_LANES;
+
+    private final FoulJudge foulJudge = new FoulJudge();
+    private long startTime;
+    // When the start signal was sent
+    private long signalTime;
+    private RaceResults results;
+
+    // A group with the host holds lane 4 for it, which always has to stage
+    public RaceEngine(int id, boolean hasHost, RaceScheduler scheduler, Transport transport) {
+        this.id = id;
+        this.hasHost = hasHost;
+        this.scheduler = scheduler;
+        this.transport = transport;
+        for (int characteristic : RACE_CHARACTERISTICS) {
+            values[characteristic - FIRST] = EMPTY;
+        }
+        setValue(FOUL, foulJudge.encode().getBytes());
+        setValue(ROUND, Integer.toString(round).getBytes());
+    }
+
+    public static int laneBit(int lane) {
+        return 1 << (lane - 1);
+    }
+
+    public static int getDial(int lane) {
+        return DIALS[lane - 1];
+    }
+
+    public static int getStage(int lane) {
+        return STAGES[lane - 1];
+    }
+
+    public static int getRt(int lane) {
+        return RTS[lane - 1];
+    }
+
+    // These methods return the lane a characteristic belongs to, or 0 if it is not one of them
+    public static int laneOfDial(int characteristic) {
+        return laneOf(DIAL, characteristic);
+    }
+
+    public static int laneOfStage(int characteristic) {
+        return laneOf(STAGE, characteristic);
+    }
+
+    public static int laneOfRt(int characteristic) {
+        return laneOf(RT, characteristic);
+    }
+
+    private static int laneOf(int kind, int characteristic) {
+        int index = characteristic - FIRST;
+        return index >= 0 && index < COUNT && KINDS[index] == kind ? LANES[index] : 0;
+    }
+
+    // The index of a race characteristic's value, or -1 if the group does not keep one
+    private int indexOf(int characteristic) {
+        int index = characteristic - FIRST;
+        return index >= 0 && index < COUNT && values[index] != null ? index : -1;
+    }
+
+    public static boolean isStaged(byte[] value) {
+        return value != null && value.length == 1 && value[0] == '1';
+    }
+
+    public void setStageWindow(long stageWindowMillis) {
+        stageWindow = stageWindowMillis;
+    }
+
+    public void setLoopMode(boolean loopMode, long cooldownMillis) {
+        this.loopMode = loopMode;
+        cooldown = cooldownMillis;
+    }
+
+    // How much longer than the deadline to wait for results from outside the group
+    public void setResultsGrace(long graceMillis) {
+        resultsGrace = graceMillis;
+    }
+
+    public void setTournament(Tournament tournament) {
+        this.tournament = tournament;
+    }
+
+    public Tournament getTournament() {
+        return tournament;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    // A restored session carries on from the round it was in
+    public void setRound(int round) {
+        this.round = round;
+        setValue(ROUND, Integer.toString(round).getBytes());
+    }
+
+    public int getStagedMask() {
+        return stagedMask;
+    }
+
+    // The host time the trees drop in the race last started
+    public long getStartTime() {
+        return startTime;
+    }
+
+    // The results last published, and the fouls they were judged with
+    public RaceResults getResults() {
+        return results;
+    }
+
+    public int getFoulMask() {
+        return foulJudge.getFoulMask();
+    }
+
+    public boolean hasValue(int characteristic) {
+        return indexOf(characteristic) >= 0;
+    }
+
+    // Only the race characteristics are kept, and any other value is ignored
+    public void setValue(int characteristic, byte[] value) {
+        int index = indexOf(characteristic);
+        if (index >= 0) {
+            values[index] = value != null ? value : EMPTY;
+        }
+    }
+
+    public byte[] getValue(int characteristic) {
+        int index = indexOf(characteristic);
+        return index >= 0 ? values[index] : EMPTY;
+    }
+
+    public String getString(int characteristic) {
+        return new String(getValue(characteristic));
+    }
+
+    // This method notifies the members of this group that a characteristic has changed
+    public void notify(int characteristic) {
+        transport.notify(characteristic, getValue(characteristic));
+    }
+
+    // A device may only write its own lane's dial-in, stage flag and reaction time, and its
+    // release
+    public static boolean canWrite(int lane, int characteristic) {
+        if (characteristic == RELEASE) {
+            return true;
+        }
+        int index = characteristic - FIRST;
+        return index >= 0 && index < COUNT && KINDS[index] != OTHER && LANES[index] == lane;
+    }
+
+    // This method applies a write from the lane's device. Stage and reaction time writes update
+    // the lane state, a release is judged, and dial-ins are only stored. It returns false if the
+    // device may not write the characteristic, or if a release was malformed, which is then not
+    // judged
+    public boolean write(int lane, int characteristic, byte[] value) {
+        if (!canWrite(lane, characteristic)) {
+            return false;
+        }
+        int index = characteristic - FIRST;
+        value = value != null ? value : EMPTY;
+        values[index] = value;
+        boolean valid = true;
+        switch (KINDS[index]) {
+            case STAGE:
+                setLaneStaged(LANES[index], isStaged(value));
+                notify(characteristic);
+                break;
+            case RT:
+                if (value.length > 0) {
+                    rtMask |= laneBit(LANES[index]);
+                } else {
+                    rtMask &= ~laneBit(LANES[index]);
+                }
+                break;
+            default:
+                if (characteristic == RELEASE) {
+                    valid = applyRelease(lane, value);
+                }
+                break;
+        }
+        checkForRaceFinished();
+        return valid;
+    }
+
+    // The device has released its stage button, at the host time "<time>,<rollout>", or at
+    // ",<rollout>" if its clock is not synced. It is parsed where it is, and returns false if it
+    // is malformed
+    private boolean applyRelease(int lane, byte[] value) {
+        int comma = 0;
+        while (comma < value.length && value[comma] != ',') {
+            comma++;
+        }
+        try {
+            long rollout = comma < value.length ? parseLong(value, comma + 1, value.length) : 0;
+            if (comma == 0) {
+                judgeUnsyncedRelease(lane, rollout);
+            } else {
+                judgeRelease(lane, parseLong(value, 0, comma), rollout);
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    // This method parses the decimal number between two offsets of a value, which is at most 18
+    // digits long, so it cannot overflow
+    private static long parseLong(byte[] value, int from, int to) {
+        boolean negative = from < to && value[from] == '-';
+        int start = negative ? from + 1 : from;
+        if (start == to || to - start > 18) {
+            throw new NumberFormatException();
+        }
+        long result = 0;
+        for (int i = start; i < to; i++) {
+            if (value[i] < '0' || value[i] > '9') {
+                throw new NumberFormatException();
+            }
+            result = result * 10 + (value[i] - '0');
+        }
+        return negative ? -result : result;
+    }
+
+    // This method gives a new member the lowest client lane not held by anyone, and returns it,
+    // or 0 if the group is full. The new lane is not staged, so it holds off any armed start
+    public int assignLane() {
+        for (int lane = 1; lane <= CLIENT_LANES; lane++) {
+            if ((assignedMask & laneBit(lane)) == 0) {
+                assignedMask |= laneBit(lane);
+                laneMask |= laneBit(lane);
+                updateStartTimer();
+                return lane;
+            }
+        }
+        return 0;
+    }
+
+    // A member is back in the lane it held. A lane that started the race can still report its
+    // result
+    public void reclaimLane(int lane) {
+        laneMask |= laneBit(lane);
+        if (!raceDone && (racingMask & laneBit(lane)) != 0) {
+            liveMask |= laneBit(lane);
+        }
+        updateStartTimer();
+    }
+
+    // This method holds a lane for a member that is not connected. The lane is unstaged, and no
+    // longer holds up the next start or the results of this race
+    public void reserveLane(int lane) {
+        assignedMask |= laneBit(lane);
+        laneMask &= ~laneBit(lane);
+        liveMask &= ~laneBit(lane);
+        checkForRaceFinished();
+
+        setValue(STAGES[lane - 1], UNSTAGED);
+        setLaneStaged(lane, false);
+        notify(STAGES[lane - 1]);
+    }
+
+    // A lane that is no longer assigned is no longer required to stage, and can be given out
+    // again
+    public void removeLane(int lane) {
+        assignedMask &= ~laneBit(lane);
+        laneMask &= ~laneBit(lane);
+        updateStartTimer();
+    }
+
+    // The lanes that have to stage before this group's race starts
+    private int hostBit() {
+        return hasHost ? laneBit(HOST_LANE) : 0;
+    }
+
+    // This method records a stage change for a lane, and re-arms the start if it changed
+    private void setLaneStaged(int lane, boolean staged) {
+        boolean wasStaged = (stagedMask & laneBit(lane)) != 0;
+        if (staged == wasStaged) {
+            return;
+        }
+        if (staged) {
+            stagedMask |= laneBit(lane);
+            stagedSince[lane] = scheduler.uptimeMillis();
+        } else {
+            stagedMask &= ~laneBit(lane);
+        }
+        if (hasHost) {
+            RaceTrace.counter("staged lanes", stagedMask);
+        }
+        updateStartTimer();
+    }
+
+    // This method arms the start for the moment the last required lane will have been staged
+    // for the full window, or disarms it if any required lane is not staged. The required lanes
+    // are the host, if it is in this group, and every connected client lane, of those racing in
+    // the heat. The Transport can push the start back, or hold it off. During a cooldown, the
+    // start is armed for the end of it at the earliest
+    public void updateStartTimer() {
+        if (startArmed) {
+            scheduler.remove(startSignal);
+            startArmed = false;
+            endStageWindow();
+        }
+
+        // The next race is armed as soon as the results of this one are published
+        int required = (laneMask | hostBit()) & heatMask;
+        boolean staged = raceDone && required != 0 && (stagedMask & required) == required;
+        long lastStaged = 0;
+        boolean first = true;
+        for (int lane = 1; staged && lane <= HOST_LANE; lane++) {
+            if ((required & laneBit(lane)) != 0
+                    && (first || stagedSince[lane] - lastStaged > 0)) {
+                lastStaged = stagedSince[lane];
+                first = false;
+            }
+        }
+
+        long readySince = transport.checkReady(staged, lastStaged);
+        if (!staged || readySince == NOT_READY) {
+            return;
+        }
+        long startAt = readySince + stageWindow;
+        if (coolingDown && cooldownEnd - startAt > 0) {
+            startAt = cooldownEnd;
+        }
+        // Every lane is staged, and the trace shows the wait from here to the start signal
+        stageWindowSlice = RaceTrace.beginAsync("stage window", id, startTime, 0);
+        startArmed = true;
+        scheduler.postAt(startSignal, startAt);
+    }
+
+    // Every required lane has been staged for the full window, so start the race
+    private final Runnable startSignal = new Runnable() {
+        @Override
+        public void run() {
+            startArmed = false;
+            endStageWindow();
+            boolean traced = RaceTrace.begin("startSignal", id, startTime, 0);
+            // The trees drop a little after the signal, at the same host time on every device
+            startRace(scheduler.uptimeMillis() + START_LEAD);
+            RaceTrace.end(traced);
+        }
+    };
+
+    // The start has been disarmed or has fired, so the wait for it is over
+    private void endStageWindow() {
+        RaceTrace.endAsync(stageWindowSlice);
+        stageWindowSlice = null;
+    }
+
+    // Another host has started the race on this group's behalf. This returns false if the group
+    // is already racing
+    public boolean start() {
+        if (!raceDone) {
+            return false;
+        }
+        if (startArmed) {
+            scheduler.remove(startSignal);
+            startArmed = false;
+            endStageWindow();
+        }
+        startRace(scheduler.uptimeMillis() + START_LEAD);
+        return true;
+    }
+
+    // This method starts the race with the trees dropping at the given host time
+    void startRace(long startTime) {
+        // The start can land on the same moment as the end of the cooldown, and the trees have
+        // to be reset before they drop
+        if (coolingDown) {
+            scheduler.remove(cooldownOver);
+            coolingDown = false;
+            beginRound();
+        }
+        raceDone = false;
+        resetRts();
+
+        this.startTime = startTime;
+        signalTime = scheduler.uptimeMillis();
+        unsyncedMask = 0;
+        foulJudge.start(startTime, readDials());
+        setValue(FOUL, foulJudge.encode().getBytes());
+
+        // Every lane racing gets until the deadline to report, counted from the last green
+        racingMask = (laneMask | hostBit()) & heatMask;
+        liveMask = racingMask;
+        resultsPublished = false;
+        setValue(RACE_FINISHED, RUNNING);
+        long lastGreen = startTime;
+        for (int lane = 1; lane <= HOST_LANE; lane++) {
+            if ((racingMask & laneBit(lane)) != 0) {
+                lastGreen = Math.max(lastGreen, foulJudge.getGreenTime(lane));
+            }
+        }
+        resultsPending = true;
+        scheduler.postAt(resultsDeadline, lastGreen + RESULTS_DEADLINE + resultsGrace);
+
+        // Tell every device in the group to drop its trees
+        setValue(RACE_READY, ("start:" + startTime).getBytes());
+        notify(RACE_READY);
+        setValue(RACE_READY, READY_STOP);
+    }
+
+    // This method collects each lane's dial-in, using 0 for lanes that have not sent one
+    private long[] readDials() {
+        long[] dials = new long[HOST_LANE];
+        for (int lane = 1; lane <= HOST_LANE; lane++) {
+            try {
+                dials[lane - 1] = Long.parseLong(getString(DIALS[lane - 1]));
+            } catch (NumberFormatException e) {
+                dials[lane - 1] = 0;
+            }
+        }
+        return dials;
+    }
+
+    // This method resets all reaction times so the group can determine when all its lanes have
+    // sent new reaction times
+    private void resetRts() {
+        for (int rt : RTS) {
+            setValue(rt, EMPTY);
+        }
+        rtMask = 0;
+    }
+
+    // This method checks if every lane still racing has sent its reaction time, and if so
+    // publishes the results
+    public void checkForRaceFinished() {
+        if (!raceDone && (rtMask & liveMask) == liveMask && transport.isReported()) {
+            publishResults();
+        }
+    }
+
+    // The deadline has passed, so publish whatever results have arrived
+    private final Runnable resultsDeadline = new Runnable() {
+        @Override
+        public void run() {
+            resultsPending = false;
+            if (!raceDone) {
+                publishResults();
+            }
+        }
+    };
+
+    // This method publishes the results in the RACE_FINISHED value, notifies the group, and
+    // re-arms staging for the next race, after a cooldown in loop mode
+    private void publishResults() {
+        if (resultsPending) {
+            scheduler.remove(resultsDeadline);
+            resultsPending = false;
+        }
+
+        results = new RaceResults();
+        for (int lane = 1; lane <= HOST_LANE; lane++) {
+            if ((rtMask & laneBit(lane)) != 0) {
+                results.setResult(lane, getString(RTS[lane - 1]));
+            } else if ((racingMask & laneBit(lane)) != 0) {
+                results.setNoResult(lane);
+            }
+        }
+
+        // The results are sent before the tournament moves on, so a Transport can still see
+        // the heat they were for
+        setValue(RACE_FINISHED, results.encode().getBytes());
+        notify(RACE_FINISHED);
+        if (tournament != null) {
+            tournament.recordResults(results, foulJudge.getFoulMask());
+        }
+        raceDone = true;
+        resultsPublished = true;
+        foulJudge.stop();
+
+        if (loopMode) {
+            coolingDown = true;
+            cooldownEnd = scheduler.uptimeMillis() + cooldown;
+            scheduler.postAt(cooldownOver, cooldownEnd);
+        }
+        // Everyone can see who races next while the results are still up
+        if (tournament != null) {
+            publishHeat();
+        }
+
+        // Lanes that are already staged again can start the next race
+        updateStartTimer();
+    }
+
+    // The cooldown after a race has ended, so reset the trees for the next one
+    private final Runnable cooldownOver = new Runnable() {
+        @Override
+        public void run() {
+            coolingDown = false;
+            beginRound();
+        }
+    };
+
+    // This method starts the tournament's next heat, and tells the group who races in it. Once
+    // the tournament is over, the champion is published and every lane races again
+    public void publishHeat() {
+        Tournament.Heat next = tournament.nextHeat();
+        if (next != null) {
+            heatMask = next.getLaneMask();
+            setValue(HEAT, next.encode().getBytes());
+        } else {
+            heatMask = ALL_LANES;
+            setValue(HEAT, Tournament.encodeChampion(tournament.getChampion()).getBytes());
+        }
+        notify(HEAT);
+    }
+
+    // This method moves on to the next round, which every device in the group resets its trees
+    // for
+    private void beginRound() {
+        setRound(round + 1);
+        notify(ROUND);
+    }
+
+    // This method judges a lane's release, and pushes the fouls to the group if it fouled
+    public void judgeRelease(int lane, long releaseTime, long rollout) {
+        if (foulJudge.onRelease(lane, releaseTime, rollout)) {
+            setValue(FOUL, foulJudge.encode().getBytes());
+            notify(FOUL);
+        }
+    }
+
+    // This method judges the release of a lane whose clock is not synced, as it reaches the host.
+    // The RELEASE value is given the host time it was judged at, so a recording of the write
+    // replays the same
+    private void judgeUnsyncedRelease(int lane, long rollout) {
+        unsyncedMask |= laneBit(lane);
+        long releaseTime = scheduler.uptimeMillis() - signalTime + startTime;
+        setValue(RELEASE, (releaseTime + "," + rollout).getBytes());
+        judgeRelease(lane, releaseTime, rollout);
+    }
+
+    // The lanes of the current or last race that released without a synced clock
+    public int getUnsyncedMask() {
+        return unsyncedMask;
+    }
+
+    // This method collects the group's race state into a snapshot for reconnecting clients
+    public String buildSnapshot() {
+        RaceSnapshot snapshot = new RaceSnapshot();
+        for (int lane = 1; lane <= RaceSnapshot.LANES; lane++) {
+            snapshot.setStaged(lane, (stagedMask & laneBit(lane)) != 0);
+            snapshot.setDial(lane, getString(DIALS[lane - 1]));
+            snapshot.setRt(lane, getString(RTS[lane - 1]));
+        }
+        snapshot.setFinished(resultsPublished);
+        return snapshot.encode();
+    }
+
+    public void cancelTimers() {
+        if (startArmed) {
+            scheduler.remove(startSignal);
+            startArmed = false;
+            endStageWindow();
+        }
+        if (resultsPending) {
+            scheduler.remove(resultsDeadline);
+            resultsPending = false;
+        }
+        if (coolingDown) {
+            scheduler.remove(cooldownOver);
+            coolingDown = false;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    This class holds a recorded log of what reached the host during a session, so the session can
+    be replayed by a RaceReplay. Every event is stamped with the host time it arrived, in
+    milliseconds, and is written as one line of text:
+
+        <time> dial <lane> <dial-in>
+        <time> stage <lane> <0|1>
+        <time> start <start time>
+        <time> release <lane> <release time> <rollout>
+        <time> rt <lane> <reaction time>
+        <time> round
+        <time> link <lane> <one-way delay>
+
+    A release carries the host time the button was released, as the racer sent it, and a reaction
+    time is the one the racer reported, which a replay checks its own against. A link line sets
+    how long messages take between the host and a lane's device from then on, which is 0 until
+    one is given. Blank lines and lines starting with '#' are ignored.
+
+    A host recording its races makes each event with the factories on Event and writes it
+    straight to its recording, so a long session is not kept in memory.
+ */
+
+public class RaceLog {
+    public static final String DIAL = "dial";
+    public static final String STAGE = "stage";
+    public static final String START = "start";
+    public static final String RELEASE = "release";
+    public static final String RT = "rt";
+    public static final String ROUND = "round";
+    public static final String LINK = "link";
+
+    public static class Event {
+        private final long time;
+        private final String type;
+        private final int lane;
+        private final long[] values;
+
+        Event(long time, String type, int lane, long... values) {
+            this.time = time;
+            this.type = type;
+            this.lane = lane;
+            this.values = values;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        // The lane the event is about, or 0 for a start or round
+        public int getLane() {
+            return lane;
+        }
+
+        public long getValue(int index) {
+            return values[index];
+        }
+
+        // These methods make the events a host records, without adding them to a log
+        public static Event dial(long time, int lane, long dial) {
+            return new Event(time, DIAL, lane, dial);
+        }
+
+        public static Event stage(long time, int lane, boolean staged) {
+            return new Event(time, STAGE, lane, staged ? 1 : 0);
+        }
+
+        public static Event start(long time, long startTime) {
+            return new Event(time, START, 0, startTime);
+        }
+
+        public static Event release(long time, int lane, long releaseTime, long rollout) {
+            return new Event(time, RELEASE, lane, releaseTime, rollout);
+        }
+
+        public static Event rt(long time, int lane, long rt) {
+            return new Event(time, RT, lane, rt);
+        }
+
+        public static Event round(long time) {
+            return new Event(time, ROUND, 0);
+        }
+
+        public static Event link(long time, int lane, long delay) {
+            return new Event(time, LINK, lane, delay);
+        }
+
+        // This method makes the event for a write a host's RaceEngine was given, or returns null
+        // for a write a replay cannot use, such as a malformed value
+        public static Event write(long time, int lane, int characteristic, String value) {
+            int dialLane = RaceEngine.laneOfDial(characteristic);
+            int stageLane = RaceEngine.laneOfStage(characteristic);
+            int rtLane = RaceEngine.laneOfRt(characteristic);
+            try {
+                if (dialLane != 0) {
+                    return dial(time, dialLane, Long.parseLong(value));
+                } else if (stageLane != 0) {
+                    return stage(time, stageLane, value.equals("1"));
+                } else if (rtLane != 0 && !value.isEmpty()) {
+                    return rt(time, rtLane, Long.parseLong(value));
+                } else if (characteristic == RaceEngine.RELEASE) {
+                    String[] parts = value.split(",");
+                    return release(time, lane, Long.parseLong(parts[0]),
+                            parts.length > 1 ? Long.parseLong(parts[1]) : 0);
+                }
+            } catch (NumberFormatException e) {
+                // The engine judges the write without it, so the replay does the same
+            }
+            return null;
+        }
+
+        // This method writes the event to a log as one line
+        public void writeTo(Writer output) throws IOException {
+            output.write(Long.toString(time));
+            output.write(' ');
+            output.write(type);
+            if (lane != 0) {
+                output.write(' ');
+                output.write(Integer.toString(lane));
+            }
+            for (long value : values) {
+                output.write(' ');
+                output.write(Long.toString(value));
+            }
+            output.write('\n');
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(time).append(' ').append(type);
+            if (lane != 0) {
+                builder.append(' ').append(lane);
+            }
+            for (long value : values) {
+                builder.append(' ').append(value);
+            }
+            return builder.toString();
+        }
+
+        // This method parses a line of the log, returning null if it is malformed
+        public static Event parse(String line) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 2) {
+                return null;
+            }
+            try {
+                long time = Long.parseLong(parts[0]);
+                String type = parts[1];
+                int arguments = arguments(type);
+                if (arguments < 0 || parts.length != 2 + arguments) {
+                    return null;
+                }
+                boolean hasLane = !type.equals(START) && !type.equals(ROUND);
+                int lane = hasLane ? Integer.parseInt(parts[2]) : 0;
+                if (hasLane && (lane < 1 || lane > FoulJudge.LANES)) {
+                    return null;
+                }
+                int first = hasLane ? 3 : 2;
+                long[] values = new long[parts.length - first];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Long.parseLong(parts[first + i]);
+                }
+                return new Event(time, type, lane, values);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        // The number of fields after the type, or -1 for an unknown type
+        private static int arguments(String type) {
+            switch (type) {
+                case ROUND: return 0;
+                case START: return 1;
+                case DIAL:
+                case STAGE:
+                case RT:
+                case LINK: return 2;
+                case RELEASE: return 3;
+                default: return -1;
+            }
+        }
+    }
+
+    private final List<Event> events = new ArrayList<>();
+
+    public List<Event> getEvents() {
+        return Collections.unmodifiableList(events);
+    }
+
+    public Event addDial(long time, int lane, long dial) {
+        return add(Event.dial(time, lane, dial));
+    }
+
+    public Event addStage(long time, int lane, boolean staged) {
+        return add(Event.stage(time, lane, staged));
+    }
+
+    public Event addStart(long time, long startTime) {
+        return add(Event.start(time, startTime));
+    }
+
+    public Event addRelease(long time, int lane, long releaseTime, long rollout) {
+        return add(Event.release(time, lane, releaseTime, rollout));
+    }
+
+    public Event addRt(long time, int lane, long rt) {
+        return add(Event.rt(time, lane, rt));
+    }
+
+    public Event addRound(long time) {
+        return add(Event.round(time));
+    }
+
+    public Event addLink(long time, int lane, long delay) {
+        return add(Event.link(time, lane, delay));
+    }
+
+    // This method adds a write a host's RaceEngine was given, and returns its event, or null for
+    // a write a replay cannot use
+    public Event addWrite(long time, int lane, int characteristic, String value) {
+        return add(Event.write(time, lane, characteristic, value));
+    }
+
+    private Event add(Event event) {
+        if (event != null) {
+            events.add(event);
+        }
+        return event;
+    }
+
+    // This method reads a log, throwing an IOException naming the first malformed line
+    public static RaceLog read(Reader input) throws IOException {
+        BufferedReader reader = new BufferedReader(input);
+        RaceLog log = new RaceLog();
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            Event event = Event.parse(trimmed);
+            if (event == null) {
+                throw new IOException("Malformed event on line " + number + ": " + line);
+            }
+            log.add(event);
+        }
+        return log;
+    }
+
+    public void write(Writer output) throws IOException {
+        for (Event event : events) {
+            event.writeTo(output);
+        }
+        output.flush();
+    }
+}
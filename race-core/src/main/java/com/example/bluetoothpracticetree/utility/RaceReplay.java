@@ -0,0 +1,361 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    This class replays a RaceLog through the race logic on a VirtualClock, as fast as it can run,
+    so a disputed race can be gone through bulb by bulb, and the same every time. It writes a
+    transcript of everything that happened, one line per event, stamped with the host time.
+
+    The host is the RaceEngine every host judges its races with, given each write the log has,
+    with every lane in the log assigned to it. It only starts a race when the log does, at the
+    logged start time, so it judges each release and publishes the results exactly as it did
+    live. Each lane in the log also has a device, with all four trees, which gets everything the
+    host sends it after that lane's link delay, and drops its trees and works out its reaction
+    time the way RaceActivity does. A device's own stage presses and releases happen on it before
+    they reach the host, so they are applied a link delay earlier than the host logged them.
+
+    The devices' clocks are taken to be the host's. A device converts the start time to its own
+    clock and its release back again with the same offset, so the reaction times do not change.
+
+    The transcript has these lines, after the time:
+
+        bulb <device> <tree> <bulb> <0|1>
+        drop <device> <tree> <ms late>
+        start <start time>
+        rt <lane> <reaction time>
+        foul <fouls>
+        results <results>
+        mismatch <lane> <reported> <replayed>
+
+    A mismatch is a reported reaction time that differs from the one the replay worked out, which
+    is "-" if the replay did not work one out.
+ */
+
+public class RaceReplay {
+    public static final int LANES = FoulJudge.LANES;
+
+    private final RaceLog log;
+    private final VirtualClock clock = new VirtualClock(Long.MIN_VALUE);
+    private final List<String> transcript = new ArrayList<>();
+    private final Device[] devices = new Device[LANES];
+    // Every link line in the log, in order
+    private final List<RaceLog.Event> links = new ArrayList<>();
+    private int mismatches = 0;
+    private boolean ran = false;
+
+    // The host, which is created once the lanes in the log are known
+    private RaceEngine engine;
+
+    public RaceReplay(RaceLog log) {
+        this.log = log;
+    }
+
+    // This method replays the whole log, and returns the transcript. A replay only runs once
+    public List<String> run() {
+        if (ran) {
+            return transcript;
+        }
+        ran = true;
+
+        for (RaceLog.Event event : log.getEvents()) {
+            if (event.getLane() != 0 && devices[event.getLane() - 1] == null) {
+                devices[event.getLane() - 1] = new Device(event.getLane());
+            }
+            if (event.getType().equals(RaceLog.LINK)) {
+                links.add(event);
+            }
+        }
+        engine = new RaceEngine(1, devices[RaceEngine.HOST_LANE - 1] != null, clock, host);
+        for (int lane = 1; lane <= RaceEngine.CLIENT_LANES; lane++) {
+            engine.assignLane();
+        }
+        for (int lane = 1; lane <= RaceEngine.CLIENT_LANES; lane++) {
+            if (devices[lane - 1] == null) {
+                engine.removeLane(lane);
+            }
+        }
+        for (RaceLog.Event event : log.getEvents()) {
+            schedule(event);
+        }
+        clock.runUntilIdle();
+        return transcript;
+    }
+
+    // The number of reported reaction times that differ from the replay's
+    public int getMismatches() {
+        return mismatches;
+    }
+
+    // The one-way delay between the host and a lane's device at a host time
+    private long linkAt(int lane, long time) {
+        long delay = 0;
+        for (RaceLog.Event link : links) {
+            if (link.getTime() > time) {
+                break;
+            }
+            if (link.getLane() == lane) {
+                delay = link.getValue(0);
+            }
+        }
+        return delay;
+    }
+
+    private void write(String format, Object... args) {
+        transcript.add(clock.uptimeMillis() + " " + String.format(Locale.US, format, args));
+    }
+
+    // This method posts everything an event causes, on the host and on each device, at the
+    // times it happens
+    private void schedule(final RaceLog.Event event) {
+        final long time = event.getTime();
+        final int lane = event.getLane();
+        switch (event.getType()) {
+            case RaceLog.LINK:
+                // Link delays are looked up by time as each message is sent
+                break;
+            case RaceLog.DIAL:
+                final long dial = event.getValue(0);
+                clock.postAt(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(lane, RaceEngine.getDial(lane), Long.toString(dial));
+                    }
+                }, time);
+                fromDevice(lane, time, new DeviceTask() {
+                    @Override
+                    public void run(Device device) {
+                        device.dropSchedule.setDial(lane, dial);
+                    }
+                });
+                break;
+            case RaceLog.STAGE:
+                final boolean staged = event.getValue(0) != 0;
+                clock.postAt(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(lane, RaceEngine.getStage(lane), staged ? "1" : "0");
+                    }
+                }, time);
+                fromDevice(lane, time, new DeviceTask() {
+                    @Override
+                    public void run(Device device) {
+                        device.trees[lane - 1].setStage(staged);
+                    }
+                });
+                break;
+            case RaceLog.START:
+                final long startTime = event.getValue(0);
+                clock.postAt(new Runnable() {
+                    @Override
+                    public void run() {
+                        engine.startRace(startTime);
+                    }
+                }, time);
+                toDevices(time, new DeviceTask() {
+                    @Override
+                    public void run(Device device) {
+                        device.startRace(startTime);
+                    }
+                });
+                break;
+            case RaceLog.RELEASE:
+                final long releaseTime = event.getValue(0);
+                final long rollout = event.getValue(1);
+                final Device device = devices[lane - 1];
+                clock.postAt(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.calculateRt(releaseTime, rollout);
+                    }
+                }, releaseTime);
+                clock.postAt(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(lane, RaceEngine.RELEASE, releaseTime + "," + rollout);
+                    }
+                }, time);
+                break;
+            case RaceLog.RT:
+                final long reported = event.getValue(0);
+                clock.postAt(new Runnable() {
+                    @Override
+                    public void run() {
+                        checkRt(lane, reported);
+                    }
+                }, time);
+                break;
+            case RaceLog.ROUND:
+                toDevices(time, new DeviceTask() {
+                    @Override
+                    public void run(Device device) {
+                        device.startRound();
+                    }
+                });
+                break;
+        }
+    }
+
+    private interface DeviceTask {
+        void run(Device device);
+    }
+
+    // This method runs a task on every device, once the host's message at the given time has
+    // reached it
+    private void toDevices(long time, final DeviceTask task) {
+        for (final Device device : devices) {
+            if (device != null) {
+                clock.postAt(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.run(device);
+                    }
+                }, time + linkAt(device.lane, time));
+            }
+        }
+    }
+
+    // This method runs a task that a lane's device did itself before telling the host, which
+    // then notified every device, the sending one included
+    private void fromDevice(int lane, long time, final DeviceTask task) {
+        final Device sender = devices[lane - 1];
+        clock.postAt(new Runnable() {
+            @Override
+            public void run() {
+                task.run(sender);
+            }
+        }, time - linkAt(lane, time));
+        toDevices(time, task);
+    }
+
+    // This method gives the host a write from a lane's device
+    private void write(int lane, int characteristic, String value) {
+        engine.write(lane, characteristic, value.getBytes());
+    }
+
+    // The host only starts races when the log says so, and has nothing but its own lanes to
+    // wait for. What it tells the devices is in the log already, apart from fouls and results
+    private final RaceEngine.Transport host = new RaceEngine.Transport() {
+        @Override
+        public void notify(int characteristic, byte[] value) {
+            if (characteristic == RaceEngine.RACE_READY) {
+                write("start %d", engine.getStartTime());
+            } else if (characteristic == RaceEngine.FOUL) {
+                write("foul %s", new String(value));
+                final int fouls = engine.getFoulMask();
+                toDevices(clock.uptimeMillis(), new DeviceTask() {
+                    @Override
+                    public void run(Device device) {
+                        device.applyFouls(fouls);
+                    }
+                });
+            } else if (characteristic == RaceEngine.RACE_FINISHED) {
+                write("results %s", new String(value));
+                toDevices(clock.uptimeMillis(), new DeviceTask() {
+                    @Override
+                    public void run(Device device) {
+                        device.raceStarted = false;
+                    }
+                });
+            }
+        }
+
+        @Override
+        public long checkReady(boolean staged, long stagedSince) {
+            return RaceEngine.NOT_READY;
+        }
+
+        @Override
+        public boolean isReported() {
+            return true;
+        }
+    };
+
+    // This method compares a reaction time the lane reported with the replay's own
+    private void checkRt(int lane, long reported) {
+        Long replayed = devices[lane - 1].lastRt;
+        if (replayed == null || replayed != reported) {
+            mismatches++;
+            write("mismatch %d %d %s", lane, reported, replayed != null ? replayed.toString() : "-");
+        }
+    }
+
+    // One lane's phone, running the same tree logic as RaceActivity
+    private class Device {
+        final int lane;
+        final TreeModel[] trees = new TreeModel[LANES];
+        final DropSchedule dropSchedule = new DropSchedule();
+        boolean raceStarted = false;
+        long startTime;
+        // The reaction time this device last worked out, or null if it has not since the start
+        Long lastRt;
+
+        Device(final int lane) {
+            this.lane = lane;
+            for (int i = 0; i < LANES; i++) {
+                final int tree = i + 1;
+                trees[i] = new TreeModel(clock, new TreeModel.Listener() {
+                    @Override
+                    public void onBulb(int bulb, boolean active) {
+                        write("bulb %d %d %s %d", lane, tree, TreeModel.nameOf(bulb), active ? 1 : 0);
+                    }
+                });
+            }
+        }
+
+        // The start signal has arrived, so drop every tree at its time, or straight away if it
+        // has already passed
+        void startRace(long dropTime) {
+            raceStarted = true;
+            lastRt = null;
+            for (int tree = 1; tree <= LANES; tree++) {
+                final long treeTime = dropTime + dropSchedule.getDelay(tree);
+                if (tree == lane) {
+                    startTime = treeTime;
+                }
+                final int dropped = tree;
+                clock.postAt(new Runnable() {
+                    @Override
+                    public void run() {
+                        write("drop %d %d %d", lane, dropped, clock.uptimeMillis() - treeTime);
+                        trees[dropped - 1].dropTree();
+                    }
+                }, treeTime);
+            }
+        }
+
+        // The racer has let go of the stage button, so work out the reaction time and send it
+        void calculateRt(long releaseTime, long rollout) {
+            if (!raceStarted) {
+                return;
+            }
+            final long rt = FoulJudge.reactionTime(releaseTime, startTime, rollout);
+            lastRt = rt;
+            raceStarted = false;
+            write("rt %d %d", lane, rt);
+            clock.postAt(new Runnable() {
+                @Override
+                public void run() {
+                    write(lane, RaceEngine.getRt(lane), Long.toString(rt));
+                }
+            }, clock.uptimeMillis() + linkAt(lane, clock.uptimeMillis()));
+        }
+
+        void applyFouls(int fouls) {
+            for (int tree = 1; tree <= LANES; tree++) {
+                if ((fouls & RaceEngine.laneBit(tree)) != 0) {
+                    trees[tree - 1].goRed();
+                }
+            }
+        }
+
+        void startRound() {
+            raceStarted = false;
+            for (TreeModel tree : trees) {
+                tree.reset();
+            }
+        }
+    }
+}
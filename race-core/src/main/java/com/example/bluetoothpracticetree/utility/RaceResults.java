@@ -0,0 +1,75 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This class holds the results of a race, which the host publishes once every lane still racing
+    has reported, or once the results deadline has passed. Each lane has its reaction time,
+    NO_RESULT if it was racing but never reported one, or nothing if it was not racing.
+
+    Results are encoded as "1|rt1,rt2,rt3,rt4", for example "1|512,-35,NR,". While a race is
+    running, the encoded value is just RUNNING.
+ */
+
+public class RaceResults {
+    public static final int LANES = 4;
+    public static final String NO_RESULT = "NR";
+    public static final String RUNNING = "0";
+
+    private final String[] results = new String[LANES];
+
+    public RaceResults() {
+        for (int i = 0; i < LANES; i++) {
+            results[i] = "";
+        }
+    }
+
+    public void setResult(int lane, String value) {
+        results[lane - 1] = value != null ? value : "";
+    }
+
+    public void setNoResult(int lane) {
+        results[lane - 1] = NO_RESULT;
+    }
+
+    // Returns the reaction time for a lane, NO_RESULT, or an empty string if it was not racing
+    public String getResult(int lane) {
+        return results[lane - 1];
+    }
+
+    public boolean isNoResult(int lane) {
+        return NO_RESULT.equals(results[lane - 1]);
+    }
+
+    public boolean hasResult(int lane) {
+        return !results[lane - 1].isEmpty() && !isNoResult(lane);
+    }
+
+    public String encode() {
+        StringBuilder builder = new StringBuilder("1|");
+        for (int i = 0; i < LANES; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(results[i]);
+        }
+        return builder.toString();
+    }
+
+    // This method parses encoded results, returning null if the race is running or the value is
+    // malformed. A value cut off inside the last lane still parses, so a notification that may
+    // have been cut off has to be read back whole before it is decoded
+    public static RaceResults decode(String data) {
+        if (data == null || !data.startsWith("1|")) {
+            return null;
+        }
+        String[] values = data.substring(2).split(",", -1);
+        if (values.length != LANES) {
+            return null;
+        }
+
+        RaceResults results = new RaceResults();
+        for (int i = 0; i < LANES; i++) {
+            results.results[i] = values[i];
+        }
+        return results;
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This interface runs race logic at given times, on a single thread. On a device it is backed by
+    a Handler on the uptime clock, on a host by the host's event loop, and in a replay or a test by
+    a VirtualClock, so the same logic runs the same way on all of them.
+ */
+
+public interface RaceScheduler {
+    // The current time, in milliseconds
+    long uptimeMillis();
+
+    // Runs the task at the given time, or as soon as possible if that has passed. Tasks due at
+    // the same time run in the order they were posted
+    void postAt(Runnable task, long uptimeMillis);
+
+    // Removes every pending run of the task
+    void remove(Runnable task);
+}
@@ -0,0 +1,108 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This class holds a snapshot of the race state on the server: which lanes are staged, each
+    lane's dial-in and reaction time, and whether the race has finished. A client that reconnects
+    reads the snapshot in a single round-trip to resync, instead of reading every characteristic.
+
+    The snapshot is encoded as a string of the form "stage|dials|rts|finished", for example
+    "1011|10000,9500,,12000|,,,|0". Lanes 1-3 are the clients and lane 4 is the host.
+ */
+
+public class RaceSnapshot {
+    public static final int LANES = 4;
+
+    private final boolean[] staged = new boolean[LANES];
+    private final String[] dials = new String[LANES];
+    private final String[] rts = new String[LANES];
+    private boolean finished;
+
+    public RaceSnapshot() {
+        for (int i = 0; i < LANES; i++) {
+            dials[i] = "";
+            rts[i] = "";
+        }
+    }
+
+    public void setStaged(int lane, boolean value) {
+        staged[lane - 1] = value;
+    }
+
+    public void setDial(int lane, String value) {
+        dials[lane - 1] = value != null ? value : "";
+    }
+
+    public void setRt(int lane, String value) {
+        rts[lane - 1] = value != null ? value : "";
+    }
+
+    public void setFinished(boolean value) {
+        finished = value;
+    }
+
+    public boolean isStaged(int lane) {
+        return staged[lane - 1];
+    }
+
+    // Returns the dial-in for a lane, or an empty string if it is not known
+    public String getDial(int lane) {
+        return dials[lane - 1];
+    }
+
+    // Returns the reaction time for a lane, or an empty string if it has not been sent
+    public String getRt(int lane) {
+        return rts[lane - 1];
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < LANES; i++) {
+            builder.append(staged[i] ? '1' : '0');
+        }
+        builder.append('|');
+        appendList(builder, dials);
+        builder.append('|');
+        appendList(builder, rts);
+        builder.append('|');
+        builder.append(finished ? '1' : '0');
+        return builder.toString();
+    }
+
+    // This method parses an encoded snapshot, returning null if it is malformed
+    public static RaceSnapshot decode(String data) {
+        if (data == null) {
+            return null;
+        }
+        String[] parts = data.split("\\|", -1);
+        if (parts.length != 4 || parts[0].length() != LANES) {
+            return null;
+        }
+        String[] dials = parts[1].split(",", -1);
+        String[] rts = parts[2].split(",", -1);
+        if (dials.length != LANES || rts.length != LANES) {
+            return null;
+        }
+
+        RaceSnapshot snapshot = new RaceSnapshot();
+        for (int i = 0; i < LANES; i++) {
+            snapshot.staged[i] = parts[0].charAt(i) == '1';
+            snapshot.dials[i] = dials[i];
+            snapshot.rts[i] = rts[i];
+        }
+        snapshot.finished = "1".equals(parts[3]);
+        return snapshot;
+    }
+
+    private static void appendList(StringBuilder builder, String[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+    }
+}
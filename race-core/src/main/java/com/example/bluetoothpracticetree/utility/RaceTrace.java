@@ -0,0 +1,181 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This class marks the race's critical path in a system trace, so a single Perfetto or systrace
+    capture shows where each millisecond between every lane being staged and green on the screen
+    goes, on every device. Sections time work on the calling thread, and async slices time waits
+    that begin and end on different threads or callbacks.
+
+    Every section and slice is tagged with the group, race and lane it is about, for example
+    "setStage group=1 race=52020 lane=2", where 0 means it is not about one lane. Work a device
+    does for its own racer, such as running its GATT commands, is tagged with the local lane. A
+    race is known by what its host sent every device in it: the host time its trees drop, or the
+    race number for two peers. So the tags of one race line up across devices, whenever each of
+    them joined, and work between races is tagged with the race before.
+
+    An async slice is ended with the handle beginAsync returned, so it always ends the slice it
+    began, even if the race has moved on in between. A host that judges several groups tags the
+    slices of each with its own group and race.
+
+    Tracing is off until it is switched on, and costs a single volatile read on every call while
+    it is off. The tracer defaults to one that does nothing, which is what runs on a plain JVM;
+    the app installs one that writes to android.os.Trace.
+ */
+
+public class RaceTrace {
+
+    public interface Tracer {
+        void beginSection(String name);
+
+        void endSection();
+
+        void beginAsyncSection(String name, int cookie);
+
+        void endAsyncSection(String name, int cookie);
+
+        void setCounter(String name, long value);
+    }
+
+    // The tracer used until another is installed, which does nothing
+    public static final Tracer NO_OP = new Tracer() {
+        @Override
+        public void beginSection(String name) {
+        }
+
+        @Override
+        public void endSection() {
+        }
+
+        @Override
+        public void beginAsyncSection(String name, int cookie) {
+        }
+
+        @Override
+        public void endAsyncSection(String name, int cookie) {
+        }
+
+        @Override
+        public void setCounter(String name, long value) {
+        }
+    };
+
+    private static volatile Tracer tracer = NO_OP;
+    private static volatile boolean enabled = false;
+    private static volatile int group = 0;
+    private static volatile long race = 0;
+    private static volatile int localLane = 0;
+
+    private RaceTrace() {
+    }
+
+    public static void setTracer(Tracer value) {
+        tracer = value != null ? value : NO_OP;
+    }
+
+    // The runtime switch. Sections begun while tracing was on are still ended if it is switched
+    // off in between, so the trace stays balanced
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // An async slice that has begun, which only endAsync can end
+    public static final class Slice {
+        final String tag;
+        final int cookie;
+
+        Slice(String tag, int cookie) {
+            this.tag = tag;
+            this.cookie = cookie;
+        }
+    }
+
+    // This method moves on to the race the host has just started, in the group this device
+    // races in
+    public static void setRace(int raceGroup, long raceId) {
+        group = raceGroup;
+        race = raceId;
+    }
+
+    public static int getGroup() {
+        return group;
+    }
+
+    // The race being run on this device, or the last one while the next is being staged
+    public static long getRace() {
+        return race;
+    }
+
+    // The lane this device races in, or 0 if it only hosts
+    public static void setLocalLane(int lane) {
+        localLane = lane;
+    }
+
+    public static int getLocalLane() {
+        return localLane;
+    }
+
+    // This method begins a section on the calling thread. It returns whether it began one, which
+    // has to be passed to end, so a section is never ended that was not begun
+    public static boolean begin(String name, int lane) {
+        return begin(name, group, race, lane);
+    }
+
+    // This method begins a section about a race other than this device's own
+    public static boolean begin(String name, int raceGroup, long raceId, int lane) {
+        if (!enabled) {
+            return false;
+        }
+        tracer.beginSection(tag(name, raceGroup, raceId, lane));
+        return true;
+    }
+
+    public static void end(boolean begun) {
+        if (begun) {
+            tracer.endSection();
+        }
+    }
+
+    // This method begins a slice that is ended later, on any thread, by passing what it returns
+    // to endAsync. It returns null if tracing is off
+    public static Slice beginAsync(String name, int lane) {
+        return beginAsync(name, group, race, lane);
+    }
+
+    // This method begins a slice about a race other than this device's own
+    public static Slice beginAsync(String name, int raceGroup, long raceId, int lane) {
+        if (!enabled) {
+            return null;
+        }
+        Slice slice = new Slice(tag(name, raceGroup, raceId, lane), cookie(raceGroup, raceId, lane));
+        tracer.beginAsyncSection(slice.tag, slice.cookie);
+        return slice;
+    }
+
+    // This method ends a slice, if one was begun. Like a section, a slice begun while tracing was
+    // on is still ended if it has been switched off since
+    public static void endAsync(Slice slice) {
+        if (slice != null) {
+            tracer.endAsyncSection(slice.tag, slice.cookie);
+        }
+    }
+
+    // This method sets a counter, which the trace shows as a track of its values over time
+    public static void counter(String name, long value) {
+        if (enabled) {
+            tracer.setCounter(name, value);
+        }
+    }
+
+    static String tag(String name, int raceGroup, long raceId, int lane) {
+        return name + " group=" + raceGroup + " race=" + raceId + " lane=" + lane;
+    }
+
+    // Slices of different lanes, groups and races overlap, so each has its own cookie
+    static int cookie(int raceGroup, long raceId, int lane) {
+        return (int) ((raceId * 31 + raceGroup) * 8 + lane);
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    This class is the copy of a hosted session that every client keeps, so the session can move
+    to another device if the host is lost. The host publishes it in the SESSION characteristic
+    whenever it changes, and clients read it back in full.
+
+    It holds the session ID, the round, the tournament's entrants and format, the lane, address
+    and dial-in of every connected client, and the results of every heat raced so far. A new host
+    rebuilds the tournament by replaying those results, since a tournament is decided by its
+    entrants and results alone.
+
+    When the host is lost, every client elects the connected client with the lowest lane as the
+    successor. A client that cannot reach the successor leaves it out and elects again, so every
+    client comes to the same answer without having to talk to the others.
+
+    Sessions are encoded as "sessionId|round|format|entrants|members|heats", where members are
+    "lane=address=dial" and heats are "foulMask:results", each separated by ';', for example
+    "3f2a91|4|1|Ann,Bob|1=AA:BB:CC:DD:EE:01=10500;2=AA:BB:CC:DD:EE:02=11000|2:1|512,NR,,".
+ */
+
+public class SessionReplica {
+    public static final int CLIENT_LANES = 3;
+    private static final int FIELDS = 6;
+
+    private String sessionId = "";
+    private int round;
+    // The tournament format, or 0 for open practice
+    private int format;
+    private final List<String> entrants = new ArrayList<>();
+
+    // Indexed by lane, with null for a lane nobody holds
+    private final String[] addresses = new String[CLIENT_LANES + 1];
+    private final String[] dials = new String[CLIENT_LANES + 1];
+    private final List<String> heats = new ArrayList<>();
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public void setRound(int round) {
+        this.round = round;
+    }
+
+    public void setTournament(List<String> entrants, int format) {
+        this.entrants.clear();
+        this.entrants.addAll(entrants);
+        this.format = format;
+    }
+
+    public void setMember(int lane, String address, String dial) {
+        addresses[lane] = address;
+        dials[lane] = dial != null ? dial : "";
+    }
+
+    public void removeMember(int lane) {
+        addresses[lane] = null;
+        dials[lane] = null;
+    }
+
+    public boolean hasMember(int lane) {
+        return addresses[lane] != null;
+    }
+
+    public String getAddress(int lane) {
+        return addresses[lane];
+    }
+
+    public String getDial(int lane) {
+        return dials[lane] != null ? dials[lane] : "";
+    }
+
+    // The results of a heat, in the order they were raced
+    public void addHeat(int foulMask, String results) {
+        heats.add(foulMask + ":" + results);
+    }
+
+    // This method elects the new host, which is the member with the lowest lane, or returns 0 if
+    // there is nobody left to take over
+    public int electSuccessor() {
+        for (int lane = 1; lane <= CLIENT_LANES; lane++) {
+            if (addresses[lane] != null) {
+                return lane;
+            }
+        }
+        return 0;
+    }
+
+    // This method rebuilds the tournament by replaying every heat, or returns null if the session
+    // is open practice
+    public Tournament createTournament(int lanes) {
+        if (format == 0 || entrants.size() < 2) {
+            return null;
+        }
+        Tournament tournament = new Tournament(entrants, format, lanes);
+        for (String heat : heats) {
+            int separator = heat.indexOf(':');
+            RaceResults results = RaceResults.decode(heat.substring(separator + 1));
+            if (results == null || tournament.nextHeat() == null) {
+                break;
+            }
+            tournament.recordResults(results, Integer.parseInt(heat.substring(0, separator)));
+        }
+        return tournament;
+    }
+
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(sessionId).append('|').append(round).append('|').append(format).append('|');
+        for (int i = 0; i < entrants.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(entrants.get(i));
+        }
+        builder.append('|');
+        boolean first = true;
+        for (int lane = 1; lane <= CLIENT_LANES; lane++) {
+            if (addresses[lane] != null) {
+                if (!first) {
+                    builder.append(';');
+                }
+                builder.append(lane).append('=').append(addresses[lane]).append('=').append(dials[lane]);
+                first = false;
+            }
+        }
+        builder.append('|');
+        for (int i = 0; i < heats.size(); i++) {
+            if (i > 0) {
+                builder.append(';');
+            }
+            builder.append(heats.get(i));
+        }
+        return builder.toString();
+    }
+
+    // This method parses a session, returning null if it is malformed, for example because it
+    // was cut off
+    public static SessionReplica decode(String data) {
+        if (data == null) {
+            return null;
+        }
+        // The results in the heats contain '|' themselves, so they are left in the last part
+        String[] parts = data.split("\\|", FIELDS);
+        if (parts.length != FIELDS) {
+            return null;
+        }
+        SessionReplica replica = new SessionReplica();
+        replica.sessionId = parts[0];
+        try {
+            replica.round = Integer.parseInt(parts[1]);
+            replica.format = Integer.parseInt(parts[2]);
+            for (String entrant : parts[3].split(",")) {
+                if (!entrant.isEmpty()) {
+                    replica.entrants.add(entrant);
+                }
+            }
+            for (String member : parts[4].split(";")) {
+                if (member.isEmpty()) {
+                    continue;
+                }
+                String[] fields = member.split("=", -1);
+                int lane = Integer.parseInt(fields[0]);
+                if (fields.length != 3 || lane < 1 || lane > CLIENT_LANES) {
+                    return null;
+                }
+                replica.setMember(lane, fields[1], fields[2]);
+            }
+            for (String heat : parts[5].split(";")) {
+                int separator = heat.indexOf(':');
+                if (separator > 0) {
+                    Integer.parseInt(heat.substring(0, separator));
+                    replica.heats.add(heat);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return replica;
+    }
+}
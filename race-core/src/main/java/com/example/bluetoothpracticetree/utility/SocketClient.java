@@ -0,0 +1,109 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/*
+    This class connects a client to a host over the socket transport. It connects and then reads
+    SocketFrames on a thread of its own, handing each one to its listener on that thread, while
+    frames are written straight from the thread sending them.
+
+    The client only ever has one connection, so a blocking channel is all it needs. TCP_NODELAY
+    is set just like on the host, so every frame goes out as soon as it is written.
+ */
+
+public class SocketClient {
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int BUFFER_SIZE = 8192;
+
+    public interface Listener {
+        void onConnected();
+
+        void onFrame(SocketFrame frame);
+
+        // Reported once the connection is lost, or if it could not be made at all
+        void onDisconnected();
+    }
+
+    private final Listener listener;
+    private final SocketChannel channel;
+    private volatile boolean closed;
+
+    public SocketClient(Listener listener) throws IOException {
+        this.listener = listener;
+        this.channel = SocketChannel.open();
+    }
+
+    // This method connects to the host in the background
+    public void connect(final String host, final int port) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.socket().setTcpNoDelay(true);
+                    channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                } catch (IOException e) {
+                    disconnect();
+                    return;
+                }
+                listener.onConnected();
+                receive();
+            }
+        }, SocketClient.class.getSimpleName()).start();
+    }
+
+    // This method sends a frame to the host, and returns false if it could not be written
+    public boolean send(SocketFrame frame) {
+        if (closed || !channel.isConnected()) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(frame.encode());
+        synchronized (channel) {
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Closing does not report the client disconnected
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private void receive() {
+        ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        try {
+            while (channel.read(input) >= 0) {
+                input.flip();
+                SocketFrame frame;
+                while ((frame = SocketFrame.decode(input)) != null) {
+                    listener.onFrame(frame);
+                }
+                input.compact();
+            }
+        } catch (IOException e) {
+            // Handled below, just like the host closing the connection
+        }
+        disconnect();
+    }
+
+    private void disconnect() {
+        boolean wasClosed = closed;
+        close();
+        if (!wasClosed) {
+            listener.onDisconnected();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/*
+    This class is one race message sent over the socket transport. Each frame is a GATT
+    operation on one of the race characteristics, so a socket carries exactly the same messages
+    as a BLE connection: reads and their responses, writes, subscriptions, and notifications.
+
+    Characteristics are named by the last 16 bits of their UUID, since every race characteristic
+    shares the rest of it with the race service. A response names the characteristic of the
+    request it answers, and carries its GATT status.
+
+    Frames are encoded as a big-endian 16 bit length of the rest of the frame, the type, the
+    status, the 16 bit characteristic, and the value.
+ */
+
+public class SocketFrame {
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int SUBSCRIBE = 3;
+    public static final int RESPONSE = 4;
+    public static final int NOTIFY = 5;
+
+    // Large enough for the session, which is the longest value any characteristic holds
+    public static final int MAX_VALUE = 4096;
+    private static final int LENGTH_SIZE = 2;
+    private static final int HEADER = 4;
+
+    private static final long BASE_MOST = UuidUtils.SERVICE.getMostSignificantBits();
+    private static final long BASE_LEAST = UuidUtils.SERVICE.getLeastSignificantBits() & ~0xFFFFL;
+
+    private final int type;
+    private final int status;
+    private final int characteristic;
+    private final byte[] value;
+
+    public SocketFrame(int type, int status, int characteristic, byte[] value) {
+        this.type = type;
+        this.status = status & 0xFF;
+        this.characteristic = characteristic & 0xFFFF;
+        this.value = value != null ? value : new byte[0];
+    }
+
+    public static SocketFrame read(UUID uuid) {
+        return new SocketFrame(READ, 0, toShort(uuid), null);
+    }
+
+    public static SocketFrame write(UUID uuid, byte[] value) {
+        return new SocketFrame(WRITE, 0, toShort(uuid), value);
+    }
+
+    public static SocketFrame subscribe(UUID uuid, byte[] value) {
+        return new SocketFrame(SUBSCRIBE, 0, toShort(uuid), value);
+    }
+
+    public static SocketFrame response(int characteristic, int status, byte[] value) {
+        return new SocketFrame(RESPONSE, status, characteristic, value);
+    }
+
+    public static SocketFrame notify(UUID uuid, byte[] value) {
+        return new SocketFrame(NOTIFY, 0, toShort(uuid), value);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public int getCharacteristic() {
+        return characteristic;
+    }
+
+    public UUID getUuid() {
+        return toUuid(characteristic);
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    // The short form of a race characteristic's UUID
+    public static int toShort(UUID uuid) {
+        return (int) (uuid.getLeastSignificantBits() & 0xFFFF);
+    }
+
+    public static UUID toUuid(int characteristic) {
+        return new UUID(BASE_MOST, BASE_LEAST | (characteristic & 0xFFFF));
+    }
+
+    public byte[] encode() {
+        int length = HEADER + value.length;
+        byte[] data = new byte[LENGTH_SIZE + length];
+        data[0] = (byte) (length >> 8);
+        data[1] = (byte) length;
+        data[2] = (byte) type;
+        data[3] = (byte) status;
+        data[4] = (byte) (characteristic >> 8);
+        data[5] = (byte) characteristic;
+        System.arraycopy(value, 0, data, LENGTH_SIZE + HEADER, value.length);
+        return data;
+    }
+
+    // This method takes the next frame from a buffer that is ready to be read, or returns null
+    // and leaves the buffer as it was if the frame has not fully arrived yet
+    public static SocketFrame decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < LENGTH_SIZE) {
+            return null;
+        }
+        int start = buffer.position();
+        int length = ((buffer.get(start) & 0xFF) << 8) | (buffer.get(start + 1) & 0xFF);
+        if (length < HEADER || length > HEADER + MAX_VALUE) {
+            throw new IOException("Malformed frame of length " + length);
+        }
+        if (buffer.remaining() < LENGTH_SIZE + length) {
+            return null;
+        }
+        buffer.position(start + LENGTH_SIZE);
+        int type = buffer.get() & 0xFF;
+        int status = buffer.get() & 0xFF;
+        int characteristic = ((buffer.get() & 0xFF) << 8) | (buffer.get() & 0xFF);
+        byte[] value = new byte[length - HEADER];
+        buffer.get(value);
+        return new SocketFrame(type, status, characteristic, value);
+    }
+}
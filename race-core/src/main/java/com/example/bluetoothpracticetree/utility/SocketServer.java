@@ -0,0 +1,311 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    This class accepts clients over the socket transport, for venues with a local Wi-Fi network.
+    It runs a single selector thread, which accepts connections and reads SocketFrames from them,
+    and hands each frame to its listener on that thread.
+
+    Every client is given an address in the same form as a Bluetooth address, so the server can
+    treat it just like a BLE client. The address is a locally administered one, made from the
+    client's IP address, so it never clashes with a real device, and a client that reconnects
+    from the same IP gets the same address back.
+
+    Frames are written straight from the thread sending them where the socket has room, and
+    only queued for the selector thread once it is full. TCP_NODELAY is set on every connection,
+    so a frame goes out as soon as it is written instead of waiting to be batched.
+ */
+
+public class SocketServer {
+    public static final int DEFAULT_PORT = 5475;
+    private static final String ADDRESS_PREFIX = "02:";
+    private static final int BUFFER_SIZE = 8192;
+
+    public interface Listener {
+        void onConnected(String address);
+
+        void onFrame(String address, SocketFrame frame);
+
+        void onDisconnected(String address);
+    }
+
+    private final Listener listener;
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    private final List<Connection> pendingWrites = Collections.synchronizedList(new ArrayList<Connection>());
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+
+    private static class Connection {
+        final String address;
+        final SocketChannel channel;
+        final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        // Only touched while holding the connection's lock
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        SelectionKey key;
+
+        Connection(String address, SocketChannel channel) {
+            this.address = address;
+            this.channel = channel;
+        }
+    }
+
+    public SocketServer(Listener listener) {
+        this.listener = listener;
+    }
+
+    // This method starts accepting clients, and returns the port it listens on, which is chosen
+    // by the system if the given port is 0
+    public int start(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, SocketServer.class.getSimpleName());
+        thread.start();
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // This method sends a frame to a client, and returns false if it is not connected
+    public boolean send(String address, SocketFrame frame) {
+        Connection connection = connections.get(address);
+        if (connection == null) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(frame.encode());
+        synchronized (connection) {
+            if (connection.output.isEmpty()) {
+                try {
+                    connection.channel.write(buffer);
+                } catch (IOException e) {
+                    // The selector thread finds the connection closed on its next read
+                    return false;
+                }
+                if (!buffer.hasRemaining()) {
+                    return true;
+                }
+            }
+            connection.output.add(buffer);
+        }
+        // Interest can only be changed safely on the selector thread
+        pendingWrites.add(connection);
+        selector.wakeup();
+        return true;
+    }
+
+    public void close() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    // Addresses of socket clients are locally administered, unlike those of Bluetooth devices
+    public static boolean isSocketAddress(String address) {
+        return address != null && address.startsWith(ADDRESS_PREFIX);
+    }
+
+    // This method returns the local IPv4 address clients can reach this device at, or null if
+    // it is not on a network
+    public static String getLocalAddress() {
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = interfaces.nextElement();
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                    continue;
+                }
+                Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress address = addresses.nextElement();
+                    if (address instanceof Inet4Address && address.isSiteLocalAddress()) {
+                        return address.getHostAddress();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return null;
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                break;
+            }
+            synchronized (pendingWrites) {
+                for (Connection connection : pendingWrites) {
+                    if (connection.key != null && connection.key.isValid()) {
+                        connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                pendingWrites.clear();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (key.isReadable() && !read(connection)) {
+                    disconnect(connection);
+                    continue;
+                }
+                if (key.isValid() && key.isWritable() && !write(connection)) {
+                    disconnect(connection);
+                }
+            }
+        }
+
+        // Shutting down does not report each client disconnected
+        for (Connection connection : connections.values()) {
+            closeQuietly(connection.channel);
+        }
+        connections.clear();
+        closeQuietly(serverChannel);
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            return;
+        }
+
+        Connection connection = new Connection(createAddress(channel), channel);
+        try {
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            return;
+        }
+        connections.put(connection.address, connection);
+        listener.onConnected(connection.address);
+    }
+
+    // This method reads every frame that has fully arrived, and returns false once the client
+    // has gone
+    private boolean read(Connection connection) {
+        try {
+            if (connection.channel.read(connection.input) < 0) {
+                return false;
+            }
+            connection.input.flip();
+            SocketFrame frame;
+            while ((frame = SocketFrame.decode(connection.input)) != null) {
+                listener.onFrame(connection.address, frame);
+            }
+            connection.input.compact();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // This method writes the frames queued while the socket was full, and stops waiting to write
+    // once they are all out
+    private boolean write(Connection connection) {
+        synchronized (connection) {
+            try {
+                while (!connection.output.isEmpty()) {
+                    ByteBuffer buffer = connection.output.peek();
+                    connection.channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return true;
+                    }
+                    connection.output.poll();
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            connection.key.interestOps(SelectionKey.OP_READ);
+            return true;
+        }
+    }
+
+    private void disconnect(Connection connection) {
+        connection.key.cancel();
+        closeQuietly(connection.channel);
+        if (connections.remove(connection.address) != null) {
+            listener.onDisconnected(connection.address);
+        }
+    }
+
+    // The address is 02 followed by the client's IPv4 address, and a number that tells apart
+    // several clients on the same IP
+    private String createAddress(SocketChannel channel) {
+        byte[] ip = {0, 0, 0, 0};
+        InetAddress remote = channel.socket().getInetAddress();
+        if (remote != null) {
+            byte[] raw = remote.getAddress();
+            System.arraycopy(raw, raw.length - ip.length, ip, 0, ip.length);
+        }
+        String prefix = String.format("%s%02X:%02X:%02X:%02X:", ADDRESS_PREFIX,
+                ip[0] & 0xFF, ip[1] & 0xFF, ip[2] & 0xFF, ip[3] & 0xFF);
+        int number = 0;
+        while (number < 0xFF && connections.containsKey(String.format("%s%02X", prefix, number))) {
+            number++;
+        }
+        return String.format("%s%02X", prefix, number);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
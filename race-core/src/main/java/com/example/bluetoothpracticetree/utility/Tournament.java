@@ -0,0 +1,451 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+    This class runs a single or double elimination tournament on the host. Every entrant first
+    makes one qualifying run, and the bracket is seeded from the qualifying reaction times, best
+    first, with byes for the top seeds when the field is not a power of two.
+
+    The bracket is built once, with every match knowing where its winner and loser go next. When
+    a match is decided, its entrants are handed on, and any match that becomes ready is queued,
+    so nothing is ever searched. A slot nobody will ever reach is a bye, and a match with a bye
+    is decided straight away, passing the bye on to wherever its loser would have gone.
+
+    Races are run in heats. Each heat packs as many ready matches as fit in the lanes, two lanes
+    per match, so lanes only sit idle when there are not enough ready matches to fill them. The
+    results of each race decide its matches: a foul loses to a clean run, the earlier of two
+    fouls loses, a lane that never reported loses to anything, and otherwise the better reaction
+    time wins. Ties go to the entrant in the first slot.
+
+    Heats are encoded as "<heat>|<lane 1>,<lane 2>,..." with the entrant in each lane, empty for
+    an idle lane. Once the tournament is over, the encoded value is "done|<champion>".
+ */
+
+public class Tournament {
+    public static final int SINGLE_ELIMINATION = 1;
+    public static final int DOUBLE_ELIMINATION = 2;
+    public static final String DONE = "done";
+
+    private static final int WINNERS = 0;
+    private static final int LOSERS = 1;
+    private static final int FINAL = 2;
+
+    // Scores for a lane's run, where lower is better
+    private static final long FOUL_SCORE = Long.MAX_VALUE / 2;
+    private static final long NO_RESULT_SCORE = Long.MAX_VALUE;
+
+    private final String[] entrants;
+    private final int format;
+    private final int lanes;
+
+    // Qualifying runs, by entry order
+    private final long[] qualifyingScores;
+    private int qualified = 0;
+    private int nextQualifier = 0;
+
+    private final ArrayDeque<Match> ready = new ArrayDeque<>();
+    private boolean bracketBuilt = false;
+    private boolean resetPlayed = false;
+    private String champion;
+
+    private Heat currentHeat;
+    private int heatCount = 0;
+
+    // The lanes must fit at least one match
+    public Tournament(List<String> entrants, int format, int lanes) {
+        this.entrants = entrants.toArray(new String[entrants.size()]);
+        this.format = format;
+        this.lanes = Math.max(2, lanes);
+        this.qualifyingScores = new long[this.entrants.length];
+
+        if (this.entrants.length == 1) {
+            champion = this.entrants[0];
+        }
+    }
+
+    public boolean isFinished() {
+        return champion != null || entrants.length == 0;
+    }
+
+    // The winner of the tournament, or null while it is still running
+    public String getChampion() {
+        return champion;
+    }
+
+    // The heat being raced, or null if none has been started
+    public Heat getCurrentHeat() {
+        return currentHeat;
+    }
+
+    // This method starts the next heat and returns it, or returns the heat still being raced.
+    // It returns null once the tournament is over
+    public Heat nextHeat() {
+        if (currentHeat != null) {
+            return currentHeat;
+        }
+        if (isFinished()) {
+            return null;
+        }
+
+        Heat heat = new Heat(++heatCount, lanes);
+        if (!bracketBuilt) {
+            // Qualifying runs fill every lane
+            for (int lane = 1; lane <= lanes && nextQualifier < entrants.length; lane++) {
+                heat.setEntrant(lane, nextQualifier++);
+            }
+        } else {
+            int lane = 1;
+            while (lane + 1 <= lanes && !ready.isEmpty()) {
+                Match match = ready.poll();
+                heat.addMatch(match, lane);
+                heat.setEntrant(lane, match.entrants[0]);
+                heat.setEntrant(lane + 1, match.entrants[1]);
+                lane += 2;
+            }
+        }
+        currentHeat = heat;
+        return heat;
+    }
+
+    // This method applies the results of the current heat's race, and moves the tournament on.
+    // The foul mask has lane 1 in the lowest bit
+    public void recordResults(RaceResults results, int foulMask) {
+        Heat heat = currentHeat;
+        if (heat == null) {
+            return;
+        }
+        currentHeat = null;
+
+        if (!bracketBuilt) {
+            for (int lane = 1; lane <= lanes; lane++) {
+                int entrant = heat.getEntrantIndex(lane);
+                if (entrant >= 0) {
+                    qualifyingScores[entrant] = score(results, foulMask, lane);
+                    qualified++;
+                }
+            }
+            if (qualified == entrants.length) {
+                buildBracket();
+            }
+            return;
+        }
+
+        for (int i = 0; i < heat.matches.size(); i++) {
+            Match match = heat.matches.get(i);
+            int lane = heat.matchLanes.get(i);
+            long first = score(results, foulMask, lane);
+            long second = score(results, foulMask, lane + 1);
+            decide(match, second < first ? 1 : 0);
+        }
+    }
+
+    private static long score(RaceResults results, int foulMask, int lane) {
+        if (lane > RaceResults.LANES || !results.hasResult(lane)) {
+            return NO_RESULT_SCORE;
+        }
+        long rt;
+        try {
+            rt = Long.parseLong(results.getResult(lane));
+        } catch (NumberFormatException e) {
+            return NO_RESULT_SCORE;
+        }
+        if (rt < 0 || (foulMask & (1 << (lane - 1))) != 0) {
+            // The earlier foul scores worse
+            return FOUL_SCORE + Math.max(0, -rt);
+        }
+        return rt;
+    }
+
+    // This method seeds the bracket from the qualifying runs, and wires up every match
+    private void buildBracket() {
+        bracketBuilt = true;
+
+        Integer[] order = new Integer[entrants.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byScore = Long.compare(qualifyingScores[a], qualifyingScores[b]);
+                return byScore != 0 ? byScore : Integer.compare(a, b);
+            }
+        });
+
+        int size = 2;
+        int rounds = 1;
+        while (size < entrants.length) {
+            size *= 2;
+            rounds++;
+        }
+
+        // The winners bracket, where round r has size / 2^r matches
+        Match[][] winners = new Match[rounds + 1][];
+        for (int round = 1; round <= rounds; round++) {
+            winners[round] = createRound(WINNERS, size >> round);
+            if (round > 1) {
+                feedWinners(winners[round - 1], winners[round]);
+            }
+        }
+
+        Match last = winners[rounds][0];
+        if (format == DOUBLE_ELIMINATION) {
+            Match grandFinal = new Match(FINAL);
+            last.winnerTo = grandFinal;
+            last.winnerSlot = 0;
+
+            if (rounds == 1) {
+                last.loserTo = grandFinal;
+                last.loserSlot = 1;
+            } else {
+                // Losers round 2j - 1 plays among itself, and losers round 2j takes on the
+                // losers dropping down from winners round j + 1
+                Match[][] losers = new Match[2 * rounds - 1][];
+                losers[1] = createRound(LOSERS, size >> 2);
+                for (int i = 0; i < winners[1].length; i++) {
+                    winners[1][i].loserTo = losers[1][i / 2];
+                    winners[1][i].loserSlot = i % 2;
+                }
+                for (int j = 1; j < rounds; j++) {
+                    losers[2 * j] = createRound(LOSERS, size >> (j + 1));
+                    Match[] dropping = winners[j + 1];
+                    for (int i = 0; i < losers[2 * j].length; i++) {
+                        losers[2 * j - 1][i].winnerTo = losers[2 * j][i];
+                        losers[2 * j - 1][i].winnerSlot = 0;
+                        // Alternate rounds drop in reverse, which keeps early rematches apart
+                        Match from = dropping[j % 2 == 1 ? dropping.length - 1 - i : i];
+                        from.loserTo = losers[2 * j][i];
+                        from.loserSlot = 1;
+                    }
+                    if (j < rounds - 1) {
+                        losers[2 * j + 1] = createRound(LOSERS, size >> (j + 2));
+                        feedWinners(losers[2 * j], losers[2 * j + 1]);
+                    }
+                }
+                Match losersFinal = losers[2 * rounds - 2][0];
+                losersFinal.winnerTo = grandFinal;
+                losersFinal.winnerSlot = 1;
+            }
+        }
+
+        // Seed 1 meets the last seed, and so on, with seeds past the field getting byes
+        int[] placement = placement(size);
+        for (int i = 0; i < winners[1].length; i++) {
+            for (int slot = 0; slot < 2; slot++) {
+                int seed = placement[2 * i + slot];
+                fill(winners[1][i], slot, seed <= entrants.length ? entrants[order[seed - 1]] : null);
+            }
+        }
+    }
+
+    private static Match[] createRound(int bracket, int count) {
+        Match[] matches = new Match[count];
+        for (int i = 0; i < count; i++) {
+            matches[i] = new Match(bracket);
+        }
+        return matches;
+    }
+
+    private static void feedWinners(Match[] from, Match[] to) {
+        for (int i = 0; i < from.length; i++) {
+            from[i].winnerTo = to[i / 2];
+            from[i].winnerSlot = i % 2;
+        }
+    }
+
+    // The standard bracket order of seeds, so the top seeds can only meet in the late rounds
+    private static int[] placement(int size) {
+        int[] order = {1};
+        while (order.length < size) {
+            int[] next = new int[order.length * 2];
+            for (int i = 0; i < order.length; i++) {
+                next[2 * i] = order[i];
+                next[2 * i + 1] = order.length * 2 + 1 - order[i];
+            }
+            order = next;
+        }
+        return order;
+    }
+
+    // This method puts an entrant in a match slot, or a bye if the entrant is null
+    private void fill(Match match, int slot, String entrant) {
+        if (entrant == null) {
+            match.bye[slot] = true;
+        } else {
+            match.entrants[slot] = entrant;
+        }
+
+        if (!match.isFilled(0) || !match.isFilled(1)) {
+            return;
+        }
+        if (match.entrants[0] != null && match.entrants[1] != null) {
+            ready.add(match);
+        } else {
+            // At most one entrant reached this match, so they go through without racing
+            decide(match, match.entrants[0] != null ? 0 : 1);
+        }
+    }
+
+    // This method hands the winner and loser of a match on to their next matches
+    private void decide(Match match, int winnerSlot) {
+        String winner = match.entrants[winnerSlot];
+        String loser = match.entrants[1 - winnerSlot];
+
+        if (match.bracket == FINAL) {
+            // The losers bracket winner has to beat the winners bracket winner twice
+            if (winnerSlot == 1 && !resetPlayed) {
+                resetPlayed = true;
+                Match reset = new Match(FINAL);
+                fill(reset, 0, match.entrants[0]);
+                fill(reset, 1, match.entrants[1]);
+                return;
+            }
+            champion = winner;
+            return;
+        }
+
+        if (match.winnerTo != null) {
+            fill(match.winnerTo, match.winnerSlot, winner);
+        } else {
+            champion = winner;
+        }
+        if (match.loserTo != null) {
+            fill(match.loserTo, match.loserSlot, loser);
+        }
+    }
+
+    private static class Match {
+        final int bracket;
+        final String[] entrants = new String[2];
+        // A slot that nobody will ever reach
+        final boolean[] bye = new boolean[2];
+        Match winnerTo;
+        int winnerSlot;
+        Match loserTo;
+        int loserSlot;
+
+        Match(int bracket) {
+            this.bracket = bracket;
+        }
+
+        boolean isFilled(int slot) {
+            return entrants[slot] != null || bye[slot];
+        }
+    }
+
+    // The entrants racing in each lane for one heat
+    public class Heat {
+        private final int number;
+        private final String[] laneEntrants;
+        private final int[] laneIndexes;
+        private final List<Match> matches = new ArrayList<>();
+        private final List<Integer> matchLanes = new ArrayList<>();
+
+        Heat(int number, int lanes) {
+            this.number = number;
+            this.laneEntrants = new String[lanes];
+            this.laneIndexes = new int[lanes];
+            Arrays.fill(laneIndexes, -1);
+        }
+
+        void setEntrant(int lane, int index) {
+            laneEntrants[lane - 1] = entrants[index];
+            laneIndexes[lane - 1] = index;
+        }
+
+        void setEntrant(int lane, String entrant) {
+            laneEntrants[lane - 1] = entrant;
+        }
+
+        void addMatch(Match match, int firstLane) {
+            matches.add(match);
+            matchLanes.add(firstLane);
+        }
+
+        int getEntrantIndex(int lane) {
+            return laneIndexes[lane - 1];
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        // The entrant racing in a lane, or null if the lane sits this heat out
+        public String getEntrant(int lane) {
+            return lane <= laneEntrants.length ? laneEntrants[lane - 1] : null;
+        }
+
+        // The lanes racing in this heat, with lane 1 in the lowest bit
+        public int getLaneMask() {
+            int mask = 0;
+            for (int i = 0; i < laneEntrants.length; i++) {
+                if (laneEntrants[i] != null) {
+                    mask |= 1 << i;
+                }
+            }
+            return mask;
+        }
+
+        public String encode() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(number).append('|');
+            for (int i = 0; i < laneEntrants.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                if (laneEntrants[i] != null) {
+                    builder.append(laneEntrants[i]);
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    public static String encodeChampion(String champion) {
+        return DONE + "|" + champion;
+    }
+
+    // This method returns the champion of an encoded value once the tournament is over
+    public static String decodeChampion(String data) {
+        if (data == null || !data.startsWith(DONE + "|")) {
+            return null;
+        }
+        return data.substring(DONE.length() + 1);
+    }
+
+    // This method returns the entrant racing in a lane of an encoded heat, an empty string if the
+    // lane sits out, or null if the value is malformed
+    public static String decodeEntrant(String data, int lane) {
+        if (data == null) {
+            return null;
+        }
+        int separator = data.indexOf('|');
+        if (separator < 0) {
+            return null;
+        }
+        String[] laneEntrants = data.substring(separator + 1).split(",", -1);
+        return lane <= laneEntrants.length ? laneEntrants[lane - 1] : "";
+    }
+
+    // This method returns the heat number of an encoded heat, 0 once the tournament is over, or
+    // -1 if the value is malformed
+    public static int decodeHeatNumber(String data) {
+        if (data == null || data.indexOf('|') < 0) {
+            return -1;
+        }
+        String number = data.substring(0, data.indexOf('|'));
+        if (DONE.equals(number)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
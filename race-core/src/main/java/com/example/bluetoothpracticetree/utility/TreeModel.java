@@ -0,0 +1,173 @@
+package com.example.bluetoothpracticetree.utility;
+
+/*
+    This class is the logic of a single practice tree, without any views, so a replay can run the
+    exact bulb sequence a device shows. It keeps which bulbs are lit, runs the drop sequence on a
+    RaceScheduler, and reports every bulb that turns on or off to its listener.
+
+    When a tree drops, each yellow is lit in turn 500 ms apart, and stays lit for 500 ms unless
+    it is persisted, with green persisted 1.5 seconds after the drop. A foul persists red, and
+    whichever yellow is still lit, and keeps the rest of the sequence from lighting.
+
+    Bulbs are numbered from the top of the tree: prestage, stage, the three yellows, green and red.
+ */
+
+public class TreeModel {
+    public static final int PRESTAGE = 0;
+    public static final int STAGE = 1;
+    public static final int TOP_YELLOW = 2;
+    public static final int MID_YELLOW = 3;
+    public static final int BOTTOM_YELLOW = 4;
+    public static final int GREEN = 5;
+    public static final int RED = 6;
+    public static final int BULBS = 7;
+    // How long each yellow is lit, and the time between them
+    public static final long AMBER_TIME = 500;
+    private static final String[] NAMES = {"prestage", "stage", "top", "mid", "bottom", "green", "red"};
+
+    public interface Listener {
+        void onBulb(int bulb, boolean active);
+    }
+
+    private final RaceScheduler scheduler;
+    private final Listener listener;
+    private final boolean[] active = new boolean[BULBS];
+    private final boolean[] persisted = new boolean[BULBS];
+    private boolean wentRed = false;
+
+    public TreeModel(RaceScheduler scheduler, Listener listener) {
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    public static String nameOf(int bulb) {
+        return NAMES[bulb];
+    }
+
+    public boolean isActive(int bulb) {
+        return active[bulb];
+    }
+
+    // This method lights or darkens a bulb, reporting it if it changed
+    public void setActive(int bulb, boolean value) {
+        if (active[bulb] != value) {
+            active[bulb] = value;
+            listener.onBulb(bulb, value);
+        }
+    }
+
+    public void setPrestage(boolean set) {
+        setActive(PRESTAGE, set);
+    }
+
+    // This method updates the stage bulb and resets all other bulbs
+    public void setStage(boolean set) {
+        setActive(STAGE, set);
+        wentRed = false;
+
+        if (set) {
+            resetBelowStage();
+        }
+    }
+
+    // This method turns off every bulb below the stage bulb, ready for the next drop
+    public void reset() {
+        wentRed = false;
+        resetBelowStage();
+    }
+
+    private void resetBelowStage() {
+        for (int bulb = TOP_YELLOW; bulb <= RED; bulb++) {
+            resetBulb(bulb);
+        }
+    }
+
+    // This method begins the proper bulb sequence of a real tree
+    public void dropTree() {
+        long now = scheduler.uptimeMillis();
+        if (!wentRed) {
+            activate(TOP_YELLOW);
+        }
+        scheduler.postAt(new Runnable() {
+            @Override
+            public void run() {
+                if (!wentRed) {
+                    activate(MID_YELLOW);
+                }
+            }
+        }, now + AMBER_TIME);
+        scheduler.postAt(new Runnable() {
+            @Override
+            public void run() {
+                if (!wentRed) {
+                    activate(BOTTOM_YELLOW);
+                }
+            }
+        }, now + 2 * AMBER_TIME);
+        scheduler.postAt(new Runnable() {
+            @Override
+            public void run() {
+                if (!wentRed) {
+                    persist(GREEN);
+                }
+            }
+        }, now + 3 * AMBER_TIME);
+    }
+
+    // This method updates the tree if its lane is disqualified
+    public void goRed() {
+        wentRed = true;
+        persist(RED);
+        resetBulb(GREEN);
+
+        if (active[TOP_YELLOW]) {
+            persist(TOP_YELLOW);
+        } else if (active[MID_YELLOW]) {
+            persist(MID_YELLOW);
+        } else if (active[BOTTOM_YELLOW]) {
+            persist(BOTTOM_YELLOW);
+        }
+    }
+
+    // This method flashes the tree to show its lane won the race
+    public void win() {
+        for (int bulb = TOP_YELLOW; bulb <= GREEN; bulb++) {
+            activate(bulb);
+        }
+        scheduler.postAt(new Runnable() {
+            @Override
+            public void run() {
+                for (int bulb = TOP_YELLOW; bulb <= GREEN; bulb++) {
+                    activate(bulb);
+                }
+            }
+        }, scheduler.uptimeMillis() + 2 * AMBER_TIME);
+    }
+
+    // This method lights a bulb for AMBER_TIME, unless it is persisted in the meantime
+    private void activate(final int bulb) {
+        if (active[bulb]) {
+            return;
+        }
+        scheduler.postAt(new Runnable() {
+            @Override
+            public void run() {
+                if (!persisted[bulb]) {
+                    setActive(bulb, false);
+                }
+            }
+        }, scheduler.uptimeMillis() + AMBER_TIME);
+        setActive(bulb, true);
+    }
+
+    // This method lights a bulb indefinitely
+    private void persist(int bulb) {
+        setActive(bulb, true);
+        persisted[bulb] = true;
+    }
+
+    private void resetBulb(int bulb) {
+        setActive(bulb, false);
+        persisted[bulb] = false;
+    }
+}
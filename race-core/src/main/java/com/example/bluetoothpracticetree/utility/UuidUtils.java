@@ -1,7 +1,5 @@
 package com.example.bluetoothpracticetree.utility;
 
-import android.util.Log;
-
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
@@ -39,6 +37,34 @@ public class UuidUtils {
     public static final UUID RACE_READY = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec01");
     public static final UUID RACE_FINISHED = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec02");
 
+    public static final UUID SESSION_ID = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec03");
+    public static final UUID RACE_SNAPSHOT = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec04");
+
+    public static final UUID CLOCK = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec05");
+    public static final UUID RELEASE = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec06");
+    public static final UUID FOUL = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec07");
+    public static final UUID ROUND = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec08");
+    public static final UUID HEAT = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec09");
+    public static final UUID GROUP_ID = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec0a");
+    public static final UUID LINK = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec0b");
+    public static final UUID SESSION = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec0d");
+    public static final UUID PING = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec0e");
+
+    // The characteristics a client can use in the race service, which are the ones carried over
+    // Wi-Fi. Linking hosts is only done over BLE
+    public static final UUID[] RACE_CHARACTERISTICS = {
+            BEGIN_RACE_ACTIVITY, RACER_ID,
+            RACER_1_DIAL, RACER_1_STAGE, RACER_1_RT,
+            RACER_2_DIAL, RACER_2_STAGE, RACER_2_RT,
+            RACER_3_DIAL, RACER_3_STAGE, RACER_3_RT,
+            RACER_HOST_DIAL, RACER_HOST_STAGE, RACER_HOST_RT,
+            RACE_READY, RACE_FINISHED, SESSION_ID, RACE_SNAPSHOT,
+            CLOCK, RELEASE, FOUL, ROUND, HEAT, GROUP_ID, SESSION, PING};
+
+    // Peer mode has its own service, so peers are never listed as hosts to join
+    public static final UUID PEER_SERVICE = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecebf2");
+    public static final UUID PEER_STATE = UUID.fromString("5b4a0066-4038-4786-be23-e5bbefecec0c");
+
     public static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     // This method converts the raw advertisement data collected by a scanning device and returns
@@ -84,7 +110,7 @@ public class UuidUtils {
                         }
                         catch(IndexOutOfBoundsException e)
                         {
-                            Log.e("TAG", e.toString());
+                            // A UUID cut off at the end of the advertisement is skipped
                         }
                         finally
                         {
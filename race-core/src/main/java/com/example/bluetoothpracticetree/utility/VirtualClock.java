@@ -0,0 +1,80 @@
+package com.example.bluetoothpracticetree.utility;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/*
+    This class is a RaceScheduler whose time only moves when it is told to, so race logic can be
+    run faster than real time, and the same way every time. Advancing the clock runs every task
+    due by then in order of time, and in the order they were posted for tasks due at the same
+    time, just like a Handler does.
+ */
+
+public class VirtualClock implements RaceScheduler {
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long now;
+    private long posted = 0;
+
+    private static class Task implements Comparable<Task> {
+        final Runnable runnable;
+        final long time;
+        final long order;
+
+        Task(Runnable runnable, long time, long order) {
+            this.runnable = runnable;
+            this.time = time;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+
+    public VirtualClock(long start) {
+        now = start;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void postAt(Runnable task, long uptimeMillis) {
+        tasks.add(new Task(task, Math.max(now, uptimeMillis), posted++));
+    }
+
+    @Override
+    public void remove(Runnable task) {
+        for (Iterator<Task> iterator = tasks.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().runnable == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // This method runs every task due by the given time, including any they post that are due by
+    // then too, and leaves the clock at that time
+    public void advanceTo(long time) {
+        while (!tasks.isEmpty() && tasks.peek().time <= time) {
+            Task task = tasks.poll();
+            now = task.time;
+            task.runnable.run();
+        }
+        now = Math.max(now, time);
+    }
+
+    // This method runs tasks until there are none left
+    public void runUntilIdle() {
+        while (!tasks.isEmpty()) {
+            Task task = tasks.poll();
+            now = task.time;
+            task.runnable.run();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Estimates the host's clock from reads with different round trips.
+ */
+public class ClockSyncTest {
+    // The host's clock runs this far ahead of the local one
+    private static final long OFFSET = 123456;
+
+    // A read of the host's clock, which the host answered after the given delay out
+    private static void read(ClockSync sync, long sentAt, long out, long back) {
+        sync.addSample(sentAt, sentAt + out + OFFSET, sentAt + out + back);
+    }
+
+    @Test
+    public void newSync_isNotSynced() {
+        ClockSync sync = new ClockSync();
+        assertFalse(sync.isSynced());
+        assertEquals(0, sync.getOffset());
+    }
+
+    @Test
+    public void symmetricRead_givesTheExactOffset() {
+        ClockSync sync = new ClockSync();
+        read(sync, 1000, 20, 20);
+
+        assertTrue(sync.isSynced());
+        assertEquals(OFFSET, sync.getOffset());
+        assertEquals(40, sync.getRoundTrip());
+    }
+
+    @Test
+    public void lopsidedRead_isOffByHalfTheDifference_withinHalfTheRoundTrip() {
+        ClockSync sync = new ClockSync();
+        read(sync, 1000, 30, 10);
+
+        assertEquals(OFFSET + 10, sync.getOffset());
+        assertTrue(Math.abs(sync.getOffset() - OFFSET) <= sync.getRoundTrip() / 2);
+    }
+
+    @Test
+    public void shortestRoundTrip_isKept() {
+        ClockSync sync = new ClockSync();
+        read(sync, 1000, 60, 10);
+        read(sync, 2000, 4, 4);
+        read(sync, 3000, 10, 50);
+
+        assertEquals(OFFSET, sync.getOffset());
+        assertEquals(8, sync.getRoundTrip());
+    }
+
+    @Test
+    public void backwardsRead_isIgnored() {
+        ClockSync sync = new ClockSync();
+        sync.addSample(1000, 5000, 999);
+        assertFalse(sync.isSynced());
+    }
+
+    @Test
+    public void times_convertBothWays() {
+        ClockSync sync = new ClockSync();
+        read(sync, 1000, 20, 20);
+
+        assertEquals(5000 + OFFSET, sync.toHostTime(5000));
+        assertEquals(5000, sync.toLocalTime(sync.toHostTime(5000)));
+    }
+
+    @Test
+    public void reset_forgetsEverySample() {
+        ClockSync sync = new ClockSync();
+        read(sync, 1000, 20, 20);
+        sync.reset();
+
+        assertFalse(sync.isSynced());
+        assertEquals(0, sync.getOffset());
+        assertEquals(Long.MAX_VALUE, sync.getRoundTrip());
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Posts to a running loop from other threads, including while it is going to sleep.
+ */
+public class EventLoopTest {
+    private static final long TIMEOUT = 2;
+
+    private EventLoop loop;
+
+    @Before
+    public void setUp() {
+        loop = new EventLoop("test", 64);
+        loop.start();
+    }
+
+    @After
+    public void tearDown() {
+        loop.quit();
+    }
+
+    @Test
+    public void messageToAnIdleLoop_isAlwaysRun() throws Exception {
+        // Each message is posted just as the loop has run out of work, which is when a missed
+        // wakeup would leave it asleep for good
+        final Semaphore done = new Semaphore(0);
+        Runnable message = new Runnable() {
+            @Override
+            public void run() {
+                done.release();
+            }
+        };
+        for (int i = 0; i < 20000; i++) {
+            assertTrue(loop.post(message));
+            assertTrue("Message " + i + " was never run", done.tryAcquire(TIMEOUT, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void manyProducers_everyMessageIsRunInOrder() throws Exception {
+        final int producers = 4;
+        final int messages = 50000;
+        final AtomicInteger run = new AtomicInteger();
+        final int[] last = new int[producers];
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= messages; i++) {
+                        final int number = i;
+                        Runnable message = new Runnable() {
+                            @Override
+                            public void run() {
+                                if (last[producer] != number - 1) {
+                                    outOfOrder.incrementAndGet();
+                                }
+                                last[producer] = number;
+                                if (run.incrementAndGet() == producers * messages) {
+                                    finished.countDown();
+                                }
+                            }
+                        };
+                        // The mailbox is small, so a full one is retried
+                        while (!loop.post(message)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        assertTrue("Only " + run.get() + " messages were run", finished.await(30, TimeUnit.SECONDS));
+        assertEquals(0, outOfOrder.get());
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
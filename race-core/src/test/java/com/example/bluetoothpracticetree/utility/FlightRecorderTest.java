@@ -0,0 +1,112 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records into a small ring, and reads back what it dumps.
+ */
+public class FlightRecorderTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("flight", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private ByteBuffer readDump() throws Exception {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            return input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void capacity_isRoundedUpToAPowerOfTwo() {
+        assertEquals(16, new FlightRecorder(10).getCapacity());
+        assertEquals(16, new FlightRecorder(16).getCapacity());
+    }
+
+    @Test
+    public void dump_keepsEveryRecordInOrder() throws Exception {
+        FlightRecorder recorder = new FlightRecorder(16);
+        recorder.record(FlightRecorder.TOUCH, 2, 7, 1);
+        recorder.record(FlightRecorder.BULB, 2, 0, 5);
+
+        assertEquals(2, recorder.dump(file));
+        ByteBuffer dump = readDump();
+        assertEquals(FlightRecorder.HEADER_SIZE + 2 * FlightRecorder.RECORD_SIZE, dump.remaining());
+        assertEquals(FlightRecorder.MAGIC, dump.getInt(0));
+        assertEquals(2, dump.getInt(8));
+
+        List<String> lines = FlightRecorder.describe(dump);
+        assertTrue(lines.get(0).contains("TOUCH"));
+        assertTrue(lines.get(0).contains("lane 2 seq 7 value 1"));
+        assertTrue(lines.get(1).contains("BULB"));
+    }
+
+    @Test
+    public void fullRing_keepsTheNewestRecords() throws Exception {
+        FlightRecorder recorder = new FlightRecorder(16);
+        for (int i = 0; i < 40; i++) {
+            recorder.record(FlightRecorder.GATT_NOTIFY, 1, i, i);
+        }
+
+        assertEquals(16, recorder.dump(file));
+        List<String> lines = FlightRecorder.describe(readDump());
+        assertTrue(lines.get(0).endsWith("seq 24 value 24"));
+        assertTrue(lines.get(15).endsWith("seq 39 value 39"));
+    }
+
+    @Test
+    public void recordsFromManyThreads_areNeverTorn() throws Exception {
+        final FlightRecorder recorder = new FlightRecorder(64);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int lane = t + 1;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        recorder.record(FlightRecorder.GATT_WRITE, lane, i, (long) lane * i);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (int i = 0; i < 20; i++) {
+            recorder.dump(file);
+            ByteBuffer dump = readDump();
+            for (int r = 0; r < dump.getInt(8); r++) {
+                int offset = FlightRecorder.HEADER_SIZE + r * FlightRecorder.RECORD_SIZE;
+                long packed = dump.getLong(offset + 8);
+                int lane = (int) (packed >>> 40) & 0xFF;
+                assertEquals((long) lane * (int) packed, dump.getLong(offset + 16));
+            }
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+    }
+
+    @Test
+    public void somethingElse_isNotADump() {
+        assertNull(FlightRecorder.describe(ByteBuffer.wrap(new byte[64])));
+    }
+}
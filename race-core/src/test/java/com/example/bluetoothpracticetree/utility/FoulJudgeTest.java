@@ -0,0 +1,92 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Judges releases around each lane's green, with and without handicaps and rollout.
+ */
+public class FoulJudgeTest {
+    private static final long START = 10000;
+
+    private final FoulJudge judge = new FoulJudge();
+
+    // Lane 2 is dialed 500 ms quicker, so its tree drops 500 ms after the others
+    @Before
+    public void setUp() {
+        judge.start(START, new long[] {10500, 10000, 10500, 10500});
+    }
+
+    @Test
+    public void greenTimes_countFromTheSlowestDialIn() {
+        assertEquals(START + FoulJudge.TREE_TIME, judge.getGreenTime(1));
+        assertEquals(START + 500 + FoulJudge.TREE_TIME, judge.getGreenTime(2));
+    }
+
+    @Test
+    public void releaseOnGreen_isNotAFoul() {
+        assertFalse(judge.onRelease(1, judge.getGreenTime(1), 0));
+        assertEquals(0, judge.getFoulMask());
+    }
+
+    @Test
+    public void releaseAMillisecondBeforeGreen_isAFoul() {
+        assertTrue(judge.onRelease(1, judge.getGreenTime(1) - 1, 0));
+        assertEquals("1|1", judge.encode());
+    }
+
+    @Test
+    public void rollout_movesTheBoundaryEarlier() {
+        long green = judge.getGreenTime(1);
+        assertFalse(judge.onRelease(1, green - 30, 30));
+        assertTrue(judge.onRelease(3, judge.getGreenTime(3) - 31, 30));
+        assertEquals(0b100, judge.getFoulMask());
+    }
+
+    @Test
+    public void handicap_isJudgedAgainstTheLanesOwnGreen() {
+        // Still before lane 2's green, although lane 1 is green by then
+        assertTrue(judge.onRelease(2, judge.getGreenTime(1) + 100, 0));
+        assertFalse(judge.onRelease(1, judge.getGreenTime(1) + 100, 0));
+        assertEquals(0b10, judge.getFoulMask());
+    }
+
+    @Test
+    public void firstFoul_isTheLaneThatLeftEarliestForItsOwnGreen() {
+        assertTrue(judge.onRelease(1, judge.getGreenTime(1) - 50, 0));
+        assertTrue(judge.onRelease(2, judge.getGreenTime(2) - 80, 0));
+        assertTrue(judge.onRelease(3, judge.getGreenTime(3) - 10, 0));
+
+        assertEquals(0b111, judge.getFoulMask());
+        assertEquals(2, judge.getFirstFoul());
+        assertEquals(0b111, FoulJudge.decodeMask(judge.encode()));
+        assertEquals(2, FoulJudge.decodeFirstFoul(judge.encode()));
+    }
+
+    @Test
+    public void foulingTwice_orAfterTheRace_changesNothing() {
+        assertTrue(judge.onRelease(1, judge.getGreenTime(1) - 50, 0));
+        assertFalse(judge.onRelease(1, judge.getGreenTime(1) - 500, 0));
+        assertEquals(1, judge.getFirstFoul());
+
+        judge.stop();
+        assertFalse(judge.onRelease(2, START, 0));
+        assertEquals(0b1, judge.getFoulMask());
+    }
+
+    @Test
+    public void reactionTime_isNegativeExactlyWhenTheHostCallsAFoul() {
+        long treeTime = START;
+        assertEquals(0, FoulJudge.reactionTime(judge.getGreenTime(1), treeTime, 0));
+        assertEquals(-1, FoulJudge.reactionTime(judge.getGreenTime(1) - 1, treeTime, 0));
+    }
+
+    @Test
+    public void malformedFouls_decodeToNone() {
+        assertEquals(0, FoulJudge.decodeMask(null));
+        assertEquals(0, FoulJudge.decodeMask("5"));
+        assertEquals(0, FoulJudge.decodeFirstFoul("5|x"));
+    }
+}
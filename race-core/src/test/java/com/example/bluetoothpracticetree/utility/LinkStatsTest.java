@@ -0,0 +1,84 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LinkStatsTest {
+
+    @Test
+    public void newStats_areUnknown() {
+        LinkStats stats = new LinkStats();
+        assertEquals(LinkStats.UNKNOWN, stats.get(2, LinkStats.RTT));
+        assertEquals("L2 rtt - ci - mtu - q - skew -/- rssi -", stats.describe(2));
+    }
+
+    @Test
+    public void describe_showsTimesInMillis() {
+        LinkStats stats = new LinkStats();
+        stats.set(1, LinkStats.RTT, 23400);
+        stats.set(1, LinkStats.INTERVAL, 7500);
+        stats.set(1, LinkStats.MTU, 64);
+        stats.set(1, LinkStats.QUEUE, 0);
+        stats.set(1, LinkStats.SKEW, 3100);
+        stats.set(1, LinkStats.MAX_SKEW, 9800);
+        stats.set(1, LinkStats.RSSI, -61);
+        assertEquals("L1 rtt 23.4ms ci 7.5ms mtu 64 q 0 skew 3.1ms/9.8ms rssi -61", stats.describe(1));
+        assertTrue(stats.describe(LinkStats.HOST_LINK).startsWith("host rtt -"));
+    }
+
+    @Test
+    public void ping_setsWhatTheClientMeasured() {
+        LinkStats stats = new LinkStats();
+        String ping = LinkStats.encodePing(18250, -70, 2);
+        assertTrue(stats.applyPing(3, ping.getBytes()));
+        assertEquals(18250, stats.get(3, LinkStats.RTT));
+        assertEquals(-70, stats.get(3, LinkStats.RSSI));
+        assertEquals(2, stats.get(3, LinkStats.QUEUE));
+        assertEquals(LinkStats.UNKNOWN, stats.get(3, LinkStats.MTU));
+    }
+
+    @Test
+    public void firstPing_leavesUnknownMeasurementsEmpty() {
+        LinkStats stats = new LinkStats();
+        String ping = LinkStats.encodePing(LinkStats.UNKNOWN, LinkStats.UNKNOWN, 0);
+        assertEquals(",,0", ping);
+        assertTrue(stats.applyPing(1, ping.getBytes()));
+        assertEquals(LinkStats.UNKNOWN, stats.get(1, LinkStats.RTT));
+        assertEquals(LinkStats.UNKNOWN, stats.get(1, LinkStats.RSSI));
+        assertEquals(0, stats.get(1, LinkStats.QUEUE));
+    }
+
+    @Test
+    public void ping_fitsInOneWriteAtTheDefaultMtu() {
+        long[] extremes = {LinkStats.UNKNOWN, Long.MIN_VALUE + 1, -1, 0, Long.MAX_VALUE};
+        for (long rtt : extremes) {
+            for (long rssi : extremes) {
+                for (long queue : extremes) {
+                    String ping = LinkStats.encodePing(rtt, rssi, queue);
+                    assertTrue(ping, ping.getBytes().length <= LinkStats.PING_LIMIT);
+                    assertTrue(ping, new LinkStats().applyPing(1, ping.getBytes()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void malformedPing_isIgnored() {
+        LinkStats stats = new LinkStats();
+        assertFalse(stats.applyPing(1, "12,x,0".getBytes()));
+        assertFalse(stats.applyPing(1, "12".getBytes()));
+        assertFalse(stats.applyPing(1, null));
+        assertEquals(LinkStats.UNKNOWN, stats.get(1, LinkStats.RTT));
+    }
+
+    @Test
+    public void clear_forgetsALane() {
+        LinkStats stats = new LinkStats();
+        stats.set(1, LinkStats.MTU, 64);
+        stats.set(2, LinkStats.MTU, 185);
+        stats.clear(1);
+        assertEquals(LinkStats.UNKNOWN, stats.get(1, LinkStats.MTU));
+        assertEquals(185, stats.get(2, LinkStats.MTU));
+    }
+}
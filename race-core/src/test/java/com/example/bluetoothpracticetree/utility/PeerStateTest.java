@@ -0,0 +1,72 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PeerStateTest {
+    // What a notification carries at the default MTU
+    private static final int DEFAULT_PAYLOAD = 20;
+
+    private static PeerState racing() {
+        PeerState state = new PeerState(1234);
+        state.staged = true;
+        state.stagedAt = 50210;
+        state.dial = 10500;
+        state.race = 3;
+        state.start = 52020;
+        state.release = 53601;
+        state.rollout = 0;
+        state.rt = "81";
+        return state;
+    }
+
+    @Test
+    public void state_roundTrips() {
+        PeerState state = racing();
+        assertEquals("1234|1|50210|10500|3|52020|53601|0|81|", state.encode());
+
+        PeerState decoded = PeerState.decode(state.encode());
+        assertNotNull(decoded);
+        assertEquals(1234, decoded.token);
+        assertTrue(decoded.staged);
+        assertEquals(50210, decoded.stagedAt);
+        assertEquals(10500, decoded.dial);
+        assertEquals(3, decoded.race);
+        assertEquals(52020, decoded.start);
+        assertEquals(53601, decoded.release);
+        assertEquals(0, decoded.rollout);
+        assertEquals("81", decoded.rt);
+    }
+
+    @Test
+    public void newState_hasNoRt() {
+        PeerState decoded = PeerState.decode(new PeerState(7).encode());
+        assertNotNull(decoded);
+        assertFalse(decoded.hasRt());
+    }
+
+    @Test
+    public void stateCutOffAtTheDefaultMtu_isRejected() {
+        String value = racing().encode();
+        assertTrue(value.length() > DEFAULT_PAYLOAD);
+        assertNull(PeerState.decode(value.substring(0, DEFAULT_PAYLOAD)));
+    }
+
+    @Test
+    public void stateCutOffInsideTheLastField_isRejected() {
+        PeerState state = racing();
+        state.rt = "1234";
+        String value = state.encode();
+        // Every field is still there, but the reaction time is short a digit
+        assertNull(PeerState.decode(value.substring(0, value.length() - 2)));
+        assertNull(PeerState.decode(value.substring(0, value.length() - 1)));
+    }
+
+    @Test
+    public void malformedState_isRejected() {
+        assertNull(PeerState.decode(null));
+        assertNull(PeerState.decode("1234|1|x|10500|3|52020|53601|0|81|"));
+        assertNull(PeerState.decode("1234|1|50210|10500|3|52020|53601|0|81|extra|"));
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a race group on a virtual clock, and checks what it notifies its members of.
+ */
+public class RaceEngineTest {
+    private static final long STAGE_WINDOW = 1500;
+
+    private final VirtualClock clock = new VirtualClock(0);
+    // Every notification, as "<time> <characteristic> <value>"
+    private final List<String> sent = new ArrayList<>();
+    private long heldUntil = 0;
+    private boolean hold = false;
+    private RaceEngine engine;
+
+    private final RaceEngine.Transport transport = new RaceEngine.Transport() {
+        @Override
+        public void notify(int characteristic, byte[] value) {
+            sent.add(clock.uptimeMillis() + " " + name(characteristic) + " " + new String(value));
+        }
+
+        @Override
+        public long checkReady(boolean staged, long stagedSince) {
+            return hold ? RaceEngine.NOT_READY : Math.max(stagedSince, heldUntil);
+        }
+
+        @Override
+        public boolean isReported() {
+            return true;
+        }
+    };
+
+    private static String name(int characteristic) {
+        if (characteristic == RaceEngine.RACE_READY) {
+            return "ready";
+        } else if (characteristic == RaceEngine.RACE_FINISHED) {
+            return "finished";
+        } else if (characteristic == RaceEngine.FOUL) {
+            return "foul";
+        } else if (characteristic == RaceEngine.ROUND) {
+            return "round";
+        } else if (RaceEngine.laneOfStage(characteristic) != 0) {
+            return "stage" + RaceEngine.laneOfStage(characteristic);
+        }
+        return Integer.toString(characteristic);
+    }
+
+    @Before
+    public void setUp() {
+        engine = new RaceEngine(1, false, clock, transport);
+        engine.setStageWindow(STAGE_WINDOW);
+        assertEquals(1, engine.assignLane());
+        assertEquals(2, engine.assignLane());
+    }
+
+    private void write(int lane, int characteristic, String value) {
+        engine.write(lane, characteristic, value.getBytes());
+    }
+
+    private void stage(int lane, boolean staged) {
+        write(lane, RaceEngine.getStage(lane), staged ? "1" : "0");
+    }
+
+    @Test
+    public void start_isArmedForTheLastLaneStagedPlusTheWindow() {
+        stage(1, true);
+        clock.advanceTo(200);
+        stage(2, true);
+
+        clock.advanceTo(200 + STAGE_WINDOW - 1);
+        assertFalse(sent.contains("1699 ready start:2000"));
+        clock.advanceTo(200 + STAGE_WINDOW);
+        assertTrue(sent.contains("1700 ready start:2000"));
+        assertEquals(2000, engine.getStartTime());
+    }
+
+    @Test
+    public void unstaging_disarmsTheStart() {
+        stage(1, true);
+        stage(2, true);
+        clock.advanceTo(1000);
+        stage(2, false);
+        clock.advanceTo(10000);
+
+        for (String notification : sent) {
+            assertFalse(notification.contains(" ready "));
+        }
+    }
+
+    @Test
+    public void results_arePublishedOnceEveryLaneHasReported() {
+        stage(1, true);
+        stage(2, true);
+        clock.advanceTo(STAGE_WINDOW);
+
+        write(1, RaceEngine.getRt(1), "512");
+        assertNull(engine.getResults());
+        write(2, RaceEngine.getRt(2), "498");
+        assertEquals("1|512,498,,", engine.getResults().encode());
+        assertTrue(sent.contains("1500 finished 1|512,498,,"));
+    }
+
+    @Test
+    public void lanesThatNeverReport_getNoResultAtTheDeadline() {
+        stage(1, true);
+        stage(2, true);
+        clock.advanceTo(STAGE_WINDOW);
+        write(1, RaceEngine.getRt(1), "512");
+
+        // The deadline counts from green, which is a tree time after the start
+        long deadline = engine.getStartTime() + FoulJudge.TREE_TIME + RaceEngine.RESULTS_DEADLINE;
+        clock.advanceTo(deadline - 1);
+        assertNull(engine.getResults());
+        clock.advanceTo(deadline);
+        assertEquals("1|512,NR,,", engine.getResults().encode());
+    }
+
+    @Test
+    public void earlyRelease_isAFoul() {
+        stage(1, true);
+        stage(2, true);
+        clock.advanceTo(STAGE_WINDOW);
+
+        long green = engine.getStartTime() + FoulJudge.TREE_TIME;
+        write(2, RaceEngine.RELEASE, (green - 10) + ",0");
+        assertEquals(0b10, engine.getFoulMask());
+        assertTrue(sent.contains("1500 foul 2|2"));
+
+        assertFalse(engine.write(1, RaceEngine.RELEASE, "soon".getBytes()));
+    }
+
+    @Test
+    public void unsyncedRelease_isJudgedAsItArrives() {
+        stage(1, true);
+        stage(2, true);
+        clock.advanceTo(STAGE_WINDOW);
+        long signal = clock.uptimeMillis();
+        long green = engine.getStartTime() + FoulJudge.TREE_TIME;
+
+        // Lane 1's trees dropped as the signal arrived, so its green came a tree time after the
+        // signal rather than after the start time, and it left a millisecond before it
+        clock.advanceTo(signal + FoulJudge.TREE_TIME - 1);
+        write(1, RaceEngine.RELEASE, ",0");
+        assertEquals(0b1, engine.getFoulMask());
+        assertEquals(0b1, engine.getUnsyncedMask());
+        assertEquals((green - 1) + ",0", engine.getString(RaceEngine.RELEASE));
+
+        clock.advanceTo(signal + FoulJudge.TREE_TIME);
+        write(2, RaceEngine.RELEASE, ",0");
+        assertEquals(0b1, engine.getFoulMask());
+        assertEquals(0b11, engine.getUnsyncedMask());
+
+        assertFalse(engine.write(2, RaceEngine.RELEASE, ",".getBytes()));
+    }
+
+    @Test
+    public void writesToAnotherLane_areRefused() {
+        assertFalse(engine.write(1, RaceEngine.getStage(2), "1".getBytes()));
+        assertFalse(engine.write(1, RaceEngine.getRt(2), "100".getBytes()));
+        assertFalse(engine.write(1, RaceEngine.getDial(2), "12000".getBytes()));
+        assertFalse(engine.write(1, RaceEngine.RACE_READY, "start:0".getBytes()));
+        assertEquals(0, engine.getStagedMask());
+        assertEquals("", engine.getString(RaceEngine.getDial(2)));
+
+        assertTrue(engine.write(2, RaceEngine.getStage(2), "1".getBytes()));
+        assertEquals(0b10, engine.getStagedMask());
+    }
+
+    @Test
+    public void reservedLane_holdsUpNeitherTheStartNorTheResults() {
+        stage(1, true);
+        stage(2, true);
+        clock.advanceTo(STAGE_WINDOW);
+
+        engine.reserveLane(2);
+        assertTrue(sent.contains("1500 stage2 0"));
+        write(1, RaceEngine.getRt(1), "512");
+        assertEquals("1|512,NR,,", engine.getResults().encode());
+
+        // Lane 2 is still held, so the next lane given out is 3
+        assertEquals(3, engine.assignLane());
+        engine.removeLane(3);
+        stage(1, false);
+        clock.advanceTo(1600);
+        stage(1, true);
+        clock.advanceTo(1600 + STAGE_WINDOW);
+        assertTrue(sent.contains("3100 ready start:3400"));
+    }
+
+    @Test
+    public void transport_canPushBackOrHoldOffTheStart() {
+        heldUntil = 700;
+        stage(1, true);
+        stage(2, true);
+        clock.advanceTo(700 + STAGE_WINDOW - 1);
+        assertEquals(0, engine.getStartTime());
+        clock.advanceTo(700 + STAGE_WINDOW);
+        assertEquals(700 + STAGE_WINDOW + RaceEngine.START_LEAD, engine.getStartTime());
+
+        // A held off group only races when it is started
+        hold = true;
+        write(1, RaceEngine.getRt(1), "512");
+        write(2, RaceEngine.getRt(2), "498");
+        clock.advanceTo(10000);
+        assertFalse(sent.contains("10000 ready start:10300"));
+        assertTrue(engine.start());
+        assertFalse(engine.start());
+        assertTrue(sent.contains("10000 ready start:10300"));
+    }
+
+    @Test
+    public void loopMode_startsTheNextRoundAfterTheCooldown() {
+        engine.setLoopMode(true, 3000);
+        stage(1, true);
+        stage(2, true);
+        clock.advanceTo(STAGE_WINDOW);
+        write(1, RaceEngine.getRt(1), "512");
+        write(2, RaceEngine.getRt(2), "498");
+
+        // Both lanes are still staged, but the next start waits for the cooldown
+        clock.advanceTo(STAGE_WINDOW + 3000 - 1);
+        assertEquals(0, engine.getRound());
+        clock.advanceTo(STAGE_WINDOW + 3000);
+        assertEquals(1, engine.getRound());
+        assertTrue(sent.contains("4500 round 1"));
+        assertTrue(sent.contains("4500 ready start:4800"));
+    }
+}
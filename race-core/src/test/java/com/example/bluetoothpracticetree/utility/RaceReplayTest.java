@@ -0,0 +1,128 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays small race logs, and checks what every device showed and what the host judged.
+ */
+public class RaceReplayTest {
+
+    // Two lanes with a 500 ms handicap, so lane 2 drops 500 ms after lane 1
+    private RaceLog twoLaneRace() {
+        RaceLog log = new RaceLog();
+        log.addDial(0, 1, 10500);
+        log.addDial(0, 2, 10000);
+        log.addStage(1000, 1, true);
+        log.addStage(1100, 2, true);
+        log.addStart(2600, 2900);
+        log.addRelease(4430, 1, 4420, 0);
+        log.addStage(4430, 1, false);
+        log.addRt(4431, 1, 20);
+        log.addRelease(4960, 2, 4950, 30);
+        log.addStage(4960, 2, false);
+        log.addRt(4961, 2, 80);
+        return log;
+    }
+
+    @Test
+    public void replay_reproducesTheReactionTimes_andResults() {
+        RaceReplay replay = new RaceReplay(twoLaneRace());
+        List<String> transcript = replay.run();
+
+        assertTrue(transcript.contains("2900 drop 1 1 0"));
+        assertTrue(transcript.contains("3400 drop 2 2 0"));
+        assertTrue(transcript.contains("4400 bulb 1 1 green 1"));
+        assertTrue(transcript.contains("4420 rt 1 20"));
+        assertTrue(transcript.contains("4950 rt 2 80"));
+        assertTrue(transcript.contains("4950 results 1|20,80,,"));
+        assertEquals(0, replay.getMismatches());
+    }
+
+    @Test
+    public void earlyRelease_isJudgedAFoul_andTurnsTheTreeRed() {
+        RaceLog log = new RaceLog();
+        log.addStage(1000, 1, true);
+        log.addStart(2600, 2900);
+        log.addRelease(4300, 1, 4300, 0);
+        log.addRt(4301, 1, -100);
+
+        RaceReplay replay = new RaceReplay(log);
+        List<String> transcript = replay.run();
+
+        assertTrue(transcript.contains("4300 foul 1|1"));
+        assertTrue(transcript.contains("4300 bulb 1 1 red 1"));
+        assertFalse(transcript.contains("4400 bulb 1 1 green 1"));
+        assertEquals(0, replay.getMismatches());
+    }
+
+    @Test
+    public void slowLink_dropsTheTreeLate_butKeepsTheReactionTime() {
+        RaceLog log = new RaceLog();
+        log.addLink(0, 1, 400);
+        log.addStage(1000, 1, true);
+        log.addStart(2600, 2900);
+        log.addRelease(4800, 1, 4450, 0);
+        log.addRt(4851, 1, 50);
+
+        RaceReplay replay = new RaceReplay(log);
+        List<String> transcript = replay.run();
+
+        assertTrue(transcript.contains("3000 drop 1 1 100"));
+        assertTrue(transcript.contains("4450 rt 1 50"));
+        assertEquals(0, replay.getMismatches());
+    }
+
+    @Test
+    public void differentReportedRt_isAMismatch() {
+        RaceLog log = twoLaneRace();
+        log.addRt(5000, 2, 81);
+
+        RaceReplay replay = new RaceReplay(log);
+        assertTrue(replay.run().contains("5000 mismatch 2 81 80"));
+        assertEquals(1, replay.getMismatches());
+    }
+
+    @Test
+    public void writtenLog_replaysTheSame() throws Exception {
+        StringWriter written = new StringWriter();
+        twoLaneRace().write(written);
+        RaceLog read = RaceLog.read(new StringReader("# recorded\n\n" + written));
+
+        assertEquals(new RaceReplay(twoLaneRace()).run(), new RaceReplay(read).run());
+    }
+
+    @Test
+    public void recordedWrites_areJudgedLikeTheHostJudgedThem() {
+        RaceLog log = new RaceLog();
+        log.addWrite(0, 1, RaceEngine.getDial(1), "10500");
+        log.addWrite(0, 2, RaceEngine.getDial(2), "10500");
+        log.addWrite(1000, 1, RaceEngine.getStage(1), "1");
+        log.addWrite(1100, 2, RaceEngine.getStage(2), "1");
+        log.addStart(2600, 2900);
+        assertNull(log.addWrite(4430, 1, RaceEngine.RELEASE, "soon"));
+        log.addWrite(4430, 1, RaceEngine.RELEASE, "4420,0");
+        log.addWrite(4431, 1, RaceEngine.getRt(1), "20");
+
+        // Lane 2 never lets go, so it has no result once the deadline after its green has passed
+        List<String> transcript = new RaceReplay(log).run();
+        assertTrue(transcript.contains("4420 rt 1 20"));
+        assertTrue(transcript.contains((4400 + RaceEngine.RESULTS_DEADLINE) + " results 1|20,NR,,"));
+    }
+
+    @Test
+    public void malformedLine_isRejected() throws Exception {
+        try {
+            RaceLog.read(new StringReader("100 stage 1 1\n100 stage 5 1\n"));
+            fail("Lane 5 was accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("line 2"));
+        }
+    }
+}
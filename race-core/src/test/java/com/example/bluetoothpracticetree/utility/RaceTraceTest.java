@@ -0,0 +1,131 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Traces into a tracer that keeps what it was given.
+ */
+public class RaceTraceTest {
+    private final List<String> calls = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        RaceTrace.setTracer(new RaceTrace.Tracer() {
+            @Override
+            public void beginSection(String name) {
+                calls.add("begin " + name);
+            }
+
+            @Override
+            public void endSection() {
+                calls.add("end");
+            }
+
+            @Override
+            public void beginAsyncSection(String name, int cookie) {
+                calls.add("beginAsync " + name + " #" + cookie);
+            }
+
+            @Override
+            public void endAsyncSection(String name, int cookie) {
+                calls.add("endAsync " + name + " #" + cookie);
+            }
+
+            @Override
+            public void setCounter(String name, long value) {
+                calls.add("counter " + name + " " + value);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        RaceTrace.setEnabled(false);
+        RaceTrace.setTracer(null);
+        RaceTrace.setRace(0, 0);
+    }
+
+    @Test
+    public void switchedOff_tracesNothing() {
+        RaceTrace.setEnabled(false);
+        boolean traced = RaceTrace.begin("setStage", 2);
+        RaceTrace.end(traced);
+        RaceTrace.Slice slice = RaceTrace.beginAsync("to green", 2);
+        RaceTrace.endAsync(slice);
+        RaceTrace.counter("staged lanes", 3);
+
+        assertFalse(traced);
+        assertNull(slice);
+        assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    public void sections_areTaggedWithTheGroupRaceAndLane() {
+        RaceTrace.setEnabled(true);
+        RaceTrace.setRace(2, 52020);
+        boolean traced = RaceTrace.begin("setStage", 2);
+        RaceTrace.end(traced);
+
+        assertEquals("begin setStage group=2 race=52020 lane=2", calls.get(0));
+        assertEquals("end", calls.get(1));
+    }
+
+    @Test
+    public void sectionBegunBeforeSwitchingOff_isStillEnded() {
+        RaceTrace.setEnabled(true);
+        boolean traced = RaceTrace.begin("dropTrees", 1);
+        RaceTrace.setEnabled(false);
+        RaceTrace.end(traced);
+
+        assertEquals(2, calls.size());
+        assertEquals("end", calls.get(1));
+    }
+
+    private String cookieOf(int call) {
+        return calls.get(call).substring(calls.get(call).indexOf('#'));
+    }
+
+    @Test
+    public void asyncSlices_ofEachLaneGroupAndRace_haveTheirOwnCookies() {
+        RaceTrace.setEnabled(true);
+        RaceTrace.setRace(1, 52020);
+        RaceTrace.beginAsync("to green", 1);
+        RaceTrace.beginAsync("to green", 2);
+        RaceTrace.beginAsync("to green", 2, 52020, 1);
+        RaceTrace.setRace(1, 61500);
+        RaceTrace.beginAsync("to green", 1);
+
+        assertNotEquals(cookieOf(0), cookieOf(1));
+        assertNotEquals(cookieOf(0), cookieOf(2));
+        assertNotEquals(cookieOf(0), cookieOf(3));
+        assertEquals("beginAsync to green group=2 race=52020 lane=1 " + cookieOf(2), calls.get(2));
+    }
+
+    @Test
+    public void asyncSlice_endsAsItBegan_afterTheRaceHasMovedOn() {
+        RaceTrace.setEnabled(true);
+        RaceTrace.setRace(1, 52020);
+        RaceTrace.Slice slice = RaceTrace.beginAsync("stage window", 0);
+        RaceTrace.setRace(1, 61500);
+        RaceTrace.setEnabled(false);
+        RaceTrace.endAsync(slice);
+
+        assertEquals(calls.get(0).replace("beginAsync", "endAsync"), calls.get(1));
+    }
+
+    @Test
+    public void noOpTracer_isInstalledInPlaceOfNull() {
+        RaceTrace.setTracer(null);
+        RaceTrace.setEnabled(true);
+        RaceTrace.end(RaceTrace.begin("calculateRt", 1));
+
+        assertTrue(calls.isEmpty());
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SessionReplicaTest {
+
+    private static RaceResults results(String... laneResults) {
+        RaceResults results = new RaceResults();
+        for (int lane = 1; lane <= laneResults.length; lane++) {
+            results.setResult(lane, laneResults[lane - 1]);
+        }
+        return results;
+    }
+
+    @Test
+    public void session_roundTrips() {
+        SessionReplica replica = new SessionReplica();
+        replica.setSessionId("3f2a91");
+        replica.setRound(4);
+        replica.setTournament(Arrays.asList("Ann", "Bob"), Tournament.SINGLE_ELIMINATION);
+        replica.setMember(1, "AA:BB:CC:DD:EE:01", "10500");
+        replica.setMember(3, "AA:BB:CC:DD:EE:03", null);
+        replica.addHeat(2, results("512", RaceResults.NO_RESULT).encode());
+        assertEquals("3f2a91|4|1|Ann,Bob|1=AA:BB:CC:DD:EE:01=10500;3=AA:BB:CC:DD:EE:03=|2:1|512,NR,,",
+                replica.encode());
+
+        SessionReplica decoded = SessionReplica.decode(replica.encode());
+        assertNotNull(decoded);
+        assertEquals("3f2a91", decoded.getSessionId());
+        assertEquals(4, decoded.getRound());
+        assertEquals("AA:BB:CC:DD:EE:01", decoded.getAddress(1));
+        assertEquals("10500", decoded.getDial(1));
+        assertFalse(decoded.hasMember(2));
+        assertEquals("", decoded.getDial(3));
+        assertEquals(replica.encode(), decoded.encode());
+    }
+
+    @Test
+    public void malformedSession_isRejected() {
+        assertNull(SessionReplica.decode(null));
+        // Cut off before the heats
+        assertNull(SessionReplica.decode("3f2a91|4|1|Ann,Bob|1=AA:BB:CC:DD:EE:01=10500"));
+        assertNull(SessionReplica.decode("3f2a91|x|1|Ann,Bob||"));
+        assertNull(SessionReplica.decode("3f2a91|4|1|Ann,Bob|9=AA:BB:CC:DD:EE:01=0|"));
+        assertNull(SessionReplica.decode("3f2a91|4|1|Ann,Bob|1=AA:BB:CC:DD:EE:01|"));
+    }
+
+    @Test
+    public void successor_isTheLowestLaneLeft() {
+        SessionReplica replica = new SessionReplica();
+        assertEquals(0, replica.electSuccessor());
+        replica.setMember(3, "AA:BB:CC:DD:EE:03", "");
+        replica.setMember(2, "AA:BB:CC:DD:EE:02", "");
+        assertEquals(2, replica.electSuccessor());
+
+        // A successor that cannot be reached is left out
+        replica.removeMember(2);
+        assertEquals(3, replica.electSuccessor());
+    }
+
+    @Test
+    public void restoredTournament_carriesOnWhereItLeftOff() {
+        Tournament original = new Tournament(Arrays.asList("A", "B", "C", "D"),
+                Tournament.SINGLE_ELIMINATION, 4);
+        SessionReplica replica = new SessionReplica();
+        replica.setTournament(Arrays.asList("A", "B", "C", "D"), Tournament.SINGLE_ELIMINATION);
+        String[][] heats = {{"100", "110", "120", "130"}, {"100", "130", "110", "120"}};
+        for (String[] heat : heats) {
+            original.nextHeat();
+            original.recordResults(results(heat), 0b0100);
+            replica.addHeat(0b0100, results(heat).encode());
+        }
+
+        Tournament restored = SessionReplica.decode(replica.encode()).createTournament(4);
+        assertNotNull(restored);
+        assertEquals(original.nextHeat().encode(), restored.nextHeat().encode());
+    }
+
+    @Test
+    public void openPractice_hasNoTournament() {
+        SessionReplica replica = SessionReplica.decode("3f2a91|0|0|||");
+        assertNotNull(replica);
+        assertNull(replica.createTournament(4));
+    }
+}
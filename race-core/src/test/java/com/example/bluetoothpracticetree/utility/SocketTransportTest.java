@@ -0,0 +1,162 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the socket transport against localhost, with the host answering every request the way
+ * the race server does.
+ */
+public class SocketTransportTest {
+    private static final long TIMEOUT = 2;
+
+    private final BlockingQueue<Object> hostEvents = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Object> clientEvents = new LinkedBlockingQueue<>();
+    private SocketServer server;
+    private SocketClient client;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new SocketServer(new SocketServer.Listener() {
+            @Override
+            public void onConnected(String address) {
+                hostEvents.add("connected " + address);
+            }
+
+            @Override
+            public void onFrame(String address, SocketFrame frame) {
+                hostEvents.add(frame);
+                server.send(address, SocketFrame.response(frame.getCharacteristic(), 0,
+                        frame.getType() == SocketFrame.READ ? "2".getBytes() : null));
+            }
+
+            @Override
+            public void onDisconnected(String address) {
+                hostEvents.add("disconnected " + address);
+            }
+        });
+        port = server.start(0);
+        client = connect(clientEvents);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    private SocketClient connect(final BlockingQueue<Object> events) throws Exception {
+        SocketClient socketClient = new SocketClient(new SocketClient.Listener() {
+            @Override
+            public void onConnected() {
+                events.add("connected");
+            }
+
+            @Override
+            public void onFrame(SocketFrame frame) {
+                events.add(frame);
+            }
+
+            @Override
+            public void onDisconnected() {
+                events.add("disconnected");
+            }
+        });
+        socketClient.connect("127.0.0.1", port);
+        assertEquals("connected", events.poll(TIMEOUT, TimeUnit.SECONDS));
+        return socketClient;
+    }
+
+    @Test
+    public void frame_roundTrips() throws Exception {
+        byte[] data = SocketFrame.write(UuidUtils.RELEASE, "1234,56".getBytes()).encode();
+        SocketFrame frame = SocketFrame.decode(ByteBuffer.wrap(data));
+
+        assertEquals(SocketFrame.WRITE, frame.getType());
+        assertEquals(UuidUtils.RELEASE, frame.getUuid());
+        assertEquals("1234,56", new String(frame.getValue()));
+    }
+
+    @Test
+    public void frame_waitsForTheRestOfIt() throws Exception {
+        byte[] data = SocketFrame.notify(UuidUtils.RACE_READY, "start:100".getBytes()).encode();
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, data.length - 1);
+
+        assertNull(SocketFrame.decode(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void client_getsAnAddressFromItsIp() throws Exception {
+        String event = (String) hostEvents.poll(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals("connected 02:7F:00:00:01:00", event);
+        assertTrue(SocketServer.isSocketAddress(event.substring("connected ".length())));
+    }
+
+    @Test
+    public void read_isAnswered() throws Exception {
+        hostEvents.poll(TIMEOUT, TimeUnit.SECONDS);
+        assertTrue(client.send(SocketFrame.read(UuidUtils.RACER_ID)));
+
+        SocketFrame request = (SocketFrame) hostEvents.poll(TIMEOUT, TimeUnit.SECONDS);
+        SocketFrame response = (SocketFrame) clientEvents.poll(TIMEOUT, TimeUnit.SECONDS);
+        assertEquals(SocketFrame.READ, request.getType());
+        assertEquals(UuidUtils.RACER_ID, request.getUuid());
+        assertEquals(SocketFrame.RESPONSE, response.getType());
+        assertEquals(UuidUtils.RACER_ID, response.getUuid());
+        assertEquals("2", new String(response.getValue()));
+    }
+
+    @Test
+    public void notifications_arriveInOrder() throws Exception {
+        String address = ((String) hostEvents.poll(TIMEOUT, TimeUnit.SECONDS)).substring("connected ".length());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(server.send(address, SocketFrame.notify(UuidUtils.RACER_1_STAGE,
+                    Integer.toString(i).getBytes())));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            SocketFrame frame = (SocketFrame) clientEvents.poll(TIMEOUT, TimeUnit.SECONDS);
+            assertEquals(Integer.toString(i), new String(frame.getValue()));
+        }
+    }
+
+    @Test
+    public void largeValue_isNotCutOff() throws Exception {
+        hostEvents.poll(TIMEOUT, TimeUnit.SECONDS);
+        byte[] session = new byte[SocketFrame.MAX_VALUE];
+        session[session.length - 1] = 'x';
+        client.send(SocketFrame.write(UuidUtils.SESSION, session));
+
+        SocketFrame frame = (SocketFrame) hostEvents.poll(TIMEOUT, TimeUnit.SECONDS);
+        assertEquals(SocketFrame.MAX_VALUE, frame.getValue().length);
+        assertEquals('x', frame.getValue()[SocketFrame.MAX_VALUE - 1]);
+    }
+
+    @Test
+    public void secondClient_onTheSameIp_getsItsOwnAddress() throws Exception {
+        hostEvents.poll(TIMEOUT, TimeUnit.SECONDS);
+        SocketClient second = connect(new LinkedBlockingQueue<Object>());
+
+        assertEquals("connected 02:7F:00:00:01:01", hostEvents.poll(TIMEOUT, TimeUnit.SECONDS));
+        second.close();
+        assertEquals("disconnected 02:7F:00:00:01:01", hostEvents.poll(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void closingTheHost_disconnectsTheClient() throws Exception {
+        server.close();
+
+        assertEquals("disconnected", clientEvents.poll(TIMEOUT, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TournamentTest {
+
+    // Races the current heat, with each lane's result in order
+    private static Tournament.Heat race(Tournament tournament, int foulMask, String... laneResults) {
+        Tournament.Heat heat = tournament.nextHeat();
+        RaceResults results = new RaceResults();
+        for (int lane = 1; lane <= laneResults.length; lane++) {
+            results.setResult(lane, laneResults[lane - 1]);
+        }
+        tournament.recordResults(results, foulMask);
+        return heat;
+    }
+
+    @Test
+    public void singleElimination_seedsFromQualifyingAndPacksMatches() {
+        Tournament tournament = new Tournament(Arrays.asList("A", "B", "C", "D"),
+                Tournament.SINGLE_ELIMINATION, 4);
+        assertEquals("1|A,B,C,D", race(tournament, 0, "100", "110", "120", "130").encode());
+
+        // Seed 1 meets seed 4 and seed 2 meets seed 3, in the same heat
+        assertEquals("2|A,D,B,C", race(tournament, 0, "100", "130", "110", "120").encode());
+        assertFalse(tournament.isFinished());
+
+        assertEquals("3|A,B,,", race(tournament, 0, "150", "140").encode());
+        assertTrue(tournament.isFinished());
+        assertEquals("B", tournament.getChampion());
+        assertNull(tournament.nextHeat());
+    }
+
+    @Test
+    public void topSeed_getsAByeWhenTheFieldIsShort() {
+        Tournament tournament = new Tournament(Arrays.asList("A", "B", "C"),
+                Tournament.SINGLE_ELIMINATION, 4);
+        assertEquals("1|A,B,C,", race(tournament, 0, "100", "110", "90").encode());
+
+        // C qualified fastest, so sits out the first round
+        assertEquals("2|A,B,,", race(tournament, 0, "100", "110").encode());
+        assertEquals("3|C,A,,", race(tournament, 0, "120", "100").encode());
+        assertEquals("A", tournament.getChampion());
+    }
+
+    @Test
+    public void doubleElimination_losersPlayOnInTheLosersBracket() {
+        Tournament tournament = new Tournament(Arrays.asList("A", "B", "C", "D"),
+                Tournament.DOUBLE_ELIMINATION, 2);
+        race(tournament, 0, "100", "110");
+        race(tournament, 0, "120", "130");
+
+        assertEquals("3|A,D", race(tournament, 0, "100", "130").encode());
+        assertEquals("4|B,C", race(tournament, 0, "110", "120").encode());
+        // The winners final, then the first round losers
+        assertEquals("5|A,B", race(tournament, 0, "100", "110").encode());
+        assertEquals("6|D,C", race(tournament, 0, "130", "120").encode());
+        // The losers final, against the loser of the winners final
+        assertEquals("7|C,B", race(tournament, 0, "120", "110").encode());
+        assertEquals("8|A,B", race(tournament, 0, "100", "110").encode());
+        assertEquals("A", tournament.getChampion());
+    }
+
+    @Test
+    public void grandFinal_isResetWhenTheLosersBracketWinnerWins() {
+        Tournament tournament = new Tournament(Arrays.asList("A", "B"),
+                Tournament.DOUBLE_ELIMINATION, 2);
+        race(tournament, 0, "100", "110");
+        assertEquals("2|A,B", race(tournament, 0, "100", "110").encode());
+
+        assertEquals("3|A,B", race(tournament, 0, "110", "100").encode());
+        assertFalse(tournament.isFinished());
+        assertEquals("4|A,B", race(tournament, 0, "110", "100").encode());
+        assertEquals("B", tournament.getChampion());
+    }
+
+    @Test
+    public void foulsAndMissingResults_lose() {
+        Tournament tournament = new Tournament(Arrays.asList("A", "B"),
+                Tournament.SINGLE_ELIMINATION, 2);
+        race(tournament, 0, "100", "110");
+        // A foul loses to a slower clean run
+        race(tournament, 0b01, "100", "300");
+        assertEquals("B", tournament.getChampion());
+
+        tournament = new Tournament(Arrays.asList("A", "B"), Tournament.SINGLE_ELIMINATION, 2);
+        race(tournament, 0, "100", "110");
+        // The earlier of two fouls loses
+        race(tournament, 0b11, "-10", "-50");
+        assertEquals("A", tournament.getChampion());
+
+        tournament = new Tournament(Arrays.asList("A", "B"), Tournament.SINGLE_ELIMINATION, 2);
+        race(tournament, 0, "100", "110");
+        // A lane that never reported loses even to a foul
+        race(tournament, 0b10, RaceResults.NO_RESULT, "-50");
+        assertEquals("B", tournament.getChampion());
+    }
+
+    @Test
+    public void encodedHeats_decode() {
+        assertEquals("D", Tournament.decodeEntrant("3|A,,C,D", 4));
+        assertEquals("", Tournament.decodeEntrant("3|A,,C,D", 2));
+        assertEquals(3, Tournament.decodeHeatNumber("3|A,,C,D"));
+        assertEquals(0, Tournament.decodeHeatNumber(Tournament.encodeChampion("A")));
+        assertEquals("A", Tournament.decodeChampion(Tournament.encodeChampion("A")));
+        assertNull(Tournament.decodeChampion("3|A,,C,D"));
+        assertEquals(-1, Tournament.decodeHeatNumber("garbage"));
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.bluetoothpracticetree.utility;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a tree's bulb sequence on a virtual clock.
+ */
+public class TreeModelTest {
+    private VirtualClock clock;
+    private TreeModel tree;
+    private final List<String> bulbs = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock(0);
+        tree = new TreeModel(clock, new TreeModel.Listener() {
+            @Override
+            public void onBulb(int bulb, boolean active) {
+                bulbs.add(clock.uptimeMillis() + ":" + bulb + (active ? "+" : "-"));
+            }
+        });
+    }
+
+    @Test
+    public void drop_lightsEachYellowInTurn_thenHoldsGreen() {
+        tree.setStage(true);
+        tree.dropTree();
+        clock.runUntilIdle();
+
+        assertEquals("[0:1+, 0:2+, 500:2-, 500:3+, 1000:4+, 1000:3-, 1500:5+, 1500:4-]",
+                bulbs.toString());
+        assertTrue(tree.isActive(TreeModel.GREEN));
+    }
+
+    @Test
+    public void foul_holdsTheLitYellow_andStopsTheSequence() {
+        tree.dropTree();
+        clock.advanceTo(700);
+        tree.goRed();
+        clock.runUntilIdle();
+
+        assertTrue(tree.isActive(TreeModel.RED));
+        assertTrue(tree.isActive(TreeModel.MID_YELLOW));
+        assertFalse(tree.isActive(TreeModel.BOTTOM_YELLOW));
+        assertFalse(tree.isActive(TreeModel.GREEN));
+    }
+
+    @Test
+    public void staging_resetsTheBulbsBelowStage() {
+        tree.dropTree();
+        clock.runUntilIdle();
+        tree.goRed();
+        tree.setStage(true);
+
+        for (int bulb = TreeModel.TOP_YELLOW; bulb <= TreeModel.RED; bulb++) {
+            assertFalse(tree.isActive(bulb));
+        }
+        assertTrue(tree.isActive(TreeModel.STAGE));
+    }
+
+    @Test
+    public void virtualClock_runsTasksDueTogetherInTheOrderPosted() {
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final int task = i;
+            clock.postAt(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(task);
+                }
+            }, 100);
+        }
+        clock.advanceTo(99);
+        assertTrue(order.isEmpty());
+        clock.advanceTo(100);
+
+        assertEquals("[0, 1, 2]", order.toString());
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.bluetoothpracticetree.server;
+
+import com.example.bluetoothpracticetree.utility.SocketServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+    This class runs a fleet of simulated racers against a host, for load and soak testing, and
+    prints what they saw every few seconds: races per hour, start skew and margin, and result
+    latency. The host is either one at the given address, such as a phone hosting over Wi-Fi, or
+    a race server started in this process with --local.
+
+    The local server races in loop mode and begins once every bot has joined, with a group for
+    each three bots, so the fleet races on its own for as long as it runs.
+ */
+
+public class BotFleet {
+    private static final String USAGE = "Usage: bot-fleet [--host ADDRESS | --local] [--port N]"
+            + " [--bots N] [--duration S] [--report S] [--seed N]"
+            + " [--stage-delay MS] [--stage-jitter MS] [--fumble-rate P] [--dial-min MS] [--dial-max MS]"
+            + " [--rt-mean MS] [--rt-stddev MS] [--foul-rate P] [--disconnect-rate P] [--reconnect-delay MS]"
+            + " [--latency MS] [--jitter MS] [--stage-window MS] [--cooldown MS]";
+    private static final int LANES_PER_GROUP = 3;
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = SocketServer.DEFAULT_PORT;
+        boolean local = false;
+        int bots = 3;
+        long duration = 60;
+        long report = 10;
+        long seed = new Random().nextLong();
+        long stageDelay = 500;
+        long stageJitter = 300;
+        long dialMin = 10000;
+        long dialMax = 10000;
+        long rtMean = 500;
+        long rtStddev = 80;
+        double foulRate = 0.02;
+        double disconnectRate = 0;
+        long reconnectDelay = 2000;
+        long latency = 0;
+        long jitter = 0;
+        long stageWindow = 1500;
+        long cooldown = 1000;
+        BotProfile profile = new BotProfile();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host": host = args[++i];
+                        break;
+                    case "--local": local = true;
+                        break;
+                    case "--port": port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--bots": bots = Integer.parseInt(args[++i]);
+                        break;
+                    case "--duration": duration = Long.parseLong(args[++i]);
+                        break;
+                    case "--report": report = Long.parseLong(args[++i]);
+                        break;
+                    case "--seed": seed = Long.parseLong(args[++i]);
+                        break;
+                    case "--stage-delay": stageDelay = Long.parseLong(args[++i]);
+                        break;
+                    case "--stage-jitter": stageJitter = Long.parseLong(args[++i]);
+                        break;
+                    case "--fumble-rate": profile.setFumbleRate(Double.parseDouble(args[++i]));
+                        break;
+                    case "--dial-min": dialMin = Long.parseLong(args[++i]);
+                        break;
+                    case "--dial-max": dialMax = Long.parseLong(args[++i]);
+                        break;
+                    case "--rt-mean": rtMean = Long.parseLong(args[++i]);
+                        break;
+                    case "--rt-stddev": rtStddev = Long.parseLong(args[++i]);
+                        break;
+                    case "--foul-rate": foulRate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--disconnect-rate": disconnectRate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--reconnect-delay": reconnectDelay = Long.parseLong(args[++i]);
+                        break;
+                    case "--latency": latency = Long.parseLong(args[++i]);
+                        break;
+                    case "--jitter": jitter = Long.parseLong(args[++i]);
+                        break;
+                    case "--stage-window": stageWindow = Long.parseLong(args[++i]);
+                        break;
+                    case "--cooldown": cooldown = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        System.err.println(USAGE);
+                        System.exit(args[i].equals("--help") ? 0 : 2);
+                        return;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        profile.setStageDelay(stageDelay, stageJitter);
+        profile.setDials(dialMin, dialMax);
+        profile.setReactionTimes(rtMean, rtStddev, foulRate);
+        profile.setDisconnects(disconnectRate, reconnectDelay);
+        profile.setLatency(latency, jitter);
+
+        RaceServer server = null;
+        if (local) {
+            server = new RaceServer();
+            server.setRacers(bots);
+            server.setMaxGroups((bots + LANES_PER_GROUP - 1) / LANES_PER_GROUP);
+            server.setStageWindow(stageWindow);
+            server.setLoopMode(true, cooldown);
+            try {
+                port = server.start(0);
+            } catch (IOException e) {
+                System.err.println("Could not start the local server: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            host = "127.0.0.1";
+        }
+
+        FleetStats stats = new FleetStats();
+        Random seeds = new Random(seed);
+        List<RacerBot> fleet = new ArrayList<>();
+        for (int i = 0; i < bots; i++) {
+            RacerBot bot = new RacerBot("bot-" + (i + 1), host, port, profile, stats, seeds.nextLong());
+            fleet.add(bot);
+            bot.start();
+        }
+        System.out.println("Racing " + bots + " bots against " + host + ":" + port + " with seed " + seed);
+
+        long end = System.currentTimeMillis() + duration * 1000;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.max(1, Math.min(report * 1000, end - System.currentTimeMillis())));
+            System.out.println(stats.summarize());
+        }
+
+        for (RacerBot bot : fleet) {
+            bot.stop();
+        }
+        if (server != null) {
+            server.close();
+        }
+        System.out.println("Final: " + stats.summarize());
+    }
+}
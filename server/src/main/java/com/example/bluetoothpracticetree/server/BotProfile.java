@@ -0,0 +1,103 @@
+package com.example.bluetoothpracticetree.server;
+
+import java.util.Random;
+
+/*
+    This class describes how the racers of a bot fleet behave: how long they take to stage and how
+    often they fumble it, the dial-ins they choose, their reaction times and fouls, how often they
+    drop out, and the latency of their links. Every bot samples its own behaviour from the same
+    profile, with a random generator of its own.
+
+    Times are in milliseconds, and rates are probabilities between 0 and 1.
+ */
+
+public class BotProfile {
+    private long stageDelay = 500;
+    private long stageJitter = 300;
+    private double fumbleRate = 0.05;
+    private long dialMin = 10000;
+    private long dialMax = 10000;
+    private long rtMean = 500;
+    private long rtStddev = 80;
+    private double foulRate = 0.02;
+    private double disconnectRate = 0;
+    private long reconnectDelay = 2000;
+    private long latency = 0;
+    private long latencyJitter = 0;
+
+    // The time from the end of one race, or joining, to staging for the next
+    public void setStageDelay(long stageDelay, long stageJitter) {
+        this.stageDelay = stageDelay;
+        this.stageJitter = stageJitter;
+    }
+
+    // How often a racer stages, then backs out and stages again, which re-arms the stage window
+    public void setFumbleRate(double fumbleRate) {
+        this.fumbleRate = fumbleRate;
+    }
+
+    public void setDials(long dialMin, long dialMax) {
+        this.dialMin = dialMin;
+        this.dialMax = Math.max(dialMin, dialMax);
+    }
+
+    // Reaction times are normally distributed, apart from fouls, which leave before green
+    public void setReactionTimes(long rtMean, long rtStddev, double foulRate) {
+        this.rtMean = rtMean;
+        this.rtStddev = rtStddev;
+        this.foulRate = foulRate;
+    }
+
+    // How often a racer drops its connection after a race, and how long until it comes back
+    public void setDisconnects(double disconnectRate, long reconnectDelay) {
+        this.disconnectRate = disconnectRate;
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    // The one-way delay added to every frame in each direction
+    public void setLatency(long latency, long latencyJitter) {
+        this.latency = latency;
+        this.latencyJitter = latencyJitter;
+    }
+
+    public long sampleStageDelay(Random random) {
+        return Math.max(0, stageDelay + uniform(random, stageJitter));
+    }
+
+    public boolean sampleFumble(Random random) {
+        return random.nextDouble() < fumbleRate;
+    }
+
+    public long sampleDial(Random random) {
+        return dialMin + (long) (random.nextDouble() * (dialMax - dialMin + 1));
+    }
+
+    // This method returns a reaction time, which is negative for a foul
+    public long sampleReactionTime(Random random) {
+        if (random.nextDouble() < foulRate) {
+            return -1 - random.nextInt(100);
+        }
+        return Math.max(0, rtMean + Math.round(random.nextGaussian() * rtStddev));
+    }
+
+    public boolean sampleDisconnect(Random random) {
+        return random.nextDouble() < disconnectRate;
+    }
+
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    public boolean hasLatency() {
+        return latency > 0 || latencyJitter > 0;
+    }
+
+    public long sampleLatency(Random random) {
+        return Math.max(0, latency + uniform(random, latencyJitter));
+    }
+
+    // A value spread evenly between -range and range
+    private static long uniform(Random random, long range) {
+        return range > 0 ? Math.round((random.nextDouble() * 2 - 1) * range) : 0;
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.bluetoothpracticetree.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/*
+    This class collects what the bots of a fleet see of each race, and sums it up. A race is known
+    by its group and start time, which every racer in the group is sent in the same start signal.
+
+    The start skew of a race is the spread between the first and last bot receiving the start
+    signal, and its start margin is how long before the trees drop the signal arrived, which is
+    negative if a lane's tree should already have dropped. Its result latency runs from the last
+    reaction time being sent to the last bot receiving the results.
+
+    Every bot of a fleet runs in the same process, so they share one clock and the times they
+    report can be compared directly. Bots report from their own threads, so every method is
+    synchronized.
+ */
+
+public class FleetStats {
+    private final long startedAt = System.nanoTime();
+    private final HashMap<String, Race> races = new HashMap<>();
+    private final List<Long> startMargins = new ArrayList<>();
+    private long leastMargin = Long.MAX_VALUE;
+    private int lateStarts = 0;
+    private int connects = 0;
+    private int disconnects = 0;
+    private int unassigned = 0;
+
+    private static class Race {
+        long firstStart = Long.MAX_VALUE;
+        long lastStart = Long.MIN_VALUE;
+        long lastRt = Long.MIN_VALUE;
+        long lastResults = Long.MIN_VALUE;
+        int fouls = 0;
+    }
+
+    private Race getRace(String race) {
+        Race record = races.get(race);
+        if (record == null) {
+            record = new Race();
+            races.put(race, record);
+        }
+        return record;
+    }
+
+    public synchronized void onConnected() {
+        connects++;
+    }
+
+    public synchronized void onDisconnected() {
+        disconnects++;
+    }
+
+    // The host had no lane for a bot
+    public synchronized void onUnassigned() {
+        unassigned++;
+    }
+
+    // A bot received the start signal, with this long to go until the trees drop
+    public synchronized void onStart(String race, long now, long margin) {
+        Race record = getRace(race);
+        record.firstStart = Math.min(record.firstStart, now);
+        record.lastStart = Math.max(record.lastStart, now);
+        startMargins.add(margin);
+        leastMargin = Math.min(leastMargin, margin);
+        if (margin < 0) {
+            lateStarts++;
+        }
+    }
+
+    public synchronized void onRtSent(String race, long now, boolean foul) {
+        Race record = getRace(race);
+        record.lastRt = Math.max(record.lastRt, now);
+        if (foul) {
+            record.fouls++;
+        }
+    }
+
+    public synchronized void onResults(String race, long now) {
+        Race record = getRace(race);
+        record.lastResults = Math.max(record.lastResults, now);
+    }
+
+    public synchronized int getFinishedRaces() {
+        return collect(null, null);
+    }
+
+    public synchronized int getLateStarts() {
+        return lateStarts;
+    }
+
+    // The start skew at a percentile of the finished races, in nanoseconds
+    public synchronized long getStartSkew(double percentile) {
+        List<Long> skews = new ArrayList<>();
+        collect(skews, null);
+        return percentile(skews, percentile);
+    }
+
+    // The result latency at a percentile of the finished races, in nanoseconds
+    public synchronized long getResultLatency(double percentile) {
+        List<Long> latencies = new ArrayList<>();
+        collect(null, latencies);
+        return percentile(latencies, percentile);
+    }
+
+    // This method sums up every race finished so far in one line
+    public synchronized String summarize() {
+        List<Long> skews = new ArrayList<>();
+        List<Long> latencies = new ArrayList<>();
+        int finished = collect(skews, latencies);
+        int fouls = 0;
+        for (Race race : races.values()) {
+            fouls += race.fouls;
+        }
+
+        double hours = (System.nanoTime() - startedAt) / (double) TimeUnit.HOURS.toNanos(1);
+        return String.format(Locale.US,
+                "races %d (%.0f/h), fouls %d | start skew ms %s | start margin ms %s min %s, late %d"
+                        + " | result latency ms %s | connects %d, drops %d, no lane %d",
+                finished, finished / hours, fouls, percentiles(skews, 1e6), median(startMargins),
+                startMargins.isEmpty() ? "-" : Long.toString(leastMargin), lateStarts,
+                percentiles(latencies, 1e6), connects, disconnects, unassigned);
+    }
+
+    // This method collects the start skew and result latency of every finished race into the
+    // given lists, either of which can be null, and returns the number of finished races
+    private int collect(List<Long> skews, List<Long> latencies) {
+        int finished = 0;
+        for (Race race : races.values()) {
+            if (race.lastResults == Long.MIN_VALUE) {
+                continue;
+            }
+            finished++;
+            if (skews != null && race.lastStart != Long.MIN_VALUE) {
+                skews.add(race.lastStart - race.firstStart);
+            }
+            if (latencies != null && race.lastRt != Long.MIN_VALUE) {
+                latencies.add(race.lastResults - race.lastRt);
+            }
+        }
+        return finished;
+    }
+
+    // The sample at a percentile, from 0 to 100, or 0 without any samples
+    private static long percentile(List<Long> samples, double percentile) {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        List<Long> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(sorted.size() * percentile / 100) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private static String median(List<Long> samples) {
+        return samples.isEmpty() ? "-" : "p50 " + percentile(samples, 50);
+    }
+
+    // This method formats the median, 99th percentile and worst of some samples, scaled down by
+    // the given factor
+    private static String percentiles(List<Long> samples, double scale) {
+        if (samples.isEmpty()) {
+            return "-";
+        }
+        return String.format(Locale.US, "p50 %.1f p99 %.1f max %.1f", percentile(samples, 50) / scale,
+                percentile(samples, 99) / scale, percentile(samples, 100) / scale);
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.bluetoothpracticetree.server;
+
+import com.example.bluetoothpracticetree.utility.FlightRecorder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/*
+    This class prints the flight recorder dump of a flagged race, one record per line, so it can
+    be read on a computer once it has been pulled off the phone with
+    `adb exec-out run-as com.example.bluetoothpracticetree cat files/flights/<name>`.
+ */
+
+public class FlightDump {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: flight-dump FILE");
+            System.exit(2);
+            return;
+        }
+
+        ByteBuffer dump;
+        RandomAccessFile input = new RandomAccessFile(args[0], "r");
+        try {
+            dump = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        } finally {
+            input.close();
+        }
+
+        List<String> lines = FlightRecorder.describe(dump);
+        if (lines == null) {
+            System.err.println(args[0] + " is not a flight recorder dump");
+            System.exit(1);
+            return;
+        }
+        for (String line : lines) {
+            System.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.bluetoothpracticetree.server;
+
+import com.example.bluetoothpracticetree.utility.EventLoop;
+import com.example.bluetoothpracticetree.utility.SocketFrame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+    This class sits between clients and a host on the socket transport, and impairs the link in
+    each direction as a LinkImpairment describes. Neither side needs to know it is there: clients
+    connect to the proxy as if it were the host, and it opens a connection to the host for each
+    of them, so the host sees every client as a separate device just as before.
+
+    Frames are decoded as they arrive, so each one is delayed on its own. A frame that is not held
+    back for reordering is never delivered before one that arrived before it. With a connection
+    interval, frames are only delivered on the link's connection events, which start at a random
+    phase for each link, like they do for each BLE connection.
+
+    Each link has an event loop of its own, which delivers its frames, and a thread for reading
+    each side of it.
+ */
+
+public class ImpairmentProxy {
+    private static final Logger LOG = Logger.getLogger(ImpairmentProxy.class.getName());
+    private static final int MAILBOX_CAPACITY = 1024;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String host;
+    private final int hostPort;
+    private final LinkImpairment toHost;
+    private final LinkImpairment toClient;
+    private final Random seeds;
+
+    private ServerSocketChannel serverChannel;
+    private final List<Link> links = new ArrayList<>();
+    private volatile boolean closed;
+
+    public ImpairmentProxy(String host, int hostPort, LinkImpairment toHost, LinkImpairment toClient, long seed) {
+        this.host = host;
+        this.hostPort = hostPort;
+        this.toHost = toHost;
+        this.toClient = toClient;
+        this.seeds = new Random(seed);
+    }
+
+    // This method starts accepting clients, and returns the port it listens on
+    public int start(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, ImpairmentProxy.class.getSimpleName()).start();
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        synchronized (links) {
+            for (Link link : links) {
+                link.close();
+            }
+            links.clear();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                SocketChannel client = serverChannel.accept();
+                SocketChannel upstream = SocketChannel.open();
+                try {
+                    client.socket().setTcpNoDelay(true);
+                    upstream.socket().setTcpNoDelay(true);
+                    upstream.connect(new InetSocketAddress(host, hostPort));
+                } catch (IOException e) {
+                    LOG.warning("Could not reach the host: " + e.getMessage());
+                    client.close();
+                    upstream.close();
+                    continue;
+                }
+                Link link;
+                synchronized (links) {
+                    link = new Link(client, upstream, seeds.nextLong());
+                    links.add(link);
+                }
+                link.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    LOG.log(Level.WARNING, "Proxy stopped accepting", e);
+                }
+                return;
+            }
+        }
+    }
+
+    // One client's connection through the proxy
+    private class Link {
+        private final SocketChannel client;
+        private final SocketChannel upstream;
+        private final Random random;
+        private final EventLoop eventLoop;
+        private final Direction hostbound;
+        private final Direction clientbound;
+
+        Link(SocketChannel client, SocketChannel upstream, long seed) {
+            this.client = client;
+            this.upstream = upstream;
+            this.random = new Random(seed);
+            eventLoop = new EventLoop("Link", MAILBOX_CAPACITY);
+            long now = eventLoop.nanoTime();
+            hostbound = new Direction(upstream, toHost, now);
+            clientbound = new Direction(client, toClient, now);
+        }
+
+        void start() {
+            eventLoop.start();
+            read(client, hostbound);
+            read(upstream, clientbound);
+        }
+
+        void close() {
+            eventLoop.quit();
+            try {
+                client.close();
+                upstream.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        // This method reads frames from one side on a thread of its own, and hands each one to
+        // the event loop to be delivered to the other side. Losing either side closes both
+        private void read(final SocketChannel channel, final Direction direction) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+                    try {
+                        while (channel.read(input) >= 0) {
+                            input.flip();
+                            SocketFrame frame;
+                            while ((frame = SocketFrame.decode(input)) != null) {
+                                final SocketFrame received = frame;
+                                eventLoop.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        direction.schedule(received);
+                                    }
+                                });
+                            }
+                            input.compact();
+                        }
+                    } catch (IOException e) {
+                        // Handled below, just like the other side closing the connection
+                    }
+                    // Frames still on their way are delivered before the other side is closed
+                    eventLoop.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            direction.scheduleClose();
+                        }
+                    });
+                }
+            }, "LinkReader").start();
+        }
+
+        // One direction of the link, with the impairment applied to it. Only touched on the loop
+        private class Direction {
+            private final SocketChannel out;
+            private final LinkImpairment impairment;
+            private final long anchor;
+            private long lastDelivery;
+
+            Direction(SocketChannel out, LinkImpairment impairment, long now) {
+                this.out = out;
+                this.impairment = impairment;
+                long interval = impairment.getConnectionInterval();
+                anchor = interval > 0 ? now - (long) (random.nextDouble() * interval) : now;
+                lastDelivery = now;
+            }
+
+            // This method works out when a frame arrives on the other side
+            private long deliveryTime() {
+                long at = eventLoop.nanoTime() + impairment.sampleDelay(random);
+                long held = impairment.sampleReorder(random);
+                if (held == 0) {
+                    at = Math.max(at, lastDelivery);
+                } else {
+                    at = Math.max(at, lastDelivery) + held;
+                }
+                long interval = impairment.getConnectionInterval();
+                if (interval > 0) {
+                    at = anchor + (at - anchor + interval - 1) / interval * interval;
+                }
+                if (held == 0) {
+                    lastDelivery = at;
+                }
+                return at;
+            }
+
+            void schedule(final SocketFrame frame) {
+                eventLoop.scheduleAt(new Runnable() {
+                    @Override
+                    public void run() {
+                        ByteBuffer buffer = ByteBuffer.wrap(frame.encode());
+                        try {
+                            while (buffer.hasRemaining()) {
+                                out.write(buffer);
+                            }
+                        } catch (IOException e) {
+                            // The link is closing
+                        }
+                    }
+                }, deliveryTime());
+            }
+
+            void scheduleClose() {
+                eventLoop.scheduleAt(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (links) {
+                            links.remove(Link.this);
+                        }
+                        Link.this.close();
+                    }
+                }, Math.max(lastDelivery, eventLoop.nanoTime()));
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.bluetoothpracticetree.server;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+    This class describes how one direction of an impaired link delays frames: a one-way latency
+    with jitter, lost frames, frames held back so later ones overtake them, and the connection
+    interval a BLE link only sends on.
+
+    The race protocol runs over links that never drop a frame, whether GATT or TCP, so a lost
+    frame is sent again one connection interval later, or after the retransmit delay on a link
+    without one. Losses can repeat, so a frame can be held back by several intervals.
+
+    Times are in milliseconds, and rates are probabilities between 0 and 1.
+ */
+
+public class LinkImpairment {
+    private static final long RETRANSMIT_DELAY = 20;
+
+    private double latency = 0;
+    private double jitter = 0;
+    private double loss = 0;
+    private double reorder = 0;
+    private double interval = 0;
+
+    public void setLatency(double latency, double jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    public void setLoss(double loss) {
+        this.loss = Math.min(loss, 0.9);
+    }
+
+    // How often a frame is held back by an extra interval, so frames sent after it overtake it
+    public void setReorder(double reorder) {
+        this.reorder = reorder;
+    }
+
+    // BLE links only send on connection events, every 7.5 ms at the fastest
+    public void setConnectionInterval(double interval) {
+        this.interval = interval;
+    }
+
+    public long getConnectionInterval() {
+        return millisToNanos(interval);
+    }
+
+    // The least a frame is held back, in nanoseconds
+    public long getMinDelay() {
+        return millisToNanos(Math.max(0, latency - jitter));
+    }
+
+    // The most a frame is held back if it is lost at most the given number of times, in
+    // nanoseconds, counting the wait for the next connection event and being overtaken
+    public long getMaxDelay(int losses) {
+        double retransmit = interval > 0 ? interval : RETRANSMIT_DELAY;
+        double held = reorder > 0 ? Math.max(interval, Math.max(jitter, 1)) : 0;
+        return millisToNanos(latency + jitter + (loss > 0 ? losses * retransmit : 0) + held + interval);
+    }
+
+    // This method returns how long to hold back a frame, in nanoseconds
+    public long sampleDelay(Random random) {
+        double delay = latency + (jitter > 0 ? (random.nextDouble() * 2 - 1) * jitter : 0);
+        double retransmit = interval > 0 ? interval : RETRANSMIT_DELAY;
+        while (random.nextDouble() < loss) {
+            delay += retransmit;
+        }
+        return millisToNanos(Math.max(0, delay));
+    }
+
+    // This method decides whether a frame is held back, and returns the extra delay if so
+    public long sampleReorder(Random random) {
+        if (random.nextDouble() >= reorder) {
+            return 0;
+        }
+        return millisToNanos(Math.max(interval, Math.max(jitter, 1)));
+    }
+
+    private static long millisToNanos(double millis) {
+        return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,535 @@
+package com.example.bluetoothpracticetree.server;
+
+import com.example.bluetoothpracticetree.utility.EventLoop;
+import com.example.bluetoothpracticetree.utility.LoopScheduler;
+import com.example.bluetoothpracticetree.utility.RaceEngine;
+import com.example.bluetoothpracticetree.utility.RaceLog;
+import com.example.bluetoothpracticetree.utility.SessionReplica;
+import com.example.bluetoothpracticetree.utility.SocketFrame;
+import com.example.bluetoothpracticetree.utility.SocketServer;
+import com.example.bluetoothpracticetree.utility.Tournament;
+import com.example.bluetoothpracticetree.utility.UuidUtils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+    This class hosts races on a plain JVM, for a Linux box at the track, so no phone has to be
+    the host. Phones join it over Wi-Fi with the socket transport, and see the same race
+    characteristics they would on a phone hosting with BleServerService, so the app needs no
+    changes to race against it.
+
+    It runs the same race protocol, with each race group judged by the same RaceEngine a phone
+    host uses. Clients are given lanes by address and fill race groups in order, and each group's
+    notifications go to its members over their sockets. The first group can run a tournament,
+    and races can run back-to-back with a cooldown.
+
+    Nobody races in the host's lane, so each group holds three racers. The session begins once
+    the expected number of racers has joined, in place of the host pressing begin.
+
+    The first group's session can be recorded as a RaceLog, to be replayed later if a race is
+    disputed.
+
+    All state is owned by a single event loop. The socket server's thread only posts frames to
+    it, except for clock reads, which are answered straight away so the time is as fresh as
+    possible. The host's clock is the event loop's, in milliseconds.
+ */
+
+public class RaceServer {
+    private static final Logger LOG = Logger.getLogger(RaceServer.class.getName());
+    private static final long RESERVATION_TIMEOUT = 60000;
+    private static final int CLIENT_LANES = RaceEngine.CLIENT_LANES;
+    private static final long DEFAULT_STAGE_WINDOW = 1500;
+    private static final long DEFAULT_COOLDOWN = 3000;
+    private static final int MAILBOX_CAPACITY = 1024;
+
+    // The GATT statuses the phones check their responses for
+    private static final int GATT_SUCCESS = 0;
+    private static final int GATT_READ_NOT_PERMITTED = 2;
+    private static final int GATT_WRITE_NOT_PERMITTED = 3;
+    private static final int GATT_ERROR = 133;
+
+    private static final int BEGIN_RACE_ACTIVITY = SocketFrame.toShort(UuidUtils.BEGIN_RACE_ACTIVITY);
+    private static final int RACER_ID = SocketFrame.toShort(UuidUtils.RACER_ID);
+    private static final int SESSION_ID = SocketFrame.toShort(UuidUtils.SESSION_ID);
+    private static final int CLOCK = SocketFrame.toShort(UuidUtils.CLOCK);
+    private static final int GROUP_ID = SocketFrame.toShort(UuidUtils.GROUP_ID);
+    private static final int SESSION = SocketFrame.toShort(UuidUtils.SESSION);
+    private static final int PING = SocketFrame.toShort(UuidUtils.PING);
+
+    private final EventLoop eventLoop;
+    private final LoopScheduler scheduler;
+    private volatile SocketServer socketServer;
+
+    // Settings, which are fixed once the server has started
+    private int racers = 2;
+    private int maxGroups = 8;
+    private long stageWindow = DEFAULT_STAGE_WINDOW;
+    private boolean loopMode = false;
+    private long cooldown = DEFAULT_COOLDOWN;
+    private final List<String> entrants = new ArrayList<>();
+    private int format = Tournament.SINGLE_ELIMINATION;
+    private Writer recording;
+
+    // Everything below is only touched on the event loop
+    private final String sessionId = Integer.toHexString(new Random().nextInt());
+    private final SessionReplica replica = new SessionReplica();
+    private boolean sessionStarted = false;
+    private final List<String> clients = new ArrayList<>();
+    private int fanOutOffset = 0;
+
+    // Maps each client address to its lane and its group, and holds the expiry of each reserved
+    // lane
+    private final HashMap<String, Integer> lanes = new HashMap<>();
+    private final HashMap<String, Group> memberships = new HashMap<>();
+    private final HashMap<String, EventLoop.Timer> reservations = new HashMap<>();
+
+    private final List<Group> groups = new ArrayList<>();
+
+    public RaceServer() {
+        eventLoop = new EventLoop(RaceServer.class.getSimpleName(), MAILBOX_CAPACITY);
+        scheduler = new LoopScheduler(eventLoop);
+        eventLoop.setErrorListener(new EventLoop.ErrorListener() {
+            @Override
+            public void onError(Throwable error) {
+                LOG.log(Level.SEVERE, "Server message failed", error);
+            }
+        });
+    }
+
+    // The session begins once this many racers have joined
+    public void setRacers(int racers) {
+        this.racers = racers;
+    }
+
+    public void setMaxGroups(int maxGroups) {
+        this.maxGroups = maxGroups;
+    }
+
+    public void setStageWindow(long stageWindowMillis) {
+        stageWindow = stageWindowMillis;
+    }
+
+    public void setLoopMode(boolean loopMode, long cooldownMillis) {
+        this.loopMode = loopMode;
+        cooldown = cooldownMillis;
+    }
+
+    // The first group runs a tournament between these entrants, if there are at least two
+    public void setTournament(List<String> entrants, int format) {
+        this.entrants.clear();
+        this.entrants.addAll(entrants);
+        this.format = format;
+    }
+
+    // The first group's race log is written to this as it happens, and it is closed with the
+    // server
+    public void setRecording(Writer recording) {
+        this.recording = recording;
+    }
+
+    // This method starts accepting clients, and returns the port it listens on
+    public int start(int port) throws IOException {
+        replica.setSessionId(sessionId);
+        Group first = new Group(1);
+        if (entrants.size() >= 2) {
+            replica.setTournament(entrants, format);
+            first.engine.setTournament(new Tournament(entrants, format, CLIENT_LANES));
+        }
+        groups.add(first);
+        eventLoop.start();
+
+        SocketServer server = new SocketServer(socketListener);
+        int boundPort = server.start(port);
+        socketServer = server;
+        LOG.info("Session " + sessionId + " accepting clients on port " + boundPort);
+        return boundPort;
+    }
+
+    public void close() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                for (EventLoop.Timer expiry : reservations.values()) {
+                    expiry.cancel();
+                }
+                reservations.clear();
+                for (Group group : groups) {
+                    group.engine.cancelTimers();
+                }
+                SocketServer server = socketServer;
+                if (server != null) {
+                    server.close();
+                    socketServer = null;
+                }
+                if (recording != null) {
+                    try {
+                        recording.close();
+                    } catch (IOException e) {
+                        LOG.warning("Could not close the recording: " + e.getMessage());
+                    }
+                    recording = null;
+                }
+            }
+        });
+        eventLoop.quit();
+    }
+
+    // The host's clock, which clients sync to and start times are given in
+    private long hostTime() {
+        return scheduler.uptimeMillis();
+    }
+
+    // This method writes an event of the first group to the recording, which callers only make
+    // when there is one. A recording that fails is stopped, and the races carry on
+    private void record(RaceLog.Event event) {
+        if (recording == null || event == null) {
+            return;
+        }
+        try {
+            event.writeTo(recording);
+            recording.flush();
+        } catch (IOException e) {
+            LOG.warning("Recording stopped: " + e.getMessage());
+            recording = null;
+        }
+    }
+
+    private boolean post(Runnable message) {
+        if (!eventLoop.post(message)) {
+            LOG.severe("Server mailbox is full, dropping message");
+            return false;
+        }
+        return true;
+    }
+
+    // These callbacks run on the socket server's thread, so each one only posts a message to
+    // the event loop
+    private final SocketServer.Listener socketListener = new SocketServer.Listener() {
+        @Override
+        public void onConnected(final String address) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    connectClient(address);
+                }
+            });
+        }
+
+        @Override
+        public void onFrame(final String address, final SocketFrame frame) {
+            if (frame.getType() == SocketFrame.READ && frame.getCharacteristic() == CLOCK) {
+                respond(address, CLOCK, GATT_SUCCESS, Long.toString(hostTime()).getBytes());
+                return;
+            }
+            boolean posted = post(new Runnable() {
+                @Override
+                public void run() {
+                    handleFrame(address, frame);
+                }
+            });
+            if (!posted) {
+                respond(address, frame.getCharacteristic(), GATT_ERROR, null);
+            }
+        }
+
+        @Override
+        public void onDisconnected(final String address) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    disconnectClient(address);
+                }
+            });
+        }
+    };
+
+    private void respond(String address, int characteristic, int status, byte[] value) {
+        SocketServer server = socketServer;
+        if (server != null) {
+            server.send(address, SocketFrame.response(characteristic, status, value));
+        }
+    }
+
+    private void handleFrame(String address, SocketFrame frame) {
+        switch (frame.getType()) {
+            case SocketFrame.READ:
+                handleRead(address, frame.getCharacteristic());
+                break;
+            case SocketFrame.WRITE:
+                handleWrite(address, frame.getCharacteristic(), frame.getValue());
+                break;
+            case SocketFrame.SUBSCRIBE:
+                // Every member of a group is notified of its race anyway
+                respond(address, frame.getCharacteristic(), GATT_SUCCESS, null);
+                break;
+            default:
+                LOG.warning("Unexpected frame from " + address);
+                break;
+        }
+    }
+
+    private void handleRead(String address, int characteristic) {
+        Group group = memberships.get(address);
+        byte[] value;
+        if (characteristic == RACER_ID) {
+            // Each client reads its own lane
+            Integer lane = lanes.get(address);
+            value = Integer.toString(lane != null ? lane : 0).getBytes();
+        } else if (characteristic == GROUP_ID) {
+            // And its own group, or 0 if every group is full
+            value = Integer.toString(group != null ? group.engine.getId() : 0).getBytes();
+        } else if (characteristic == BEGIN_RACE_ACTIVITY) {
+            value = (sessionStarted ? "begin" : "wait").getBytes();
+        } else if (characteristic == SESSION_ID) {
+            value = sessionId.getBytes();
+        } else if (characteristic == SESSION) {
+            value = replica.encode().getBytes();
+        } else if (group == null || !group.engine.hasValue(characteristic)) {
+            respond(address, characteristic, GATT_READ_NOT_PERMITTED, null);
+            return;
+        } else if (characteristic == RaceEngine.RACE_SNAPSHOT) {
+            value = group.engine.buildSnapshot().getBytes();
+        } else {
+            value = group.engine.getValue(characteristic);
+        }
+        respond(address, characteristic, GATT_SUCCESS, value);
+    }
+
+    private void handleWrite(String address, int characteristic, byte[] value) {
+        // Pings are only answered, so the client can time the round trip
+        if (characteristic == PING) {
+            respond(address, characteristic, GATT_SUCCESS, null);
+            return;
+        }
+
+        // A device without a group has no race to write to, and one with a lane may only write
+        // to that lane
+        Group group = memberships.get(address);
+        Integer lane = lanes.get(address);
+        if (group == null || lane == null || !RaceEngine.canWrite(lane, characteristic)) {
+            respond(address, characteristic, GATT_WRITE_NOT_PERMITTED, null);
+            return;
+        }
+        respond(address, characteristic, GATT_SUCCESS, null);
+
+        boolean valid = group.engine.write(lane, characteristic, value);
+        // The engine's value is recorded, which for a release without a synced clock has the
+        // host time it was judged at
+        if (group.engine.getId() == 1 && recording != null) {
+            record(RaceLog.Event.write(hostTime(), lane, characteristic, group.engine.getString(characteristic)));
+        }
+        if (!valid) {
+            LOG.warning("Malformed release from lane " + lane);
+        } else if (characteristic == RaceEngine.RELEASE
+                && (group.engine.getUnsyncedMask() & RaceEngine.laneBit(lane)) != 0) {
+            LOG.info("Lane " + lane + " released without a synced clock, judged on receipt");
+        }
+        // Dial-ins are part of the session
+        if (group.engine.getId() == 1 && RaceEngine.laneOfDial(characteristic) != 0) {
+            publishSession();
+        }
+    }
+
+    private void connectClient(String address) {
+        LOG.info("Client connected: " + address);
+        clients.add(address);
+        // Give the client a lane, or its reserved lane back
+        assignLane(address);
+
+        if (!sessionStarted && clients.size() >= racers) {
+            beginSession();
+        }
+    }
+
+    private void disconnectClient(String address) {
+        LOG.info("Client disconnected: " + address);
+        clients.remove(address);
+        releaseLane(address);
+    }
+
+    // Every expected racer has joined, so tell everyone to start racing
+    private void beginSession() {
+        sessionStarted = true;
+        LOG.info("Session " + sessionId + " begun with " + clients.size() + " clients");
+        fanOutOffset = fanOut(clients, fanOutOffset, BEGIN_RACE_ACTIVITY, "begin".getBytes());
+        Group first = groups.get(0);
+        if (first.engine.getTournament() != null) {
+            first.engine.publishHeat();
+            first.engine.updateStartTimer();
+        }
+    }
+
+    // This method sends a notification to each of the given clients, starting with the one at
+    // the offset, and returns the offset to start the next fan-out at
+    private int fanOut(List<String> targets, int offset, int characteristic, byte[] value) {
+        SocketServer server = socketServer;
+        int count = targets.size();
+        if (server == null || count == 0) {
+            return offset;
+        }
+        SocketFrame frame = SocketFrame.notify(SocketFrame.toUuid(characteristic), value);
+        int first = offset % count;
+        for (int i = 0; i < count; i++) {
+            server.send(targets.get((first + i) % count), frame);
+        }
+        return first + 1;
+    }
+
+    // This method publishes the first group's session, which clients keep a copy of, with every
+    // client holding a lane in it, including those whose lanes are reserved
+    private void publishSession() {
+        Group first = groups.get(0);
+        for (int lane = 1; lane <= SessionReplica.CLIENT_LANES; lane++) {
+            replica.removeMember(lane);
+        }
+        for (Map.Entry<String, Integer> entry : lanes.entrySet()) {
+            if (memberships.get(entry.getKey()) == first) {
+                int lane = entry.getValue();
+                replica.setMember(lane, entry.getKey(), first.engine.getString(RaceEngine.getDial(lane)));
+            }
+        }
+        replica.setRound(first.engine.getRound());
+        first.notify(SESSION, replica.encode().getBytes());
+    }
+
+    // This method gives a newly connected client its reserved lane, or the lowest free lane in
+    // the first group with one, starting a new group once every group is full
+    private void assignLane(String address) {
+        EventLoop.Timer expiry = reservations.remove(address);
+        if (expiry != null) {
+            expiry.cancel();
+            int lane = lanes.get(address);
+            Group group = memberships.get(address);
+            LOG.info("Lane " + lane + " of group " + group.engine.getId() + " reclaimed by " + address);
+            group.members.add(address);
+            if (group == groups.get(0)) {
+                publishSession();
+            }
+            group.engine.reclaimLane(lane);
+            return;
+        }
+
+        for (int i = 0; i <= groups.size() && i < maxGroups; i++) {
+            Group group;
+            if (i < groups.size()) {
+                group = groups.get(i);
+            } else {
+                group = new Group(i + 1);
+                groups.add(group);
+                LOG.info("Started race group " + (i + 1));
+            }
+            int lane = group.engine.assignLane();
+            if (lane != 0) {
+                lanes.put(address, lane);
+                memberships.put(address, group);
+                group.members.add(address);
+                if (group == groups.get(0)) {
+                    publishSession();
+                }
+                return;
+            }
+        }
+        LOG.warning("No free lane for client " + address);
+    }
+
+    // This method frees the lane of a disconnected client. Once the session has begun, the lane
+    // is unstaged and reserved instead, so the client can rejoin the race in the same lane
+    private void releaseLane(final String address) {
+        Integer lane = lanes.get(address);
+        Group group = memberships.get(address);
+        if (lane == null || group == null) {
+            return;
+        }
+        group.members.remove(address);
+        if (!sessionStarted) {
+            removeLane(address);
+            return;
+        }
+
+        group.engine.reserveLane(lane);
+        EventLoop.Timer expiry = eventLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reservations.remove(address);
+                removeLane(address);
+                LOG.info("Reservation expired for " + address);
+            }
+        }, RESERVATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        reservations.put(address, expiry);
+    }
+
+    // A lane that is no longer assigned is no longer required to stage, and can be given out
+    // again
+    private void removeLane(String address) {
+        Integer lane = lanes.remove(address);
+        Group group = memberships.remove(address);
+        if (lane != null && group != null) {
+            group.engine.removeLane(lane);
+            if (group == groups.get(0)) {
+                publishSession();
+            }
+        }
+    }
+
+    // One independent race, with its own members, judged by its engine
+    private class Group implements RaceEngine.Transport {
+        final RaceEngine engine;
+        final List<String> members = new ArrayList<>();
+        private int fanOutOffset = 0;
+
+        Group(int id) {
+            engine = new RaceEngine(id, false, scheduler, this);
+            engine.setStageWindow(stageWindow);
+            engine.setLoopMode(loopMode, cooldown);
+        }
+
+        // The first group's races are recorded, and its session is published as it changes
+        @Override
+        public void notify(int characteristic, byte[] value) {
+            fanOutOffset = fanOut(members, fanOutOffset, characteristic, value);
+            boolean first = engine.getId() == 1;
+            if (characteristic == RaceEngine.RACE_READY) {
+                if (first && recording != null) {
+                    record(RaceLog.Event.start(hostTime(), engine.getStartTime()));
+                }
+                LOG.info("Race started in group " + engine.getId());
+            } else if (characteristic == RaceEngine.RACE_FINISHED) {
+                Tournament tournament = engine.getTournament();
+                if (first && tournament != null && tournament.getCurrentHeat() != null) {
+                    replica.addHeat(engine.getFoulMask(), new String(value));
+                }
+                LOG.info("Results in group " + engine.getId() + ": " + new String(value));
+                if (first) {
+                    publishSession();
+                }
+            } else if (characteristic == RaceEngine.ROUND && first) {
+                if (recording != null) {
+                    record(RaceLog.Event.round(hostTime()));
+                }
+                publishSession();
+            } else if (characteristic == RaceEngine.HEAT && engine.getTournament().isFinished()) {
+                LOG.info("Tournament won by " + engine.getTournament().getChampion());
+            }
+        }
+
+        // Nothing but the group's own lanes holds up the start
+        @Override
+        public long checkReady(boolean staged, long stagedSince) {
+            return stagedSince;
+        }
+
+        @Override
+        public boolean isReported() {
+            return true;
+        }
+    }
+}
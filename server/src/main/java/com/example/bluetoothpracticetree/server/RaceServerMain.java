@@ -0,0 +1,91 @@
+package com.example.bluetoothpracticetree.server;
+
+import com.example.bluetoothpracticetree.utility.SocketServer;
+import com.example.bluetoothpracticetree.utility.Tournament;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+    This class starts the race server from the command line, and closes it when the process is
+    stopped, so it can run as a service.
+ */
+
+public class RaceServerMain {
+    private static final String USAGE = "Usage: race-server [--port N] [--racers N] [--groups N]"
+            + " [--stage-window MS] [--loop] [--cooldown MS] [--entrants A,B,... | --double A,B,...] [--record FILE]";
+
+    public static void main(String[] args) {
+        // One line per log record, which reads better in the journal
+        System.setProperty("java.util.logging.SimpleFormatter.format",
+                "%1$tF %1$tT.%1$tL %4$s %5$s%6$s%n");
+
+        final RaceServer server = new RaceServer();
+        int port = SocketServer.DEFAULT_PORT;
+        boolean loopMode = false;
+        long cooldown = 3000;
+        String recording = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port": port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--racers": server.setRacers(Integer.parseInt(args[++i]));
+                        break;
+                    case "--groups": server.setMaxGroups(Integer.parseInt(args[++i]));
+                        break;
+                    case "--stage-window": server.setStageWindow(Long.parseLong(args[++i]));
+                        break;
+                    case "--loop": loopMode = true;
+                        break;
+                    case "--cooldown": cooldown = Long.parseLong(args[++i]);
+                        break;
+                    case "--entrants": server.setTournament(Arrays.asList(args[++i].split(",")),
+                            Tournament.SINGLE_ELIMINATION);
+                        break;
+                    case "--double": server.setTournament(Arrays.asList(args[++i].split(",")),
+                            Tournament.DOUBLE_ELIMINATION);
+                        break;
+                    case "--record": recording = args[++i];
+                        break;
+                    default:
+                        System.err.println(USAGE);
+                        System.exit(args[i].equals("--help") ? 0 : 2);
+                        return;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        server.setLoopMode(loopMode, cooldown);
+
+        if (recording != null) {
+            try {
+                server.setRecording(new FileWriter(recording));
+            } catch (IOException e) {
+                System.err.println("Could not record to " + recording + ": " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+        }
+
+        try {
+            server.start(port);
+        } catch (IOException e) {
+            System.err.println("Could not listen on port " + port + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        // The event loop keeps the process running until it is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.close();
+            }
+        });
+    }
+}
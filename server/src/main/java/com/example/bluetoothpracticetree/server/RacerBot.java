@@ -0,0 +1,431 @@
+package com.example.bluetoothpracticetree.server;
+
+import com.example.bluetoothpracticetree.utility.EventLoop;
+import com.example.bluetoothpracticetree.utility.FoulJudge;
+import com.example.bluetoothpracticetree.utility.RaceResults;
+import com.example.bluetoothpracticetree.utility.SocketClient;
+import com.example.bluetoothpracticetree.utility.SocketFrame;
+import com.example.bluetoothpracticetree.utility.UuidUtils;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+    This class is a simulated racer, which joins a host over the socket transport and races the
+    way the app does, for as long as it runs. It can race against the headless server, or against
+    a phone hosting with the Wi-Fi transport on.
+
+    Like the app, it syncs its clock to the host's, reads its lane and group, and sends its
+    dial-in. Once the session has begun it stages, reads the other dial-ins, and waits for the
+    start signal. It then works out when its own tree turns green, releases at its reaction time
+    after that, sends the release and its reaction time, and unstages. Once the results arrive it
+    stages again for the next race, or sometimes drops its connection and rejoins.
+
+    Every frame in either direction can be held back by the profile's link latency, without ever
+    being reordered, since the transport never reorders them either. Everything a bot does runs on
+    its own event loop.
+ */
+
+public class RacerBot {
+    private static final Logger LOG = Logger.getLogger(RacerBot.class.getName());
+    private static final int MAILBOX_CAPACITY = 256;
+    private static final int CLOCK_SAMPLES = 5;
+    // How long a fumbled stage is held before backing out of it
+    private static final long FUMBLE_TIME = 150;
+    private static final int CLIENT_LANES = 3;
+
+    private static final UUID[] DIALS = {UuidUtils.RACER_1_DIAL, UuidUtils.RACER_2_DIAL, UuidUtils.RACER_3_DIAL};
+    private static final UUID[] STAGES = {UuidUtils.RACER_1_STAGE, UuidUtils.RACER_2_STAGE, UuidUtils.RACER_3_STAGE};
+    private static final UUID[] RTS = {UuidUtils.RACER_1_RT, UuidUtils.RACER_2_RT, UuidUtils.RACER_3_RT};
+
+    private final String name;
+    private final String host;
+    private final int port;
+    private final BotProfile profile;
+    private final FleetStats stats;
+    private final Random random;
+    private final EventLoop eventLoop;
+
+    // Everything below is only touched on the event loop
+    private SocketClient client;
+    // Bumped for every connection, so frames from an old one are ignored
+    private int connection = 0;
+    private boolean stopped = false;
+
+    private long lastSendAt;
+    private long lastReceiveAt;
+
+    private int clockSamples;
+    private long clockSentAt;
+    private long bestRoundTrip;
+    private long clockOffset;
+
+    private int lane;
+    private int group;
+    private long dial;
+    private final long[] dials = new long[CLIENT_LANES];
+    private boolean begun;
+    private boolean staged;
+    private String race;
+    private EventLoop.Timer stageTimer;
+    private EventLoop.Timer releaseTimer;
+
+    public RacerBot(String name, String host, int port, BotProfile profile, FleetStats stats, long seed) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.profile = profile;
+        this.stats = stats;
+        this.random = new Random(seed);
+        eventLoop = new EventLoop(name, MAILBOX_CAPACITY);
+        eventLoop.setErrorListener(new EventLoop.ErrorListener() {
+            @Override
+            public void onError(Throwable error) {
+                LOG.log(Level.SEVERE, RacerBot.this.name + " failed", error);
+            }
+        });
+    }
+
+    public void start() {
+        eventLoop.start();
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        });
+    }
+
+    public void stop() {
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                stopped = true;
+                disconnect();
+            }
+        });
+        eventLoop.quit();
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(eventLoop.nanoTime());
+    }
+
+    private long hostNow() {
+        return now() + clockOffset;
+    }
+
+    private void connect() {
+        final int current = ++connection;
+        lane = 0;
+        group = 0;
+        begun = false;
+        staged = false;
+        race = null;
+        clockSamples = 0;
+        bestRoundTrip = Long.MAX_VALUE;
+        lastSendAt = 0;
+        lastReceiveAt = 0;
+        try {
+            client = new SocketClient(new SocketClient.Listener() {
+                @Override
+                public void onConnected() {
+                    eventLoop.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (current == connection) {
+                                stats.onConnected();
+                                syncClock();
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onFrame(final SocketFrame frame) {
+                    eventLoop.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (current == connection) {
+                                receive(frame);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onDisconnected() {
+                    eventLoop.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (current == connection) {
+                                LOG.info(name + " lost its connection");
+                                stats.onDisconnected();
+                                disconnect();
+                                scheduleReconnect();
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (IOException e) {
+            LOG.warning(name + " could not open a socket: " + e.getMessage());
+            scheduleReconnect();
+            return;
+        }
+        client.connect(host, port);
+    }
+
+    private void disconnect() {
+        connection++;
+        cancelTimers();
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (stopped) {
+            return;
+        }
+        eventLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!stopped) {
+                    connect();
+                }
+            }
+        }, profile.getReconnectDelay(), TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTimers() {
+        if (stageTimer != null) {
+            stageTimer.cancel();
+            stageTimer = null;
+        }
+        if (releaseTimer != null) {
+            releaseTimer.cancel();
+            releaseTimer = null;
+        }
+    }
+
+    // This method sends a frame once the link's latency has passed, after any frame sent before it
+    private void send(final SocketFrame frame) {
+        if (!profile.hasLatency()) {
+            if (client != null) {
+                client.send(frame);
+            }
+            return;
+        }
+        final int current = connection;
+        lastSendAt = Math.max(lastSendAt, eventLoop.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(profile.sampleLatency(random)));
+        eventLoop.scheduleAt(new Runnable() {
+            @Override
+            public void run() {
+                if (current == connection && client != null) {
+                    client.send(frame);
+                }
+            }
+        }, lastSendAt);
+    }
+
+    // This method handles a frame once the link's latency has passed, after any frame before it
+    private void receive(final SocketFrame frame) {
+        if (!profile.hasLatency()) {
+            handleFrame(frame);
+            return;
+        }
+        final int current = connection;
+        lastReceiveAt = Math.max(lastReceiveAt, eventLoop.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(profile.sampleLatency(random)));
+        eventLoop.scheduleAt(new Runnable() {
+            @Override
+            public void run() {
+                if (current == connection) {
+                    handleFrame(frame);
+                }
+            }
+        }, lastReceiveAt);
+    }
+
+    private void write(UUID uuid, String value) {
+        send(SocketFrame.write(uuid, value.getBytes()));
+    }
+
+    private void handleFrame(SocketFrame frame) {
+        UUID uuid = frame.getUuid();
+        String value = new String(frame.getValue());
+        if (frame.getType() == SocketFrame.RESPONSE) {
+            if (frame.getStatus() != 0) {
+                LOG.warning(name + " got status " + frame.getStatus() + " for " + uuid);
+            } else if (uuid.equals(UuidUtils.CLOCK)) {
+                onClock(value);
+            } else if (uuid.equals(UuidUtils.RACER_ID)) {
+                onLane(value);
+            } else if (uuid.equals(UuidUtils.GROUP_ID)) {
+                onGroup(value);
+            } else if (uuid.equals(UuidUtils.BEGIN_RACE_ACTIVITY)) {
+                onBegin(value);
+            } else {
+                onDial(uuid, value);
+            }
+        } else if (frame.getType() == SocketFrame.NOTIFY) {
+            if (uuid.equals(UuidUtils.BEGIN_RACE_ACTIVITY)) {
+                onBegin(value);
+            } else if (uuid.equals(UuidUtils.RACE_READY) && value.startsWith("start:")) {
+                onStart(Long.parseLong(value.substring("start:".length())));
+            } else if (uuid.equals(UuidUtils.RACE_FINISHED) && !RaceResults.RUNNING.equals(value)) {
+                onResults();
+            }
+        }
+    }
+
+    // The clock is synced like the app does it, from the read with the shortest round trip
+    private void syncClock() {
+        clockSentAt = now();
+        send(SocketFrame.read(UuidUtils.CLOCK));
+    }
+
+    private void onClock(String value) {
+        long receivedAt = now();
+        long roundTrip = receivedAt - clockSentAt;
+        if (roundTrip < bestRoundTrip) {
+            bestRoundTrip = roundTrip;
+            clockOffset = Long.parseLong(value) - (clockSentAt + receivedAt) / 2;
+        }
+        if (++clockSamples < CLOCK_SAMPLES) {
+            syncClock();
+        } else {
+            send(SocketFrame.read(UuidUtils.RACER_ID));
+        }
+    }
+
+    private void onLane(String value) {
+        lane = Integer.parseInt(value);
+        if (lane < 1 || lane > CLIENT_LANES) {
+            LOG.warning(name + " was not given a lane");
+            stats.onUnassigned();
+            return;
+        }
+        send(SocketFrame.read(UuidUtils.GROUP_ID));
+    }
+
+    private void onGroup(String value) {
+        group = Integer.parseInt(value);
+        dial = profile.sampleDial(random);
+        write(DIALS[lane - 1], Long.toString(dial));
+        send(SocketFrame.read(UuidUtils.BEGIN_RACE_ACTIVITY));
+    }
+
+    private void onBegin(String value) {
+        if (!begun && lane != 0 && "begin".equals(value)) {
+            begun = true;
+            scheduleStage();
+        }
+    }
+
+    private void onDial(UUID uuid, String value) {
+        for (int i = 0; i < CLIENT_LANES; i++) {
+            if (DIALS[i].equals(uuid)) {
+                try {
+                    dials[i] = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    dials[i] = 0;
+                }
+            }
+        }
+    }
+
+    private void scheduleStage() {
+        stageTimer = eventLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                stageTimer = null;
+                stage();
+            }
+        }, profile.sampleStageDelay(random), TimeUnit.MILLISECONDS);
+    }
+
+    // This method stages, first fumbling it now and then, and reads the dial-ins it races against
+    private void stage() {
+        if (profile.sampleFumble(random)) {
+            write(STAGES[lane - 1], "1");
+            stageTimer = eventLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    write(STAGES[lane - 1], "0");
+                    scheduleStage();
+                }
+            }, FUMBLE_TIME, TimeUnit.MILLISECONDS);
+            return;
+        }
+        staged = true;
+        write(STAGES[lane - 1], "1");
+        for (int i = 0; i < CLIENT_LANES; i++) {
+            send(SocketFrame.read(DIALS[i]));
+        }
+    }
+
+    // The slowest dial-in drops at the start time, and this lane's tree drops later by the
+    // difference in dial-ins, so the release is timed from its own green
+    private void onStart(long startTime) {
+        if (!staged || race != null) {
+            return;
+        }
+        race = group + ":" + startTime;
+        stats.onStart(race, eventLoop.nanoTime(), startTime - hostNow());
+
+        long highest = dial;
+        for (long other : dials) {
+            highest = Math.max(highest, other);
+        }
+        long green = startTime + (highest - dial) + FoulJudge.TREE_TIME;
+        final long reactionTime = profile.sampleReactionTime(random);
+        final long releaseTime = green + reactionTime;
+        releaseTimer = eventLoop.scheduleAt(new Runnable() {
+            @Override
+            public void run() {
+                releaseTimer = null;
+                release(releaseTime, reactionTime);
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(releaseTime - clockOffset));
+    }
+
+    private void release(long releaseTime, long reactionTime) {
+        staged = false;
+        write(UuidUtils.RELEASE, releaseTime + ",0");
+        write(RTS[lane - 1], Long.toString(reactionTime));
+        write(STAGES[lane - 1], "0");
+        stats.onRtSent(race, eventLoop.nanoTime(), reactionTime < 0);
+    }
+
+    // The race is over, so stage for the next one, or now and then drop out and rejoin
+    private void onResults() {
+        if (race == null) {
+            return;
+        }
+        stats.onResults(race, eventLoop.nanoTime());
+        race = null;
+        if (releaseTimer != null) {
+            // The results deadline passed before this lane released
+            releaseTimer.cancel();
+            releaseTimer = null;
+            staged = false;
+            write(STAGES[lane - 1], "0");
+        }
+
+        if (profile.sampleDisconnect(random)) {
+            stats.onDisconnected();
+            disconnect();
+            scheduleReconnect();
+        } else {
+            scheduleStage();
+        }
+    }
+}
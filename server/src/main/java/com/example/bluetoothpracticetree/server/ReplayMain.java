@@ -0,0 +1,53 @@
+package com.example.bluetoothpracticetree.server;
+
+import com.example.bluetoothpracticetree.utility.RaceLog;
+import com.example.bluetoothpracticetree.utility.RaceReplay;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    This class replays a race log recorded with `race-server --record FILE`, printing every bulb,
+    drop, reaction time, foul and result as it happened. With --quiet it only prints how the
+    replay went, which is how fast the race logic runs against a real session.
+ */
+
+public class ReplayMain {
+
+    public static void main(String[] args) throws IOException {
+        boolean quiet = args.length == 2 && args[0].equals("--quiet");
+        if (args.length != 1 && !quiet) {
+            System.err.println("Usage: replay [--quiet] FILE");
+            System.exit(2);
+            return;
+        }
+
+        RaceLog log;
+        Reader input = new FileReader(args[args.length - 1]);
+        try {
+            log = RaceLog.read(input);
+        } finally {
+            input.close();
+        }
+        List<RaceLog.Event> events = log.getEvents();
+
+        long begin = System.nanoTime();
+        RaceReplay replay = new RaceReplay(log);
+        List<String> transcript = replay.run();
+        long elapsed = System.nanoTime() - begin;
+
+        if (!quiet) {
+            for (String line : transcript) {
+                System.out.println(line);
+            }
+        }
+        long span = events.isEmpty() ? 0 : events.get(events.size() - 1).getTime() - events.get(0).getTime();
+        System.err.println(String.format(Locale.US,
+                "Replayed %d events over %.1f s in %.1f ms (%.0fx real time), %d mismatched reaction times",
+                events.size(), span / 1000.0, elapsed / 1e6, span / Math.max(elapsed / 1e6, 0.001),
+                replay.getMismatches()));
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.bluetoothpracticetree.server;
+
+import com.example.bluetoothpracticetree.utility.FoulJudge;
+import com.example.bluetoothpracticetree.utility.RaceEngine;
+import com.example.bluetoothpracticetree.utility.VirtualClock;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Races bots against the server through impaired links, and checks that start skew and the time
+ * it takes results to reach every racer stay within what the links account for. The host's race
+ * engine is also run on a virtual clock behind the same impairments, where the bounds hold
+ * without any slack for scheduling.
+ */
+public class LinkLatencyRegressionTest {
+    private static final int BOTS = 9;
+    private static final int RACES = 12;
+    private static final long TIMEOUT = 60;
+    // How often a frame can be lost on its way before the bounds no longer hold
+    private static final int LOSSES = 2;
+    // What scheduling on a busy machine can add on top of the links, well over what it does
+    private static final long SLACK = TimeUnit.MILLISECONDS.toNanos(25);
+    private static final long REACTION_TIME = 100;
+
+    private RaceServer server;
+    private ImpairmentProxy proxy;
+    private final List<RacerBot> bots = new ArrayList<>();
+    private final FleetStats stats = new FleetStats();
+
+    @After
+    public void tearDown() {
+        for (RacerBot bot : bots) {
+            bot.stop();
+        }
+        if (proxy != null) {
+            proxy.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    // This method races the bots until enough races have finished
+    private void race(LinkImpairment link) throws Exception {
+        server = new RaceServer();
+        server.setRacers(BOTS);
+        server.setStageWindow(100);
+        server.setLoopMode(true, 100);
+        int port = server.start(0);
+        proxy = new ImpairmentProxy("127.0.0.1", port, link, link, 1);
+        int proxyPort = proxy.start(0);
+
+        BotProfile profile = new BotProfile();
+        profile.setStageDelay(50, 20);
+        profile.setFumbleRate(0);
+        profile.setReactionTimes(REACTION_TIME, 20, 0);
+        for (int i = 0; i < BOTS; i++) {
+            RacerBot bot = new RacerBot("bot-" + (i + 1), "127.0.0.1", proxyPort, profile, stats, i);
+            bots.add(bot);
+            bot.start();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (stats.getFinishedRaces() < RACES) {
+            assertTrue("Only " + stats.getFinishedRaces() + " races finished", System.nanoTime() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    // This method races the host's engine on a virtual clock, with every frame between it and
+    // its racers held back as the link would
+    private void raceEngine(final LinkImpairment link) {
+        final VirtualClock clock = new VirtualClock(0);
+        final Random random = new Random(1);
+        final RaceEngine[] engine = new RaceEngine[1];
+        engine[0] = new RaceEngine(1, false, clock, new RaceEngine.Transport() {
+            @Override
+            public void notify(int characteristic, byte[] value) {
+                String signal = new String(value);
+                final long sent = clock.uptimeMillis();
+                if (characteristic == RaceEngine.RACE_READY && signal.startsWith("start:")) {
+                    final long startTime = engine[0].getStartTime();
+                    final String race = "1:" + startTime;
+                    for (int lane = 1; lane <= RaceEngine.CLIENT_LANES; lane++) {
+                        final int racer = lane;
+                        clock.postAt(new Runnable() {
+                            @Override
+                            public void run() {
+                                long now = clock.uptimeMillis();
+                                stats.onStart(race, nanos(now), startTime - now);
+                                sendRt(racer, race, startTime + FoulJudge.TREE_TIME + REACTION_TIME);
+                            }
+                        }, sent + delay(link, random));
+                    }
+                } else if (characteristic == RaceEngine.RACE_FINISHED) {
+                    final String race = "1:" + engine[0].getStartTime();
+                    for (int lane = 1; lane <= RaceEngine.CLIENT_LANES; lane++) {
+                        clock.postAt(new Runnable() {
+                            @Override
+                            public void run() {
+                                stats.onResults(race, nanos(clock.uptimeMillis()));
+                            }
+                        }, sent + delay(link, random));
+                    }
+                }
+            }
+
+            // A racer's reaction time reaches the host a link's delay after it is sent
+            private void sendRt(final int lane, final String race, final long at) {
+                clock.postAt(new Runnable() {
+                    @Override
+                    public void run() {
+                        stats.onRtSent(race, nanos(at), false);
+                        clock.postAt(new Runnable() {
+                            @Override
+                            public void run() {
+                                engine[0].write(lane, RaceEngine.getRt(lane),
+                                        Long.toString(REACTION_TIME).getBytes());
+                            }
+                        }, at + delay(link, random));
+                    }
+                }, at);
+            }
+
+            @Override
+            public long checkReady(boolean staged, long stagedSince) {
+                return stagedSince;
+            }
+
+            @Override
+            public boolean isReported() {
+                return true;
+            }
+        });
+        engine[0].setStageWindow(100);
+        engine[0].setLoopMode(true, 100);
+        for (int lane = 1; lane <= RaceEngine.CLIENT_LANES; lane++) {
+            assertEquals(lane, engine[0].assignLane());
+            engine[0].write(lane, RaceEngine.getStage(lane), "1".getBytes());
+        }
+
+        long deadline = TimeUnit.SECONDS.toMillis(TIMEOUT);
+        while (stats.getFinishedRaces() < RACES) {
+            assertTrue("Only " + stats.getFinishedRaces() + " races finished", clock.uptimeMillis() < deadline);
+            clock.advanceTo(clock.uptimeMillis() + 10);
+        }
+    }
+
+    // How long a frame is held back, rounded up to the virtual clock's milliseconds
+    private static long delay(LinkImpairment link, Random random) {
+        long nanos = link.sampleDelay(random) + link.sampleReorder(random);
+        return (nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static long nanos(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    // Every racer is sent the start signal at once, so its skew is how much the way down varies,
+    // and results take the way up with the last reaction time and then the way down. None of the
+    // racers may get the signal after its tree should have dropped
+    private void assertWithinLink(LinkImpairment link, long slack) {
+        String summary = stats.summarize();
+        long rounding = TimeUnit.MILLISECONDS.toNanos(1);
+        long skew = link.getMaxDelay(LOSSES) - link.getMinDelay() + rounding + slack;
+        long latency = 2 * (link.getMaxDelay(LOSSES) + rounding) + slack;
+
+        assertEquals(summary, 0, stats.getLateStarts());
+        assertTrue(summary, stats.getStartSkew(50) <= skew);
+        assertTrue(summary, stats.getStartSkew(99) <= skew);
+        assertTrue(summary, stats.getResultLatency(50) <= latency);
+        assertTrue(summary, stats.getResultLatency(99) <= latency);
+    }
+
+    // A busy BLE link: 10 ms each way give or take 5, a 7.5 ms connection interval, and 2% of
+    // frames sent again on the next connection event
+    private static LinkImpairment bleLink() {
+        LinkImpairment link = new LinkImpairment();
+        link.setLatency(10, 5);
+        link.setConnectionInterval(7.5);
+        link.setLoss(0.02);
+        return link;
+    }
+
+    // Frames that are overtaken now and then must not stop races from finishing
+    private static LinkImpairment reorderingLink() {
+        LinkImpairment link = new LinkImpairment();
+        link.setLatency(5, 5);
+        link.setReorder(0.05);
+        return link;
+    }
+
+    @Test
+    public void unimpairedLinks() throws Exception {
+        LinkImpairment link = new LinkImpairment();
+        race(link);
+        assertWithinLink(link, SLACK);
+    }
+
+    @Test
+    public void bleLikeLinks() throws Exception {
+        LinkImpairment link = bleLink();
+        race(link);
+        assertWithinLink(link, SLACK);
+    }
+
+    @Test
+    public void reorderedFrames() throws Exception {
+        LinkImpairment link = reorderingLink();
+        race(link);
+        assertWithinLink(link, SLACK);
+    }
+
+    @Test
+    public void hostEngine_bleLikeLinks() {
+        LinkImpairment link = bleLink();
+        raceEngine(link);
+        assertWithinLink(link, 0);
+    }
+
+    @Test
+    public void hostEngine_reorderedFrames() {
+        LinkImpairment link = reorderingLink();
+        raceEngine(link);
+        assertWithinLink(link, 0);
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.bluetoothpracticetree.server;
+
+import com.example.bluetoothpracticetree.utility.LinkStats;
+import com.example.bluetoothpracticetree.utility.RaceLog;
+import com.example.bluetoothpracticetree.utility.RaceReplay;
+import com.example.bluetoothpracticetree.utility.SocketClient;
+import com.example.bluetoothpracticetree.utility.SocketFrame;
+import com.example.bluetoothpracticetree.utility.UuidUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Races two clients against the server over localhost, the way the app does over Wi-Fi.
+ */
+public class RaceServerTest {
+    private static final long TIMEOUT = 2;
+
+    private RaceServer server;
+    private int port;
+    private final BlockingQueue<SocketFrame> events1 = new LinkedBlockingQueue<>();
+    private final BlockingQueue<SocketFrame> events2 = new LinkedBlockingQueue<>();
+    private SocketClient client1;
+    private SocketClient client2;
+    private final StringWriter recording = new StringWriter();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new RaceServer();
+        server.setRacers(2);
+        server.setStageWindow(100);
+        server.setRecording(recording);
+        port = server.start(0);
+        client1 = connect(events1);
+        client2 = connect(events2);
+    }
+
+    @After
+    public void tearDown() {
+        client1.close();
+        client2.close();
+        server.close();
+    }
+
+    private SocketClient connect(final BlockingQueue<SocketFrame> events) throws Exception {
+        final BlockingQueue<Boolean> connected = new LinkedBlockingQueue<>();
+        SocketClient client = new SocketClient(new SocketClient.Listener() {
+            @Override
+            public void onConnected() {
+                connected.add(true);
+            }
+
+            @Override
+            public void onFrame(SocketFrame frame) {
+                events.add(frame);
+            }
+
+            @Override
+            public void onDisconnected() {
+            }
+        });
+        client.connect("127.0.0.1", port);
+        assertNotNull(connected.poll(TIMEOUT, TimeUnit.SECONDS));
+        return client;
+    }
+
+    // This method waits for the next frame about a characteristic, skipping any others
+    private SocketFrame await(BlockingQueue<SocketFrame> events, int type, UUID uuid) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (System.nanoTime() < deadline) {
+            SocketFrame frame = events.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (frame != null && frame.getType() == type && frame.getUuid().equals(uuid)) {
+                return frame;
+            }
+        }
+        fail("No frame for " + uuid);
+        return null;
+    }
+
+    private String read(SocketClient client, BlockingQueue<SocketFrame> events, UUID uuid) throws Exception {
+        client.send(SocketFrame.read(uuid));
+        SocketFrame response = await(events, SocketFrame.RESPONSE, uuid);
+        assertEquals(0, response.getStatus());
+        return new String(response.getValue());
+    }
+
+    @Test
+    public void clients_getTheirOwnLanes() throws Exception {
+        assertEquals("1", read(client1, events1, UuidUtils.RACER_ID));
+        assertEquals("2", read(client2, events2, UuidUtils.RACER_ID));
+        assertEquals("1", read(client2, events2, UuidUtils.GROUP_ID));
+    }
+
+    @Test
+    public void session_beginsOnceEveryRacerHasJoined() throws Exception {
+        SocketFrame begin = await(events1, SocketFrame.NOTIFY, UuidUtils.BEGIN_RACE_ACTIVITY);
+
+        assertEquals("begin", new String(begin.getValue()));
+        assertEquals("begin", read(client2, events2, UuidUtils.BEGIN_RACE_ACTIVITY));
+    }
+
+    @Test
+    public void clock_isTheHostsTime() throws Exception {
+        long before = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        long clock = Long.parseLong(read(client1, events1, UuidUtils.CLOCK));
+
+        assertTrue(clock >= before);
+        assertTrue(clock <= TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+    }
+
+    @Test
+    public void ping_isAnswered() throws Exception {
+        client1.send(SocketFrame.write(UuidUtils.PING, LinkStats.encodePing(LinkStats.UNKNOWN, 0, 1).getBytes()));
+
+        assertEquals(0, await(events1, SocketFrame.RESPONSE, UuidUtils.PING).getStatus());
+    }
+
+    @Test
+    public void writingTheHostsLane_isNotPermitted() throws Exception {
+        client1.send(SocketFrame.write(UuidUtils.RACER_HOST_STAGE, "1".getBytes()));
+
+        assertEquals(3, await(events1, SocketFrame.RESPONSE, UuidUtils.RACER_HOST_STAGE).getStatus());
+    }
+
+    @Test
+    public void stagedLanes_startARace_andGetResults() throws Exception {
+        client1.send(SocketFrame.write(UuidUtils.RACER_1_STAGE, "1".getBytes()));
+        client2.send(SocketFrame.write(UuidUtils.RACER_2_STAGE, "1".getBytes()));
+
+        String start1 = new String(await(events1, SocketFrame.NOTIFY, UuidUtils.RACE_READY).getValue());
+        String start2 = new String(await(events2, SocketFrame.NOTIFY, UuidUtils.RACE_READY).getValue());
+        assertTrue(start1.startsWith("start:"));
+        assertEquals(start1, start2);
+
+        client1.send(SocketFrame.write(UuidUtils.RACER_1_RT, "512".getBytes()));
+        client2.send(SocketFrame.write(UuidUtils.RACER_2_RT, "498".getBytes()));
+
+        SocketFrame results = await(events1, SocketFrame.NOTIFY, UuidUtils.RACE_FINISHED);
+        assertEquals("1|512,498,,", new String(results.getValue()));
+    }
+
+    @Test
+    public void unstagedLane_holdsOffTheStart() throws Exception {
+        // Both clients are in the group once the session has begun, so both see the stage
+        await(events2, SocketFrame.NOTIFY, UuidUtils.BEGIN_RACE_ACTIVITY);
+        client1.send(SocketFrame.write(UuidUtils.RACER_1_STAGE, "1".getBytes()));
+        await(events2, SocketFrame.NOTIFY, UuidUtils.RACER_1_STAGE);
+
+        assertEquals("", read(client1, events1, UuidUtils.RACE_READY));
+        Thread.sleep(300);
+        for (SocketFrame frame : events1) {
+            assertNotEquals(UuidUtils.RACE_READY, frame.getUuid());
+        }
+    }
+
+    @Test
+    public void recordedRace_replaysTheSameResults() throws Exception {
+        client1.send(SocketFrame.write(UuidUtils.RACER_1_STAGE, "1".getBytes()));
+        client2.send(SocketFrame.write(UuidUtils.RACER_2_STAGE, "1".getBytes()));
+        String start = new String(await(events1, SocketFrame.NOTIFY, UuidUtils.RACE_READY).getValue());
+        long startTime = Long.parseLong(start.substring("start:".length()));
+
+        // Release once the host's clock has passed the release times, as a real racer would
+        long release1 = startTime + 1700;
+        long release2 = startTime + 1750;
+        while (Long.parseLong(read(client1, events1, UuidUtils.CLOCK)) < release2) {
+            Thread.sleep(20);
+        }
+        client1.send(SocketFrame.write(UuidUtils.RELEASE, (release1 + ",0").getBytes()));
+        client1.send(SocketFrame.write(UuidUtils.RACER_1_RT, "200".getBytes()));
+        client2.send(SocketFrame.write(UuidUtils.RELEASE, (release2 + ",0").getBytes()));
+        client2.send(SocketFrame.write(UuidUtils.RACER_2_RT, "250".getBytes()));
+        assertEquals("1|200,250,,",
+                new String(await(events1, SocketFrame.NOTIFY, UuidUtils.RACE_FINISHED).getValue()));
+
+        RaceReplay replay = new RaceReplay(RaceLog.read(new StringReader(recording.toString())));
+        assertTrue(replay.run().contains(release2 + " results 1|200,250,,"));
+        assertEquals(0, replay.getMismatches());
+    }
+}